@@ -7,26 +7,46 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Timer;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
 import client.file_change_detector.FileChangeDetectorTimerTask;
+import client.file_change_detector.FileHashCache;
 import client.file_change_detector.ScanBasedFileChangeDetector;
 
 import common.Actions;
 import common.ConfigurationException;
-import common.MessageParseUtil;
+import common.DigestTree;
+import common.ExecutionMode;
+import common.FileConnectionDispatcher;
+import common.FileTransferMode;
+import common.FramedConnection;
+import common.IRevisionIndex;
+import common.MappedRevisionIndex;
+import common.MemoryRevisionIndex;
+import common.Message;
+import common.PathTrie;
+import common.RevisionIndexMode;
+import common.SerializationUtil;
+import common.StagedFile;
+import common.TaskExecutor;
+import common.ParallelTransfer;
+import common.TransferCompression;
+import common.TrieRevisionIndex;
+import common.delta.DeltaTransfer;
 
 /**
  * @author Ashish Pahlazani Client class takes care or of initializing all the
@@ -39,6 +59,17 @@ public class Client implements IClient {
 	private static final Logger logger = Logger.getLogger(Client.class);
 
 	private int fileScanInterval = 1000;
+	// 0 if changes are detected on the last modified time only
+	private int hashThreadCount = Runtime.getRuntime().availableProcessors();
+	private long resumeFileMaxAgeHours = 24;
+	private SyncMode syncMode = SyncMode.PUSH;
+	private long pullWaitMillis = 30000;
+	// saved with the revision numbers
+	private volatile long changeRevision = 0;
+	private boolean loadInitialRepository = true;
+	// set if nothing was saved by a previous run
+	private boolean initialLoadRequired = false;
+	private int snapshotWriterCount = 8;
 	private String username = "Client1";
 	private String password = "";
 	private String serverIp = "localhost";
@@ -47,15 +78,32 @@ public class Client implements IClient {
 	private int serverFilePort = 2002;
 	private int clientFilePort = 3001;
 	private Socket sock;
-	private OutputStream socketOutputStream;
-	private PrintWriter pwriter;
+	private FramedConnection connection;
+	private FileTransferMode fileTransferMode = FileTransferMode.SOCKET;
+	private DeltaTransfer deltaTransfer;
+	private TransferCompression transferCompression;
+	private ParallelTransfer parallelTransfer;
+	private int maxUploads = 8;
+	private int maxDownloads = 4;
 	private FileChangeDetectorTimerTask fileChangeDetector;
 	private ClientSocketListenerWorker messageReceiver;
 	private Timer timer;
 	private Thread messageReceiverThread;
 	private ServerSocket fileReceiveServerSocket;
-	private Map<File, Actions> ignoreUpdateOnFileMap;
-	private Map<String, Long> filesStatusMap;
+	private FileConnectionDispatcher fileConnectionDispatcher;
+	// by absolute path, used by the timer and the listener threads
+	private PathTrie<Actions> ignoreUpdateOnFiles;
+	// changes found by the running scan, only used by the timer thread
+	private List<Message> pendingChanges = new ArrayList<Message>();
+	private RevisionIndexMode revisionIndexMode = RevisionIndexMode.MEMORY;
+	private String revisionIndexPath = "client_revisions";
+	private IRevisionIndex filesStatus;
+	// files whose revision is known by the server, saved with filesStatus
+	private DigestTree digestTree = new DigestTree(File.separatorChar);
+	private String digestTreePath = "client_digests";
+	private boolean reconcileOnConnect = true;
+	private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+	private TaskExecutor taskExecutor;
 
 	public Client(Properties properties) {
 		if (logger.isDebugEnabled())
@@ -63,33 +111,52 @@ public class Client implements IClient {
 
 		loadClientProperties(properties);
 
-		filesStatusMap = new ConcurrentHashMap<String, Long>();
-
 		try {
 			loadFilesStatus();
+			deleteStaleTempFiles();
 			sock = new Socket(serverIp, port);
-			socketOutputStream = sock.getOutputStream();
-			pwriter = new PrintWriter(socketOutputStream, true);
-			fileReceiveServerSocket = new ServerSocket(clientFilePort);
+			connection = new FramedConnection(sock);
+			if (fileTransferMode == FileTransferMode.SOCKET) {
+				// opened as a channel so accepted sockets support transferFrom
+				ServerSocketChannel fileServerSocketChannel = ServerSocketChannel
+						.open();
+				fileServerSocketChannel.socket().bind(
+						new InetSocketAddress(clientFilePort));
+				fileReceiveServerSocket = fileServerSocketChannel.socket();
+			}
 
 			if (logger.isInfoEnabled())
 				logger.info("Client Connected : Writing userName");
 
-			sendMessageToServer(Actions.USRNAME_PASSWORD, username + ":"
-					+ password);
-
-			ignoreUpdateOnFileMap = new HashMap<File, Actions>();
-			fileChangeDetector = new ScanBasedFileChangeDetector(rootFolderPath) {
+			sendMessageToServer(new Message(Actions.USRNAME_PASSWORD)
+					.setText(username + ":" + password));
+			// files are sent uncompressed until the server answers
+			sendMessageToServer(new Message(Actions.COMPRESSION)
+					.setText(transferCompression.getEnabledCodecs()));
+
+			ignoreUpdateOnFiles = new PathTrie<Actions>(File.separatorChar);
+			FileHashCache hashCache = null;
+			if (hashThreadCount > 0) {
+				hashCache = new FileHashCache(new File(rootFolderPath),
+						new File("client_hashes.dat"), hashThreadCount);
+				hashCache.load();
+			}
+			fileChangeDetector = new ScanBasedFileChangeDetector(
+					rootFolderPath, hashCache) {
 				@Override
 				protected void onChange(File file, Actions action) {
 					if (logger.isInfoEnabled())
 						logger.info("File = " + file.getAbsolutePath()
 								+ " Operation = " + action);
 
-					if (ignoreUpdateOnFileMap.get(file) != null) {
+					Actions ignoredAction;
+					synchronized (ignoreUpdateOnFiles) {
+						ignoredAction = ignoreUpdateOnFiles.remove(file
+								.getAbsolutePath());
+					}
+					if (ignoredAction != null) {
 						if (logger.isDebugEnabled())
 							logger.debug("File present in ignore map, ignoring update");
-						ignoreUpdateOnFileMap.remove(file);
 						return;
 					}
 
@@ -100,18 +167,30 @@ public class Client implements IClient {
 						String absolutePath = file.getAbsolutePath();
 						String relativePath = absolutePath
 								.substring(rootFolderPath.length());
-						Long revisionNumber = filesStatusMap.get(relativePath);
-						logger.info("filesStatusMap = " + filesStatusMap);
-						if (revisionNumber != null)
-							sendMessageToServer(action, relativePath
-									+ MessageParseUtil.commaSeparator
-									+ revisionNumber);
-						else
-							sendMessageToServer(action, relativePath
-									+ MessageParseUtil.commaSeparator + -1);
-						filesStatusMap.put(relativePath, -1L);
+						long revisionNumber = filesStatus.get(relativePath);
+						if (logger.isDebugEnabled())
+							logger.debug("revisionNumber = " + revisionNumber);
+						pendingChanges.add(new Message(action, relativePath,
+								revisionNumber));
+						filesStatus.put(relativePath, -1L);
+						digestTree.remove(relativePath);
+					}
+				}
+
+				@Override
+				protected void onContentUnchanged(File file) {
+					if (logger.isInfoEnabled())
+						logger.info("File = " + file.getAbsolutePath()
+								+ " content unchanged, MODIFY suppressed");
+					synchronized (ignoreUpdateOnFiles) {
+						ignoreUpdateOnFiles.remove(file.getAbsolutePath());
 					}
 				}
+
+				@Override
+				protected void onScanComplete() {
+					sendPendingChanges();
+				}
 			};
 
 			timer = new Timer();
@@ -119,8 +198,15 @@ public class Client implements IClient {
 			if (logger.isInfoEnabled())
 				logger.info("fileChangeDetector started");
 
+			taskExecutor = new TaskExecutor(executionMode);
+			if (fileReceiveServerSocket != null) {
+				fileConnectionDispatcher = new FileConnectionDispatcher(
+						fileReceiveServerSocket, taskExecutor);
+				new Thread(fileConnectionDispatcher,
+						"FileConnectionDispatcher").start();
+			}
 			messageReceiver = new ClientSocketListenerWorker(this,
-					fileReceiveServerSocket, sock);
+					fileConnectionDispatcher, connection, taskExecutor);
 			messageReceiverThread = new Thread(messageReceiver);
 			messageReceiverThread.start();
 
@@ -138,6 +224,10 @@ public class Client implements IClient {
 		} finally {
 			if (timer != null)
 				timer.cancel();
+			if (fileChangeDetector != null)
+				fileChangeDetector.cancel();
+			if (taskExecutor != null)
+				taskExecutor.shutdown();
 			destroy();
 		}
 
@@ -177,14 +267,42 @@ public class Client implements IClient {
 		return rootFolderPath;
 	}
 
+	@Override
+	public FileTransferMode getFileTransferMode() {
+		return fileTransferMode;
+	}
+
+	@Override
+	public DeltaTransfer getDeltaTransfer() {
+		return deltaTransfer;
+	}
+
+	@Override
+	public TransferCompression getTransferCompression() {
+		return transferCompression;
+	}
+
+	@Override
+	public ParallelTransfer getParallelTransfer() {
+		return parallelTransfer;
+	}
+
+	@Override
+	public int getMaxUploads() {
+		return maxUploads;
+	}
+
+	@Override
+	public int getMaxDownloads() {
+		return maxDownloads;
+	}
+
 	@Override
 	public long getRevisionNumber(String relativePathOfFile) {
 		if (logger.isDebugEnabled())
 			logger.debug("getRevisionNumber ENTER");
 
-		Long revisionNumber = filesStatusMap.get(relativePathOfFile);
-		if (revisionNumber == null)
-			revisionNumber = -1L;
+		long revisionNumber = filesStatus.get(relativePathOfFile);
 
 		if (logger.isDebugEnabled())
 			logger.debug("getRevisionNumber LEAVE revisionNumber = "
@@ -197,21 +315,79 @@ public class Client implements IClient {
 		if (logger.isDebugEnabled())
 			logger.debug("setRevisionNumber - ENTER relativePathOfFile = "
 					+ relativePathOfFile + " revisionNumber " + revisionNumber);
-		filesStatusMap.put(relativePathOfFile, revisionNumber);
+		filesStatus.put(relativePathOfFile, revisionNumber);
+		// -1 until the server accepts the local change
+		if (revisionNumber < 0)
+			digestTree.remove(relativePathOfFile);
+		else
+			digestTree.put(relativePathOfFile, revisionNumber, false);
 		if (logger.isDebugEnabled())
 			logger.debug("setRevisionNumber - LEAVE");
 	}
 
+	@Override
+	public void setDeletedRevisionNumber(String relativePathOfFile,
+			long revisionNumber) {
+		if (logger.isDebugEnabled())
+			logger.debug("setDeletedRevisionNumber relativePathOfFile = "
+					+ relativePathOfFile + " revisionNumber " + revisionNumber);
+		filesStatus.put(relativePathOfFile, revisionNumber);
+		digestTree.remove(relativePathOfFile);
+	}
+
+	@Override
+	public SyncMode getSyncMode() {
+		return syncMode;
+	}
+
+	@Override
+	public long getPullWaitMillis() {
+		return pullWaitMillis;
+	}
+
+	@Override
+	public long getChangeRevision() {
+		return changeRevision;
+	}
+
+	@Override
+	public void setChangeRevision(long changeRevision) {
+		this.changeRevision = changeRevision;
+	}
+
+	@Override
+	public boolean isInitialLoadRequired() {
+		return initialLoadRequired;
+	}
+
+	@Override
+	public int getSnapshotWriterCount() {
+		return snapshotWriterCount;
+	}
+
+	@Override
+	public DigestTree getDigestTree() {
+		return digestTree;
+	}
+
+	@Override
+	public boolean isReconcileOnConnect() {
+		return reconcileOnConnect;
+	}
+
 	@Override
 	public void ignoreFileForUpdate(File file, Actions action) {
-		ignoreUpdateOnFileMap.put(file, action);
+		synchronized (ignoreUpdateOnFiles) {
+			ignoreUpdateOnFiles.put(file.getAbsolutePath(), action);
+		}
 	}
 
 	/**
 	 * This method loads the file status, i.e, the revision no. of each file in
 	 * the repository The status will be saved in a file, using serialization.
-	 * The status is loaded in concurrentHashMap as of now, but it can be
-	 * maintained in database too
+	 * The status is loaded in the revision index, a concurrentHashMap or a
+	 * memory-mapped file which saves itself, but it can be maintained in
+	 * database too
 	 * 
 	 * @throws IOException
 	 */
@@ -219,14 +395,31 @@ public class Client implements IClient {
 		if (logger.isDebugEnabled())
 			logger.debug("loadFilesStatus - ENTER");
 
+		if (revisionIndexMode == RevisionIndexMode.MAPPED)
+			filesStatus = new MappedRevisionIndex(new File(revisionIndexPath));
+		else if (revisionIndexMode == RevisionIndexMode.TRIE)
+			filesStatus = new TrieRevisionIndex();
+		else
+			filesStatus = new MemoryRevisionIndex();
+
 		File file = new File("client.dat");
 
 		if (file.exists()) {
 			FileInputStream fis = new FileInputStream(file);
 			ObjectInputStream ois = new ObjectInputStream(fis);
 			try {
-				filesStatusMap = (Map<String, Long>) ois.readObject();
-				logger.info(" filesStatusMap = " + filesStatusMap);
+				// empty if the index saves itself
+				Map<String, Long> savedStatus = SerializationUtil.readMap(ois,
+						String.class, Long.class);
+				for (Map.Entry<String, Long> entry : savedStatus.entrySet())
+					filesStatus.put(entry.getKey(), entry.getValue());
+				logger.info(" files = " + filesStatus.size());
+				try {
+					changeRevision = ois.readLong();
+				} catch (IOException e) {
+					// saved before the change feed existed, read all the changes
+					changeRevision = 0;
+				}
 			} catch (ClassNotFoundException e) {
 				logger.error("Exception while loading fileStatus" + e);
 			} finally {
@@ -235,20 +428,78 @@ public class Client implements IClient {
 				if (fis != null)
 					fis.close();
 			}
+			loadDigestTree();
 		} else {
 			if (logger.isInfoEnabled())
 				logger.info("Client.dat does not exist");
+			initialLoadRequired = loadInitialRepository
+					&& filesStatus.size() == 0;
 		}
 		if (logger.isDebugEnabled())
 			logger.debug("loadFilesStatus - LEAVE");
 	}
 
+	/**
+	 * Deletes the temp files of the transfers cut by the previous run. The
+	 * resumable ones are kept for RESUME_FILE_MAX_AGE_HOURS, the server may
+	 * still send the rest of the file
+	 */
+	private void deleteStaleTempFiles() {
+		int count = StagedFile.deleteStaleFiles(new File(rootFolderPath),
+				TimeUnit.HOURS.toMillis(resumeFileMaxAgeHours));
+		if (logger.isInfoEnabled())
+			logger.info("stale temp files deleted = " + count);
+	}
+
+	/**
+	 * Loads the digest tree saved with client.dat. The file is deleted once
+	 * loaded, so the tree is rebuilt from the revision numbers if the client
+	 * stops without saving it again.
+	 * 
+	 * @throws IOException
+	 */
+	private void loadDigestTree() throws IOException {
+		File file = new File(digestTreePath);
+		if (file.exists()) {
+			try {
+				digestTree.load(file);
+				file.delete();
+				if (logger.isInfoEnabled())
+					logger.info("digest tree loaded, files = "
+							+ digestTree.size());
+				return;
+			} catch (IOException e) {
+				logger.error("Exception while loading digest tree, rebuilding it : "
+						+ e);
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		// deleted files keep the revision of their deletion
+		filesStatus.forEach(new IRevisionIndex.IEntryVisitor() {
+			@Override
+			public void visit(String relativePath, long revisionNumber) {
+				if (revisionNumber >= 0
+						&& new File(rootFolderPath + relativePath).exists())
+					digestTree.put(relativePath, revisionNumber, false);
+			}
+		});
+		if (logger.isInfoEnabled())
+			logger.info("digest tree rebuilt in "
+					+ (System.currentTimeMillis() - start) + " ms, files = "
+					+ digestTree.size());
+	}
+
 	@Override
 	public void removeFileFromIgnoreList(File file) {
 		if (logger.isDebugEnabled())
 			logger.debug("removeFileFromIgnoreList - ENTER");
 
-		if (ignoreUpdateOnFileMap.remove(file) != null) {
+		Actions ignoredAction;
+		synchronized (ignoreUpdateOnFiles) {
+			ignoredAction = ignoreUpdateOnFiles.remove(file.getAbsolutePath());
+		}
+		if (ignoredAction != null) {
 			if (logger.isInfoEnabled())
 				logger.info("file still present in the list, these must be some problem reading file from server or writing file on client");
 		}
@@ -271,15 +522,61 @@ public class Client implements IClient {
 
 			serverIp = properties.getProperty("SERVER_IP");
 			port = Integer.parseInt(properties.getProperty("PORT"));
-			clientFilePort = Integer.parseInt(properties
-					.getProperty("CLIENT_FILE_PORT"));
+			fileTransferMode = FileTransferMode.valueOf(properties
+					.getProperty("FILE_TRANSFER_MODE", fileTransferMode.name())
+					.trim().toUpperCase());
+			if (fileTransferMode == FileTransferMode.SOCKET)
+				clientFilePort = Integer.parseInt(properties
+						.getProperty("CLIENT_FILE_PORT"));
 			serverFilePort = Integer.parseInt(properties
 					.getProperty("SERVER_FILE_PORT"));
 			fileScanInterval = Integer.parseInt(properties
 					.getProperty("FILE_SCAN_INTERVAL"));
 			username = properties.getProperty("USERNAME");
 			password = properties.getProperty("PASSWORD");
-		} catch (NumberFormatException e) {
+			syncMode = SyncMode.valueOf(properties.getProperty("SYNC_MODE",
+					syncMode.name()).trim().toUpperCase());
+			pullWaitMillis = Long.parseLong(properties.getProperty(
+					"PULL_WAIT", String.valueOf(pullWaitMillis)));
+			loadInitialRepository = Boolean.parseBoolean(properties
+					.getProperty("LOAD_INITIAL_REPOSITORY",
+							String.valueOf(loadInitialRepository)).trim());
+			snapshotWriterCount = Integer.parseInt(properties.getProperty(
+					"SNAPSHOT_WRITER_COUNT",
+					String.valueOf(snapshotWriterCount)));
+			hashThreadCount = Integer.parseInt(properties.getProperty(
+					"HASH_THREAD_COUNT", String.valueOf(hashThreadCount)));
+			resumeFileMaxAgeHours = Long.parseLong(properties.getProperty(
+					"RESUME_FILE_MAX_AGE_HOURS",
+					String.valueOf(resumeFileMaxAgeHours)));
+			revisionIndexMode = RevisionIndexMode.valueOf(properties
+					.getProperty("REVISION_INDEX", revisionIndexMode.name())
+					.trim().toUpperCase());
+			revisionIndexPath = properties.getProperty("REVISION_INDEX_PATH",
+					revisionIndexPath);
+			digestTreePath = properties.getProperty("DIGEST_TREE_PATH",
+					digestTreePath);
+			reconcileOnConnect = Boolean.parseBoolean(properties.getProperty(
+					"RECONCILE_ON_CONNECT", String.valueOf(reconcileOnConnect))
+					.trim());
+			executionMode = TaskExecutor.parseExecutionMode(properties
+					.getProperty("EXECUTION_MODE"));
+			deltaTransfer = new DeltaTransfer(Long.parseLong(properties
+					.getProperty("DELTA_MIN_FILE_SIZE", "1048576")),
+					Double.parseDouble(properties.getProperty(
+							"DELTA_MAX_RATIO", "0.5")));
+			transferCompression = new TransferCompression(
+					TransferCompression.parseCodecs(properties
+							.getProperty("COMPRESSION")));
+			parallelTransfer = new ParallelTransfer(Integer.parseInt(properties
+					.getProperty("TRANSFER_STREAMS", "4")),
+					Long.parseLong(properties.getProperty(
+							"TRANSFER_RANGE_SIZE", "8388608")));
+			maxUploads = Integer.parseInt(properties.getProperty(
+					"MAX_UPLOADS", String.valueOf(maxUploads)));
+			maxDownloads = Integer.parseInt(properties.getProperty(
+					"MAX_DOWNLOADS", String.valueOf(maxDownloads)));
+		} catch (IllegalArgumentException e) {
 			logger.error("Exception while loading Client Proprties : " + e);
 			throw new ConfigurationException(
 					"exception while reading properties file");
@@ -289,14 +586,30 @@ public class Client implements IClient {
 			logger.debug("loadClientProperties - LEAVE");
 	}
 
+	/**
+	 * Sends the changes found by the last scan, in BATCH messages if there
+	 * is more than one
+	 */
+	private void sendPendingChanges() {
+		if (pendingChanges.isEmpty())
+			return;
+		if (logger.isInfoEnabled())
+			logger.info("sending " + pendingChanges.size() + " changes to server");
+
+		for (Message message : Message.toBatches(pendingChanges))
+			sendMessageToServer(message);
+		pendingChanges = new ArrayList<Message>();
+	}
+
 	@Override
-	public void sendMessageToServer(Actions action, String message) {
+	public void sendMessageToServer(Message message) {
 		if (logger.isDebugEnabled())
-			logger.debug("sendMessageToServer - ENTER Action = " + action
-					+ " message = " + message);
+			logger.debug("sendMessageToServer - ENTER message = " + message);
 
-		synchronized (sock) {
-			pwriter.println(action.ordinal() + ":" + message);
+		try {
+			connection.writeMessage(message);
+		} catch (IOException e) {
+			logger.error("Exception while sending message to server : " + e);
 		}
 
 		if (logger.isDebugEnabled())
@@ -311,16 +624,18 @@ public class Client implements IClient {
 			logger.debug("destroy - ENTER");
 
 		try {
-			if (socketOutputStream != null)
-				socketOutputStream.close();
-			if (pwriter != null)
-				pwriter.close();
-			if (sock != null)
+			if (connection != null)
+				connection.close();
+			else if (sock != null)
 				sock.close();
-			if (fileReceiveServerSocket != null)
+			if (fileConnectionDispatcher != null)
+				fileConnectionDispatcher.close();
+			else if (fileReceiveServerSocket != null)
 				fileReceiveServerSocket.close();
 
 			saveFilesStatus();
+			if (filesStatus != null)
+				filesStatus.close();
 		} catch (IOException e) {
 			logger.error("Exception while closing Server Sockets Exception : "
 					+ e);
@@ -339,6 +654,8 @@ public class Client implements IClient {
 	private void saveFilesStatus() throws IOException {
 		if (logger.isDebugEnabled())
 			logger.debug("saveFilesStatus - ENTER");
+		if (filesStatus == null)
+			return;
 
 		File file = new File("client.dat");
 
@@ -353,7 +670,19 @@ public class Client implements IClient {
 			}
 			fos = new FileOutputStream(file);
 			oos = new ObjectOutputStream(fos);
-			oos.writeObject(filesStatusMap);
+			final Map<String, Long> savedStatus = new HashMap<String, Long>();
+			if (filesStatus.isPersistent())
+				filesStatus.flush();
+			else
+				filesStatus.forEach(new IRevisionIndex.IEntryVisitor() {
+					@Override
+					public void visit(String relativePath, long revisionNumber) {
+						savedStatus.put(relativePath, revisionNumber);
+					}
+				});
+			oos.writeObject(savedStatus);
+			oos.writeLong(changeRevision);
+			digestTree.save(new File(digestTreePath), changeRevision);
 
 		} catch (IOException e) {
 			logger.error("Exception while saving file status to file : " + e);
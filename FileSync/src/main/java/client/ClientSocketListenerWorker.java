@@ -1,20 +1,44 @@
 package client;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
 import common.Actions;
-import common.EncryptionUtil;
+import common.CompressionCodec;
+import common.FileConnectionDispatcher;
 import common.FileDownloader;
+import common.FileTransferMode;
 import common.FileUploader;
-import common.MessageParseUtil;
+import common.Frame;
+import common.FrameInputStream;
+import common.IFileSender;
+import common.FramedConnection;
+import common.ITransferListener;
+import common.InlineFileReceiver;
+import common.InlineFileSender;
+import common.Message;
+import common.MessageDecoder;
+import common.ParallelTransfer;
+import common.ProtocolException;
+import common.StagedFile;
+import common.TaskExecutor;
+import common.chunk.Chunk;
+import common.chunk.FastCdcChunker;
+import common.chunk.IChunkHandler;
+import common.delta.DeltaTransfer;
+import common.delta.FileSignature;
 
 /**
  * @author Ashish Pahlazani This class takes care of all the requests/messages
@@ -23,33 +47,49 @@ import common.MessageParseUtil;
 public class ClientSocketListenerWorker implements Runnable {
 	private static final Logger logger = Logger
 			.getLogger(ClientSocketListenerWorker.class);
+	private static final MessageDecoder messageDecoder = new MessageDecoder();
 
 	private boolean connected = false;
-	private Socket socket;
-	private BufferedReader br;
-	private PrintWriter printWriter;
+	private FramedConnection connection;
 	private String rootFolderPath;
 	private IClient client;
-	private ServerSocket fileReceiveServerSocket;
-
-	protected boolean isFileDownloadedSuccessfully;
-
+	private FileConnectionDispatcher fileConnectionDispatcher;
+	private TaskExecutor taskExecutor;
+	private InlineFileReceiver inlineFileReceiver = new InlineFileReceiver();
+	// runs the transfers off this thread, in order for each path
+	private TransferScheduler transferScheduler;
+	private Thread listenerThread;
+	// responses of the batch being handled, null outside of a batch, only
+	// used by the listener thread
+	private List<Message> batchResponses;
+	// snapshot received over the control connection, null if none
+	private FrameInputStream snapshotStream;
+	private int snapshotStreamId;
+	// null once the digest trees have been compared
+	private DigestReconciler digestReconciler;
+	// number of failed downloads of the files requested again, by path
+	private Map<String, Integer> failedDownloads = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * @param client
+	 * @param fileConnectionDispatcher
+	 *            : null if files are received over the control connection
+	 * @param connection
+	 * @param taskExecutor
+	 */
 	public ClientSocketListenerWorker(IClient client,
-			ServerSocket fileReceiveServerSocket, Socket s) {
+			FileConnectionDispatcher fileConnectionDispatcher,
+			FramedConnection connection, TaskExecutor taskExecutor) {
 		this.rootFolderPath = client.getRootFolderPath();
-		this.fileReceiveServerSocket = fileReceiveServerSocket;
-		this.socket = s;
+		this.fileConnectionDispatcher = fileConnectionDispatcher;
+		this.taskExecutor = taskExecutor;
+		this.connection = connection;
 		this.client = client;
-		try {
-			br = new BufferedReader(new InputStreamReader(
-					socket.getInputStream()));
-			printWriter = new PrintWriter(socket.getOutputStream(), true);
-			connected = true;
-		} catch (IOException e) {
-			logger.error("Exception while initializing ClientSocketListenerWorker : "
-					+ e);
-		}
-
+		// the server hands every connection to its file port to the transfer
+		// of its token, so uploads on the file port run at once too
+		this.transferScheduler = new TransferScheduler(taskExecutor,
+				client.getMaxUploads(), client.getMaxDownloads());
+		connected = true;
 	}
 
 	@Override
@@ -57,23 +97,44 @@ public class ClientSocketListenerWorker implements Runnable {
 		if (logger.isDebugEnabled())
 			logger.debug("ClientSocketListenerStarted");
 
-		String message;
+		listenerThread = Thread.currentThread();
+		Frame frame;
 
-		// send file port
-		if (connected) {
-			client.sendMessageToServer(Actions.FILE_SOCKET_PORT,
-					fileReceiveServerSocket.getLocalPort() + "");
+		// send file port, files are sent over the control connection if the
+		// server does not know the file port
+		if (connected && fileConnectionDispatcher != null) {
+			client.sendMessageToServer(new Message(Actions.FILE_SOCKET_PORT)
+					.setText(fileConnectionDispatcher.getLocalPort() + ""));
+		}
+		// a new client loads the repository first, the changes made while
+		// the client was offline are read first otherwise
+		if (connected && client.isInitialLoadRequired())
+			client.sendMessageToServer(new Message(
+					Actions.LOAD_INITIAL_REPOSITORY));
+		else if (connected && client.getSyncMode() == SyncMode.PULL)
+			requestChanges();
+		else if (connected && client.isReconcileOnConnect()) {
+			digestReconciler = new DigestReconciler(client);
+			digestReconciler.start();
 		}
 
 		while (connected) {
 			try {
-				if (logger.isInfoEnabled())
-					logger.info("waiting for message from server");
-
-				if ((message = br.readLine()) != null) {
-					if (logger.isInfoEnabled())
-						logger.info("message received from server = " + message);
-					parseMessage(message);
+				if (logger.isDebugEnabled())
+					logger.debug("waiting for message from server");
+
+				if ((frame = connection.readFrame()) == null) {
+					logger.error("Connection closed by server, Closing thread");
+					connected = false;
+				} else if (frame.getType() == Frame.CONTROL) {
+					parseMessage(frame.getPayload());
+				} else if (snapshotStream != null
+						&& frame.getStreamId() == snapshotStreamId) {
+					snapshotStream.onFrame(frame);
+					if (frame.getType() != Frame.DATA)
+						snapshotStream = null;
+				} else {
+					inlineFileReceiver.onFrame(frame);
 				}
 			} catch (IOException e) {
 				logger.error("Exception while reading from server, CLosing thread :"
@@ -81,33 +142,28 @@ public class ClientSocketListenerWorker implements Runnable {
 				connected = false;
 			}
 		}
+		inlineFileReceiver.abortAll();
+		transferScheduler.cancel();
+		if (snapshotStream != null)
+			snapshotStream.abort();
 
 		if (logger.isDebugEnabled())
 			logger.debug("ClientSocketListener Stoped");
 	}
 
-	private void parseMessage(String message) {
+	private void parseMessage(byte[] payload) {
 		if (logger.isDebugEnabled())
-			logger.debug("parseMessage - ENTER message = " + message);
-
-		String actualMessage = EncryptionUtil.decrypt(message);
-
-		if (logger.isInfoEnabled())
-			logger.info("actualMessage = " + actualMessage);
+			logger.debug("parseMessage - ENTER");
 
 		try {
-			int actionInt = Integer.parseInt(actualMessage.split(":", 2)[0]);
-			Actions action = Actions.fromInteger(actionInt);
-
-			String messageString = actualMessage.split(":", 2)[1];
+			Message message = messageDecoder.decode(payload);
 
 			if (logger.isInfoEnabled())
-				logger.info("Action :" + action
-						+ " Message received from client = " + messageString);
+				logger.info("Message received from server = " + message);
 
-			takeActionBasedOnAction(action, messageString);
+			takeActionBasedOnAction(message);
 
-		} catch (NumberFormatException e) {
+		} catch (ProtocolException e) {
 			logger.error("Exception while reading message : " + e);
 		}
 
@@ -115,47 +171,91 @@ public class ClientSocketListenerWorker implements Runnable {
 			logger.debug("parseMessage - LEAVE");
 	}
 
-	private void takeActionBasedOnAction(Actions action, String message) {
+	private void takeActionBasedOnAction(final Message message) {
 		if (logger.isDebugEnabled())
-			logger.debug("takeActionBasedOnAction - Enter Action = " + action
-					+ " message = " + message);
+			logger.debug("takeActionBasedOnAction - Enter message = " + message);
 
-		String relativePath = "";
+		final Actions action = message.getAction();
+		final String relativePath = message.getPath();
 
 		switch (action) {
 		case REQUEST_FILE_ADD:
 		case REQUEST_FILE_MODIFY:
-			relativePath = message.split(MessageParseUtil.commaSeparator)[0];
-			long revisionNumber = Long.parseLong(message
-					.split(MessageParseUtil.commaSeparator)[1]);
-			client.setRevisionNumber(relativePath, revisionNumber);
-			sendFileToServer(action, relativePath);
+			client.setRevisionNumber(relativePath, message.getRevisionNumber());
+			// the server asks for the chunk list if it stores chunks
+			if (message.getChunks() != null)
+				transferScheduler.execute(relativePath, new Runnable() {
+					@Override
+					public void run() {
+						sendChunkListToServer(action, relativePath,
+								message.getRevisionNumber());
+					}
+				});
+			else
+				sendFileToServer(action, relativePath, message.getSignature());
+			break;
+		case REQUEST_CHUNKS:
+			sendChunksToServer(relativePath, message.getRevisionNumber(),
+					message.getChunks());
 			break;
 		case CONFLICT:
-			client.setRevisionNumber(message, -1);
-			logger.error("Conflict in file " + message);
+			client.setRevisionNumber(relativePath, -1);
+			logger.error("Conflict in file " + relativePath
+					+ (message.getText() != null ? " : " + message.getText() : ""));
 			break;
 		case ADD:
-			addFileToClient(message);
-			break;
 		case DELETE:
-			deleteFileFromClient(message);
-			break;
 		case MODIFY:
-			modifyFileOnClient(message);
+			// applied once the transfers of the path are done
+			transferScheduler.execute(relativePath, new Runnable() {
+				@Override
+				public void run() {
+					if (action == Actions.ADD)
+						addFileToClient(message);
+					else if (action == Actions.DELETE)
+						deleteFileFromClient(message);
+					else
+						modifyFileOnClient(message);
+				}
+			});
 			break;
 		case EXCEPTION:
-			logger.error("Exception : " + message);
+			logger.error("Exception : " + message.getText());
 			break;
 		case LOAD_INITIAL_REPOSITORY:
+			// asked by the client, or sent because the client missed updates
+			if (message.getStreamId() != 0)
+				receiveSnapshotFromServer(message.getStreamId());
+			else
+				readSnapshotFromServer(message.getToken());
 			break;
 		case SENDING_FILE_ADD:
 		case SENDING_FILE_MODIFY:
-			File file = new File(rootFolderPath + "/" + message);
-			readFileFromServer(action, file);
+			// stream id is set if the file is sent over the control connection
+			File file = new File(rootFolderPath + "/" + relativePath);
+			if (message.getStreamId() != 0)
+				receiveFileFromServer(action, file, message.getStreamId(),
+						message.getLength(), message.isDelta(),
+						message.getCompression());
+			else
+				readFileFromServer(action, relativePath, file,
+						message.isDelta(), message.getCompression(),
+						message.getToken());
 			break;
 		case USRNAME_PASSWORD:
 			break;
+		case COMPRESSION:
+			client.getTransferCompression().negotiate(message.getText());
+			break;
+		case BATCH:
+			takeBatchAction(message.getEntries());
+			break;
+		case CHANGES:
+			takeChanges(message);
+			break;
+		case DIGESTS:
+			takeDigests(message);
+			break;
 		default:
 			break;
 		}
@@ -163,46 +263,355 @@ public class ClientSocketListenerWorker implements Runnable {
 			logger.debug("takeActionBasedOnAction - LEAVE");
 	}
 
-	private void readFileFromServer(Actions action, File file) {
+	/**
+	 * Handles the entries one by one, the responses are sent to the server
+	 * together once all the entries are handled
+	 * 
+	 * @param entries
+	 */
+	private void takeBatchAction(List<Message> entries) {
+		if (entries == null || batchResponses != null)
+			return;
+
+		batchResponses = new ArrayList<Message>();
+		try {
+			for (Message entry : entries)
+				takeActionBasedOnAction(entry);
+		} finally {
+			List<Message> responses = batchResponses;
+			batchResponses = null;
+			for (Message response : Message.toBatches(responses))
+				client.sendMessageToServer(response);
+		}
+	}
+
+	/**
+	 * Applies a page of the change feed and asks for the next one, the server
+	 * answers once there is a change
+	 * 
+	 * @param changes
+	 *            : CHANGES message
+	 */
+	private void takeChanges(Message changes) {
+		List<Message> entries = changes.getEntries();
+		if (entries != null && !entries.isEmpty() && batchResponses == null) {
+			applyChanges(entries);
+			if (logger.isInfoEnabled())
+				logger.info(entries.size() + " changes applied, change revision = "
+						+ changes.getRevisionNumber());
+		}
+		client.setChangeRevision(changes.getRevisionNumber());
+		requestChanges();
+	}
+
+	/**
+	 * Applies the files of a folder which differ from the server, and asks
+	 * for the subfolders which differ
+	 * 
+	 * @param digests
+	 *            : DIGESTS message
+	 */
+	private void takeDigests(Message digests) {
+		if (digestReconciler == null)
+			return;
+		List<Message> changes = digestReconciler.compare(digests);
+		if (!changes.isEmpty() && batchResponses == null)
+			applyChanges(changes);
+		if (!digestReconciler.isRunning())
+			digestReconciler = null;
+	}
+
+	/**
+	 * @param changes
+	 *            : changes of the feed, the responses are sent together once
+	 *            all of them are applied
+	 */
+	private void applyChanges(List<Message> changes) {
+		batchResponses = new ArrayList<Message>();
+		try {
+			for (final Message change : changes)
+				transferScheduler.execute(change.getPath(), new Runnable() {
+					@Override
+					public void run() {
+						applyChangeFromFeed(change);
+					}
+				});
+		} finally {
+			List<Message> responses = batchResponses;
+			batchResponses = null;
+			for (Message response : Message.toBatches(responses))
+				client.sendMessageToServer(response);
+		}
+	}
+
+	/**
+	 * Only the last change of a path is in the feed, so the local copy
+	 * decides whether the file is added or modified
+	 * 
+	 * @param change
+	 *            : ADD, MODIFY or DELETE with the revision of the file
+	 */
+	private void applyChangeFromFeed(Message change) {
+		String relativePath = change.getPath();
+		// own change, or already applied
+		if (client.getRevisionNumber(relativePath) >= change
+				.getRevisionNumber())
+			return;
+
+		File f = new File(rootFolderPath + "/" + relativePath);
+		if (change.getAction() == Actions.DELETE) {
+			if (f.exists()) {
+				deleteFileFromClient(change);
+			} else {
+				StagedFile.deleteResumableFiles(f);
+				client.setDeletedRevisionNumber(relativePath,
+						change.getRevisionNumber());
+			}
+		} else if (f.exists()) {
+			modifyFileOnClient(change);
+		} else {
+			addFileToClient(change);
+		}
+	}
+
+	/**
+	 * Reads the snapshot on the file port on another thread, as the snapshot
+	 * sent over the control connection, so this thread keeps handling the
+	 * updates while it is loaded
+	 *
+	 * @param token
+	 *            : token of the connection of the snapshot
+	 */
+	private void readSnapshotFromServer(final long token) {
+		taskExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				Socket socket = null;
+				try {
+					socket = fileConnectionDispatcher.accept(token);
+					snapshotLoaded(new RepositorySnapshotLoader(client,
+							client.getSnapshotWriterCount()).load(socket
+							.getInputStream()));
+				} catch (IOException e) {
+					snapshotFailed(e);
+				} finally {
+					try {
+						if (socket != null)
+							socket.close();
+					} catch (IOException e) {
+						logger.error("Exception while closing Socket : " + e);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Loads the snapshot sent over the control connection on another thread,
+	 * this thread passes it the frames of the snapshot
+	 */
+	private void receiveSnapshotFromServer(int streamId) {
+		final FrameInputStream stream = new FrameInputStream();
+		snapshotStream = stream;
+		snapshotStreamId = streamId;
+		taskExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					snapshotLoaded(new RepositorySnapshotLoader(client,
+							client.getSnapshotWriterCount()).load(stream));
+				} catch (IOException e) {
+					snapshotFailed(e);
+				} finally {
+					stream.close();
+				}
+			}
+		});
+	}
+
+	/**
+	 * In PULL mode the changes after the snapshot are read next
+	 */
+	private void snapshotLoaded(long snapshotRevision) {
+		if (client.getSyncMode() == SyncMode.PULL) {
+			client.setChangeRevision(snapshotRevision);
+			requestChanges();
+		}
+	}
+
+	/**
+	 * In PULL mode all the changes are read instead, otherwise the files not
+	 * loaded are updated by the next changes made on other clients
+	 */
+	private void snapshotFailed(IOException e) {
+		logger.error("Exception while loading snapshot : " + e);
+		if (client.getSyncMode() == SyncMode.PULL)
+			requestChanges();
+	}
+
+	private void requestChanges() {
+		client.sendMessageToServer(new Message(Actions.GET_CHANGES, null,
+				client.getChangeRevision()).setText(String.valueOf(client
+				.getPullWaitMillis())));
+	}
+
+	/**
+	 * @param message
+	 *            : response to a message of the server, held back while a
+	 *            batch is handled. Sent at once if the message is handled
+	 *            after a transfer, on the thread of the transfer
+	 */
+	private void sendResponseToServer(Message message) {
+		if (Thread.currentThread() == listenerThread && batchResponses != null)
+			batchResponses.add(message);
+		else
+			client.sendMessageToServer(message);
+	}
+
+	/**
+	 * A file whose download fails is requested again, up to
+	 * FileDownloader.MAX_RETRIES times, the full file is then sent from the
+	 * bytes already received
+	 *
+	 * @param action
+	 * @param relativePath
+	 * @param file
+	 * @param delta
+	 *            : true if the server sends a delta instead of the file
+	 * @param codec
+	 *            : compression of the bytes sent by the server
+	 * @param token
+	 *            : token of the connection of the file
+	 */
+	private void readFileFromServer(final Actions action,
+			final String relativePath, final File file, final boolean delta,
+			final CompressionCodec codec, final long token) {
+		if (logger.isDebugEnabled())
+			logger.debug("readFileFromClient - Enter File : " + file
+					+ " delta = " + delta);
+
+		// the server connects to the file port once the download runs
+		transferScheduler.download(relativePath, new ITransferTask() {
+			File deltaFile;
+
+			@Override
+			public boolean transfer() {
+				if (action == Actions.SENDING_FILE_ADD)
+					client.ignoreFileForUpdate(file, Actions.ADD);
+				else if (action == Actions.SENDING_FILE_MODIFY)
+					client.ignoreFileForUpdate(file, Actions.MODIFY);
+
+				deltaFile = delta ? DeltaTransfer.newTempFile() : null;
+				FileDownloader download = new FileDownloader(
+						fileConnectionDispatcher, token, delta ? deltaFile
+								: file, codec, !delta, taskExecutor);
+				download.run();
+				return download.isSuccess();
+			}
+
+			@Override
+			public void transferCompleted(boolean success) {
+				if (!success) {
+					logger.error("Exception while downloading file : " + file);
+					// the file is left unchanged, so no update will be detected
+					client.removeFileFromIgnoreList(file);
+					if (deltaFile != null)
+						deltaFile.delete();
+					requestFailedDownload(action, relativePath);
+				} else {
+					failedDownloads.remove(relativePath);
+					if (delta)
+						applyDeltaFromServer(file, deltaFile);
+				}
+			}
+		});
+
+		if (logger.isDebugEnabled())
+			logger.debug("readFileFromServer - LEAVE");
+	}
+
+	private void receiveFileFromServer(Actions action, final File file,
+			int streamId, long length, final boolean delta,
+			CompressionCodec codec) {
 		if (logger.isDebugEnabled())
-			logger.debug("readFileFromClient - Enter File : " + file);
-
-		/*
-		 * Thread.UncaughtExceptionHandler threadExceptionHandler = new
-		 * Thread.UncaughtExceptionHandler() { public void
-		 * uncaughtException(Thread th, Throwable ex) {
-		 * logger.error("Exception occured while downloading file");
-		 * isFileDownloadedSuccessfully = false; } };
-		 * isFileDownloadedSuccessfully = true;
-		 */
-
-		if(action == Actions.SENDING_FILE_ADD)
+			logger.debug("receiveFileFromServer - ENTER File : " + file
+					+ " streamId = " + streamId + " length = " + length
+					+ " delta = " + delta);
+
+		if (action == Actions.SENDING_FILE_ADD)
 			client.ignoreFileForUpdate(file, Actions.ADD);
-		else if(action == Actions.SENDING_FILE_MODIFY)
+		else if (action == Actions.SENDING_FILE_MODIFY)
 			client.ignoreFileForUpdate(file, Actions.MODIFY);
 
-		FileDownloader download = new FileDownloader(fileReceiveServerSocket,
-				file);
-		Thread downloadThread = new Thread(download);
-		// downloadThread.setUncaughtExceptionHandler(threadExceptionHandler);
-		downloadThread.start();
+		final File deltaFile = delta ? DeltaTransfer.newTempFile() : null;
 		try {
-			downloadThread.join();
-		} catch (InterruptedException e) {
-			logger.error("Exception while waiting for file download : " + e);
+			inlineFileReceiver.open(streamId, delta ? deltaFile : file,
+					length, codec, new ITransferListener() {
+						@Override
+						public void transferCompleted(File receivedFile,
+								boolean success) {
+							if (!success) {
+								logger.error("Exception while receiving file : "
+										+ file);
+								client.removeFileFromIgnoreList(file);
+								if (delta)
+									deltaFile.delete();
+							} else if (delta) {
+								applyDeltaFromServer(file, deltaFile);
+							}
+						}
+					});
+		} catch (IOException e) {
+			logger.error("Exception while creating file " + file + " : " + e);
+			client.removeFileFromIgnoreList(file);
 		}
 
-		// client.removeFileFromIgnoreList(file);
-
 		if (logger.isDebugEnabled())
-			logger.debug("readFileFromServer - LEAVE");
+			logger.debug("receiveFileFromServer - LEAVE");
 	}
 
-	private void addFileToClient(String message) {
-		String relativePath = message.split("','")[0];
+	private void requestFailedDownload(Actions action, String relativePath) {
+		Integer failures = failedDownloads.get(relativePath);
+		failures = failures == null ? 1 : failures + 1;
+		if (failures > FileDownloader.MAX_RETRIES) {
+			failedDownloads.remove(relativePath);
+			logger.error("Download failed " + failures + " times, giving up : "
+					+ relativePath);
+			return;
+		}
+		failedDownloads.put(relativePath, failures);
+		client.sendMessageToServer(new Message(
+				action == Actions.SENDING_FILE_ADD ? Actions.REQUEST_FILE_ADD
+						: Actions.REQUEST_FILE_MODIFY, relativePath));
+	}
+
+	/**
+	 * Rebuilds the file from the delta sent by server. If the file changed
+	 * since its signature was sent, the server is asked for the full file
+	 */
+	private void applyDeltaFromServer(File file, File deltaFile) {
+		try {
+			DeltaTransfer.applyDelta(file, deltaFile);
+		} catch (IOException e) {
+			logger.error("Exception while applying delta on " + file
+					+ ", requesting full file : " + e);
+			client.removeFileFromIgnoreList(file);
+			client.sendMessageToServer(new Message(
+					Actions.REQUEST_FILE_MODIFY, relativePathOf(file)));
+		} finally {
+			deltaFile.delete();
+		}
+	}
+
+	private String relativePathOf(File file) {
+		return file.getPath().substring(
+				new File(rootFolderPath).getPath().length() + 1);
+	}
+
+	private void addFileToClient(Message message) {
+		String relativePath = message.getPath();
 		String absolutePath = rootFolderPath + "/" + relativePath;
-		long revisionNumber = Long.parseLong(message
-				.split(MessageParseUtil.commaSeparator)[1]);
+		long revisionNumber = message.getRevisionNumber();
 
 		if (logger.isInfoEnabled())
 			logger.info("AbsolutePath = " + absolutePath
@@ -211,19 +620,19 @@ public class ClientSocketListenerWorker implements Runnable {
 		File f = new File(absolutePath);
 		synchronized (f) {
 			if (!f.exists()) {
-				client.sendMessageToServer(Actions.REQUEST_FILE_ADD, relativePath);
+				sendResponseToServer(new Message(Actions.REQUEST_FILE_ADD, relativePath));
 				client.setRevisionNumber(relativePath, revisionNumber);
 			} else {
-				client.sendMessageToServer(Actions.CONFLICT, relativePath);
+				sendResponseToServer(new Message(Actions.CONFLICT, relativePath));
 				client.setRevisionNumber(relativePath, -1);
 			}
 		}
 	}
 
-	private void deleteFileFromClient(String message) {
-		String relativePath = message.split("','")[0];
+	private void deleteFileFromClient(Message message) {
+		String relativePath = message.getPath();
 		String absolutePath = rootFolderPath + "/" + relativePath;
-		long revisionNumber = Long.parseLong(message.split("','")[1]);
+		long revisionNumber = message.getRevisionNumber();
 		if (logger.isInfoEnabled())
 			logger.info("AbsolutePath = " + absolutePath
 					+ " revisionNumber = " + revisionNumber);
@@ -235,22 +644,27 @@ public class ClientSocketListenerWorker implements Runnable {
 						.getRevisionNumber(relativePath);
 				if (clientRevisionNumber == -1
 						|| clientRevisionNumber > revisionNumber) {
-					client.sendMessageToServer(Actions.CONFLICT, relativePath);
+					sendResponseToServer(new Message(Actions.CONFLICT, relativePath));
 				} else {
+					// the scanner must not send the delete back to the server
+					client.ignoreFileForUpdate(f, Actions.DELETE);
 					f.delete();
-					client.setRevisionNumber(relativePath, revisionNumber);
+					// a cut transfer of the file would never be resumed
+					StagedFile.deleteResumableFiles(f);
+					client.setDeletedRevisionNumber(relativePath,
+							revisionNumber);
 				}
 			} else {
-				client.sendMessageToServer(Actions.CONFLICT, relativePath);
+				sendResponseToServer(new Message(Actions.CONFLICT, relativePath));
 				client.setRevisionNumber(relativePath, -1);
 			}
 		}
 	}
 
-	private void modifyFileOnClient(String message) {
-		String relativePath = message.split("','")[0];
+	private void modifyFileOnClient(Message message) {
+		String relativePath = message.getPath();
 		String absolutePath = rootFolderPath + "/" + relativePath;
-		long revisionNumber = Long.parseLong(message.split("','")[1]);
+		long revisionNumber = message.getRevisionNumber();
 		if (logger.isInfoEnabled())
 			logger.info("AbsolutePath = " + absolutePath
 					+ " revisionNumber = " + revisionNumber);
@@ -262,15 +676,18 @@ public class ClientSocketListenerWorker implements Runnable {
 						.getRevisionNumber(relativePath);
 				if (clientRevisionNumber == -1
 						|| clientRevisionNumber > revisionNumber) {
-					client.sendMessageToServer(Actions.CONFLICT, relativePath);
+					sendResponseToServer(new Message(Actions.CONFLICT, relativePath));
 					client.setRevisionNumber(relativePath, -1);
 				} else {
-					client.sendMessageToServer(Actions.REQUEST_FILE_MODIFY,
-							relativePath);
+					// the server sends a delta against the copy of the client
+					sendResponseToServer(new Message(
+							Actions.REQUEST_FILE_MODIFY, relativePath)
+							.setSignature(client.getDeltaTransfer()
+									.createSignature(f)));
 					client.setRevisionNumber(relativePath, revisionNumber);
 				}
 			} else {
-				client.sendMessageToServer(Actions.CONFLICT, relativePath);
+				sendResponseToServer(new Message(Actions.CONFLICT, relativePath));
 				client.setRevisionNumber(relativePath, -1);
 			}
 		}
@@ -301,47 +718,214 @@ public class ClientSocketListenerWorker implements Runnable {
 	 * System.out.println("sendFileToServer - Leave"); }
 	 */
 
-	private void sendFileToServer(Actions action, String relativePath) {
+	/**
+	 * @param action
+	 * @param relativePath
+	 * @param signature
+	 *            : signature of the copy of the server, a delta is sent
+	 *            instead of the file if it is worth it. May be null
+	 */
+	private void sendFileToServer(Actions action, final String relativePath,
+			final FileSignature signature) {
 		if (logger.isDebugEnabled())
 			logger.debug("sendFileToServer - ENTER path: " + relativePath);
 
-		if(action == Actions.REQUEST_FILE_ADD)
-			printWriter
-				.println(Actions.SENDING_FILE_ADD.ordinal() + ":" + relativePath);
+		final Actions sendingAction;
+		if (action == Actions.REQUEST_FILE_ADD)
+			sendingAction = Actions.SENDING_FILE_ADD;
 		else
-			printWriter
-			.println(Actions.SENDING_FILE_MODIFY.ordinal() + ":" + relativePath);
+			sendingAction = Actions.SENDING_FILE_MODIFY;
+
+		transferScheduler.upload(relativePath, new ITransferTask() {
+			File deltaFile;
+
+			@Override
+			public boolean transfer() {
+				File file = new File(rootFolderPath + "/" + relativePath);
+				deltaFile = client.getDeltaTransfer().createDelta(file,
+						signature);
+				return sendFile(new Message(sendingAction, relativePath)
+						.setDelta(deltaFile != null),
+						deltaFile != null ? deltaFile : file);
+			}
+
+			@Override
+			public void transferCompleted(boolean success) {
+				if (deltaFile != null)
+					deltaFile.delete();
+			}
+		});
+
+		if (logger.isDebugEnabled())
+			logger.debug("sendFileToServer - LEAVE");
+	}
+
+	/**
+	 * Sends the chunk list of the file instead of the file, the server then
+	 * requests the chunks it does not have
+	 */
+	private void sendChunkListToServer(Actions action, String relativePath,
+			long revisionNumber) {
+		Actions sendingAction;
+		if (action == Actions.REQUEST_FILE_ADD)
+			sendingAction = Actions.SENDING_FILE_ADD;
+		else
+			sendingAction = Actions.SENDING_FILE_MODIFY;
 
 		File file = new File(rootFolderPath + "/" + relativePath);
-		FileUploader fileUploader = new FileUploader(client.getServerIp(),
-				client.getServerFilePort(), file);
-		Thread fileUploaderThread = new Thread(fileUploader);
-		fileUploaderThread.start();
+		try {
+			List<Chunk> chunks = new FastCdcChunker().chunk(file);
+			client.sendMessageToServer(new Message(sendingAction,
+					relativePath, revisionNumber).setChunks(chunks));
+		} catch (IOException e) {
+			logger.error("Exception while reading file " + file + " : " + e);
+		}
+	}
+
+	/**
+	 * Writes the requested chunks, in the requested order, as they are found
+	 * in the file
+	 */
+	private static class RequestedChunkWriter implements IChunkHandler {
+		List<Chunk> requestedChunks;
+		OutputStream outputStream;
+		int nextChunk;
+
+		RequestedChunkWriter(List<Chunk> requestedChunks,
+				OutputStream outputStream) {
+			this.requestedChunks = requestedChunks;
+			this.outputStream = outputStream;
+		}
+
+		@Override
+		public void chunkFound(Chunk chunk, byte[] data, int offset)
+				throws IOException {
+			if (nextChunk < requestedChunks.size()
+					&& chunk.equals(requestedChunks.get(nextChunk))) {
+				outputStream.write(data, offset, chunk.getLength());
+				nextChunk++;
+			}
+		}
+	}
 
+	/**
+	 * Sends the chunks missing on the server, which are cut again from the
+	 * file. If the file changed since its chunk list was sent, the server
+	 * rejects the chunks and the change is sent by the next scan.
+	 */
+	private void sendChunksToServer(final String relativePath,
+			final long revisionNumber, final List<Chunk> requestedChunks) {
+		transferScheduler.upload(relativePath, new ITransferTask() {
+			@Override
+			public boolean transfer() {
+				return sendChunks(relativePath, revisionNumber,
+						requestedChunks);
+			}
+
+			@Override
+			public void transferCompleted(boolean success) {
+			}
+		});
+	}
+
+	private boolean sendChunks(String relativePath, long revisionNumber,
+			List<Chunk> requestedChunks) {
+		if (logger.isDebugEnabled())
+			logger.debug("sendChunksToServer - ENTER path: " + relativePath
+					+ " chunks = " + requestedChunks.size());
+
+		boolean sent = false;
+		File file = new File(rootFolderPath + "/" + relativePath);
+		File dataFile = null;
 		try {
-			fileUploaderThread.join();
-		} catch (InterruptedException e) {
-			logger.error("Exception while waiting for file upload : " + e);
+			dataFile = File.createTempFile("filesync-chunks", ".bin");
+			OutputStream outputStream = new BufferedOutputStream(
+					new FileOutputStream(dataFile), 64 * 1024);
+			RequestedChunkWriter writer = new RequestedChunkWriter(
+					requestedChunks, outputStream);
+			try {
+				InputStream inputStream = new FileInputStream(file);
+				try {
+					new FastCdcChunker().chunk(inputStream, writer);
+				} finally {
+					inputStream.close();
+				}
+			} finally {
+				outputStream.close();
+			}
+			if (writer.nextChunk < requestedChunks.size())
+				logger.error("File changed since its chunk list was sent : "
+						+ file);
+
+			sent = sendFile(new Message(Actions.SENDING_CHUNKS, relativePath,
+					revisionNumber), dataFile);
+		} catch (IOException e) {
+			logger.error("Exception while reading chunks of " + file + " : "
+					+ e);
+		} finally {
+			if (dataFile != null)
+				dataFile.delete();
 		}
 
 		if (logger.isDebugEnabled())
-			logger.debug("sendFileToServer - LEAVE");
+			logger.debug("sendChunksToServer - LEAVE");
+		return sent;
+	}
+
+	/**
+	 * Sends the message followed by the file, over the control connection or
+	 * over a connection to the file port of the server. Runs on a thread of
+	 * the transfer scheduler
+	 *
+	 * @return true if the file was sent
+	 */
+	private boolean sendFile(Message message, File file) {
+		CompressionCodec codec = client.getTransferCompression().choose(file);
+		message.setCompression(codec);
+
+		IFileSender fileSender;
+		FileUploader uploader = null;
+		if (client.getFileTransferMode() == FileTransferMode.INLINE) {
+			int streamId = InlineFileSender.nextStreamId();
+			client.sendMessageToServer(message.setStreamId(streamId)
+					.setLength(file.length()));
+			fileSender = new InlineFileSender(connection, streamId, file,
+					codec);
+		} else {
+			long token = FileConnectionDispatcher.newToken();
+			client.sendMessageToServer(message.setToken(token));
+			ParallelTransfer parallelTransfer = client.getParallelTransfer();
+			uploader = new FileUploader(client.getServerIp(),
+					client.getServerFilePort(), file, codec,
+					parallelTransfer.chooseStreamCount(file.length(), codec),
+					parallelTransfer.getRangeSize(), taskExecutor, token);
+			fileSender = uploader;
+		}
+
+		try {
+			fileSender.run();
+		} catch (RuntimeException e) {
+			logger.error("Exception while uploading file : "
+					+ message.getPath() + " : " + e);
+			return false;
+		}
+		// the timings of a failed transfer do not measure the link
+		if (!fileSender.isSuccess()) {
+			logger.error("Upload failed : " + message.getPath());
+			return false;
+		}
+		client.getTransferCompression().transferCompleted(fileSender);
+		if (uploader != null)
+			client.getParallelTransfer().transferCompleted(uploader);
+		return true;
 	}
 
 	public void shutdown() {
 		if (logger.isDebugEnabled())
 			logger.debug("shutdown - ENTER ");
 		
-		try {
-			if (printWriter != null)
-				printWriter.close();
-			if (br != null)
-				br.close();
-			if (socket != null)
-				socket.close();
-		} catch (IOException e) {
-
-		}
+		connected = false;
+		connection.close();
 		
 		if (logger.isDebugEnabled())
 			logger.debug("shutdown - LEAVE ");
@@ -0,0 +1,137 @@
+package client;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import common.Actions;
+import common.DigestTree;
+import common.Message;
+
+/**
+ * @author Ashish Pahlazani Compares the digest tree of the client with the one
+ *         of the server from the top, when the client connects, to find the
+ *         changes made while it was offline. Only the folders whose digests
+ *         differ are listed by the server, so the number of requests depends
+ *         on the number of differences and not on the number of files.
+ *
+ *         Several folders are asked for at once, up to MAX_PENDING_REQUESTS,
+ *         the requests of a level are not sent one after the other. The files
+ *         which differ are returned as changes, to be applied like the ones of
+ *         the change feed. A file changed locally since the last sync, or only
+ *         known by the client, is left to the file change detector.
+ *
+ *         Only used by the thread reading the messages of the server.
+ */
+public class DigestReconciler {
+	private static final Logger logger = Logger
+			.getLogger(DigestReconciler.class);
+	private static final int MAX_PENDING_REQUESTS = 16;
+
+	private IClient client;
+	private DigestTree digestTree;
+	// GET_DIGESTS not sent yet
+	private Deque<Message> requests = new ArrayDeque<Message>();
+	private int pendingRequestCount;
+	private int folderCount;
+	private int changeCount;
+	private long startTime;
+
+	/**
+	 * @param client
+	 */
+	public DigestReconciler(IClient client) {
+		this.client = client;
+		this.digestTree = client.getDigestTree();
+	}
+
+	/**
+	 * Sends the digest of the whole tree
+	 */
+	public void start() {
+		startTime = System.currentTimeMillis();
+		requests.add(new Message(Actions.GET_DIGESTS, "").setDigest(digestTree
+				.getDigest("")));
+		sendRequests();
+	}
+
+	/**
+	 * @return true until every folder which differs has been compared
+	 */
+	public boolean isRunning() {
+		return pendingRequestCount > 0 || !requests.isEmpty();
+	}
+
+	/**
+	 * Compares the children of a folder listed by the server with the ones of
+	 * the client, and sends the next requests
+	 *
+	 * @param digests
+	 *            : DIGESTS answer of the server
+	 * @return changes to apply, ADD, MODIFY or DELETE with the revision of the
+	 *         server
+	 */
+	public List<Message> compare(Message digests) {
+		List<Message> changes = new ArrayList<Message>();
+		pendingRequestCount--;
+		if (digests.getEntries() != null && !digests.getEntries().isEmpty()) {
+			folderCount++;
+			for (Message entry : digests.getEntries()) {
+				String path = entry.getPath();
+				if (entry.getAction() == Actions.DIGESTS) {
+					if (digestTree.getDigest(path) != entry.getDigest())
+						requests.add(new Message(Actions.GET_DIGESTS, path)
+								.setDigest(digestTree.getDigest(path)));
+				} else if (isChanged(entry)) {
+					changes.add(entry);
+				}
+			}
+		}
+		// more children of the folder to compare
+		if (digests.getText() != null)
+			requests.add(new Message(Actions.GET_DIGESTS, digests.getPath())
+					.setText(digests.getText()));
+		changeCount += changes.size();
+
+		sendRequests();
+		if (!isRunning() && logger.isInfoEnabled())
+			logger.info("reconciliation done in "
+					+ (System.currentTimeMillis() - startTime)
+					+ " ms, folders listed = " + folderCount + " changes = "
+					+ changeCount);
+		return changes;
+	}
+
+	/**
+	 * @param entry
+	 *            : file listed by the server
+	 * @return true if the file of the client is older
+	 */
+	private boolean isChanged(Message entry) {
+		String path = entry.getPath();
+		long revisionNumber = digestTree.getRevisionNumber(path);
+		if (entry.getAction() == Actions.DELETE) {
+			// the client may have missed the deletion
+			return revisionNumber != Message.NO_REVISION
+					&& revisionNumber < entry.getRevisionNumber();
+		}
+		if (revisionNumber == entry.getRevisionNumber())
+			return false;
+		// -1 if it changed locally, the change is sent by the detector, or if
+		// the client does not have it
+		return client.getRevisionNumber(path) != -1
+				|| !new File(client.getRootFolderPath() + path).exists();
+	}
+
+	private void sendRequests() {
+		while (pendingRequestCount < MAX_PENDING_REQUESTS
+				&& !requests.isEmpty()) {
+			client.sendMessageToServer(requests.poll());
+			pendingRequestCount++;
+		}
+	}
+}
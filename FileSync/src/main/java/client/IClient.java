@@ -3,6 +3,12 @@ package client;
 import java.io.File;
 
 import common.Actions;
+import common.DigestTree;
+import common.FileTransferMode;
+import common.Message;
+import common.ParallelTransfer;
+import common.TransferCompression;
+import common.delta.DeltaTransfer;
 
 /**
  * @author Ashish Pahlazani
@@ -10,10 +16,9 @@ import common.Actions;
  */
 public interface IClient {
 	/**
-	 * @param action
 	 * @param message
 	 */
-	public void sendMessageToServer(Actions action, String message);
+	public void sendMessageToServer(Message message);
 	/**
 	 * @return
 	 */
@@ -34,6 +39,36 @@ public interface IClient {
      */
     public String getRootFolderPath();
     
+    /**
+     * @return INLINE if files are sent over the control connection
+     */
+    public FileTransferMode getFileTransferMode();
+    
+    /**
+     * @return when modified files are sent as deltas
+     */
+    public DeltaTransfer getDeltaTransfer();
+    
+    /**
+     * @return codec used for each file sent to the server
+     */
+    public TransferCompression getTransferCompression();
+
+    /**
+     * @return number of streams used for each file sent on the file port
+     */
+    public ParallelTransfer getParallelTransfer();
+
+    /**
+     * @return number of files sent to the server at once
+     */
+    public int getMaxUploads();
+
+    /**
+     * @return number of files received on the file port at once
+     */
+    public int getMaxDownloads();
+    
     /**
      * @param file
      * @param action
@@ -57,4 +92,54 @@ public interface IClient {
 	 * @param revisionNumber
 	 */
 	public void setRevisionNumber(String relativePathOfFile, long revisionNumber);
+
+	/**
+	 * @param relativePathOfFile
+	 * @param revisionNumber
+	 *            : revision of the deletion made on the server
+	 */
+	public void setDeletedRevisionNumber(String relativePathOfFile,
+			long revisionNumber);
+
+	/**
+	 * @return PULL if the client reads the changes from the change feed
+	 */
+	public SyncMode getSyncMode();
+
+	/**
+	 * @return how long the server may hold a GET_CHANGES when there is no change
+	 */
+	public long getPullWaitMillis();
+
+	/**
+	 * @return change revision of the last page of changes applied, 0 if none
+	 */
+	public long getChangeRevision();
+
+	/**
+	 * @param changeRevision
+	 */
+	public void setChangeRevision(long changeRevision);
+
+	/**
+	 * @return true if the client has no copy of the repository yet, it then
+	 *         asks the server for a snapshot
+	 */
+	public boolean isInitialLoadRequired();
+
+	/**
+	 * @return number of threads writing the files of a snapshot
+	 */
+	public int getSnapshotWriterCount();
+
+	/**
+	 * @return digest tree of the files whose revision is known by the server
+	 */
+	public DigestTree getDigestTree();
+
+	/**
+	 * @return true if the digest trees are compared on connect, to get the
+	 *         changes made while the client was offline
+	 */
+	public boolean isReconcileOnConnect();
 }
@@ -0,0 +1,24 @@
+package client;
+
+/**
+ * @author Ashish Pahlazani A file transfer run by the TransferScheduler, once
+ *         the transfers of its direction have a free slot and the previous
+ *         operations on its path are done
+ */
+public interface ITransferTask {
+	/**
+	 * Sends or receives the file, on a thread of the task executor
+	 *
+	 * @return true if the file was transferred
+	 */
+	public boolean transfer();
+
+	/**
+	 * Called on the same thread once the transfer is done, before the next
+	 * operation on the path starts
+	 *
+	 * @param success
+	 *            : value returned by transfer, false if it threw an exception
+	 */
+	public void transferCompleted(boolean success);
+}
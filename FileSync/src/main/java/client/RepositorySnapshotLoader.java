@@ -0,0 +1,238 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import common.Actions;
+import common.RepositorySnapshot;
+import common.StagedFile;
+
+/**
+ * @author Ashish Pahlazani Applies a RepositorySnapshot sent by the server.
+ *         The stream is read by one thread, which hands the files to a pool
+ *         of writers, so creating, writing and renaming many small files
+ *         overlaps with the reading of the next ones. The bytes of the files
+ *         waiting for a writer are bounded by MAX_PENDING_BYTES, files larger
+ *         than SMALL_FILE_SIZE are written by the reading thread itself.
+ *
+ *         A file is written, in a StagedFile, if the client has no copy or an
+ *         older copy than the snapshot. A file changed on the client and not yet
+ *         sent to the server is left as it is, the server finds the conflict
+ *         when the change is sent. A deleted path is deleted on the client
+ *         unless the client changed it.
+ */
+public class RepositorySnapshotLoader {
+	private static final Logger logger = Logger
+			.getLogger(RepositorySnapshotLoader.class);
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final int SMALL_FILE_SIZE = 1024 * 1024;
+	private static final int MAX_PENDING_BYTES = 64 * 1024 * 1024;
+
+	private IClient client;
+	private String rootFolderPath;
+	private int writerCount;
+	private Semaphore pendingBytes = new Semaphore(MAX_PENDING_BYTES);
+	private AtomicInteger writtenCount = new AtomicInteger();
+	private AtomicInteger failedCount = new AtomicInteger();
+	private int skippedCount;
+	private int deletedCount;
+
+	/**
+	 * @param client
+	 * @param writerCount
+	 *            : number of threads writing the files
+	 */
+	public RepositorySnapshotLoader(IClient client, int writerCount) {
+		this.client = client;
+		this.rootFolderPath = client.getRootFolderPath();
+		this.writerCount = Math.max(1, writerCount);
+	}
+
+	/**
+	 * @param stream
+	 *            : snapshot sent by the server, not closed
+	 * @return revision of the snapshot
+	 * @throws IOException
+	 *             if the stream is not complete, the files already written
+	 *             are kept with their revision
+	 */
+	public long load(InputStream stream) throws IOException {
+		long start = System.currentTimeMillis();
+		DataInputStream inputStream = new DataInputStream(
+				new BufferedInputStream(stream, BUFFER_SIZE));
+		if (inputStream.readInt() != RepositorySnapshot.MAGIC)
+			throw new IOException("Invalid snapshot stream");
+		long snapshotRevision = inputStream.readLong();
+		if (logger.isInfoEnabled())
+			logger.info("loading snapshot, revision = " + snapshotRevision
+					+ " writers = " + writerCount);
+
+		ExecutorService writers = Executors.newFixedThreadPool(writerCount);
+		int entryCount = 0;
+		try {
+			byte type;
+			while ((type = inputStream.readByte()) != RepositorySnapshot.END_ENTRY) {
+				String relativePath = inputStream.readUTF();
+				long revisionNumber = inputStream.readLong();
+				if (type == RepositorySnapshot.FILE_ENTRY)
+					loadFile(inputStream, writers, relativePath,
+							revisionNumber, inputStream.readLong());
+				else if (type == RepositorySnapshot.DELETED_ENTRY)
+					loadDeletion(relativePath, revisionNumber);
+				else
+					throw new IOException("Invalid snapshot entry : " + type);
+				entryCount++;
+			}
+			if (inputStream.readInt() != entryCount)
+				throw new IOException("Snapshot entries missing");
+		} finally {
+			writers.shutdown();
+			try {
+				writers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (logger.isInfoEnabled())
+			logger.info("snapshot loaded, revision = " + snapshotRevision
+					+ " entries = " + entryCount + " written = "
+					+ writtenCount + " skipped = " + skippedCount
+					+ " deleted = " + deletedCount + " failed = "
+					+ failedCount + " time (ms) = "
+					+ (System.currentTimeMillis() - start));
+		return snapshotRevision;
+	}
+
+	private void loadFile(DataInputStream inputStream,
+			ExecutorService writers, final String relativePath,
+			final long revisionNumber, long length) throws IOException {
+		final File file = new File(rootFolderPath + "/" + relativePath);
+		long clientRevisionNumber = client.getRevisionNumber(relativePath);
+		// -1 : changed on the client, or added while offline. A missing file
+		// may have been requested in an update dropped by the server
+		if (file.exists()
+				&& (clientRevisionNumber >= revisionNumber || clientRevisionNumber == -1)) {
+			skipFully(inputStream, length);
+			skippedCount++;
+			return;
+		}
+
+		if (length > SMALL_FILE_SIZE) {
+			writeFile(file, relativePath, revisionNumber, inputStream,
+					null, length);
+			return;
+		}
+
+		final byte[] data = new byte[(int) length];
+		inputStream.readFully(data);
+		pendingBytes.acquireUninterruptibly(data.length);
+		writers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeFile(file, relativePath, revisionNumber, null, data,
+							data.length);
+				} catch (IOException e) {
+					// not thrown without an input stream
+					logger.error("Exception while writing file " + file
+							+ " : " + e);
+				} finally {
+					pendingBytes.release(data.length);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the bytes read from inputStream, or data, in a StagedFile which
+	 * replaces the file. A read error is thrown, a write error only makes
+	 * this file fail.
+	 */
+	private void writeFile(File file, String relativePath,
+			long revisionNumber, DataInputStream inputStream, byte[] data,
+			long length) throws IOException {
+		client.ignoreFileForUpdate(file, file.exists() ? Actions.MODIFY
+				: Actions.ADD);
+		StagedFile stagedFile = new StagedFile(file);
+		long position = 0;
+		try {
+			FileChannel channel = stagedFile.open(length);
+			if (data != null) {
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				while (buffer.hasRemaining())
+					position += channel.write(buffer, position);
+			} else {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				while (position < length) {
+					int count = (int) Math.min(buffer.length, length
+							- position);
+					inputStream.readFully(buffer, 0, count);
+					ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+					while (byteBuffer.hasRemaining())
+						position += channel.write(byteBuffer, position);
+				}
+			}
+			stagedFile.publish(length);
+		} catch (IOException e) {
+			logger.error("Exception while writing file " + file + " : " + e);
+			stagedFile.discard();
+			client.removeFileFromIgnoreList(file);
+			failedCount.incrementAndGet();
+			// the rest of the file is still in the stream
+			if (inputStream != null)
+				skipFully(inputStream, length - position);
+			return;
+		}
+		client.setRevisionNumber(relativePath, revisionNumber);
+		writtenCount.incrementAndGet();
+	}
+
+	private void loadDeletion(String relativePath, long revisionNumber) {
+		File file = new File(rootFolderPath + "/" + relativePath);
+		long clientRevisionNumber = client.getRevisionNumber(relativePath);
+		if (clientRevisionNumber >= revisionNumber)
+			return;
+		if (file.exists()) {
+			// changed on the client since it was deleted on the server
+			if (clientRevisionNumber == -1)
+				return;
+			client.ignoreFileForUpdate(file, Actions.DELETE);
+			if (!file.delete()) {
+				client.removeFileFromIgnoreList(file);
+				logger.error("Couldn't delete file : " + file);
+				return;
+			}
+			deletedCount++;
+		}
+		client.setDeletedRevisionNumber(relativePath, revisionNumber);
+	}
+
+	private static void skipFully(DataInputStream inputStream, long length)
+			throws IOException {
+		while (length > 0) {
+			int skipped = inputStream.skipBytes((int) Math.min(length,
+					Integer.MAX_VALUE));
+			if (skipped <= 0) {
+				if (inputStream.read() < 0)
+					throw new EOFException("Snapshot truncated");
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package client;
+
+/**
+ * @author Ashish Pahlazani
+ *         PUSH : the server sends the changes of the other clients as they happen
+ *         PULL : the client reads the changes from the change feed of the server,
+ *         from the last change it applied, and waits on the server for the next ones
+ */
+public enum SyncMode {
+	PUSH,
+	PULL;
+}
@@ -0,0 +1,247 @@
+package client;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import common.TaskExecutor;
+
+/**
+ * @author Ashish Pahlazani Runs the uploads and downloads of the client on
+ *         the task executor, so the thread reading the messages of the server
+ *         is never blocked by a transfer. Up to maxUploads uploads and
+ *         maxDownloads downloads run at once, the next ones wait for a slot in
+ *         the order they were scheduled.
+ *
+ *         The operations on a path run in the order they were scheduled: a
+ *         transfer starts once the previous operation on its path is done,
+ *         and a change scheduled with execute waits for the transfers of its
+ *         path. A path with nothing pending costs nothing, the change then
+ *         runs at once on the calling thread.
+ */
+public class TransferScheduler {
+	private static final Logger logger = Logger
+			.getLogger(TransferScheduler.class);
+
+	private static final int CHANGE = 0;
+	private static final int UPLOAD = 1;
+	private static final int DOWNLOAD = 2;
+
+	private static class Operation {
+		String path;
+		int type;
+		ITransferTask transfer;
+		Runnable change;
+
+		Operation(String path, int type, ITransferTask transfer,
+				Runnable change) {
+			this.path = path;
+			this.type = type;
+			this.transfer = transfer;
+			this.change = change;
+		}
+	}
+
+	private TaskExecutor taskExecutor;
+	private int maxUploads;
+	private int maxDownloads;
+	// operations waiting for the one running on their path, a path is in the
+	// map while one of its operations runs or waits for a slot
+	private Map<String, Deque<Operation>> pathQueues = new HashMap<String, Deque<Operation>>();
+	// transfers free to run once a slot of their direction is free
+	private Deque<Operation> waitingUploads = new ArrayDeque<Operation>();
+	private Deque<Operation> waitingDownloads = new ArrayDeque<Operation>();
+	private int runningUploads;
+	private int runningDownloads;
+	private boolean cancelled;
+
+	/**
+	 * @param taskExecutor
+	 *            : runs the transfers
+	 * @param maxUploads
+	 *            : number of uploads running at once, at least 1
+	 * @param maxDownloads
+	 *            : number of downloads running at once, at least 1
+	 */
+	public TransferScheduler(TaskExecutor taskExecutor, int maxUploads,
+			int maxDownloads) {
+		this.taskExecutor = taskExecutor;
+		this.maxUploads = Math.max(maxUploads, 1);
+		this.maxDownloads = Math.max(maxDownloads, 1);
+	}
+
+	/**
+	 * @param path
+	 *            : relative path of the file sent
+	 * @param transfer
+	 */
+	public void upload(String path, ITransferTask transfer) {
+		schedule(new Operation(path, UPLOAD, transfer, null));
+	}
+
+	/**
+	 * @param path
+	 *            : relative path of the file received
+	 * @param transfer
+	 */
+	public void download(String path, ITransferTask transfer) {
+		schedule(new Operation(path, DOWNLOAD, transfer, null));
+	}
+
+	/**
+	 * Runs the change at once if nothing is pending on the path, after the
+	 * transfers of the path otherwise, on the thread completing the last one
+	 *
+	 * @param path
+	 *            : relative path of the file changed
+	 * @param change
+	 */
+	public void execute(String path, Runnable change) {
+		schedule(new Operation(path, CHANGE, null, change));
+	}
+
+	/**
+	 * @param path
+	 * @return true if an operation on the path is running or waiting
+	 */
+	public synchronized boolean isPending(String path) {
+		return pathQueues.containsKey(path);
+	}
+
+	/**
+	 * Drops the operations not started yet, the running transfers complete
+	 * or fail on their own. Nothing is scheduled afterwards
+	 */
+	public void cancel() {
+		int dropped = 0;
+		synchronized (this) {
+			cancelled = true;
+			for (Deque<Operation> pathQueue : pathQueues.values())
+				dropped += pathQueue.size();
+			dropped += waitingUploads.size() + waitingDownloads.size();
+			pathQueues.clear();
+			waitingUploads.clear();
+			waitingDownloads.clear();
+		}
+		if (dropped > 0 && logger.isInfoEnabled())
+			logger.info(dropped + " pending transfers and changes dropped");
+	}
+
+	private void schedule(Operation operation) {
+		synchronized (this) {
+			if (cancelled)
+				return;
+			Deque<Operation> pathQueue = pathQueues.get(operation.path);
+			if (pathQueue != null) {
+				pathQueue.add(operation);
+				return;
+			}
+			pathQueues.put(operation.path, new ArrayDeque<Operation>());
+			if (operation.type != CHANGE) {
+				start(operation);
+				return;
+			}
+		}
+		runChanges(operation);
+	}
+
+	/**
+	 * Runs the transfer if a slot is free, queues it otherwise. Called with
+	 * the lock held
+	 */
+	private void start(final Operation operation) {
+		if (operation.type == UPLOAD) {
+			if (runningUploads >= maxUploads) {
+				waitingUploads.add(operation);
+				return;
+			}
+			runningUploads++;
+		} else {
+			if (runningDownloads >= maxDownloads) {
+				waitingDownloads.add(operation);
+				return;
+			}
+			runningDownloads++;
+		}
+		taskExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				runTransfer(operation);
+			}
+		});
+	}
+
+	private void runTransfer(Operation operation) {
+		boolean success = false;
+		try {
+			success = operation.transfer.transfer();
+		} catch (RuntimeException e) {
+			logger.error("Exception while transferring " + operation.path
+					+ " : " + e);
+		}
+		try {
+			operation.transfer.transferCompleted(success);
+		} catch (RuntimeException e) {
+			logger.error("Exception after transfer of " + operation.path
+					+ " : " + e);
+		}
+
+		Operation change;
+		synchronized (this) {
+			if (operation.type == UPLOAD) {
+				runningUploads--;
+				if (!waitingUploads.isEmpty())
+					start(waitingUploads.poll());
+			} else {
+				runningDownloads--;
+				if (!waitingDownloads.isEmpty())
+					start(waitingDownloads.poll());
+			}
+			change = next(operation.path);
+		}
+		if (change != null)
+			runChanges(change);
+	}
+
+	/**
+	 * Runs the change, then the next changes of its path until a transfer,
+	 * which is started, or the end of the queue
+	 */
+	private void runChanges(Operation change) {
+		while (change != null) {
+			try {
+				change.change.run();
+			} catch (RuntimeException e) {
+				logger.error("Exception while changing " + change.path + " : "
+						+ e);
+			}
+			synchronized (this) {
+				change = next(change.path);
+			}
+		}
+	}
+
+	/**
+	 * Starts the next transfer of the path, called with the lock held
+	 *
+	 * @return next operation of the path if it is a change, to run on the
+	 *         calling thread
+	 */
+	private Operation next(String path) {
+		Deque<Operation> pathQueue = pathQueues.get(path);
+		if (pathQueue == null)
+			return null;
+		Operation operation = pathQueue.poll();
+		if (operation == null) {
+			pathQueues.remove(path);
+			return null;
+		}
+		if (operation.type == CHANGE)
+			return operation;
+		start(operation);
+		return null;
+	}
+}
@@ -0,0 +1,261 @@
+package client.file_change_detector;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import common.SerializationUtil;
+
+/**
+ * @author Ashish Pahlazani Content hash of every file of the root folder,
+ *         with the size, last modified time and file key (inode on Unix) the
+ *         file had when it was hashed. A file is hashed again only if one of
+ *         them changed, so touching a file or checking it out again costs a
+ *         stat, and the scan can tell whether the content really changed.
+ *
+ *         Files are hashed on a fixed pool of threads. The cache is saved in a
+ *         file by serialization, like the revision numbers, so a restart does
+ *         not hash the whole tree again.
+ */
+public class FileHashCache {
+	private static final Logger logger = Logger.getLogger(FileHashCache.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static class Entry implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		long length;
+		long lastModified;
+		// null if the file system has no file key
+		String fileKey;
+		byte[] hash;
+
+		Entry(long length, long lastModified, String fileKey, byte[] hash) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey;
+			this.hash = hash;
+		}
+
+		boolean hasSameStat(Entry other) {
+			return length == other.length
+					&& lastModified == other.lastModified
+					&& (fileKey == null ? other.fileKey == null : fileKey
+							.equals(other.fileKey));
+		}
+	}
+
+	private String rootPath;
+	private File cacheFile;
+	// by path relative to the root folder
+	private Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private volatile boolean dirty = false;
+	private ExecutorService hashExecutor;
+
+	/**
+	 * @param rootFolder
+	 * @param cacheFile
+	 *            : file in which the cache is saved
+	 * @param threadCount
+	 *            : number of files hashed in parallel
+	 */
+	public FileHashCache(File rootFolder, File cacheFile, int threadCount) {
+		this.rootPath = rootFolder.getAbsolutePath();
+		this.cacheFile = cacheFile;
+		final AtomicInteger threadNumber = new AtomicInteger();
+		hashExecutor = Executors.newFixedThreadPool(Math.max(threadCount, 1),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "file-hasher-"
+								+ threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Loads the cache saved by a previous run, if any
+	 */
+	public void load() {
+		if (!cacheFile.exists())
+			return;
+		try {
+			ObjectInputStream ois = new ObjectInputStream(new FileInputStream(
+					cacheFile));
+			try {
+				entries.putAll(SerializationUtil.readMap(ois, String.class,
+						Entry.class));
+			} finally {
+				ois.close();
+			}
+			if (logger.isInfoEnabled())
+				logger.info("hash cache loaded, files = " + entries.size());
+		} catch (Exception e) {
+			// the files are hashed again
+			logger.error("Exception while loading hash cache " + cacheFile
+					+ " : " + e);
+			entries.clear();
+		}
+	}
+
+	/**
+	 * Saves the cache if it changed since it was loaded or last saved
+	 */
+	public void save() {
+		if (!dirty)
+			return;
+		dirty = false;
+		try {
+			ObjectOutputStream oos = new ObjectOutputStream(
+					new FileOutputStream(cacheFile));
+			try {
+				oos.writeObject(new HashMap<String, Entry>(entries));
+			} finally {
+				oos.close();
+			}
+		} catch (IOException e) {
+			dirty = true;
+			logger.error("Exception while saving hash cache " + cacheFile
+					+ " : " + e);
+		}
+	}
+
+	/**
+	 * Hashes again, in parallel, the files whose size, last modified time or
+	 * file key changed since they were hashed
+	 *
+	 * @param files
+	 * @return the files whose content changed, or which were not in the cache
+	 */
+	public Set<File> update(Collection<File> files) {
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(
+				files.size());
+		for (final File file : files) {
+			results.add(hashExecutor.submit(new Callable<Boolean>() {
+				@Override
+				public Boolean call() throws Exception {
+					return refresh(file);
+				}
+			}));
+		}
+
+		Set<File> changedFiles = new HashSet<File>();
+		int i = 0;
+		for (File file : files) {
+			Future<Boolean> result = results.get(i++);
+			try {
+				if (result.get())
+					changedFiles.add(file);
+			} catch (ExecutionException e) {
+				// the file may have been deleted, the next scan will tell
+				if (logger.isDebugEnabled())
+					logger.debug("Exception while hashing " + file + " : "
+							+ e.getCause());
+				changedFiles.add(file);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				changedFiles.add(file);
+			}
+		}
+		return changedFiles;
+	}
+
+	/**
+	 * @param file
+	 *            : deleted file
+	 */
+	public void remove(File file) {
+		if (entries.remove(relativePathOf(file)) != null)
+			dirty = true;
+	}
+
+	/**
+	 * Stops the hashing threads and saves the cache
+	 */
+	public void shutdown() {
+		hashExecutor.shutdown();
+		save();
+	}
+
+	/**
+	 * @return true if the content of the file is not the one in the cache
+	 */
+	private boolean refresh(File file) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file.toPath(),
+				BasicFileAttributes.class);
+		// directories are left to the scan
+		if (!attributes.isRegularFile())
+			return true;
+
+		String relativePath = relativePathOf(file);
+		Object fileKey = attributes.fileKey();
+		// stat taken before hashing, a change made while hashing is seen by
+		// the next scan
+		Entry stat = new Entry(attributes.size(), attributes
+				.lastModifiedTime().toMillis(), fileKey == null ? null
+				: fileKey.toString(), null);
+		Entry cached = entries.get(relativePath);
+		if (cached != null && cached.hasSameStat(stat))
+			return false;
+
+		stat.hash = hash(file);
+		entries.put(relativePath, stat);
+		dirty = true;
+		return cached == null || !Arrays.equals(cached.hash, stat.hash);
+	}
+
+	private static byte[] hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			int count;
+			while ((count = inputStream.read(buffer)) >= 0)
+				digest.update(buffer, 0, count);
+		} finally {
+			inputStream.close();
+		}
+		return digest.digest();
+	}
+
+	private String relativePathOf(File file) {
+		String path = file.getAbsolutePath();
+		return path.startsWith(rootPath) ? path.substring(rootPath.length())
+				: path;
+	}
+}
@@ -1,107 +1,168 @@
 package client.file_change_detector;
 
 import java.io.File;
-import java.io.FilenameFilter;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.log4j.Logger;
 
 import common.Actions;
+import common.PathTrie;
+import common.StagedFile;
 
 /**
  * @author Ashish Pahlazani
  * This class checks if there is any change in the files inside rootFolder
- * It loads all the files present in the root folder and stores them in a Map
+ * It loads all the files present in the root folder and stores them in a PathTrie, which stores each folder name once
  * and scans the folder structure after specified interval and compares the timestamp with older timestamps
  * if there is a change in last modified time of any file, then onChange method is called with appropriate Actions type
+ * With a FileHashCache, added and modified files are hashed first and a MODIFY is only reported if the content changed
  */
 public abstract class ScanBasedFileChangeDetector extends FileChangeDetectorTimerTask {
     private static final Logger logger = Logger.getLogger(ScanBasedFileChangeDetector.class);
     
 	private String path;
-	private Map<File, Long> originalFilesMap = new HashMap<File, Long>();
-
-	private FilenameFilter directoryFilter = new FilenameFilter() {
-		@Override
-		public boolean accept(File current, String name) {
-			return new File(current, name).isDirectory();
-		}
-	};
+	private String rootPath;
+	// last modified time of the files found by the last scan, by path
+	// relative to the root folder
+	private PathTrie<Long> filesTrie = new PathTrie<Long>(File.separatorChar);
+	// null if changes are detected on the last modified time only
+	private FileHashCache hashCache;
 
 	public ScanBasedFileChangeDetector(String path) {
+		this(path, null);
+	}
+
+	/**
+	 * @param path
+	 * @param hashCache
+	 *            : the files not hashed yet, or changed since they were hashed,
+	 *            are hashed before the first scan
+	 */
+	public ScanBasedFileChangeDetector(String path, FileHashCache hashCache) {
 	    if(logger.isDebugEnabled())
 	        logger.debug("ScanBasedFileChangeDetector Constructor - ENTER");
 	    
 		this.path = path;
-		this.originalFilesMap = loadFilesInMap(new File(path));
+		this.rootPath = new File(path).getPath();
+		this.hashCache = hashCache;
+		List<File> files = new ArrayList<File>();
+		scan(new File(path), "", files, new ArrayList<File>(),
+				new ArrayList<File>());
+		if (hashCache != null) {
+			long start = System.currentTimeMillis();
+			hashCache.update(files);
+			hashCache.save();
+			if (logger.isInfoEnabled())
+				logger.info("files hashed, count = " + files.size()
+						+ " time (ms) = " + (System.currentTimeMillis() - start));
+		}
 		
 		if(logger.isDebugEnabled())
             logger.debug("ScanBasedFileChangeDetector Constructor - LEAVE");
 	}
 
 	/**
-	 * @param rootFolder
-	 * @return Map of all the files present in the rootFolder along with the lastModifiedTime
+	 * Compares the files of the folder, and of its subfolders, with the ones
+	 * found by the previous scan. The folders which no longer exist are
+	 * removed from filesTrie with all the entries under them.
+	 * 
+	 * @param folder
+	 * @param relativePath
+	 *            : path of the folder relative to the root folder, "" for the
+	 *            root folder
 	 */
-	private Map<File, Long> loadFilesInMap(File rootFolder) {
-		Map<File, Long> filesMap = new HashMap<File, Long>();
-		// add files in the
-		File filesArray[] = rootFolder.listFiles();
+	private void scan(File folder, String relativePath, List<File> addedFiles,
+			List<File> modifiedFiles, List<File> deletedFiles) {
+		File filesArray[] = folder.listFiles();
+		Set<String> names = new HashSet<String>();
 		if (filesArray != null) {
-			for (int i = 0; i < filesArray.length; i++) {
-				filesMap.put(filesArray[i],
-						new Long(filesArray[i].lastModified()));
-			}
-			File directoriesArray[] = rootFolder.listFiles(directoryFilter);
-			if (directoriesArray != null) {
-				for (int i = 0; i < directoriesArray.length; i++) {
-					filesMap.putAll(loadFilesInMap(directoriesArray[i]));
+			for (File file : filesArray) {
+				// files being received are published by a rename
+				if (StagedFile.isTempFile(file))
+					continue;
+				String name = file.getName();
+				String relativePathOfFile = relativePath + File.separator
+						+ name;
+				names.add(name);
+				long lastModified = file.lastModified();
+				Long previous = filesTrie.put(relativePathOfFile, lastModified);
+				boolean isDirectory = file.isDirectory();
+				if (previous == null) {
+					addedFiles.add(file);
+				} else if (previous.longValue() != lastModified) {
+					modifiedFiles.add(file);
+					// a folder replaced by a file
+					if (!isDirectory)
+						removeChildren(relativePathOfFile, deletedFiles);
 				}
+				if (isDirectory)
+					scan(file, relativePathOfFile, addedFiles, modifiedFiles,
+							deletedFiles);
 			}
 		}
 
-		return filesMap;
+		for (String name : filesTrie.getChildNames(relativePath)) {
+			if (!names.contains(name))
+				removeSubtree(relativePath + File.separator + name,
+						deletedFiles);
+		}
+	}
+
+	private void removeChildren(String relativePath, List<File> deletedFiles) {
+		for (String name : filesTrie.getChildNames(relativePath))
+			removeSubtree(relativePath + File.separator + name, deletedFiles);
+	}
+
+	private void removeSubtree(String relativePath,
+			final List<File> deletedFiles) {
+		filesTrie.removeSubtree(relativePath,
+				new PathTrie.IEntryVisitor<Long>() {
+					@Override
+					public void visit(String relativePathOfFile, Long lastModified) {
+						deletedFiles.add(new File(rootPath + relativePathOfFile));
+					}
+				});
 	}
 
 	@Override
 	public final void run() {
 	    /*if(logger.isDebugEnabled())
             logger.debug("Scanning file changes - ENTER");*/
-		HashSet<File> checkedFiles = new HashSet<File>();
-		Map<File, Long> currentFilesMap = loadFilesInMap(new File(path));
-
-		// scan the files and check for modification/addition
-		for(File file : currentFilesMap.keySet())
-		{
-			Long current = originalFilesMap.get(file);
-			checkedFiles.add(file);
-			if (current == null) {
-				originalFilesMap.put(file,
-						new Long(file.lastModified()));
-				onChange(file, Actions.ADD);
-			} else if (current.longValue() != file.lastModified()) {
-				// modified file
-				originalFilesMap.put(file,
-						new Long(file.lastModified()));
-				onChange(file, Actions.MODIFY);
+		List<File> addedFiles = new ArrayList<File>();
+		List<File> modifiedFiles = new ArrayList<File>();
+		List<File> deletedFiles = new ArrayList<File>();
+		scan(new File(path), "", addedFiles, modifiedFiles, deletedFiles);
+
+		if (hashCache != null) {
+			// added files are hashed too, so their next change can be checked
+			List<File> changedFiles = new ArrayList<File>(addedFiles);
+			changedFiles.addAll(modifiedFiles);
+			Set<File> contentChangedFiles = hashCache.update(changedFiles);
+			for (Iterator<File> it = modifiedFiles.iterator(); it.hasNext();) {
+				File file = it.next();
+				if (!contentChangedFiles.contains(file)) {
+					it.remove();
+					onContentUnchanged(file);
+				}
 			}
 		}
+		for (File file : addedFiles)
+			onChange(file, Actions.ADD);
+		for (File file : modifiedFiles)
+			onChange(file, Actions.MODIFY);
 
-		// deleted files
-		Set<File> ref = ((HashMap<File, Long>) ((HashMap<File, Long>) originalFilesMap)
-				.clone()).keySet();
-		ref.removeAll(checkedFiles);
-
-		Iterator<File> it = ref.iterator();
-		while (it.hasNext()) {
-			File deletedFile = it.next();
-			originalFilesMap.remove(deletedFile);
+		for (File deletedFile : deletedFiles) {
+			if (hashCache != null)
+				hashCache.remove(deletedFile);
 			onChange(deletedFile, Actions.DELETE);
 		}
+		if (hashCache != null)
+			hashCache.save();
+		onScanComplete();
 		
         /*if(logger.isDebugEnabled())
             logger.debug("Scanning file changes - LEAVE");*/
@@ -109,4 +170,27 @@ public abstract class ScanBasedFileChangeDetector extends FileChangeDetectorTime
 
 	@Override
 	protected abstract void onChange(File file, Actions action);
+
+	/**
+	 * called after onChange has been called for all the changes found by a
+	 * scan, so the changes can be sent together
+	 */
+	protected void onScanComplete() {
+	}
+
+	/**
+	 * called instead of onChange for a file whose last modified time changed
+	 * but whose content is the same
+	 *
+	 * @param file
+	 */
+	protected void onContentUnchanged(File file) {
+	}
+
+	@Override
+	public boolean cancel() {
+		if (hashCache != null)
+			hashCache.shutdown();
+		return super.cancel();
+	}
 }
\ No newline at end of file
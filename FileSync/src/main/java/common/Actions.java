@@ -12,7 +12,15 @@ public enum Actions {
 	SENDING_FILE_MODIFY,
 	CONFLICT,
 	EXCEPTION,
-	FILE_SOCKET_PORT;
+	FILE_SOCKET_PORT,
+	BATCH,
+	REQUEST_CHUNKS,
+	SENDING_CHUNKS,
+	COMPRESSION,
+	GET_CHANGES,
+	CHANGES,
+	GET_DIGESTS,
+	DIGESTS;
 	
 	public static Actions fromInteger(int x) {
         switch(x) {
@@ -40,6 +48,22 @@ public enum Actions {
         	return EXCEPTION;
         case 11:
         	return FILE_SOCKET_PORT;
+        case 12:
+        	return BATCH;
+        case 13:
+        	return REQUEST_CHUNKS;
+        case 14:
+        	return SENDING_CHUNKS;
+        case 15:
+        	return COMPRESSION;
+        case 16:
+        	return GET_CHANGES;
+        case 17:
+        	return CHANGES;
+        case 18:
+        	return GET_DIGESTS;
+        case 19:
+        	return DIGESTS;
         }
         return null;
     }
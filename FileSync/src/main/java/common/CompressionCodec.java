@@ -0,0 +1,41 @@
+package common;
+
+import java.util.zip.Deflater;
+
+/**
+ * @author Ashish Pahlazani Compression applied to the bytes of a file
+ *         transfer. Both codecs use the JDK Deflater, the stream keeps the zlib
+ *         header and checksum so a corrupted stream is detected by the
+ *         Inflater.
+ * 
+ *         NONE : the bytes are sent as they are
+ *         DEFLATE_FAST : lowest level, costs little CPU, for fast links
+ *         DEFLATE_HIGH : highest level, for slow links
+ */
+public enum CompressionCodec {
+	NONE(0), DEFLATE_FAST(Deflater.BEST_SPEED), DEFLATE_HIGH(
+			Deflater.BEST_COMPRESSION);
+
+	private int level;
+
+	private CompressionCodec(int level) {
+		this.level = level;
+	}
+
+	/**
+	 * @return a new Deflater, which must be ended once the transfer is done
+	 *         to release its native memory
+	 */
+	public Deflater newDeflater() {
+		return new Deflater(level);
+	}
+
+	/**
+	 * @param x
+	 * @return codec sent with the given ordinal, null if unknown
+	 */
+	public static CompressionCodec fromInteger(int x) {
+		CompressionCodec[] codecs = values();
+		return x >= 0 && x < codecs.length ? codecs[x] : null;
+	}
+}
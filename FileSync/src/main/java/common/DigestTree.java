@@ -0,0 +1,496 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * @author Ashish Pahlazani Merkle tree of the revisions of a repository, with
+ *         one node per path component like PathTrie. Every folder has a
+ *         digest of the names and revisions of the files under it, so two
+ *         sides can compare their trees from the top and only go down the
+ *         folders whose digests differ : the cost of the comparison depends on
+ *         the number of differences, not on the number of files.
+ *
+ *         The digest of a node is the XOR of the hash of its revision, if it is
+ *         a file, and of a hash of the name and digest of each child. A change
+ *         only updates the digests of the folders above the file, from the
+ *         file upwards, whatever the number of files in them. A deleted file
+ *         can be kept as a tombstone : it is listed by visitChildren but is not
+ *         part of the digests, so it does not differ from a file which never
+ *         existed. The digest of a folder without file is 0.
+ *
+ *         The tree is saved with the revision up to which it is up to date, so
+ *         it can be loaded at startup instead of being rebuilt. This class is
+ *         thread safe.
+ */
+public class DigestTree {
+	private static final int MAGIC = 0x46534454;
+	private static final int MAX_ARRAY_CHILDREN = 8;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final byte FILE_NODE = 1;
+	private static final byte DELETED_NODE = 2;
+	private static final Comparator<Node> NAME_ORDER = new Comparator<Node>() {
+		@Override
+		public int compare(Node node1, Node node2) {
+			return node1.name.compareTo(node2.name);
+		}
+	};
+
+	/**
+	 * Receives the children of a folder
+	 */
+	public interface IChildVisitor {
+		/**
+		 * @param path
+		 * @param digest
+		 *            : 0 if there is no file under the folder
+		 */
+		public void visitFolder(String path, long digest);
+
+		/**
+		 * @param path
+		 * @param revisionNumber
+		 * @param deleted
+		 *            : true for a tombstone
+		 */
+		public void visitFile(String path, long revisionNumber, boolean deleted);
+	}
+
+	private static class Node {
+		String name;
+		long revisionNumber = Message.NO_REVISION;
+		boolean deleted;
+		long digest;
+		// null, Node[] or Map<String, Node>
+		Object children;
+		int childCount;
+
+		Node(String name) {
+			this.name = name;
+		}
+
+		boolean isFile() {
+			return revisionNumber != Message.NO_REVISION;
+		}
+
+		@SuppressWarnings("unchecked")
+		Node getChild(String childName) {
+			if (children == null)
+				return null;
+			if (children instanceof Map)
+				return ((Map<String, Node>) children).get(childName);
+			Node[] array = (Node[]) children;
+			for (int i = 0; i < childCount; i++) {
+				if (array[i].name.equals(childName))
+					return array[i];
+			}
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		Node addChild(Node child) {
+			if (children == null) {
+				children = new Node[2];
+			} else if (children instanceof Map) {
+				((Map<String, Node>) children).put(child.name, child);
+				childCount++;
+				return child;
+			} else if (childCount == MAX_ARRAY_CHILDREN) {
+				Map<String, Node> map = new HashMap<String, Node>();
+				for (Node node : (Node[]) children)
+					map.put(node.name, node);
+				map.put(child.name, child);
+				children = map;
+				childCount++;
+				return child;
+			} else if (childCount == ((Node[]) children).length) {
+				children = Arrays.copyOf((Node[]) children,
+						Math.min(2 * childCount, MAX_ARRAY_CHILDREN));
+			}
+			((Node[]) children)[childCount++] = child;
+			return child;
+		}
+
+		@SuppressWarnings("unchecked")
+		void removeChild(String childName) {
+			if (children instanceof Map) {
+				if (((Map<String, Node>) children).remove(childName) != null)
+					childCount--;
+			} else if (children != null) {
+				Node[] array = (Node[]) children;
+				for (int i = 0; i < childCount; i++) {
+					if (array[i].name.equals(childName)) {
+						array[i] = array[--childCount];
+						array[childCount] = null;
+						break;
+					}
+				}
+			}
+			if (childCount == 0)
+				children = null;
+		}
+
+		@SuppressWarnings("unchecked")
+		Collection<Node> getChildren() {
+			if (children == null)
+				return Collections.emptyList();
+			if (children instanceof Map)
+				return ((Map<String, Node>) children).values();
+			return Arrays.asList((Node[]) children).subList(0, childCount);
+		}
+	}
+
+	private char separator;
+	private Node root = new Node("");
+	private int size;
+
+	/**
+	 * @param separator
+	 *            : separator of the components of the paths
+	 */
+	public DigestTree(char separator) {
+		this.separator = separator;
+	}
+
+	/**
+	 * @param path
+	 * @param revisionNumber
+	 * @param deleted
+	 *            : true to keep the file as a tombstone
+	 */
+	public synchronized void put(String path, long revisionNumber,
+			boolean deleted) {
+		List<Node> nodes = new ArrayList<Node>();
+		Node node = root;
+		nodes.add(node);
+		int start = 0;
+		while (true) {
+			int end = path.indexOf(separator, start);
+			String name = path.substring(start, end < 0 ? path.length() : end);
+			Node child = node.getChild(name);
+			node = child != null ? child : node.addChild(new Node(name));
+			nodes.add(node);
+			if (end < 0)
+				break;
+			start = end + 1;
+		}
+		if (!node.isFile())
+			size++;
+		long previous = node.digest;
+		node.digest ^= fileDigest(node);
+		node.revisionNumber = revisionNumber;
+		node.deleted = deleted;
+		node.digest ^= fileDigest(node);
+		propagate(nodes, previous);
+	}
+
+	/**
+	 * Removes the file of the path, tombstone included, the files under it
+	 * are kept
+	 *
+	 * @param path
+	 */
+	public synchronized void remove(String path) {
+		List<Node> nodes = findPath(path);
+		if (nodes == null)
+			return;
+		Node node = nodes.get(nodes.size() - 1);
+		if (!node.isFile())
+			return;
+		long previous = node.digest;
+		node.digest ^= fileDigest(node);
+		node.revisionNumber = Message.NO_REVISION;
+		node.deleted = false;
+		size--;
+		propagate(nodes, previous);
+		prune(nodes);
+	}
+
+	/**
+	 * @param path
+	 * @return digest of the folder or file, 0 if there is no file there
+	 */
+	public synchronized long getDigest(String path) {
+		Node node = find(path);
+		return node == null ? 0 : node.digest;
+	}
+
+	/**
+	 * @param path
+	 * @return revision of the file, NO_REVISION if there is none or it is a
+	 *         tombstone
+	 */
+	public synchronized long getRevisionNumber(String path) {
+		Node node = find(path);
+		return node == null || node.deleted ? Message.NO_REVISION
+				: node.revisionNumber;
+	}
+
+	/**
+	 * Visits the children of a folder in the order of their names, a child
+	 * which is both a file and a folder is visited twice
+	 *
+	 * @param folderPath
+	 * @param afterName
+	 *            : only the children named after it are visited, null for all
+	 * @param maxCount
+	 *            : maximum number of children visited
+	 * @param visitor
+	 * @return name of the last child visited if there are more to visit, null
+	 *         otherwise
+	 */
+	public synchronized String visitChildren(String folderPath,
+			String afterName, int maxCount, IChildVisitor visitor) {
+		Node node = find(folderPath);
+		if (node == null)
+			return null;
+		List<Node> children = new ArrayList<Node>(node.childCount);
+		for (Node child : node.getChildren()) {
+			if (afterName == null || child.name.compareTo(afterName) > 0)
+				children.add(child);
+		}
+		Collections.sort(children, NAME_ORDER);
+
+		int count = Math.min(children.size(), maxCount);
+		for (int i = 0; i < count; i++) {
+			Node child = children.get(i);
+			String path = folderPath + separator + child.name;
+			if (child.childCount > 0)
+				visitor.visitFolder(path, child.digest);
+			if (child.isFile())
+				visitor.visitFile(path, child.revisionNumber, child.deleted);
+		}
+		return count < children.size() ? children.get(count - 1).name : null;
+	}
+
+	/**
+	 * @return number of files, tombstones included
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Writes the tree in a temporary file renamed once it is complete, so a
+	 * crash leaves the previous version
+	 *
+	 * @param file
+	 * @param revisionNumber
+	 *            : revision up to which the tree is up to date, returned by
+	 *            load
+	 * @throws IOException
+	 */
+	public synchronized void save(File file, long revisionNumber)
+			throws IOException {
+		File temporaryFile = new File(file.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temporaryFile);
+		try {
+			CheckedOutputStream checkedOutputStream = new CheckedOutputStream(
+					new BufferedOutputStream(fos, BUFFER_SIZE), new CRC32());
+			DataOutputStream output = new DataOutputStream(checkedOutputStream);
+			output.writeInt(MAGIC);
+			output.writeChar(separator);
+			output.writeLong(revisionNumber);
+			output.writeInt(size);
+			writeNode(output, root);
+			output.writeLong(checkedOutputStream.getChecksum().getValue());
+			output.flush();
+			fos.getChannel().force(true);
+		} finally {
+			fos.close();
+		}
+		Files.move(temporaryFile.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Replaces the content of the tree with the one saved in the file
+	 *
+	 * @param file
+	 * @return revision given to save
+	 * @throws IOException
+	 *             if the file is not a tree saved with the same separator, or
+	 *             is corrupted. The tree is not changed.
+	 */
+	public synchronized long load(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			CheckedInputStream checkedInputStream = new CheckedInputStream(
+					new BufferedInputStream(fis, BUFFER_SIZE), new CRC32());
+			DataInputStream input = new DataInputStream(checkedInputStream);
+			if (input.readInt() != MAGIC)
+				throw new IOException("Not a digest tree : " + file);
+			if (input.readChar() != separator)
+				throw new IOException("Digest tree saved with another separator : "
+						+ file);
+			long revisionNumber = input.readLong();
+			int savedSize = input.readInt();
+			Node savedRoot = readNode(input);
+			long checksum = checkedInputStream.getChecksum().getValue();
+			if (input.readLong() != checksum)
+				throw new IOException("Corrupted digest tree : " + file);
+
+			root = savedRoot;
+			size = savedSize;
+			return revisionNumber;
+		} finally {
+			fis.close();
+		}
+	}
+
+	private Node find(String path) {
+		Node node = root;
+		int start = 0;
+		while (node != null) {
+			int end = path.indexOf(separator, start);
+			node = node.getChild(path.substring(start, end < 0 ? path.length()
+					: end));
+			if (end < 0)
+				break;
+			start = end + 1;
+		}
+		return node;
+	}
+
+	/**
+	 * @return nodes from the root to the node of the path, null if the path
+	 *         has no node
+	 */
+	private List<Node> findPath(String path) {
+		List<Node> nodes = new ArrayList<Node>();
+		Node node = root;
+		nodes.add(node);
+		int start = 0;
+		while (true) {
+			int end = path.indexOf(separator, start);
+			node = node.getChild(path.substring(start, end < 0 ? path.length()
+					: end));
+			if (node == null)
+				return null;
+			nodes.add(node);
+			if (end < 0)
+				return nodes;
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Updates the digests of the folders above the last node, from the
+	 * bottom, until one does not change
+	 *
+	 * @param previous
+	 *            : digest of the last node before it changed
+	 */
+	private static void propagate(List<Node> nodes, long previous) {
+		for (int i = nodes.size() - 1; i > 0; i--) {
+			Node node = nodes.get(i);
+			if (node.digest == previous)
+				return;
+			Node parent = nodes.get(i - 1);
+			long parentPrevious = parent.digest;
+			parent.digest ^= childDigest(node.name, previous)
+					^ childDigest(node.name, node.digest);
+			previous = parentPrevious;
+		}
+	}
+
+	/**
+	 * Removes the nodes left without file nor children, from the last one,
+	 * their digest is 0 so the digests above do not change
+	 */
+	private static void prune(List<Node> nodes) {
+		for (int i = nodes.size() - 1; i > 0; i--) {
+			Node node = nodes.get(i);
+			if (node.isFile() || node.childCount > 0)
+				return;
+			nodes.get(i - 1).removeChild(node.name);
+		}
+	}
+
+	private static long fileDigest(Node node) {
+		return node.isFile() && !node.deleted ? mix(node.revisionNumber
+				^ 0x9e3779b97f4a7c15L) : 0;
+	}
+
+	/**
+	 * @return part of the digest of a folder given by a child, 0 if there is
+	 *         no file under the child
+	 */
+	private static long childDigest(String name, long digest) {
+		return digest == 0 ? 0 : mix(hash(name) ^ mix(digest));
+	}
+
+	private static long hash(String name) {
+		// FNV-1a on the chars, the names are compared in memory only
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			hash ^= name.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Finalizer of MurmurHash3
+	 */
+	private static long mix(long hash) {
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+	private static void writeNode(DataOutputStream output, Node node)
+			throws IOException {
+		output.writeUTF(node.name);
+		byte flags = 0;
+		if (node.isFile())
+			flags |= FILE_NODE;
+		if (node.deleted)
+			flags |= DELETED_NODE;
+		output.writeByte(flags);
+		if (node.isFile())
+			output.writeLong(node.revisionNumber);
+		output.writeLong(node.digest);
+		output.writeInt(node.childCount);
+		for (Node child : node.getChildren())
+			writeNode(output, child);
+	}
+
+	private static Node readNode(DataInputStream input) throws IOException {
+		Node node = new Node(input.readUTF());
+		byte flags = input.readByte();
+		if ((flags & FILE_NODE) != 0)
+			node.revisionNumber = input.readLong();
+		node.deleted = (flags & DELETED_NODE) != 0;
+		node.digest = input.readLong();
+		int childCount = input.readInt();
+		if (childCount < 0)
+			throw new IOException("Invalid child count : " + childCount);
+		for (int i = 0; i < childCount; i++)
+			node.addChild(readNode(input));
+		return node;
+	}
+}
@@ -0,0 +1,66 @@
+package common;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Ashish Pahlazani Pool of direct buffers of one size. Allocating a
+ *         direct buffer is expensive and its memory is only freed by the GC, so
+ *         buffers used for file transfers are taken from the pool and given
+ *         back once the transfer is done. At most maxPooledBuffers are kept,
+ *         extra buffers are left to the GC.
+ */
+public class DirectBufferPool {
+	private static final DirectBufferPool sharedPool = new DirectBufferPool(
+			Frame.DATA_CHUNK_SIZE, 64);
+
+	private int bufferSize;
+	private int maxPooledBuffers;
+	private Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private AtomicInteger pooledBufferCount = new AtomicInteger();
+
+	public DirectBufferPool(int bufferSize, int maxPooledBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxPooledBuffers = maxPooledBuffers;
+	}
+
+	/**
+	 * @return pool of DATA_CHUNK_SIZE buffers shared by the file transfers
+	 */
+	public static DirectBufferPool getSharedPool() {
+		return sharedPool;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return cleared buffer, must be given back with release
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+
+		pooledBufferCount.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * @param buffer
+	 *            : buffer taken from this pool, must not be used after release
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferSize)
+			return;
+
+		if (pooledBufferCount.incrementAndGet() <= maxPooledBuffers)
+			buffers.add(buffer);
+		else
+			pooledBufferCount.decrementAndGet();
+	}
+}
@@ -0,0 +1,12 @@
+package common;
+
+/**
+ * @author Ashish Pahlazani
+ *         PLATFORM : tasks are executed on a cached pool of platform threads
+ *         VIRTUAL : each task is executed on its own virtual thread, needs
+ *         java 21 or later, PLATFORM is used on older runtimes
+ */
+public enum ExecutionMode {
+	PLATFORM,
+	VIRTUAL;
+}
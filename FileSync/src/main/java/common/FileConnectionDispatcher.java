@@ -0,0 +1,443 @@
+package common;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani Accepts the connections of the file port and hands
+ *         each one to the transfer it belongs to, so any number of files can
+ *         be received at once on the same port. The sender picks a random
+ *         token for every file, sends it in the control message announcing
+ *         the file and writes it first on each connection of the file. The
+ *         receiver registers an IConnectionListener for the token of the
+ *         message, called with the first connection of the token, so no
+ *         thread waits for it. The other connections of a file sent on
+ *         several streams, opened right after the first one, are taken with
+ *         accept.
+ *
+ *         The token of a connection is read on the TaskExecutor, a slow
+ *         connection does not hold back the others. A connection which comes
+ *         before its message is handled waits for its transfer for at most
+ *         CONNECTION_TIMEOUT_MILLIS, then it is closed, as are the connections
+ *         with a token no transfer waits for. A listener whose connection does
+ *         not come in that time is told it failed. They are looked for every
+ *         EXPIRY_INTERVAL_MILLIS.
+ *
+ *         Failures of accept, such as running out of file descriptors, are
+ *         retried after a pause doubled on each failure up to
+ *         MAX_ACCEPT_RETRY_MILLIS.
+ */
+public class FileConnectionDispatcher implements Runnable {
+	private static final Logger logger = Logger
+			.getLogger(FileConnectionDispatcher.class);
+
+	/**
+	 * Time a transfer waits for its connection, and a connection for its
+	 * transfer
+	 */
+	public static final long CONNECTION_TIMEOUT_MILLIS = 60000;
+	private static final int TOKEN_READ_TIMEOUT_MILLIS = 10000;
+	private static final int MAX_WAITING_CONNECTIONS = 1024;
+	private static final long EXPIRY_INTERVAL_MILLIS = 5000;
+	private static final long MIN_ACCEPT_RETRY_MILLIS = 10;
+	private static final long MAX_ACCEPT_RETRY_MILLIS = 1000;
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * Receiver of the first connection of a transfer. It is called on the
+	 * thread which reads the token of the connection, or on the one which
+	 * registers it if the connection came first, and must not block
+	 */
+	public interface IConnectionListener {
+		/**
+		 * @param socket
+		 *            : connection of the transfer, after the token
+		 */
+		void connected(Socket socket);
+
+		/**
+		 * @param e
+		 *            : no connection came in time, or the file port is closed
+		 */
+		void failed(IOException e);
+	}
+
+	private static class WaitingConnection {
+		Socket socket;
+		long time;
+
+		WaitingConnection(Socket socket, long time) {
+			this.socket = socket;
+			this.time = time;
+		}
+	}
+
+	private static class Registration {
+		IConnectionListener listener;
+		long time;
+
+		Registration(IConnectionListener listener, long time) {
+			this.listener = listener;
+			this.time = time;
+		}
+	}
+
+	private ServerSocket serverSocket;
+	private TaskExecutor taskExecutor;
+	private long connectionTimeoutMillis;
+	private int maxWaitingConnections;
+	// connections not taken by their transfer yet, by token
+	private Map<Long, Deque<WaitingConnection>> waitingConnections = new HashMap<Long, Deque<WaitingConnection>>();
+	private int waitingCount;
+	// transfers waiting for their first connection, by token
+	private Map<Long, Registration> registrations = new HashMap<Long, Registration>();
+	private Timer expiryTimer;
+	private volatile boolean closed;
+
+	/**
+	 * @param serverSocket
+	 *            : file port, opened as a channel so accepted sockets support
+	 *            transferFrom
+	 * @param taskExecutor
+	 *            : reads the tokens of the connections
+	 */
+	public FileConnectionDispatcher(ServerSocket serverSocket,
+			TaskExecutor taskExecutor) {
+		this(serverSocket, taskExecutor, CONNECTION_TIMEOUT_MILLIS,
+				MAX_WAITING_CONNECTIONS);
+	}
+
+	/**
+	 * @param connectionTimeoutMillis
+	 *            : CONNECTION_TIMEOUT_MILLIS, shorter in the tests
+	 * @param maxWaitingConnections
+	 *            : MAX_WAITING_CONNECTIONS, smaller in the tests
+	 */
+	FileConnectionDispatcher(ServerSocket serverSocket,
+			TaskExecutor taskExecutor, long connectionTimeoutMillis,
+			int maxWaitingConnections) {
+		this.serverSocket = serverSocket;
+		this.taskExecutor = taskExecutor;
+		this.connectionTimeoutMillis = connectionTimeoutMillis;
+		this.maxWaitingConnections = maxWaitingConnections;
+	}
+
+	/**
+	 * @return a token for a new transfer, never 0
+	 */
+	public static long newToken() {
+		long token;
+		do {
+			token = random.nextLong();
+		} while (token == 0);
+		return token;
+	}
+
+	/**
+	 * Opens a connection to the file port of the receiver and writes the
+	 * token of the transfer
+	 */
+	public static SocketChannel connect(InetSocketAddress address, long token)
+			throws IOException {
+		SocketChannel channel = SocketChannel.open(address);
+		try {
+			writeToken(channel, token);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	public static void writeToken(WritableByteChannel channel, long token)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putLong(token).flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	public int getLocalPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Waits for the next connection of the transfer, for at most
+	 * CONNECTION_TIMEOUT_MILLIS. A file sent on several streams is accepted
+	 * once per stream
+	 *
+	 * @param token
+	 *            : token of the message announcing the transfer
+	 * @return connection, after the token
+	 * @throws IOException
+	 *             if no connection comes in time or the file port is closed
+	 */
+	public synchronized Socket accept(long token) throws IOException {
+		long deadline = System.currentTimeMillis() + connectionTimeoutMillis;
+		while (true) {
+			if (closed)
+				throw new SocketException("File port closed");
+			Socket socket = takeWaitingConnection(token);
+			if (socket != null)
+				return socket;
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				throw new SocketTimeoutException("No connection for transfer "
+						+ Long.toHexString(token));
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for transfer "
+						+ Long.toHexString(token));
+			}
+		}
+	}
+
+	/**
+	 * Calls the listener with the first connection of the transfer, at once if
+	 * it is already there. If it does not come within
+	 * CONNECTION_TIMEOUT_MILLIS the listener is told it failed. Either is
+	 * called exactly once
+	 *
+	 * @param token
+	 *            : token of the message announcing the transfer
+	 * @param listener
+	 */
+	public void register(long token, IConnectionListener listener) {
+		Socket socket;
+		synchronized (this) {
+			socket = closed ? null : takeWaitingConnection(token);
+			if (socket == null && !closed) {
+				registrations.put(token,
+						new Registration(listener, System.currentTimeMillis()));
+				return;
+			}
+		}
+		if (socket != null)
+			listener.connected(socket);
+		else
+			listener.failed(new SocketException("File port closed"));
+	}
+
+	/**
+	 * Accepts the connections until the dispatcher is closed
+	 */
+	@Override
+	public void run() {
+		if (logger.isDebugEnabled())
+			logger.debug("dispatching connections of port "
+					+ serverSocket.getLocalPort());
+		startExpiryTimer();
+		long retryMillis = MIN_ACCEPT_RETRY_MILLIS;
+		while (!closed) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+				retryMillis = MIN_ACCEPT_RETRY_MILLIS;
+			} catch (IOException e) {
+				if (closed)
+					break;
+				logger.error("Exception while accepting file connection, retrying in "
+						+ retryMillis + " ms : " + e);
+				try {
+					Thread.sleep(retryMillis);
+				} catch (InterruptedException e1) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				retryMillis = Math.min(retryMillis * 2, MAX_ACCEPT_RETRY_MILLIS);
+				continue;
+			}
+			taskExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					readToken(socket);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Closes the file port and the connections waiting for their transfer,
+	 * the transfers waiting in accept or registered fail
+	 */
+	public void close() {
+		closed = true;
+		synchronized (this) {
+			if (expiryTimer != null)
+				expiryTimer.cancel();
+		}
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			logger.error("Exception while closing file port : " + e);
+		}
+		List<Registration> failed;
+		synchronized (this) {
+			for (Deque<WaitingConnection> connections : waitingConnections
+					.values())
+				for (WaitingConnection connection : connections)
+					close(connection.socket);
+			waitingConnections.clear();
+			waitingCount = 0;
+			failed = new ArrayList<Registration>(registrations.values());
+			registrations.clear();
+			notifyAll();
+		}
+		for (Registration registration : failed)
+			registration.listener.failed(new SocketException(
+					"File port closed"));
+	}
+
+	private void readToken(Socket socket) {
+		long token;
+		try {
+			// the stream of a socket of a channel honours the timeout
+			socket.setSoTimeout(TOKEN_READ_TIMEOUT_MILLIS);
+			token = new DataInputStream(socket.getInputStream()).readLong();
+			socket.setSoTimeout(0);
+		} catch (IOException e) {
+			logger.error("Exception while reading token of file connection from "
+					+ socket.getRemoteSocketAddress() + " : " + e);
+			close(socket);
+			return;
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("file connection for transfer "
+					+ Long.toHexString(token));
+
+		Registration registration;
+		synchronized (this) {
+			registration = closed ? null : registrations.remove(token);
+			if (registration == null
+					&& (closed || waitingCount >= maxWaitingConnections)) {
+				logger.error("File connection refused, " + waitingCount
+						+ " connections waiting for their transfer");
+				close(socket);
+				return;
+			}
+			if (registration == null) {
+				Deque<WaitingConnection> connections = waitingConnections
+						.get(token);
+				if (connections == null) {
+					connections = new ArrayDeque<WaitingConnection>();
+					waitingConnections.put(token, connections);
+				}
+				connections.add(new WaitingConnection(socket, System
+						.currentTimeMillis()));
+				waitingCount++;
+				notifyAll();
+				return;
+			}
+		}
+		registration.listener.connected(socket);
+	}
+
+	/**
+	 * @return next connection with the token, null if none is waiting. Called
+	 *         with the lock held
+	 */
+	private Socket takeWaitingConnection(long token) {
+		Deque<WaitingConnection> connections = waitingConnections.get(token);
+		if (connections == null)
+			return null;
+		WaitingConnection connection = connections.poll();
+		if (connections.isEmpty())
+			waitingConnections.remove(token);
+		waitingCount--;
+		return connection.socket;
+	}
+
+	private synchronized void startExpiryTimer() {
+		if (closed)
+			return;
+		expiryTimer = new Timer("FileConnectionDispatcher-expiry", true);
+		long interval = Math.min(EXPIRY_INTERVAL_MILLIS,
+				connectionTimeoutMillis);
+		expiryTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				List<Registration> expired;
+				synchronized (FileConnectionDispatcher.this) {
+					expireWaitingConnections();
+					expired = expireRegistrations();
+				}
+				for (Registration registration : expired)
+					registration.listener.failed(new SocketTimeoutException(
+							"No connection for transfer after "
+									+ connectionTimeoutMillis + " ms"));
+			}
+		}, interval, interval);
+	}
+
+	/**
+	 * @return the transfers whose connection did not come in time, removed.
+	 *         Called with the lock held
+	 */
+	private List<Registration> expireRegistrations() {
+		List<Registration> expired = new ArrayList<Registration>();
+		long expiry = System.currentTimeMillis() - connectionTimeoutMillis;
+		Iterator<Registration> iterator = registrations.values().iterator();
+		while (iterator.hasNext()) {
+			Registration registration = iterator.next();
+			if (registration.time < expiry) {
+				expired.add(registration);
+				iterator.remove();
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Closes the connections no transfer took in time, called with the lock
+	 * held
+	 */
+	private void expireWaitingConnections() {
+		long expiry = System.currentTimeMillis() - connectionTimeoutMillis;
+		Iterator<Deque<WaitingConnection>> iterator = waitingConnections
+				.values().iterator();
+		while (iterator.hasNext()) {
+			Deque<WaitingConnection> connections = iterator.next();
+			while (!connections.isEmpty()
+					&& connections.peek().time < expiry) {
+				WaitingConnection connection = connections.poll();
+				logger.error("No transfer for file connection from "
+						+ connection.socket.getRemoteSocketAddress());
+				close(connection.socket);
+				waitingCount--;
+			}
+			if (connections.isEmpty())
+				iterator.remove();
+		}
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.error("Exception while closing file connection : " + e);
+		}
+	}
+}
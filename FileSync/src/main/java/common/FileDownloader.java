@@ -7,24 +7,136 @@
 
 package common;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.apache.log4j.Logger;
 
+/**
+ * Receives a file on the file port. The uploader sends a TransferHeader first,
+ * the bytes are written with FileChannel.transferFrom in a StagedFile which
+ * replaces the file once all the bytes are received and match the hash of the
+ * header. A compressed file is inflated through a heap buffer, the size sent
+ * first is the size before compression.
+ *
+ * A resumable download of at least RESUME_MIN_LENGTH bytes keeps the bytes
+ * received if the connection is cut, and answers the header of the next
+ * attempt with their number so the uploader sends only the rest. Smaller files
+ * are received again from the start.
+ *
+ * A file sent on several streams, see ParallelTransfer, has its other
+ * connections accepted after the first one. Each stream is read on the
+ * TaskExecutor and its ranges written at their position, by transferFrom on
+ * the shared FileChannel. If the download fails only the ranges received from
+ * the offset without a gap are kept, their end is recorded in the StagedFile
+ * as ranges are received so a download which dies before it is suspended also
+ * resumes from it.
+ *
+ * On a port shared by several transfers the connections are taken from a
+ * FileConnectionDispatcher, by the token of the transfer, instead of being
+ * accepted. The first one can be given to the constructor, once an
+ * IConnectionListener of the dispatcher received it.
+ */
 public class FileDownloader implements Runnable {
 	private static final Logger logger = Logger.getLogger(FileDownloader.class);
+	private static final long RESUME_MIN_LENGTH = 1024 * 1024;
+
+	/**
+	 * Number of times a failed download is requested again
+	 */
+	public static final int MAX_RETRIES = 3;
 
 	private ServerSocket serverSock;
+	private FileConnectionDispatcher dispatcher;
+	private long token;
 	private File file;
-	private FileOutputStream fos = null;
 	private Socket sock = null;
-	private InputStream inputStream = null;
+	private volatile boolean success = false;
+	private CompressionCodec codec = CompressionCodec.NONE;
+	private boolean resumable;
+	private TaskExecutor taskExecutor;
+	// bytes to keep if a download on several streams fails, -1 keeps them all
+	private long resumeLength = -1;
+
+	/**
+	 * @param serverSock
+	 * @param file
+	 * @param codec
+	 * @param resumable
+	 *            : true to keep the bytes received if the download fails, for
+	 *            a file which will be requested again
+	 * @param taskExecutor
+	 *            : reads the streams other than the first one. If null they
+	 *            are read one after the other
+	 */
+	public FileDownloader(ServerSocket serverSock, File file,
+			CompressionCodec codec, boolean resumable,
+			TaskExecutor taskExecutor) {
+		this(serverSock, file, codec);
+		this.resumable = resumable;
+		this.taskExecutor = taskExecutor;
+	}
+
+	/**
+	 * @param dispatcher
+	 *            : file port shared by several transfers
+	 * @param token
+	 *            : token of the message announcing the file
+	 * @param file
+	 * @param codec
+	 * @param resumable
+	 * @param taskExecutor
+	 */
+	public FileDownloader(FileConnectionDispatcher dispatcher, long token,
+			File file, CompressionCodec codec, boolean resumable,
+			TaskExecutor taskExecutor) {
+		this((ServerSocket) null, file, codec, resumable, taskExecutor);
+		this.dispatcher = dispatcher;
+		this.token = token;
+	}
+
+	/**
+	 * @param socket
+	 *            : first connection of the file, given by an
+	 *            IConnectionListener of the dispatcher
+	 * @param dispatcher
+	 *            : gives the other connections of a file sent on several
+	 *            streams
+	 * @param token
+	 * @param file
+	 * @param codec
+	 * @param resumable
+	 * @param taskExecutor
+	 */
+	public FileDownloader(Socket socket, FileConnectionDispatcher dispatcher,
+			long token, File file, CompressionCodec codec, boolean resumable,
+			TaskExecutor taskExecutor) {
+		this(dispatcher, token, file, codec, resumable, taskExecutor);
+		this.sock = socket;
+	}
+
+	public FileDownloader(ServerSocket serverSock, File file,
+			CompressionCodec codec) {
+		this(serverSock, file);
+		this.codec = codec;
+	}
 
 	public FileDownloader(ServerSocket serverSock, File file) {
 		if (logger.isDebugEnabled())
@@ -34,67 +146,293 @@ public class FileDownloader implements Runnable {
 		this.file = file;
 	}
 
+	/**
+	 * @return true once the complete file is written in place
+	 */
+	public boolean isSuccess() {
+		return success;
+	}
+
 	@Override
 	public void run() {
 		if (logger.isDebugEnabled())
 			logger.debug("download started on Port : "
-					+ serverSock.getLocalPort());
+					+ (dispatcher != null ? dispatcher.getLocalPort()
+							: serverSock.getLocalPort()));
+		StagedFile stagedFile = new StagedFile(file);
+		boolean suspend = false;
 		try {
-			sock = serverSock.accept();
+			if (sock == null)
+				sock = accept();
 
 			if (logger.isInfoEnabled())
 				logger.info("Socket Connected");
 
-			if (file.exists())
-				file.delete();
-
-			createFileAndFoldersIfDoesNotExist(file);
-			fos = new FileOutputStream(file);
-			inputStream = sock.getInputStream();
+			// sockets accepted by a ServerSocketChannel have a channel
+			ReadableByteChannel socketChannel = sock.getChannel() != null ? sock
+					.getChannel() : Channels.newChannel(sock.getInputStream());
+			TransferHeader header = TransferHeader.read(socketChannel);
+			long length = header.getLength();
 
-			byte[] bytes = new byte[1024];
-			int count;
-			while ((count = inputStream.read(bytes)) > 0) {
-				if (logger.isInfoEnabled())
-					logger.info("count = " + count);
+			FileChannel fileChannel;
+			if (resumable && length >= RESUME_MIN_LENGTH) {
+				fileChannel = stagedFile.openResumable(header.getTransferId(),
+						length);
+				suspend = true;
+			} else {
+				fileChannel = stagedFile.open(length);
+			}
+			long position = suspend ? fileChannel.position() : 0;
+			WritableByteChannel offsetChannel = sock.getChannel() != null ? sock
+					.getChannel() : Channels.newChannel(sock.getOutputStream());
+			TransferHeader.writeOffset(offsetChannel, position);
+			if (position > 0 && logger.isInfoEnabled())
+				logger.info("resuming download of " + file + " from "
+						+ position + " of " + length + " bytes");
 
-				fos.write(bytes, 0, count);
+			if (header.getStreamCount() > 1)
+				position = receiveRanges(header, socketChannel, stagedFile,
+						fileChannel, position);
+			else if (codec != CompressionCodec.NONE)
+				position = inflate(socketChannel, fileChannel, position,
+						length);
+			while (position < length) {
+				long count = fileChannel.transferFrom(socketChannel, position,
+						length - position);
+				if (count <= 0)
+					throw new EOFException("Connection closed after "
+							+ position + " of " + length + " bytes");
+				position += count;
 			}
+			// a mismatch is not resumed, the bytes kept may be the wrong ones
+			suspend = false;
+			if (!Arrays.equals(header.getContentHash(),
+					TransferHeader.hash(fileChannel, length)))
+				throw new IOException("Content hash mismatch, length = "
+						+ length);
+			stagedFile.publish(length);
+			success = true;
 
 			if (logger.isInfoEnabled())
-				logger.info("file received by client, writing message to server");
-		} catch (FileNotFoundException e) {
-			logger.error("File Uploader, file not found" + e);
+				logger.info("file received, length = " + length + " file = "
+						+ file);
 		} catch (IOException e) {
-			logger.error("Exception while reading file from client " + e);
+			logger.error("Exception while reading file " + file + " : " + e);
+			if (suspend)
+				stagedFile.suspend(resumeLength);
+			else
+				stagedFile.discard();
 		} finally {
 			try {
-				if (fos != null)
-					fos.close();
 				if (sock != null)
 					sock.close();
 			} catch (IOException e) {
-				logger.error("Exception while closing fileOutStream/Socket : "
-						+ e);
+				logger.error("Exception while closing Socket : " + e);
 			}
 		}
 		if (logger.isDebugEnabled())
 			logger.debug("download Complete");
 	}
 
-	private void createFileAndFoldersIfDoesNotExist(File file) throws IOException{
-		if (logger.isDebugEnabled())
-			logger.debug("createFileAndFoldersIfDoesNotExist - ENTER file : " + file.getAbsolutePath());
-				
-		File parentFolder = file.getParentFile();
-		if(!parentFolder.exists() && !parentFolder.mkdirs()){
-		    throw new IllegalStateException("Couldn't create dir: " + parentFolder);
+	/**
+	 * @return next connection of the file
+	 */
+	private Socket accept() throws IOException {
+		if (dispatcher != null)
+			return dispatcher.accept(token);
+		return serverSock.accept();
+	}
+
+	/**
+	 * Accepts the other streams of the file and writes the ranges sent on
+	 * every stream. If a stream fails resumeLength is set to the end of the
+	 * ranges received from the offset without a gap
+	 *
+	 * @return length of the file once every range is received
+	 */
+	private long receiveRanges(TransferHeader header,
+			ReadableByteChannel firstChannel, final StagedFile stagedFile,
+			final FileChannel fileChannel, final long offset)
+			throws IOException {
+		if (codec != CompressionCodec.NONE)
+			throw new IOException("Compressed file sent on "
+					+ header.getStreamCount() + " streams");
+		long length = header.getLength();
+		if ((length - offset + header.getRangeSize() - 1)
+				/ header.getRangeSize() > Integer.MAX_VALUE)
+			throw new IOException("Too many ranges, length = " + length
+					+ " range size = " + header.getRangeSize());
+
+		// transferFrom writes nothing after the end of the file. A resumable
+		// file is cut back to the ranges without a gap if the download fails
+		stagedFile.preallocate(length, offset);
+
+		final TransferHeader transfer = header;
+		// ranges received, by index from the offset
+		final BitSet receivedRanges = new BitSet();
+		List<Socket> sockets = new ArrayList<Socket>();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		List<ReadableByteChannel> pendingChannels = new ArrayList<ReadableByteChannel>();
+		IOException failure = null;
+		try {
+			for (int i = 1; i < header.getStreamCount(); i++) {
+				Socket streamSock = accept();
+				sockets.add(streamSock);
+				final ReadableByteChannel channel = streamSock.getChannel() != null ? streamSock
+						.getChannel() : Channels.newChannel(streamSock.getInputStream());
+				TransferHeader streamHeader = TransferHeader.read(channel);
+				if (!header.isSameTransfer(streamHeader))
+					throw new IOException("Connection of another transfer on "
+							+ file);
+				if (taskExecutor == null) {
+					pendingChannels.add(channel);
+					continue;
+				}
+				futures.add(taskExecutor.getExecutorService().submit(
+						new Callable<Void>() {
+							@Override
+							public Void call() throws Exception {
+								receiveRanges(transfer, channel, stagedFile,
+										fileChannel, offset, receivedRanges);
+								return null;
+							}
+						}));
+			}
+			receiveRanges(header, firstChannel, stagedFile, fileChannel,
+					offset, receivedRanges);
+			for (ReadableByteChannel channel : pendingChannels)
+				receiveRanges(header, channel, stagedFile, fileChannel,
+						offset, receivedRanges);
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (IOException e) {
+			failure = e;
+		} catch (ExecutionException e) {
+			failure = new IOException("Stream failed : " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failure = new IOException("Interrupted while receiving ranges");
+		} finally {
+			// unblocks the streams still running after a failure
+			for (Socket streamSock : sockets)
+				streamSock.close();
 		}
-		
-		file.createNewFile();
-		
+
+		if (failure != null) {
+			// no range is written once every stream is done
+			for (Future<Void> future : futures) {
+				try {
+					future.get();
+				} catch (Exception e) {
+					// already reported by the first failure
+				}
+			}
+			synchronized (receivedRanges) {
+				resumeLength = Math.min(length, offset
+						+ receivedRanges.nextClearBit(0)
+						* header.getRangeSize());
+				if (logger.isInfoEnabled())
+					logger.info("ranges received from " + offset + " = "
+							+ receivedRanges + ", kept " + resumeLength
+							+ " bytes");
+			}
+			throw failure;
+		}
+
+		long received = Math.min(length, offset
+				+ receivedRanges.nextClearBit(0) * header.getRangeSize());
+		if (received < length)
+			throw new IOException("Ranges missing after " + received + " of "
+					+ length + " bytes");
 		if (logger.isDebugEnabled())
-			logger.debug("createFileAndFoldersIfDoesNotExist - LEAVE");
+			logger.debug("received " + file + " on "
+					+ header.getStreamCount() + " streams");
+		return received;
+	}
+
+	/**
+	 * Writes the ranges sent on one stream at their position. Every range is
+	 * rangeSize bytes from the offset, but the last one which ends the file
+	 */
+	private void receiveRanges(TransferHeader header,
+			ReadableByteChannel channel, StagedFile stagedFile,
+			FileChannel fileChannel, long offset, BitSet receivedRanges)
+			throws IOException {
+		long length = header.getLength();
+		long rangeSize = header.getRangeSize();
+		while (true) {
+			long[] range = header.readRange(channel);
+			long position = range[0];
+			if (position == -1)
+				return;
+			if (position < offset || (position - offset) % rangeSize != 0)
+				throw new IOException("Range not aligned : " + position);
+			long end = position + range[1];
+			if (end > length || (range[1] != rangeSize && end != length))
+				throw new IOException("Invalid range : " + position + " + "
+						+ range[1] + " length = " + length
+						+ " range size = " + rangeSize);
+			while (position < end) {
+				long count = fileChannel.transferFrom(channel, position, end
+						- position);
+				if (count <= 0)
+					throw new EOFException("Connection closed after "
+							+ position + " of range ending at " + end);
+				position += count;
+			}
+			synchronized (receivedRanges) {
+				int index = (int) ((range[0] - offset) / rangeSize);
+				boolean extendsReceived = receivedRanges.nextClearBit(0) == index;
+				receivedRanges.set(index);
+				if (extendsReceived)
+					stagedFile.setReceivedLength(Math.min(length, offset
+							+ receivedRanges.nextClearBit(0) * rangeSize));
+			}
+		}
+	}
+
+	/**
+	 * @param position
+	 *            : number of bytes already in the file, the stream starts
+	 *            after them
+	 * @return number of bytes in the file, length if the stream is complete
+	 */
+	private long inflate(ReadableByteChannel socketChannel,
+			FileChannel fileChannel, long position, long length)
+			throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			byte[] input = new byte[Frame.DATA_CHUNK_SIZE];
+			byte[] output = new byte[Frame.DATA_CHUNK_SIZE];
+			ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+			while (!inflater.finished()) {
+				if (inflater.needsInput()) {
+					inputBuffer.clear();
+					int count = socketChannel.read(inputBuffer);
+					if (count < 0)
+						throw new EOFException("Compressed stream truncated after "
+								+ position + " of " + length + " bytes");
+					inflater.setInput(input, 0, count);
+				}
+				int count = inflater.inflate(output);
+				if (inflater.needsDictionary())
+					throw new IOException("Preset dictionary not supported");
+				position += count;
+				if (position > length)
+					throw new IOException("Inflated size exceeds " + length);
+				ByteBuffer outputBuffer = ByteBuffer.wrap(output, 0, count);
+				while (outputBuffer.hasRemaining())
+					fileChannel.write(outputBuffer);
+			}
+			if (position != length)
+				throw new IOException("Inflated " + position + " of " + length
+						+ " bytes");
+			return position;
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted compressed stream : " + e);
+		} finally {
+			inflater.end();
+		}
 	}
 }
 
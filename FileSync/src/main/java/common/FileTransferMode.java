@@ -0,0 +1,11 @@
+package common;
+
+/**
+ * @author Ashish Pahlazani
+ *         INLINE : file contents are sent as frames over the control connection
+ *         SOCKET : a separate connection is opened on the file port for each file
+ */
+public enum FileTransferMode {
+	INLINE,
+	SOCKET;
+}
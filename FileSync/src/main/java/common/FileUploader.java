@@ -10,20 +10,99 @@ package common;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 import org.apache.log4j.Logger;
 
-public class FileUploader implements Runnable {
+/**
+ * Sends a file on the file port. A TransferHeader with the file size and hash
+ * is sent first, and the file is sent from the offset answered by the
+ * receiver, which is not 0 if a previous attempt was cut.
+ * FileChannel.transferTo is used so the bytes are copied by the kernel
+ * (sendfile on Linux), if transferTo makes no progress the rest of the file is
+ * copied through a pooled direct buffer. With a compression codec the file is
+ * deflated through a heap buffer instead and the size sent first is the size
+ * before compression.
+ *
+ * With more than one stream, the other connections are opened once the offset
+ * is known and each stream takes the next range of the file until there is
+ * none left, so a slower stream sends fewer ranges. The streams other than
+ * the first one are run on the TaskExecutor.
+ *
+ * With a token every connection starts with it, so the FileConnectionDispatcher
+ * of the receiver hands it to the transfer announced with this token.
+ */
+public class FileUploader implements IFileSender {
     private static final Logger logger = Logger.getLogger(FileUploader.class);
-    
+
+    // transferTo is called in slices, large transfers may be cut short by the OS
+    private static final long MAX_TRANSFER_SIZE = 8 * 1024 * 1024;
+
 	public String addr;
 	public int port;
-	public Socket socket;
-	public FileInputStream fileInputStream;
-	public OutputStream socketOutputStream;
+	public SocketChannel socketChannel;
+	public FileChannel fileChannel;
 	public File file;
+	private CompressionCodec codec = CompressionCodec.NONE;
+	private long bytesWritten;
+	private long writeNanos;
+	private int streamCount = 1;
+	private long rangeSize;
+	private TaskExecutor taskExecutor;
+	private long roundTripNanos;
+	private int sendBufferSize;
+	private long token;
+	private boolean success;
+
+	/**
+	 * @param addr
+	 * @param port
+	 * @param filepath
+	 * @param codec
+	 * @param streamCount
+	 *            : number of connections on which the file is sent, see
+	 *            ParallelTransfer
+	 * @param rangeSize
+	 * @param taskExecutor
+	 *            : runs the streams other than the first one
+	 */
+	public FileUploader(String addr, int port, File filepath,
+			CompressionCodec codec, int streamCount, long rangeSize,
+			TaskExecutor taskExecutor) {
+		this(addr, port, filepath, codec);
+		this.streamCount = streamCount;
+		this.rangeSize = rangeSize;
+		this.taskExecutor = taskExecutor;
+	}
+
+	/**
+	 * @param token
+	 *            : token of the message announcing the file, written first on
+	 *            each connection
+	 */
+	public FileUploader(String addr, int port, File filepath,
+			CompressionCodec codec, int streamCount, long rangeSize,
+			TaskExecutor taskExecutor, long token) {
+		this(addr, port, filepath, codec, streamCount, rangeSize,
+				taskExecutor);
+		this.token = token;
+	}
+
+	public FileUploader(String addr, int port, File filepath,
+			CompressionCodec codec) {
+		this(addr, port, filepath);
+		this.codec = codec;
+	}
 
 	public FileUploader(String addr, int port, File filepath) {
 	    if(logger.isDebugEnabled())
@@ -32,9 +111,8 @@ public class FileUploader implements Runnable {
 				+ filepath.getAbsolutePath());
 		try {
 			file = filepath;
-			socket = new Socket(addr, port);
-			socketOutputStream = socket.getOutputStream();
-			fileInputStream = new FileInputStream(filepath);
+			socketChannel = SocketChannel.open(new InetSocketAddress(addr, port));
+			fileChannel = new FileInputStream(filepath).getChannel();
 		} catch (Exception ex) {
 			logger.error("Exception [Upload : Upload(...)] : " + ex);
 		}
@@ -42,39 +120,222 @@ public class FileUploader implements Runnable {
             logger.debug("FileUploader constructor LEAVE");
 	}
 
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public long getWriteNanos() {
+		return writeNanos;
+	}
+
+	@Override
+	public boolean isSuccess() {
+		return success;
+	}
+
+	public int getStreamCount() {
+		return streamCount;
+	}
+
+	/**
+	 * @return time between the header sent and the offset received
+	 */
+	public long getRoundTripNanos() {
+		return roundTripNanos;
+	}
+
+	/**
+	 * @return send buffer of the first connection once the file is sent, the
+	 *         OS may have grown it during the transfer
+	 */
+	public int getSendBufferSize() {
+		return sendBufferSize;
+	}
+
 	@Override
 	public void run() {
 	    if(logger.isDebugEnabled())
             logger.debug("Uploading file Started");
 		try {
-			byte[] buffer = new byte[1024];
-			int count;
+			TransferHeader header = TransferHeader.of(fileChannel);
+			if (streamCount > 1)
+				header.setStreams(streamCount, 0, rangeSize);
+			if (token != 0)
+				FileConnectionDispatcher.writeToken(socketChannel, token);
+			long handshakeStart = System.nanoTime();
+			header.write(socketChannel);
+			long size = header.getLength();
+			long offset = header.readOffset(socketChannel);
+			roundTripNanos = System.nanoTime() - handshakeStart;
+			if (offset > 0 && logger.isInfoEnabled())
+				logger.info("resuming upload of " + file + " from " + offset
+						+ " of " + size + " bytes");
 
-			while ((count = fileInputStream.read(buffer)) >= 0) {
-				socketOutputStream.write(buffer, 0, count);
+			long start = System.nanoTime();
+			if (codec != CompressionCodec.NONE) {
+				fileChannel.position(offset);
+				copyCompressed();
+			} else if (streamCount > 1) {
+				sendRanges(header, offset);
+				writeNanos = System.nanoTime() - start;
+				bytesWritten = size - offset;
+			} else {
+				sendRange(socketChannel, offset, size);
+				writeNanos = System.nanoTime() - start;
+				bytesWritten = size - offset;
 			}
-			socketOutputStream.flush();
+			sendBufferSize = socketChannel.socket().getSendBufferSize();
+			success = true;
 		} catch (Exception ex) {
-			logger.error("Exception [Upload : run()]");
+			logger.error("Exception [Upload : run()] : " + ex);
 		} finally {
 			try {
-				if (fileInputStream != null) {
-					fileInputStream.close();
-				}
-				if (socketOutputStream != null) {
-					socketOutputStream.close();
+				if (fileChannel != null) {
+					fileChannel.close();
 				}
-				if (socket != null) {
-					socket.close();
+				if (socketChannel != null) {
+					socketChannel.close();
 				}
 			} catch (IOException e) {
 
 			}
 		}
-		
+
 		if(logger.isDebugEnabled())
             logger.debug("Uploading file LEAVE");
 	}
+
+	/**
+	 * Sends the ranges of the file on streamCount connections
+	 */
+	private void sendRanges(TransferHeader header, long offset)
+			throws IOException {
+		final AtomicLong nextPosition = new AtomicLong(offset);
+		final long size = header.getLength();
+		List<SocketChannel> channels = new ArrayList<SocketChannel>();
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		try {
+			InetSocketAddress address = (InetSocketAddress) socketChannel
+					.socket().getRemoteSocketAddress();
+			for (int i = 1; i < streamCount; i++) {
+				final SocketChannel channel = SocketChannel.open(address);
+				channels.add(channel);
+				if (token != 0)
+					FileConnectionDispatcher.writeToken(channel, token);
+				header.setStreams(streamCount, i, rangeSize).write(channel);
+				futures.add(taskExecutor.getExecutorService().submit(
+						new Callable<Void>() {
+							@Override
+							public Void call() throws Exception {
+								sendRanges(channel, nextPosition, size);
+								return null;
+							}
+						}));
+			}
+			sendRanges(socketChannel, nextPosition, size);
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (ExecutionException e) {
+			throw new IOException("Stream failed : " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while sending ranges");
+		} finally {
+			// unblocks the streams still running after a failure
+			for (SocketChannel channel : channels)
+				channel.close();
+		}
+		if (logger.isDebugEnabled())
+			logger.debug("sent " + file + " on " + streamCount + " streams");
+	}
+
+	/**
+	 * Sends the next range of the file on the connection until there is none
+	 * left
+	 */
+	private void sendRanges(SocketChannel channel, AtomicLong nextPosition,
+			long size) throws IOException {
+		while (true) {
+			long position = nextPosition.getAndAdd(rangeSize);
+			if (position >= size) {
+				TransferHeader.writeRange(channel, -1, 0);
+				return;
+			}
+			long end = Math.min(position + rangeSize, size);
+			TransferHeader.writeRange(channel, position, end - position);
+			sendRange(channel, position, end);
+		}
+	}
+
+	private void sendRange(SocketChannel channel, long position, long end)
+			throws IOException {
+		while (position < end) {
+			long count = fileChannel.transferTo(position,
+					Math.min(end - position, MAX_TRANSFER_SIZE), channel);
+			if (count <= 0) {
+				if (logger.isInfoEnabled())
+					logger.info("transferTo made no progress, copying "
+							+ file + " through direct buffer");
+				copyThroughBuffer(channel, position, end);
+				return;
+			}
+			position += count;
+		}
+	}
+
+	private void copyCompressed() throws IOException {
+		Deflater deflater = codec.newDeflater();
+		try {
+			byte[] input = new byte[Frame.DATA_CHUNK_SIZE];
+			byte[] output = new byte[Frame.DATA_CHUNK_SIZE];
+			ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+			while (true) {
+				inputBuffer.clear();
+				int count = fileChannel.read(inputBuffer);
+				if (count < 0)
+					break;
+				deflater.setInput(input, 0, count);
+				while (!deflater.needsInput())
+					writeCompressed(output, deflater.deflate(output));
+			}
+			deflater.finish();
+			while (!deflater.finished())
+				writeCompressed(output, deflater.deflate(output));
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void writeCompressed(byte[] data, int count) throws IOException {
+		long start = System.nanoTime();
+		ByteBuffer buffer = ByteBuffer.wrap(data, 0, count);
+		while (buffer.hasRemaining())
+			socketChannel.write(buffer);
+		writeNanos += System.nanoTime() - start;
+		bytesWritten += count;
+	}
+
+	private void copyThroughBuffer(SocketChannel channel, long position,
+			long size) throws IOException {
+		DirectBufferPool bufferPool = DirectBufferPool.getSharedPool();
+		ByteBuffer buffer = bufferPool.acquire();
+		try {
+			while (position < size) {
+				buffer.clear();
+				int count = fileChannel.read(buffer, position);
+				if (count < 0)
+					break;
+				position += count;
+				buffer.flip();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+	}
 }
 
 /*
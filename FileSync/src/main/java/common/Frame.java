@@ -0,0 +1,51 @@
+package common;
+
+/**
+ * @author Ashish Pahlazani One frame of the protocol used on the connection
+ *         between client and server. Control messages are sent on stream 0,
+ *         file contents are sent as DATA frames on their own stream, so
+ *         several files can be transferred over the control connection at the
+ *         same time.
+ * 
+ *         Frame layout : type (1 byte), streamId (4 bytes), payload length (4
+ *         bytes), payload
+ */
+public class Frame {
+	public static final byte CONTROL = 0;
+	public static final byte DATA = 1;
+	public static final byte END = 2;
+	public static final byte ABORT = 3;
+
+	public static final int CONTROL_STREAM_ID = 0;
+	public static final int HEADER_LENGTH = 9;
+	public static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+	public static final int DATA_CHUNK_SIZE = 64 * 1024;
+
+	private byte type;
+	private int streamId;
+	private byte[] payload;
+
+	public Frame(byte type, int streamId, byte[] payload) {
+		this.type = type;
+		this.streamId = streamId;
+		this.payload = payload;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public int getStreamId() {
+		return streamId;
+	}
+
+	public byte[] getPayload() {
+		return payload;
+	}
+
+	@Override
+	public String toString() {
+		return "Frame [type=" + type + ", streamId=" + streamId
+				+ ", length=" + payload.length + "]";
+	}
+}
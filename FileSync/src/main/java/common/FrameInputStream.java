@@ -0,0 +1,117 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Ashish Pahlazani Reads the DATA frames of one stream of the control
+ *         connection as an InputStream, on another thread than the one
+ *         receiving the frames. At most MAX_PENDING_FRAMES frames wait to be
+ *         read, the receiving thread then waits too, which stops reading the
+ *         connection and slows the sender down. The stream ends on the END
+ *         frame, an ABORT frame is read as an IOException.
+ */
+public class FrameInputStream extends InputStream {
+	private static final int MAX_PENDING_FRAMES = 64;
+	private static final byte[] END_OF_STREAM = new byte[0];
+	private static final byte[] ABORTED = new byte[0];
+
+	private BlockingQueue<byte[]> frames = new ArrayBlockingQueue<byte[]>(
+			MAX_PENDING_FRAMES);
+	private byte[] current = new byte[0];
+	private int position;
+	private boolean ended;
+	private volatile boolean closed;
+
+	/**
+	 * Called by the thread receiving the frames
+	 * 
+	 * @param frame
+	 *            : DATA, END or ABORT frame of the stream
+	 */
+	public void onFrame(Frame frame) {
+		byte[] payload;
+		switch (frame.getType()) {
+		case Frame.DATA:
+			payload = frame.getPayload();
+			break;
+		case Frame.END:
+			payload = END_OF_STREAM;
+			break;
+		default:
+			payload = ABORTED;
+			break;
+		}
+		try {
+			// frames are dropped once the reader is gone
+			while (!closed && !frames.offer(payload, 100, TimeUnit.MILLISECONDS))
+				;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Ends the stream as if it was aborted, called when the connection is
+	 * closed
+	 */
+	public void abort() {
+		frames.clear();
+		frames.offer(ABORTED);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill())
+			return -1;
+		return current[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] data, int offset, int length) throws IOException {
+		if (length == 0)
+			return 0;
+		if (!fill())
+			return -1;
+		int count = Math.min(length, current.length - position);
+		System.arraycopy(current, position, data, offset, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		frames.clear();
+	}
+
+	/**
+	 * @return false at the end of the stream
+	 */
+	private boolean fill() throws IOException {
+		while (position == current.length) {
+			if (ended)
+				return false;
+			byte[] payload;
+			try {
+				payload = frames.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading stream");
+			}
+			if (payload == END_OF_STREAM) {
+				ended = true;
+				return false;
+			}
+			if (payload == ABORTED)
+				throw new EOFException("Stream aborted");
+			current = payload;
+			position = 0;
+		}
+		return true;
+	}
+}
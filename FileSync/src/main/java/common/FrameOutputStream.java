@@ -0,0 +1,78 @@
+package common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * @author Ashish Pahlazani Writes the bytes as DATA frames of one stream,
+ *         DATA_CHUNK_SIZE bytes at a time. close sends the END frame, abort
+ *         sends an ABORT frame instead so the receiver discards the stream.
+ */
+public class FrameOutputStream extends OutputStream {
+	private IFrameSink frameSink;
+	private int streamId;
+	private byte[] buffer = new byte[Frame.DATA_CHUNK_SIZE];
+	private int count;
+	private long bytesWritten;
+	private boolean closed;
+
+	public FrameOutputStream(IFrameSink frameSink, int streamId) {
+		this.frameSink = frameSink;
+		this.streamId = streamId;
+	}
+
+	/**
+	 * @return bytes sent in DATA frames
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length)
+			flush();
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		while (length > 0) {
+			if (count == buffer.length)
+				flush();
+			int copied = Math.min(length, buffer.length - count);
+			System.arraycopy(data, offset, buffer, count, copied);
+			count += copied;
+			offset += copied;
+			length -= copied;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (count == 0)
+			return;
+		frameSink.writeFrame(Frame.DATA, streamId, buffer, 0, count);
+		bytesWritten += count;
+		count = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		flush();
+		closed = true;
+		frameSink.writeFrame(Frame.END, streamId, buffer, 0, 0);
+	}
+
+	/**
+	 * Ends the stream with an ABORT frame, the buffered bytes are dropped
+	 */
+	public void abort() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		frameSink.writeFrame(Frame.ABORT, streamId, buffer, 0, 0);
+	}
+}
@@ -0,0 +1,95 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani Blocking framed connection over a socket. Frames
+ *         are read by a single thread, writes are synchronized so control
+ *         messages and file chunks of several streams can be interleaved.
+ */
+public class FramedConnection implements IFrameSink {
+	private static final Logger logger = Logger
+			.getLogger(FramedConnection.class);
+
+	private Socket socket;
+	private DataInputStream inputStream;
+	private DataOutputStream outputStream;
+	private MessageEncoder messageEncoder = new MessageEncoder();
+
+	public FramedConnection(Socket socket) throws IOException {
+		this.socket = socket;
+		inputStream = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream(), Frame.DATA_CHUNK_SIZE));
+		outputStream = new DataOutputStream(new BufferedOutputStream(
+				socket.getOutputStream(), Frame.DATA_CHUNK_SIZE
+						+ Frame.HEADER_LENGTH));
+	}
+
+	/**
+	 * @return next frame, or null if the connection was closed by the other
+	 *         side
+	 * @throws IOException
+	 */
+	public Frame readFrame() throws IOException {
+		byte type;
+		try {
+			type = inputStream.readByte();
+		} catch (EOFException e) {
+			return null;
+		}
+		int streamId = inputStream.readInt();
+		int length = inputStream.readInt();
+		if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH)
+			throw new IOException("Invalid frame length : " + length);
+
+		byte[] payload = new byte[length];
+		inputStream.readFully(payload);
+		return new Frame(type, streamId, payload);
+	}
+
+	@Override
+	public void writeFrame(byte type, int streamId, byte[] payload,
+			int offset, int length) throws IOException {
+		synchronized (outputStream) {
+			outputStream.writeByte(type);
+			outputStream.writeInt(streamId);
+			outputStream.writeInt(length);
+			outputStream.write(payload, offset, length);
+			outputStream.flush();
+		}
+	}
+
+	/**
+	 * @param message
+	 *            : control message
+	 * @throws IOException
+	 */
+	public void writeMessage(Message message) throws IOException {
+		synchronized (outputStream) {
+			int length = messageEncoder.encode(message);
+			writeFrame(Frame.CONTROL, Frame.CONTROL_STREAM_ID,
+					messageEncoder.getBuffer(), 0, length);
+		}
+	}
+
+	public InetAddress getInetAddress() {
+		return socket.getInetAddress();
+	}
+
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			logger.error("Exception while closing socket : " + e);
+		}
+	}
+}
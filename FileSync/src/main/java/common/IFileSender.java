@@ -0,0 +1,24 @@
+package common;
+
+/**
+ * @author Ashish Pahlazani Sends a file when run, the counters are read once
+ *         the transfer is done to measure the link throughput. They are only
+ *         meaningful if the file was sent
+ */
+public interface IFileSender extends Runnable {
+	/**
+	 * @return bytes written on the connection, after compression
+	 */
+	public long getBytesWritten();
+
+	/**
+	 * @return time spent writing them
+	 */
+	public long getWriteNanos();
+
+	/**
+	 * @return true once the whole file is written, false if the transfer
+	 *         failed
+	 */
+	public boolean isSuccess();
+}
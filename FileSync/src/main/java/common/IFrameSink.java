@@ -0,0 +1,23 @@
+package common;
+
+import java.io.IOException;
+
+/**
+ * @author Ashish Pahlazani
+ *         Connection on which frames can be written. Implementations must
+ *         allow frames of different streams to be written from different
+ *         threads, each frame is written as a whole.
+ */
+public interface IFrameSink {
+	/**
+	 * @param type
+	 *            : one of the frame types defined in Frame
+	 * @param streamId
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void writeFrame(byte type, int streamId, byte[] payload,
+			int offset, int length) throws IOException;
+}
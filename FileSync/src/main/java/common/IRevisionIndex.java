@@ -0,0 +1,57 @@
+package common;
+
+import java.io.IOException;
+
+/**
+ * @author Ashish Pahlazani
+ *         Revision number of each path of the repository
+ */
+public interface IRevisionIndex {
+	/**
+	 * Receives the entries of the index
+	 */
+	public interface IEntryVisitor {
+		public void visit(String relativePath, long revisionNumber)
+				throws IOException;
+	}
+
+	/**
+	 * @param relativePath
+	 * @return revision number of the path, -1 if the path is not in the index
+	 */
+	public long get(String relativePath);
+
+	/**
+	 * @param relativePath
+	 * @param revisionNumber
+	 */
+	public void put(String relativePath, long revisionNumber);
+
+	/**
+	 * @return number of paths
+	 */
+	public int size();
+
+	/**
+	 * @param visitor
+	 *            : gets every path with its revision number
+	 * @throws IOException
+	 *             : thrown by the visitor
+	 */
+	public void forEach(IEntryVisitor visitor) throws IOException;
+
+	/**
+	 * @return true if the index saves its entries itself, false if they have
+	 *         to be saved with forEach
+	 */
+	public boolean isPersistent();
+
+	/**
+	 * Writes the entries of a persistent index to disk
+	 * 
+	 * @throws IOException
+	 */
+	public void flush() throws IOException;
+
+	public void close();
+}
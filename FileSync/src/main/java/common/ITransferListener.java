@@ -0,0 +1,16 @@
+package common;
+
+import java.io.File;
+
+/**
+ * @author Ashish Pahlazani
+ *         Notified when a file received over the control connection is complete
+ */
+public interface ITransferListener {
+	/**
+	 * @param file
+	 * @param success
+	 *            : false if the transfer was aborted
+	 */
+	public void transferCompleted(File file, boolean success);
+}
@@ -0,0 +1,201 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani Receives files sent as DATA frames over the control
+ *         connection. A stream is opened when the SENDING_FILE message is
+ *         received, DATA frames of that stream are written to a StagedFile
+ *         which replaces the file on END, the listener is notified on END or
+ *         ABORT. A compressed stream is inflated as the frames arrive, through
+ *         one output buffer per stream.
+ */
+public class InlineFileReceiver {
+	private static final Logger logger = Logger
+			.getLogger(InlineFileReceiver.class);
+
+	private Map<Integer, InboundStream> streams = new ConcurrentHashMap<Integer, InboundStream>();
+
+	private static class InboundStream {
+		File file;
+		StagedFile stagedFile;
+		FileChannel channel;
+		long position;
+		ITransferListener listener;
+		// null if the stream is not compressed
+		Inflater inflater;
+		byte[] output;
+
+		InboundStream(StagedFile stagedFile, FileChannel channel,
+				CompressionCodec codec, ITransferListener listener) {
+			this.file = stagedFile.getTarget();
+			this.stagedFile = stagedFile;
+			this.channel = channel;
+			this.listener = listener;
+			if (codec != CompressionCodec.NONE) {
+				inflater = new Inflater();
+				output = new byte[Frame.DATA_CHUNK_SIZE];
+			}
+		}
+
+		void write(byte[] data, int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+		}
+	}
+
+	/**
+	 * @param streamId
+	 * @param file
+	 *            : file in which the stream is written, an existing file is
+	 *            replaced once the stream is complete
+	 * @param expectedLength
+	 *            : size sent with the SENDING_FILE message, -1 if not known
+	 * @param listener
+	 * @throws IOException
+	 */
+	public void open(int streamId, File file, long expectedLength,
+			ITransferListener listener) throws IOException {
+		open(streamId, file, expectedLength, CompressionCodec.NONE, listener);
+	}
+
+	/**
+	 * @param streamId
+	 * @param file
+	 * @param expectedLength
+	 *            : size before compression, -1 if not known
+	 * @param codec
+	 *            : compression sent with the SENDING_FILE message
+	 * @param listener
+	 * @throws IOException
+	 */
+	public void open(int streamId, File file, long expectedLength,
+			CompressionCodec codec, ITransferListener listener)
+			throws IOException {
+		if (logger.isDebugEnabled())
+			logger.debug("open - ENTER streamId = " + streamId + " file = "
+					+ file.getAbsolutePath() + " length = " + expectedLength
+					+ " codec = " + codec);
+
+		StagedFile stagedFile = new StagedFile(file);
+		FileChannel channel = stagedFile.open(expectedLength);
+		streams.put(streamId, new InboundStream(stagedFile, channel, codec,
+				listener));
+
+		if (logger.isDebugEnabled())
+			logger.debug("open - LEAVE");
+	}
+
+	/**
+	 * @param frame
+	 *            : DATA, END or ABORT frame
+	 */
+	public void onFrame(Frame frame) {
+		InboundStream stream = streams.get(frame.getStreamId());
+		if (stream == null) {
+			logger.error("Frame received for unknown stream : " + frame);
+			return;
+		}
+
+		switch (frame.getType()) {
+		case Frame.DATA:
+			try {
+				if (stream.inflater == null)
+					stream.write(frame.getPayload(), frame.getPayload().length);
+				else
+					inflate(stream, frame.getPayload());
+			} catch (IOException e) {
+				logger.error("Exception while writing file " + stream.file
+						+ " : " + e);
+				complete(frame.getStreamId(), false);
+			} catch (DataFormatException e) {
+				logger.error("Corrupted compressed stream, file "
+						+ stream.file + " : " + e);
+				complete(frame.getStreamId(), false);
+			}
+			break;
+		case Frame.END:
+			if (stream.inflater != null && !stream.inflater.finished()) {
+				logger.error("Compressed stream truncated, file : "
+						+ stream.file);
+				complete(frame.getStreamId(), false);
+			} else {
+				complete(frame.getStreamId(), true);
+			}
+			break;
+		case Frame.ABORT:
+			logger.error("Transfer aborted by sender, file : " + stream.file);
+			complete(frame.getStreamId(), false);
+			break;
+		default:
+			logger.error("Unexpected frame : " + frame);
+			break;
+		}
+	}
+
+	private void inflate(InboundStream stream, byte[] payload)
+			throws IOException, DataFormatException {
+		Inflater inflater = stream.inflater;
+		if (inflater.finished()) {
+			if (payload.length > 0)
+				throw new DataFormatException("Data after end of stream");
+			return;
+		}
+		inflater.setInput(payload);
+		while (!inflater.finished()) {
+			int count = inflater.inflate(stream.output);
+			if (count > 0)
+				stream.write(stream.output, count);
+			else if (inflater.needsInput())
+				break;
+			else if (inflater.needsDictionary())
+				throw new DataFormatException("Preset dictionary not supported");
+		}
+		if (inflater.finished() && inflater.getRemaining() > 0)
+			throw new DataFormatException("Data after end of stream");
+	}
+
+	/**
+	 * Aborts all the open streams, called when the connection is closed
+	 */
+	public void abortAll() {
+		for (Integer streamId : streams.keySet())
+			complete(streamId, false);
+	}
+
+	private void complete(int streamId, boolean success) {
+		InboundStream stream = streams.remove(streamId);
+		if (stream == null)
+			return;
+		if (stream.inflater != null)
+			stream.inflater.end();
+
+		if (success) {
+			try {
+				stream.stagedFile.publish(stream.position);
+			} catch (IOException e) {
+				logger.error("Exception while publishing file " + stream.file
+						+ " : " + e);
+				success = false;
+			}
+		}
+		if (!success)
+			stream.stagedFile.discard();
+
+		if (logger.isInfoEnabled())
+			logger.info("file received, streamId = " + streamId + " file = "
+					+ stream.file + " success = " + success);
+
+		stream.listener.transferCompleted(stream.file, success);
+	}
+}
@@ -0,0 +1,138 @@
+package common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani Sends a file as DATA frames on its own stream of
+ *         the control connection, followed by an END frame. If the file can
+ *         not be read an ABORT frame is sent, so the receiver can discard the
+ *         partial file. With a compression codec the DATA frames carry the
+ *         deflated stream, the Deflater and its two buffers are the only
+ *         memory used by a stream.
+ */
+public class InlineFileSender implements IFileSender {
+	private static final Logger logger = Logger
+			.getLogger(InlineFileSender.class);
+
+	private static final AtomicInteger streamIdGenerator = new AtomicInteger();
+
+	private IFrameSink frameSink;
+	private int streamId;
+	private File file;
+	private CompressionCodec codec;
+	private long bytesWritten;
+	private long writeNanos;
+	private boolean success;
+
+	public InlineFileSender(IFrameSink frameSink, int streamId, File file) {
+		this(frameSink, streamId, file, CompressionCodec.NONE);
+	}
+
+	public InlineFileSender(IFrameSink frameSink, int streamId, File file,
+			CompressionCodec codec) {
+		this.frameSink = frameSink;
+		this.streamId = streamId;
+		this.file = file;
+		this.codec = codec;
+	}
+
+	@Override
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public long getWriteNanos() {
+		return writeNanos;
+	}
+
+	@Override
+	public boolean isSuccess() {
+		return success;
+	}
+
+	/**
+	 * @return id for a new stream, never the id of the control stream
+	 */
+	public static int nextStreamId() {
+		int streamId;
+		do {
+			streamId = streamIdGenerator.incrementAndGet() & Integer.MAX_VALUE;
+		} while (streamId == Frame.CONTROL_STREAM_ID);
+		return streamId;
+	}
+
+	@Override
+	public void run() {
+		if (logger.isDebugEnabled())
+			logger.debug("InlineFileSender - ENTER streamId = " + streamId
+					+ " file = " + file.getAbsolutePath() + " codec = " + codec);
+
+		FileInputStream fileInputStream = null;
+		Deflater deflater = codec == CompressionCodec.NONE ? null : codec
+				.newDeflater();
+		try {
+			byte[] buffer = new byte[Frame.DATA_CHUNK_SIZE];
+			byte[] output = deflater == null ? null
+					: new byte[Frame.DATA_CHUNK_SIZE];
+			int count;
+			while (true) {
+				try {
+					if (fileInputStream == null)
+						fileInputStream = new FileInputStream(file);
+					count = fileInputStream.read(buffer);
+				} catch (IOException e) {
+					logger.error("Exception while reading file " + file
+							+ ", aborting stream " + streamId + " : " + e);
+					frameSink.writeFrame(Frame.ABORT, streamId, buffer, 0, 0);
+					return;
+				}
+				if (count < 0)
+					break;
+				if (deflater == null) {
+					writeData(buffer, count);
+				} else {
+					deflater.setInput(buffer, 0, count);
+					while (!deflater.needsInput())
+						writeData(output, deflater.deflate(output));
+				}
+			}
+			if (deflater != null) {
+				deflater.finish();
+				while (!deflater.finished())
+					writeData(output, deflater.deflate(output));
+			}
+			frameSink.writeFrame(Frame.END, streamId, buffer, 0, 0);
+			success = true;
+		} catch (IOException e) {
+			logger.error("Exception while sending file " + file + " : " + e);
+		} finally {
+			try {
+				if (fileInputStream != null)
+					fileInputStream.close();
+			} catch (IOException e) {
+				logger.error("Exception while closing file : " + e);
+			}
+			if (deflater != null)
+				deflater.end();
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug("InlineFileSender - LEAVE streamId = " + streamId);
+	}
+
+	private void writeData(byte[] data, int count) throws IOException {
+		if (count == 0)
+			return;
+		long start = System.nanoTime();
+		frameSink.writeFrame(Frame.DATA, streamId, data, 0, count);
+		writeNanos += System.nanoTime() - start;
+		bytesWritten += count;
+	}
+}
@@ -0,0 +1,469 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani Revision numbers kept off the heap, in an open
+ *         addressing hash table in a memory-mapped file, so the index costs no
+ *         objects per path and opening it is only mapping the files.
+ *
+ *         A slot of the table holds the 64 bit hash of the path, the offset of
+ *         the path in the keys file and the revision number, collisions are
+ *         resolved by linear probing. The paths are appended to the keys file
+ *         in UTF-8 and never moved. When the table is 70% full a table twice as
+ *         big is filled from the hashes of the slots, in a new file, and is
+ *         used once it is complete, so a crash while growing leaves the
+ *         previous table.
+ *
+ *         Writes go to the page cache and survive a crash of the process,
+ *         flush writes them to disk. Files larger than 2 GB are mapped in
+ *         segments of 1 GB.
+ */
+public class MappedRevisionIndex implements IRevisionIndex {
+	private static final Logger logger = Logger
+			.getLogger(MappedRevisionIndex.class);
+
+	private static final int MAGIC = 0x46535249;
+	private static final int SEGMENT_BITS = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+	private static final int INITIAL_CAPACITY_BITS = 16;
+	private static final double MAX_LOAD_FACTOR = 0.7;
+	private static final long MIN_KEYS_MAPPING = 1024 * 1024;
+
+	// table header
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_BITS_OFFSET = 4;
+	private static final int SIZE_OFFSET = 8;
+	private static final int COMPLETE_OFFSET = 16;
+	private static final int HEADER_SIZE = 64;
+	// slot
+	private static final int HASH_OFFSET = 0;
+	private static final int KEY_OFFSET = 8;
+	private static final int REVISION_OFFSET = 16;
+	private static final int SLOT_SIZE = 24;
+	// keys file, the first long is the end of the keys so no key is at 0
+	private static final int KEYS_START = 8;
+
+	/**
+	 * File mapped in segments of SEGMENT_SIZE bytes. Longs and keys are not
+	 * split between two segments.
+	 */
+	private static class MappedFile {
+		private FileChannel channel;
+		private List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+		private long mappedSize;
+
+		MappedFile(File file, long size) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			map(Math.max(size, channel.size()));
+		}
+
+		/**
+		 * Maps the file up to size, the file grows if it is smaller
+		 */
+		void map(long size) throws IOException {
+			if (size <= mappedSize)
+				return;
+			int first = segments.isEmpty() ? 0 : segments.size() - 1;
+			while (segments.size() > first)
+				segments.remove(segments.size() - 1);
+			for (long position = first * SEGMENT_SIZE; position < size; position += SEGMENT_SIZE)
+				segments.add(channel.map(FileChannel.MapMode.READ_WRITE,
+						position, Math.min(SEGMENT_SIZE, size - position)));
+			mappedSize = size;
+		}
+
+		long getMappedSize() {
+			return mappedSize;
+		}
+
+		long getLong(long position) {
+			return segments.get((int) (position >>> SEGMENT_BITS)).getLong(
+					(int) (position & (SEGMENT_SIZE - 1)));
+		}
+
+		void putLong(long position, long value) {
+			segments.get((int) (position >>> SEGMENT_BITS)).putLong(
+					(int) (position & (SEGMENT_SIZE - 1)), value);
+		}
+
+		int getInt(long position) {
+			return segments.get((int) (position >>> SEGMENT_BITS)).getInt(
+					(int) (position & (SEGMENT_SIZE - 1)));
+		}
+
+		void putInt(long position, int value) {
+			segments.get((int) (position >>> SEGMENT_BITS)).putInt(
+					(int) (position & (SEGMENT_SIZE - 1)), value);
+		}
+
+		byte get(long position) {
+			return segments.get((int) (position >>> SEGMENT_BITS)).get(
+					(int) (position & (SEGMENT_SIZE - 1)));
+		}
+
+		void put(long position, byte[] bytes) {
+			MappedByteBuffer segment = segments
+					.get((int) (position >>> SEGMENT_BITS));
+			int offset = (int) (position & (SEGMENT_SIZE - 1));
+			for (int i = 0; i < bytes.length; i++)
+				segment.put(offset + i, bytes[i]);
+		}
+
+		void force() {
+			for (MappedByteBuffer segment : segments)
+				segment.force();
+		}
+
+		void close() {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("Exception while closing mapped file : " + e);
+			}
+		}
+	}
+
+	private File baseFile;
+	private MappedFile table;
+	private int capacityBits;
+	private long mask;
+	private long size;
+	private MappedFile keys;
+	private long keysEnd;
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Opens the index saved in the files named after baseFile, or creates it
+	 *
+	 * @param baseFile
+	 *            : the table is saved in baseFile.table.N (2^N slots) and the
+	 *            paths in baseFile.keys
+	 * @throws IOException
+	 */
+	public MappedRevisionIndex(File baseFile) throws IOException {
+		this.baseFile = baseFile.getAbsoluteFile();
+		File folder = this.baseFile.getParentFile();
+		if (folder != null && !folder.exists())
+			folder.mkdirs();
+
+		int bits = findCompleteTable();
+		if (bits > 0) {
+			table = new MappedFile(getTableFile(bits), 0);
+			capacityBits = bits;
+			size = table.getLong(SIZE_OFFSET);
+		} else {
+			capacityBits = INITIAL_CAPACITY_BITS;
+			table = createTable(capacityBits);
+			size = 0;
+		}
+		mask = (1L << capacityBits) - 1;
+		deleteOtherTables();
+
+		keys = new MappedFile(getKeysFile(), MIN_KEYS_MAPPING);
+		keysEnd = keys.getLong(0);
+		if (keysEnd < KEYS_START) {
+			keysEnd = KEYS_START;
+			keys.putLong(0, keysEnd);
+		}
+
+		if (logger.isInfoEnabled())
+			logger.info("revision index " + baseFile + " opened, paths = "
+					+ size + " slots = " + (1L << capacityBits));
+	}
+
+	@Override
+	public long get(String relativePath) {
+		byte[] key = relativePath.getBytes(StandardCharsets.UTF_8);
+		long hash = hash(key);
+		lock.readLock().lock();
+		try {
+			long slot = find(key, hash);
+			return slot < 0 ? -1 : table.getLong(slot + REVISION_OFFSET);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void put(String relativePath, long revisionNumber) {
+		byte[] key = relativePath.getBytes(StandardCharsets.UTF_8);
+		long hash = hash(key);
+		lock.writeLock().lock();
+		try {
+			long slot = find(key, hash);
+			if (slot >= 0) {
+				table.putLong(slot + REVISION_OFFSET, revisionNumber);
+				return;
+			}
+			if (size + 1 > (long) ((1L << capacityBits) * MAX_LOAD_FACTOR)) {
+				grow();
+				slot = find(key, hash);
+			}
+			slot = -slot - 1;
+			long keyOffset = appendKey(key);
+			table.putLong(slot + REVISION_OFFSET, revisionNumber);
+			table.putLong(slot + HASH_OFFSET, hash);
+			// written last, the slot is used once it has a key
+			table.putLong(slot + KEY_OFFSET, keyOffset);
+			table.putLong(SIZE_OFFSET, ++size);
+		} catch (IOException e) {
+			throw new IllegalStateException("can not grow revision index "
+					+ baseFile, e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return (int) size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The index can not be updated until the visitor returns
+	 */
+	@Override
+	public void forEach(IEntryVisitor visitor) throws IOException {
+		lock.readLock().lock();
+		try {
+			long capacity = 1L << capacityBits;
+			for (long i = 0; i < capacity; i++) {
+				long slot = HEADER_SIZE + i * SLOT_SIZE;
+				long keyOffset = table.getLong(slot + KEY_OFFSET);
+				if (keyOffset != 0)
+					visitor.visit(readKey(keyOffset),
+							table.getLong(slot + REVISION_OFFSET));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return true;
+	}
+
+	@Override
+	public void flush() {
+		lock.readLock().lock();
+		try {
+			keys.force();
+			table.force();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		lock.writeLock().lock();
+		try {
+			keys.force();
+			table.force();
+			keys.close();
+			table.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return position of the slot of the key, or -(position of the free slot
+	 *         where it would be inserted) - 1
+	 */
+	private long find(byte[] key, long hash) {
+		long index = hash & mask;
+		while (true) {
+			long slot = HEADER_SIZE + index * SLOT_SIZE;
+			long keyOffset = table.getLong(slot + KEY_OFFSET);
+			if (keyOffset == 0)
+				return -slot - 1;
+			if (table.getLong(slot + HASH_OFFSET) == hash
+					&& keyEquals(keyOffset, key))
+				return slot;
+			index = (index + 1) & mask;
+		}
+	}
+
+	private boolean keyEquals(long keyOffset, byte[] key) {
+		if (keyOffset < KEYS_START || keyOffset + 4 > keysEnd
+				|| keys.getInt(keyOffset) != key.length)
+			return false;
+		long position = keyOffset + 4;
+		for (int i = 0; i < key.length; i++) {
+			if (keys.get(position + i) != key[i])
+				return false;
+		}
+		return true;
+	}
+
+	private String readKey(long keyOffset) {
+		byte[] key = new byte[keys.getInt(keyOffset)];
+		for (int i = 0; i < key.length; i++)
+			key[i] = keys.get(keyOffset + 4 + i);
+		return new String(key, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return offset of the key in the keys file
+	 */
+	private long appendKey(byte[] key) throws IOException {
+		long length = 4 + key.length;
+		long offset = keysEnd;
+		// a key is not split between two segments
+		if ((offset & (SEGMENT_SIZE - 1)) + length > SEGMENT_SIZE)
+			offset = (offset | (SEGMENT_SIZE - 1)) + 1;
+		if (offset + length > keys.getMappedSize())
+			keys.map(Math.max(offset + length, 2 * keys.getMappedSize()));
+		keys.putInt(offset, key.length);
+		keys.put(offset + 4, key);
+		keysEnd = offset + length;
+		keys.putLong(0, keysEnd);
+		return offset;
+	}
+
+	/**
+	 * Moves the slots to a table twice as big, from their hash
+	 */
+	private void grow() throws IOException {
+		int newCapacityBits = capacityBits + 1;
+		MappedFile newTable = createTable(newCapacityBits);
+		long newMask = (1L << newCapacityBits) - 1;
+		long capacity = 1L << capacityBits;
+		for (long i = 0; i < capacity; i++) {
+			long slot = HEADER_SIZE + i * SLOT_SIZE;
+			long keyOffset = table.getLong(slot + KEY_OFFSET);
+			if (keyOffset == 0)
+				continue;
+			long hash = table.getLong(slot + HASH_OFFSET);
+			long index = hash & newMask;
+			long newSlot = HEADER_SIZE + index * SLOT_SIZE;
+			while (newTable.getLong(newSlot + KEY_OFFSET) != 0) {
+				index = (index + 1) & newMask;
+				newSlot = HEADER_SIZE + index * SLOT_SIZE;
+			}
+			newTable.putLong(newSlot + HASH_OFFSET, hash);
+			newTable.putLong(newSlot + REVISION_OFFSET,
+					table.getLong(slot + REVISION_OFFSET));
+			newTable.putLong(newSlot + KEY_OFFSET, keyOffset);
+		}
+		newTable.putLong(SIZE_OFFSET, size);
+		// the keys of the new table must be on disk before it is used
+		keys.force();
+		newTable.force();
+		newTable.putInt(COMPLETE_OFFSET, 1);
+		newTable.force();
+
+		table.close();
+		// fails on Windows while the old table is mapped, deleted when the
+		// index is opened again
+		getTableFile(capacityBits).delete();
+		table = newTable;
+		capacityBits = newCapacityBits;
+		mask = newMask;
+		if (logger.isDebugEnabled())
+			logger.debug("revision index grown to " + (1L << capacityBits)
+					+ " slots");
+	}
+
+	private MappedFile createTable(int bits) throws IOException {
+		File file = getTableFile(bits);
+		file.delete();
+		MappedFile newTable = new MappedFile(file, HEADER_SIZE
+				+ (1L << bits) * SLOT_SIZE);
+		newTable.putInt(MAGIC_OFFSET, MAGIC);
+		newTable.putInt(CAPACITY_BITS_OFFSET, bits);
+		if (bits == INITIAL_CAPACITY_BITS)
+			newTable.putInt(COMPLETE_OFFSET, 1);
+		return newTable;
+	}
+
+	/**
+	 * @return capacity bits of the biggest complete table, 0 if there is none
+	 */
+	private int findCompleteTable() throws IOException {
+		int bits = 0;
+		for (int candidate : listTables()) {
+			if (candidate <= bits)
+				continue;
+			MappedFile candidateTable = new MappedFile(getTableFile(candidate),
+					0);
+			try {
+				if (candidateTable.getMappedSize() >= HEADER_SIZE
+						+ (1L << candidate) * SLOT_SIZE
+						&& candidateTable.getInt(MAGIC_OFFSET) == MAGIC
+						&& candidateTable.getInt(COMPLETE_OFFSET) == 1)
+					bits = candidate;
+			} finally {
+				candidateTable.close();
+			}
+		}
+		return bits;
+	}
+
+	private void deleteOtherTables() {
+		for (int bits : listTables()) {
+			if (bits != capacityBits)
+				getTableFile(bits).delete();
+		}
+	}
+
+	private List<Integer> listTables() {
+		List<Integer> tables = new ArrayList<Integer>();
+		String prefix = baseFile.getName() + ".table.";
+		String[] names = baseFile.getParentFile().list();
+		if (names == null)
+			return tables;
+		for (String name : names) {
+			if (name.startsWith(prefix)) {
+				try {
+					tables.add(Integer.parseInt(name.substring(prefix.length())));
+				} catch (NumberFormatException e) {
+					// not a table
+				}
+			}
+		}
+		return tables;
+	}
+
+	private File getTableFile(int bits) {
+		return new File(baseFile.getParentFile(), baseFile.getName()
+				+ ".table." + bits);
+	}
+
+	private File getKeysFile() {
+		return new File(baseFile.getParentFile(), baseFile.getName() + ".keys");
+	}
+
+	private static long hash(byte[] key) {
+		// FNV-1a, then the finalizer of MurmurHash3 to spread the low bits
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key) {
+			hash ^= b & 0xFF;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,48 @@
+package common;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Ashish Pahlazani Revision numbers kept in a ConcurrentHashMap, saved
+ *         by the owner of the index
+ */
+public class MemoryRevisionIndex implements IRevisionIndex {
+	private Map<String, Long> revisionNumbers = new ConcurrentHashMap<String, Long>();
+
+	@Override
+	public long get(String relativePath) {
+		Long revisionNumber = revisionNumbers.get(relativePath);
+		return revisionNumber == null ? -1 : revisionNumber;
+	}
+
+	@Override
+	public void put(String relativePath, long revisionNumber) {
+		revisionNumbers.put(relativePath, revisionNumber);
+	}
+
+	@Override
+	public int size() {
+		return revisionNumbers.size();
+	}
+
+	@Override
+	public void forEach(IEntryVisitor visitor) throws IOException {
+		for (Map.Entry<String, Long> entry : revisionNumbers.entrySet())
+			visitor.visit(entry.getKey(), entry.getValue());
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return false;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,229 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import common.chunk.Chunk;
+import common.delta.FileSignature;
+
+/**
+ * @author Ashish Pahlazani Control message exchanged between client and
+ *         server. Only the fields used by an action are set, unset fields are
+ *         not written on the wire.
+ * 
+ *         path : relative path of the file the action is about
+ *         revisionNumber : revision of the file, NO_REVISION if not set. For
+ *         GET_CHANGES and CHANGES, change revision from which changes are read
+ *         streamId : stream on which the file is sent, 0 if not set
+ *         length : size of the file being sent, NO_LENGTH if not set
+ *         text : credentials, port, codecs, long-poll wait or error details
+ *         entries : messages carried by a BATCH, or changes carried by CHANGES
+ *         signature : signature of the copy of the receiver, sent with
+ *         REQUEST_FILE_MODIFY if the file may be sent as a delta
+ *         delta : set on SENDING_FILE_MODIFY if a delta is sent instead of
+ *         the file
+ *         chunks : chunk list of the file sent with SENDING_FILE_ADD/MODIFY,
+ *         or chunks to send with REQUEST_CHUNKS. An empty list in
+ *         REQUEST_FILE_ADD/MODIFY asks for the chunk list instead of the file
+ *         compression : codec of the bytes sent after SENDING_FILE_ADD/MODIFY
+ *         or SENDING_CHUNKS, length is the size before compression
+ *         digest : digest of a folder in GET_DIGESTS and DIGESTS, 0 if the
+ *         folder holds no file
+ *         token : transfer token of a file, chunks or snapshot sent on the
+ *         file port, written first on each of its connections. 0 if not set
+ */
+public class Message {
+	public static final long NO_REVISION = Long.MIN_VALUE;
+	public static final long NO_LENGTH = -1;
+	public static final int MAX_BATCH_ENTRIES = 1000;
+
+	private Actions action;
+	private String path;
+	private long revisionNumber = NO_REVISION;
+	private int streamId;
+	private long length = NO_LENGTH;
+	private String text;
+	private List<Message> entries;
+	private FileSignature signature;
+	private boolean delta;
+	private List<Chunk> chunks;
+	private CompressionCodec compression = CompressionCodec.NONE;
+	private long digest;
+	private long token;
+
+	public Message(Actions action) {
+		this.action = action;
+	}
+
+	public Message(Actions action, String path) {
+		this.action = action;
+		this.path = path;
+	}
+
+	public Message(Actions action, String path, long revisionNumber) {
+		this.action = action;
+		this.path = path;
+		this.revisionNumber = revisionNumber;
+	}
+
+	public Actions getAction() {
+		return action;
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public long getRevisionNumber() {
+		return revisionNumber;
+	}
+
+	public boolean hasRevisionNumber() {
+		return revisionNumber != NO_REVISION;
+	}
+
+	public int getStreamId() {
+		return streamId;
+	}
+
+	public Message setStreamId(int streamId) {
+		this.streamId = streamId;
+		return this;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public boolean hasLength() {
+		return length != NO_LENGTH;
+	}
+
+	public Message setLength(long length) {
+		this.length = length;
+		return this;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public Message setText(String text) {
+		this.text = text;
+		return this;
+	}
+
+	public List<Message> getEntries() {
+		return entries;
+	}
+
+	public Message setEntries(List<Message> entries) {
+		this.entries = entries;
+		return this;
+	}
+
+	public FileSignature getSignature() {
+		return signature;
+	}
+
+	public Message setSignature(FileSignature signature) {
+		this.signature = signature;
+		return this;
+	}
+
+	public boolean isDelta() {
+		return delta;
+	}
+
+	public Message setDelta(boolean delta) {
+		this.delta = delta;
+		return this;
+	}
+
+	public List<Chunk> getChunks() {
+		return chunks;
+	}
+
+	public Message setChunks(List<Chunk> chunks) {
+		this.chunks = chunks;
+		return this;
+	}
+
+	public CompressionCodec getCompression() {
+		return compression;
+	}
+
+	public Message setCompression(CompressionCodec compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	public long getDigest() {
+		return digest;
+	}
+
+	public Message setDigest(long digest) {
+		this.digest = digest;
+		return this;
+	}
+
+	public long getToken() {
+		return token;
+	}
+
+	public Message setToken(long token) {
+		this.token = token;
+		return this;
+	}
+
+	/**
+	 * @param messages
+	 * @return the messages to send : a single message is sent as it is, more
+	 *         messages are grouped in BATCH messages of at most
+	 *         MAX_BATCH_ENTRIES entries
+	 */
+	public static List<Message> toBatches(List<Message> messages) {
+		if (messages.size() <= 1)
+			return messages;
+
+		List<Message> batches = new ArrayList<Message>();
+		for (int i = 0; i < messages.size(); i += MAX_BATCH_ENTRIES) {
+			List<Message> entries = messages.subList(i,
+					Math.min(messages.size(), i + MAX_BATCH_ENTRIES));
+			batches.add(new Message(Actions.BATCH).setEntries(entries));
+		}
+		return batches;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(action);
+		if (path != null)
+			builder.append(" path=").append(path);
+		if (hasRevisionNumber())
+			builder.append(" revision=").append(revisionNumber);
+		if (streamId != 0)
+			builder.append(" streamId=").append(streamId);
+		if (hasLength())
+			builder.append(" length=").append(length);
+		if (text != null)
+			builder.append(" text=").append(text);
+		if (entries != null)
+			builder.append(" entries=").append(entries.size());
+		if (signature != null)
+			builder.append(" signatureBlocks=").append(
+					signature.getBlockCount());
+		if (delta)
+			builder.append(" delta");
+		if (chunks != null)
+			builder.append(" chunks=").append(chunks.size());
+		if (compression != CompressionCodec.NONE)
+			builder.append(" compression=").append(compression);
+		if (digest != 0)
+			builder.append(" digest=").append(Long.toHexString(digest));
+		if (token != 0)
+			builder.append(" token=").append(Long.toHexString(token));
+		return builder.toString();
+	}
+}
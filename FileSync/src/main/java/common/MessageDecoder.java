@@ -0,0 +1,207 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import common.chunk.Chunk;
+import common.delta.FileSignature;
+
+/**
+ * @author Ashish Pahlazani Decodes control messages written by
+ *         MessageEncoder. The decoder has no state, so one instance can be
+ *         shared by all the threads.
+ */
+public class MessageDecoder {
+
+	private static class Reader {
+		byte[] payload;
+		int position;
+		int limit;
+
+		Reader(byte[] payload, int offset, int length) {
+			this.payload = payload;
+			this.position = offset;
+			this.limit = offset + length;
+		}
+
+		byte readByte() {
+			if (position >= limit)
+				throw new ProtocolException("Message truncated");
+			return payload[position++];
+		}
+
+		int readVarint() {
+			int value = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				byte b = readByte();
+				value |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new ProtocolException("Malformed varint");
+		}
+
+		long readVarlong() {
+			long value = 0;
+			for (int shift = 0; shift < 70; shift += 7) {
+				byte b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					return value;
+			}
+			throw new ProtocolException("Malformed varlong");
+		}
+
+		int readInt() {
+			int value = 0;
+			for (int i = 0; i < 4; i++)
+				value = (value << 8) | (readByte() & 0xFF);
+			return value;
+		}
+
+		long readLong() {
+			long value = 0;
+			for (int i = 0; i < 8; i++)
+				value = (value << 8) | (readByte() & 0xFF);
+			return value;
+		}
+
+		String readString() {
+			int length = readVarint();
+			if (length < 0 || length > limit - position)
+				throw new ProtocolException("Invalid string length : " + length);
+			String value = new String(payload, position, length,
+					StandardCharsets.UTF_8);
+			position += length;
+			return value;
+		}
+	}
+
+	public Message decode(byte[] payload) {
+		return decode(payload, 0, payload.length);
+	}
+
+	/**
+	 * @param payload
+	 * @param offset
+	 * @param length
+	 * @return decoded message
+	 * @throws ProtocolException
+	 *             if the payload is not a valid message
+	 */
+	public Message decode(byte[] payload, int offset, int length) {
+		Reader reader = new Reader(payload, offset, length);
+
+		byte version = reader.readByte();
+		if (version != MessageEncoder.VERSION)
+			throw new ProtocolException("Unsupported message version : "
+					+ version);
+
+		return readMessage(reader, true);
+	}
+
+	/**
+	 * @param reader
+	 * @param entriesAllowed
+	 *            : false for the entries of a batch, batches are not nested
+	 */
+	private Message readMessage(Reader reader, boolean entriesAllowed) {
+		int actionInt = reader.readVarint();
+		Actions action = Actions.fromInteger(actionInt);
+		if (action == null)
+			throw new ProtocolException("Unknown action : " + actionInt);
+		int flags = reader.readVarint();
+
+		String path = null;
+		long revisionNumber = Message.NO_REVISION;
+		if ((flags & MessageEncoder.FLAG_PATH) != 0)
+			path = reader.readString();
+		if ((flags & MessageEncoder.FLAG_REVISION) != 0)
+			revisionNumber = reader.readLong();
+
+		Message message = new Message(action, path, revisionNumber);
+		if ((flags & MessageEncoder.FLAG_STREAM_ID) != 0)
+			message.setStreamId(reader.readVarint());
+		if ((flags & MessageEncoder.FLAG_LENGTH) != 0)
+			message.setLength(reader.readVarlong());
+		if ((flags & MessageEncoder.FLAG_TEXT) != 0)
+			message.setText(reader.readString());
+		if ((flags & MessageEncoder.FLAG_ENTRIES) != 0) {
+			if (!entriesAllowed)
+				throw new ProtocolException("Nested batch");
+			int count = reader.readVarint();
+			// every entry takes at least 2 bytes
+			if (count < 0 || count > (reader.limit - reader.position) / 2)
+				throw new ProtocolException("Invalid entry count : " + count);
+			List<Message> entries = new ArrayList<Message>(count);
+			for (int i = 0; i < count; i++)
+				entries.add(readMessage(reader, false));
+			message.setEntries(entries);
+		}
+		if ((flags & MessageEncoder.FLAG_SIGNATURE) != 0)
+			message.setSignature(readSignature(reader));
+		if ((flags & MessageEncoder.FLAG_DELTA) != 0)
+			message.setDelta(true);
+		if ((flags & MessageEncoder.FLAG_CHUNKS) != 0)
+			message.setChunks(readChunks(reader));
+		if ((flags & MessageEncoder.FLAG_COMPRESSION) != 0) {
+			int codecInt = reader.readVarint();
+			CompressionCodec codec = CompressionCodec.fromInteger(codecInt);
+			if (codec == null)
+				throw new ProtocolException("Unknown compression : "
+						+ codecInt);
+			message.setCompression(codec);
+		}
+		if ((flags & MessageEncoder.FLAG_DIGEST) != 0)
+			message.setDigest(reader.readLong());
+		if ((flags & MessageEncoder.FLAG_TOKEN) != 0)
+			message.setToken(reader.readLong());
+
+		return message;
+	}
+
+	private List<Chunk> readChunks(Reader reader) {
+		int count = reader.readVarint();
+		if (count < 0
+				|| count > (reader.limit - reader.position)
+						/ (Chunk.HASH_LENGTH + 1))
+			throw new ProtocolException("Invalid chunk count : " + count);
+
+		List<Chunk> chunks = new ArrayList<Chunk>(count);
+		for (int i = 0; i < count; i++) {
+			if (reader.limit - reader.position < Chunk.HASH_LENGTH)
+				throw new ProtocolException("Message truncated");
+			byte[] hash = new byte[Chunk.HASH_LENGTH];
+			System.arraycopy(reader.payload, reader.position, hash, 0,
+					Chunk.HASH_LENGTH);
+			reader.position += Chunk.HASH_LENGTH;
+			int length = reader.readVarint();
+			if (length <= 0)
+				throw new ProtocolException("Invalid chunk length : " + length);
+			chunks.add(new Chunk(hash, length));
+		}
+		return chunks;
+	}
+
+	private FileSignature readSignature(Reader reader) {
+		int blockSize = reader.readVarint();
+		long fileLength = reader.readVarlong();
+		int blockCount = reader.readVarint();
+		if (blockSize <= 0 || fileLength < 0)
+			throw new ProtocolException("Invalid signature");
+		if (blockCount < 0 || blockCount > (reader.limit - reader.position) / 12
+				|| blockCount != (fileLength + blockSize - 1) / blockSize)
+			throw new ProtocolException("Invalid signature block count : "
+					+ blockCount);
+
+		int[] weakChecksums = new int[blockCount];
+		long[] strongHashes = new long[blockCount];
+		for (int i = 0; i < blockCount; i++) {
+			weakChecksums[i] = reader.readInt();
+			strongHashes[i] = reader.readLong();
+		}
+		return new FileSignature(blockSize, fileLength, weakChecksums,
+				strongHashes);
+	}
+}
@@ -0,0 +1,241 @@
+package common;
+
+import java.util.List;
+
+import common.chunk.Chunk;
+import common.delta.FileSignature;
+
+/**
+ * @author Ashish Pahlazani Encodes control messages in the binary format read
+ *         by MessageDecoder. The encoder keeps one buffer which is reused for
+ *         every message, so an encoder must not be shared between threads
+ *         without synchronization.
+ * 
+ *         Format : version (1 byte), action (varint), flags (varint), then the
+ *         fields present in flags, in this order : path (varint length + UTF-8
+ *         bytes), revisionNumber (8 bytes), streamId (varint), length
+ *         (varint), text (varint length + UTF-8 bytes), entries (varint count,
+ *         then each entry from action onwards), signature (block size varint,
+ *         file length varlong, block count varint, then weak checksum 4 bytes
+ *         and strong hash 8 bytes of each block), chunks (varint count, then hash
+ *         32 bytes and length varint of each chunk), compression (varint
+ *         codec), digest (8 bytes), token (8 bytes). The delta flag has no
+ *         field.
+ */
+public class MessageEncoder {
+	public static final byte VERSION = 1;
+
+	static final int FLAG_PATH = 1;
+	static final int FLAG_REVISION = 2;
+	static final int FLAG_STREAM_ID = 4;
+	static final int FLAG_TEXT = 8;
+	static final int FLAG_LENGTH = 16;
+	static final int FLAG_ENTRIES = 32;
+	static final int FLAG_SIGNATURE = 64;
+	static final int FLAG_DELTA = 128;
+	static final int FLAG_CHUNKS = 256;
+	static final int FLAG_COMPRESSION = 512;
+	static final int FLAG_DIGEST = 1024;
+	static final int FLAG_TOKEN = 2048;
+
+	private static final int INITIAL_BUFFER_SIZE = 256;
+
+	private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+	private int position;
+
+	/**
+	 * @param message
+	 * @return number of bytes written in the buffer returned by getBuffer
+	 */
+	public int encode(Message message) {
+		position = 0;
+		ensureCapacity(1);
+		buffer[position++] = VERSION;
+		writeMessage(message);
+		return position;
+	}
+
+	private void writeMessage(Message message) {
+		int flags = 0;
+		if (message.getPath() != null)
+			flags |= FLAG_PATH;
+		if (message.hasRevisionNumber())
+			flags |= FLAG_REVISION;
+		if (message.getStreamId() != 0)
+			flags |= FLAG_STREAM_ID;
+		if (message.getText() != null)
+			flags |= FLAG_TEXT;
+		if (message.hasLength())
+			flags |= FLAG_LENGTH;
+		if (message.getEntries() != null)
+			flags |= FLAG_ENTRIES;
+		if (message.getSignature() != null)
+			flags |= FLAG_SIGNATURE;
+		if (message.isDelta())
+			flags |= FLAG_DELTA;
+		if (message.getChunks() != null)
+			flags |= FLAG_CHUNKS;
+		if (message.getCompression() != CompressionCodec.NONE)
+			flags |= FLAG_COMPRESSION;
+		if (message.getDigest() != 0)
+			flags |= FLAG_DIGEST;
+		if (message.getToken() != 0)
+			flags |= FLAG_TOKEN;
+
+		writeVarint(message.getAction().ordinal());
+		writeVarint(flags);
+
+		if ((flags & FLAG_PATH) != 0)
+			writeString(message.getPath());
+		if ((flags & FLAG_REVISION) != 0)
+			writeLong(message.getRevisionNumber());
+		if ((flags & FLAG_STREAM_ID) != 0)
+			writeVarint(message.getStreamId());
+		if ((flags & FLAG_LENGTH) != 0)
+			writeVarlong(message.getLength());
+		if ((flags & FLAG_TEXT) != 0)
+			writeString(message.getText());
+		if ((flags & FLAG_ENTRIES) != 0) {
+			List<Message> entries = message.getEntries();
+			writeVarint(entries.size());
+			for (int i = 0; i < entries.size(); i++)
+				writeMessage(entries.get(i));
+		}
+		if ((flags & FLAG_SIGNATURE) != 0)
+			writeSignature(message.getSignature());
+		if ((flags & FLAG_CHUNKS) != 0)
+			writeChunks(message.getChunks());
+		if ((flags & FLAG_COMPRESSION) != 0)
+			writeVarint(message.getCompression().ordinal());
+		if ((flags & FLAG_DIGEST) != 0)
+			writeLong(message.getDigest());
+		if ((flags & FLAG_TOKEN) != 0)
+			writeLong(message.getToken());
+	}
+
+	private void writeChunks(List<Chunk> chunks) {
+		writeVarint(chunks.size());
+		for (int i = 0; i < chunks.size(); i++) {
+			Chunk chunk = chunks.get(i);
+			ensureCapacity(Chunk.HASH_LENGTH);
+			System.arraycopy(chunk.getHash(), 0, buffer, position,
+					Chunk.HASH_LENGTH);
+			position += Chunk.HASH_LENGTH;
+			writeVarint(chunk.getLength());
+		}
+	}
+
+	private void writeSignature(FileSignature signature) {
+		int blockCount = signature.getBlockCount();
+		writeVarint(signature.getBlockSize());
+		writeVarlong(signature.getFileLength());
+		writeVarint(blockCount);
+		ensureCapacity(blockCount * 12);
+		for (int i = 0; i < blockCount; i++) {
+			writeInt(signature.getWeakChecksum(i));
+			writeLong(signature.getStrongHash(i));
+		}
+	}
+
+	/**
+	 * @return buffer holding the last encoded message, valid until the next
+	 *         call of encode
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	private void writeVarint(int value) {
+		ensureCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+
+	private void writeVarlong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+
+	private void writeInt(int value) {
+		ensureCapacity(4);
+		for (int shift = 24; shift >= 0; shift -= 8)
+			buffer[position++] = (byte) (value >>> shift);
+	}
+
+	private void writeLong(long value) {
+		ensureCapacity(8);
+		for (int shift = 56; shift >= 0; shift -= 8)
+			buffer[position++] = (byte) (value >>> shift);
+	}
+
+	/**
+	 * UTF-8 is written directly in the buffer, instead of allocating the
+	 * bytes with String.getBytes
+	 */
+	private void writeString(String value) {
+		int length = value.length();
+		int encodedLength = 0;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80)
+				encodedLength += 1;
+			else if (c < 0x800)
+				encodedLength += 2;
+			else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				encodedLength += 4;
+				i++;
+			} else if (Character.isSurrogate(c))
+				// written as '?'
+				encodedLength += 1;
+			else
+				encodedLength += 3;
+		}
+
+		writeVarint(encodedLength);
+		ensureCapacity(encodedLength);
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				buffer[position++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[position++] = (byte) (0xC0 | (c >> 6));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else {
+				// unpaired surrogates are written as '?', like String.getBytes
+				if (Character.isSurrogate(c))
+					c = '?';
+				if (c < 0x80) {
+					buffer[position++] = (byte) c;
+				} else {
+					buffer[position++] = (byte) (0xE0 | (c >> 12));
+					buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					buffer[position++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+		}
+	}
+
+	private void ensureCapacity(int count) {
+		if (position + count > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(buffer.length * 2, position
+					+ count)];
+			System.arraycopy(buffer, 0, newBuffer, 0, position);
+			buffer = newBuffer;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package common;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani Decides, for every file sent on the file port of a
+ *         connection, on how many streams its byte ranges are sent.
+ *
+ *         One TCP stream sends at most a window of bytes per round trip, which
+ *         is a fraction of a link with a high bandwidth-delay product. Files
+ *         of at least two ranges, sent without compression, are split in
+ *         ranges of at least the configured range size, sent on several
+ *         connections at once and written at their offset by the receiver.
+ *
+ *         After each large transfer the bandwidth-delay product is measured,
+ *         as the throughput of the transfer times the round trip of its
+ *         handshake, and the next file is sent on as many streams as needed to
+ *         keep that many bytes in flight with each stream using
+ *         WINDOW_USAGE of its send buffer, up to the maximum configured. The
+ *         range size grows to the bytes in flight on one stream, so the ranges
+ *         do not get shorter than what the link holds.
+ */
+public class ParallelTransfer {
+	private static final Logger logger = Logger
+			.getLogger(ParallelTransfer.class);
+
+	// fraction of its send buffer a stream is expected to keep in flight
+	private static final double WINDOW_USAGE = 0.8;
+
+	private int maxStreams;
+	private long minRangeSize;
+	// the first large file is sent on all the streams
+	private volatile int streamCount;
+	private volatile long rangeSize;
+
+	/**
+	 * @param maxStreams
+	 *            : TRANSFER_STREAMS property, 1 sends every file on one stream
+	 * @param minRangeSize
+	 *            : TRANSFER_RANGE_SIZE property
+	 */
+	public ParallelTransfer(int maxStreams, long minRangeSize) {
+		this.maxStreams = Math.max(maxStreams, 1);
+		this.minRangeSize = Math.max(minRangeSize, 64 * 1024);
+		this.streamCount = this.maxStreams;
+		this.rangeSize = this.minRangeSize;
+	}
+
+	/**
+	 * @param length
+	 *            : size of the file about to be sent
+	 * @param codec
+	 *            : compression of the file, compressed files are sent on one
+	 *            stream
+	 * @return number of streams on which the file is sent
+	 */
+	public int chooseStreamCount(long length, CompressionCodec codec) {
+		long currentRangeSize = rangeSize;
+		if (maxStreams == 1 || codec != CompressionCodec.NONE
+				|| length < 2 * currentRangeSize)
+			return 1;
+		return (int) Math.min(streamCount, (length + currentRangeSize - 1)
+				/ currentRangeSize);
+	}
+
+	public long getRangeSize() {
+		return rangeSize;
+	}
+
+	/**
+	 * Adapts the stream count and the range size to a completed transfer
+	 *
+	 * @param uploader
+	 */
+	public void transferCompleted(FileUploader uploader) {
+		long bytesWritten = uploader.getBytesWritten();
+		long writeNanos = uploader.getWriteNanos();
+		long roundTripNanos = uploader.getRoundTripNanos();
+		int sendBufferSize = uploader.getSendBufferSize();
+		// small transfers mostly fill the socket buffers
+		if (bytesWritten < 2 * minRangeSize
+				|| writeNanos <= 0 || roundTripNanos <= 0
+				|| sendBufferSize <= 0)
+			return;
+
+		double bandwidthDelayProduct = bytesWritten / (writeNanos / 1e9)
+				* (roundTripNanos / 1e9);
+		streamCount = (int) Math.max(1, Math.min(maxStreams, Math
+				.ceil(bandwidthDelayProduct / (sendBufferSize * WINDOW_USAGE))));
+		rangeSize = Math.max(minRangeSize,
+				(long) (bandwidthDelayProduct / streamCount));
+
+		if (logger.isInfoEnabled())
+			logger.info("bandwidth-delay product = "
+					+ (long) bandwidthDelayProduct + " bytes, round trip = "
+					+ roundTripNanos / 1000 + " us, next streams = "
+					+ streamCount + " range size = " + rangeSize);
+	}
+}
@@ -0,0 +1,348 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Ashish Pahlazani Map keyed by paths, stored as a tree with one node
+ *         per path component, so a folder name is stored once whatever the
+ *         number of paths under it. The entries under a folder can be visited
+ *         or removed in time proportional to their number.
+ *
+ *         A path is split on the separator given to the constructor, empty
+ *         components included, so the paths given back by forEach are the
+ *         ones which were put. The children of a node are kept in an array
+ *         while there are few of them, and in a HashMap beyond
+ *         MAX_ARRAY_CHILDREN. This class is not thread safe.
+ *
+ * @param <V>
+ *            : values, null values are not allowed
+ */
+public class PathTrie<V> {
+	private static final int MAX_ARRAY_CHILDREN = 8;
+
+	/**
+	 * Receives the entries of the trie
+	 */
+	public interface IEntryVisitor<V> {
+		public void visit(String path, V value);
+	}
+
+	private static class Node<V> {
+		String name;
+		V value;
+		// null, Node[] or Map<String, Node>
+		Object children;
+		int childCount;
+
+		Node(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @return children, null if they are not in a map
+		 */
+		@SuppressWarnings("unchecked")
+		private Map<String, Node<V>> childMap() {
+			return children instanceof Map ? (Map<String, Node<V>>) children
+					: null;
+		}
+
+		/**
+		 * @return children, null if they are not in an array
+		 */
+		@SuppressWarnings("unchecked")
+		private Node<V>[] childArray() {
+			return children instanceof Node<?>[] ? (Node<V>[]) children : null;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <V> Node<V>[] newChildArray(int length) {
+			return (Node<V>[]) new Node<?>[length];
+		}
+
+		Node<V> getChild(String childName) {
+			Map<String, Node<V>> map = childMap();
+			if (map != null)
+				return map.get(childName);
+			Node<V>[] array = childArray();
+			if (array == null)
+				return null;
+			for (int i = 0; i < childCount; i++) {
+				if (array[i].name.equals(childName))
+					return array[i];
+			}
+			return null;
+		}
+
+		Node<V> addChild(String childName) {
+			Node<V> child = new Node<V>(childName);
+			Map<String, Node<V>> map = childMap();
+			if (map != null) {
+				map.put(childName, child);
+				childCount++;
+				return child;
+			}
+			Node<V>[] array = childArray();
+			if (array == null) {
+				array = newChildArray(2);
+			} else if (childCount == MAX_ARRAY_CHILDREN) {
+				map = new HashMap<String, Node<V>>();
+				for (Node<V> node : array)
+					map.put(node.name, node);
+				map.put(childName, child);
+				children = map;
+				childCount++;
+				return child;
+			} else if (childCount == array.length) {
+				array = Arrays.copyOf(array,
+						Math.min(2 * childCount, MAX_ARRAY_CHILDREN));
+			}
+			children = array;
+			array[childCount++] = child;
+			return child;
+		}
+
+		void removeChild(String childName) {
+			Map<String, Node<V>> map = childMap();
+			Node<V>[] array = childArray();
+			if (map != null) {
+				if (map.remove(childName) != null)
+					childCount--;
+			} else if (array != null) {
+				for (int i = 0; i < childCount; i++) {
+					if (array[i].name.equals(childName)) {
+						array[i] = array[--childCount];
+						array[childCount] = null;
+						break;
+					}
+				}
+			}
+			if (childCount == 0)
+				children = null;
+		}
+
+		/**
+		 * @return view of the children, not to be used once they change
+		 */
+		Collection<Node<V>> getChildren() {
+			Map<String, Node<V>> map = childMap();
+			if (map != null)
+				return map.values();
+			Node<V>[] array = childArray();
+			if (array == null)
+				return Collections.emptyList();
+			return Arrays.asList(array).subList(0, childCount);
+		}
+	}
+
+	private char separator;
+	private Node<V> root = new Node<V>(null);
+	private int size;
+
+	/**
+	 * @param separator
+	 *            : separator of the components of the paths
+	 */
+	public PathTrie(char separator) {
+		this.separator = separator;
+	}
+
+	/**
+	 * @param path
+	 * @return value of the path, null if there is none
+	 */
+	public V get(String path) {
+		Node<V> node = find(path);
+		return node == null ? null : node.value;
+	}
+
+	/**
+	 * @param path
+	 * @param value
+	 * @return previous value of the path, null if there was none
+	 */
+	public V put(String path, V value) {
+		if (value == null)
+			throw new NullPointerException("null value for " + path);
+		Node<V> node = root;
+		int start = 0;
+		while (true) {
+			int end = path.indexOf(separator, start);
+			String name = path.substring(start, end < 0 ? path.length() : end);
+			Node<V> child = node.getChild(name);
+			node = child != null ? child : node.addChild(name);
+			if (end < 0)
+				break;
+			start = end + 1;
+		}
+		V previous = node.value;
+		node.value = value;
+		if (previous == null)
+			size++;
+		return previous;
+	}
+
+	/**
+	 * Removes the value of the path, the entries under it are kept
+	 *
+	 * @param path
+	 * @return removed value, null if there was none
+	 */
+	public V remove(String path) {
+		List<Node<V>> nodes = findPath(path);
+		if (nodes == null)
+			return null;
+		Node<V> node = nodes.get(nodes.size() - 1);
+		V previous = node.value;
+		if (previous == null)
+			return null;
+		node.value = null;
+		size--;
+		prune(nodes);
+		return previous;
+	}
+
+	/**
+	 * Removes the entry of the path and the entries under it
+	 *
+	 * @param path
+	 * @param visitor
+	 *            : gets the removed entries, may be null
+	 * @return number of entries removed
+	 */
+	public int removeSubtree(String path, IEntryVisitor<V> visitor) {
+		List<Node<V>> nodes = findPath(path);
+		if (nodes == null)
+			return 0;
+		Node<V> node = nodes.get(nodes.size() - 1);
+		int removed = visitor == null ? count(node) : visit(node,
+				new StringBuilder(path), visitor);
+		nodes.get(nodes.size() - 2).removeChild(node.name);
+		size -= removed;
+		prune(nodes.subList(0, nodes.size() - 1));
+		return removed;
+	}
+
+	/**
+	 * @param path
+	 * @return names of the components under the path, empty if there is none
+	 */
+	public List<String> getChildNames(String path) {
+		Node<V> node = find(path);
+		List<String> names = new ArrayList<String>();
+		if (node != null) {
+			for (Node<V> child : node.getChildren())
+				names.add(child.name);
+		}
+		return names;
+	}
+
+	/**
+	 * @param visitor
+	 *            : gets every entry
+	 */
+	public void forEach(IEntryVisitor<V> visitor) {
+		for (Node<V> child : root.getChildren())
+			visit(child, new StringBuilder(child.name), visitor);
+	}
+
+	/**
+	 * @param path
+	 * @param visitor
+	 *            : gets the entry of the path and the entries under it
+	 */
+	public void forEach(String path, IEntryVisitor<V> visitor) {
+		Node<V> node = find(path);
+		if (node != null)
+			visit(node, new StringBuilder(path), visitor);
+	}
+
+	/**
+	 * @return number of entries
+	 */
+	public int size() {
+		return size;
+	}
+
+	private Node<V> find(String path) {
+		Node<V> node = root;
+		int start = 0;
+		while (node != null) {
+			int end = path.indexOf(separator, start);
+			node = node.getChild(path.substring(start, end < 0 ? path.length()
+					: end));
+			if (end < 0)
+				break;
+			start = end + 1;
+		}
+		return node;
+	}
+
+	/**
+	 * @return nodes from the root to the node of the path, null if the path
+	 *         has no node
+	 */
+	private List<Node<V>> findPath(String path) {
+		List<Node<V>> nodes = new ArrayList<Node<V>>();
+		Node<V> node = root;
+		nodes.add(node);
+		int start = 0;
+		while (true) {
+			int end = path.indexOf(separator, start);
+			node = node.getChild(path.substring(start, end < 0 ? path.length()
+					: end));
+			if (node == null)
+				return null;
+			nodes.add(node);
+			if (end < 0)
+				return nodes;
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Removes the nodes left without value nor children, from the last one
+	 */
+	private void prune(List<Node<V>> nodes) {
+		for (int i = nodes.size() - 1; i > 0; i--) {
+			Node<V> node = nodes.get(i);
+			if (node.value != null || node.childCount > 0)
+				return;
+			nodes.get(i - 1).removeChild(node.name);
+		}
+	}
+
+	/**
+	 * @param path
+	 *            : path of the node, restored when the method returns
+	 * @return number of entries visited
+	 */
+	private int visit(Node<V> node, StringBuilder path,
+			IEntryVisitor<V> visitor) {
+		int count = 0;
+		if (node.value != null) {
+			visitor.visit(path.toString(), node.value);
+			count++;
+		}
+		int length = path.length();
+		for (Node<V> child : node.getChildren()) {
+			path.append(separator).append(child.name);
+			count += visit(child, path, visitor);
+			path.setLength(length);
+		}
+		return count;
+	}
+
+	private int count(Node<V> node) {
+		int count = node.value != null ? 1 : 0;
+		for (Node<V> child : node.getChildren())
+			count += count(child);
+		return count;
+	}
+}
@@ -0,0 +1,16 @@
+package common;
+
+/**
+ * @author Ashish Pahlazani
+ *         Thrown when a message received from the other side can not be decoded
+ */
+public class ProtocolException extends RuntimeException {
+	/**
+	 * 
+	 */
+	private static final long serialVersionUID = 1L;
+
+	public ProtocolException(String message) {
+		super(message);
+	}
+}
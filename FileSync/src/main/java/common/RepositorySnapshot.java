@@ -0,0 +1,27 @@
+package common;
+
+/**
+ * @author Ashish Pahlazani Format of the snapshot of the repository sent by
+ *         the server to a client which has no copy yet, or which missed
+ *         updates. The snapshot is one sequential stream, sent over the file
+ *         port or as DATA frames of one stream of the control connection.
+ *
+ *         Stream layout : magic (4 bytes), snapshot revision (8 bytes), then
+ *         for each path an entry type (1 byte), the path (UTF), its revision
+ *         (8 bytes) and, for a FILE_ENTRY, the length (8 bytes) and the bytes
+ *         of the file. The stream ends with END_ENTRY and the number of
+ *         entries (4 bytes).
+ *
+ *         FILE_ENTRY : file of the repository
+ *         DELETED_ENTRY : path deleted from the repository
+ */
+public class RepositorySnapshot {
+	public static final int MAGIC = 0x46535350;
+
+	public static final byte END_ENTRY = 0;
+	public static final byte FILE_ENTRY = 1;
+	public static final byte DELETED_ENTRY = 2;
+
+	private RepositorySnapshot() {
+	}
+}
@@ -0,0 +1,13 @@
+package common;
+
+/**
+ * @author Ashish Pahlazani
+ *         MEMORY : revision numbers are kept in a hash map on the heap
+ *         TRIE : revision numbers are kept in a path trie on the heap, folders are stored once
+ *         MAPPED : revision numbers are kept in a hash table in a memory-mapped file
+ */
+public enum RevisionIndexMode {
+	MEMORY,
+	TRIE,
+	MAPPED;
+}
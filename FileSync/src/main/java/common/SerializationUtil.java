@@ -0,0 +1,59 @@
+package common;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Ashish Pahlazani Reads the collections saved with serialization,
+ *         such as server.dat and client.dat, checking the type of each
+ *         element, so a damaged or foreign file is refused when it is loaded
+ *         and not when an element is used.
+ */
+public class SerializationUtil {
+
+	/**
+	 * @return next object of the stream, copied to a map of the given types
+	 * @throws InvalidObjectException
+	 *             if it is not a map of these types
+	 */
+	public static <K, V> Map<K, V> readMap(ObjectInputStream ois,
+			Class<K> keyType, Class<V> valueType) throws IOException,
+			ClassNotFoundException {
+		Object object = ois.readObject();
+		if (!(object instanceof Map))
+			throw new InvalidObjectException("Not a map : " + object);
+		Map<K, V> map = new HashMap<K, V>();
+		for (Map.Entry<?, ?> entry : ((Map<?, ?>) object).entrySet()) {
+			if (!keyType.isInstance(entry.getKey())
+					|| !valueType.isInstance(entry.getValue()))
+				throw new InvalidObjectException("Invalid entry : " + entry);
+			map.put(keyType.cast(entry.getKey()),
+					valueType.cast(entry.getValue()));
+		}
+		return map;
+	}
+
+	/**
+	 * @return next object of the stream, copied to a list of the given type
+	 * @throws InvalidObjectException
+	 *             if it is not a list of this type
+	 */
+	public static <T> List<T> readList(ObjectInputStream ois,
+			Class<T> elementType) throws IOException, ClassNotFoundException {
+		Object object = ois.readObject();
+		if (!(object instanceof List))
+			throw new InvalidObjectException("Not a list : " + object);
+		List<T> list = new ArrayList<T>();
+		for (Object element : (List<?>) object) {
+			if (!elementType.isInstance(element))
+				throw new InvalidObjectException("Invalid element : " + element);
+			list.add(elementType.cast(element));
+		}
+		return list;
+	}
+}
@@ -0,0 +1,320 @@
+package common;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani File being received. The bytes are written in a
+ *         temp file next to the target, which is renamed over the target once
+ *         the transfer is complete, so the target is either the old or the new
+ *         file and never a partial one. Temp files are in the same folder as
+ *         the target so the rename stays on one file system, file change
+ *         detectors skip them with isTempFile.
+ *
+ *         The temp file of a resumable transfer is named after the transfer
+ *         id, and kept when the transfer fails, so the next attempt appends
+ *         to the bytes already received. The temp files left by attempts of
+ *         other contents are deleted once the target is published or deleted,
+ *         and the ones of targets never received again by deleteStaleFiles
+ *         at startup, once they are old enough.
+ *
+ *         A resumable transfer written out of order is preallocated with
+ *         preallocate, which keeps the number of bytes received from the start
+ *         in RECEIVED_LENGTH_BYTES after the end of the file. The next attempt
+ *         resumes from it even if the previous one ended without suspend.
+ */
+public class StagedFile {
+	private static final Logger logger = Logger.getLogger(StagedFile.class);
+
+	public static final String TEMP_PREFIX = ".filesync-";
+	public static final String TEMP_SUFFIX = ".part";
+	private static final String RESUMABLE_SUFFIX = ".resume" + TEMP_SUFFIX;
+	private static final int RECEIVED_LENGTH_BYTES = 8;
+
+	private File target;
+	private File tempFile;
+	private RandomAccessFile randomAccessFile;
+	private boolean resumable;
+	// position of the received length of a preallocated resumable file
+	private long preallocatedLength = -1;
+
+	public StagedFile(File target) {
+		this.target = target;
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file is the temp file of a transfer
+	 */
+	public static boolean isTempFile(File file) {
+		String name = file.getName();
+		return name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX);
+	}
+
+	public File getTarget() {
+		return target;
+	}
+
+	/**
+	 * Creates the temp file, and the folders of the target if required
+	 *
+	 * @param expectedLength
+	 *            : size of the file if known, -1 otherwise. The temp file is
+	 *            extended to this size before the first write
+	 * @return channel to write the received bytes
+	 * @throws IOException
+	 */
+	public FileChannel open(long expectedLength) throws IOException {
+		File parentFolder = target.getAbsoluteFile().getParentFile();
+		if (!parentFolder.exists() && !parentFolder.mkdirs())
+			throw new IOException("Couldn't create dir: " + parentFolder);
+
+		tempFile = File.createTempFile(TEMP_PREFIX + target.getName() + ".",
+				TEMP_SUFFIX, parentFolder);
+		randomAccessFile = new RandomAccessFile(tempFile, "rw");
+		if (expectedLength > 0)
+			randomAccessFile.setLength(expectedLength);
+		return randomAccessFile.getChannel();
+	}
+
+	/**
+	 * Opens the temp file of a resumable transfer, the bytes received by the
+	 * previous attempts of the transfer are kept
+	 *
+	 * @param transferId
+	 *            : id of the content received
+	 * @param expectedLength
+	 *            : size of the file
+	 * @return channel to write the received bytes, positioned after the bytes
+	 *         already received
+	 * @throws IOException
+	 */
+	public FileChannel openResumable(String transferId, long expectedLength)
+			throws IOException {
+		File parentFolder = target.getAbsoluteFile().getParentFile();
+		if (!parentFolder.exists() && !parentFolder.mkdirs())
+			throw new IOException("Couldn't create dir: " + parentFolder);
+
+		resumable = true;
+		tempFile = new File(parentFolder, TEMP_PREFIX + target.getName() + "."
+				+ transferId + RESUMABLE_SUFFIX);
+		randomAccessFile = new RandomAccessFile(tempFile, "rw");
+		FileChannel channel = randomAccessFile.getChannel();
+		if (channel.size() == expectedLength + RECEIVED_LENGTH_BYTES)
+			channel.truncate(readReceivedLength(channel, expectedLength));
+		else if (channel.size() > expectedLength)
+			channel.truncate(0);
+		channel.position(channel.size());
+		if (logger.isDebugEnabled() && channel.size() > 0)
+			logger.debug("resuming " + target + " from " + channel.size()
+					+ " bytes");
+		return channel;
+	}
+
+	/**
+	 * Extends the temp file to length before bytes are written out of order.
+	 * The temp file of a resumable transfer keeps receivedLength after the
+	 * bytes, updated with setReceivedLength
+	 *
+	 * @param length
+	 *            : size of the file
+	 * @param receivedLength
+	 *            : number of bytes received from the start of the file
+	 * @throws IOException
+	 */
+	public void preallocate(long length, long receivedLength)
+			throws IOException {
+		if (!resumable) {
+			if (randomAccessFile.length() < length)
+				randomAccessFile.setLength(length);
+			return;
+		}
+		randomAccessFile.setLength(length + RECEIVED_LENGTH_BYTES);
+		preallocatedLength = length;
+		setReceivedLength(receivedLength);
+	}
+
+	/**
+	 * Records the number of bytes received from the start of a preallocated
+	 * resumable file, callers serialize the calls
+	 */
+	public void setReceivedLength(long receivedLength) throws IOException {
+		if (preallocatedLength < 0)
+			return;
+		ByteBuffer buffer = ByteBuffer.allocate(RECEIVED_LENGTH_BYTES);
+		buffer.putLong(receivedLength).flip();
+		FileChannel channel = randomAccessFile.getChannel();
+		long position = preallocatedLength;
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	/**
+	 * Truncates the temp file to length and renames it over the target
+	 *
+	 * @param length
+	 *            : number of bytes received
+	 * @throws IOException
+	 */
+	public void publish(long length) throws IOException {
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			if (channel.size() != length)
+				channel.truncate(length);
+		} finally {
+			randomAccessFile.close();
+		}
+
+		try {
+			Files.move(tempFile.toPath(), target.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile.toPath(), target.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug("published " + target + " length = " + length);
+		if (resumable)
+			deleteResumableFiles(target);
+	}
+
+	/**
+	 * Closes the temp file of a resumable transfer, which is kept for the next
+	 * attempt. Other temp files are deleted
+	 *
+	 * @param receivedLength
+	 *            : number of bytes received from the start of the file, the
+	 *            bytes after them are dropped. -1 keeps the whole temp file
+	 */
+	public void suspend(long receivedLength) {
+		if (!resumable) {
+			discard();
+			return;
+		}
+		try {
+			if (randomAccessFile != null) {
+				try {
+					if (receivedLength >= 0
+							&& randomAccessFile.length() > receivedLength)
+						randomAccessFile.setLength(receivedLength);
+				} finally {
+					randomAccessFile.close();
+				}
+			}
+		} catch (IOException e) {
+			logger.error("Exception while closing temp file " + tempFile
+					+ " : " + e);
+		}
+		if (logger.isInfoEnabled() && tempFile != null)
+			logger.info("transfer of " + target + " suspended after "
+					+ tempFile.length() + " bytes");
+	}
+
+	/**
+	 * Deletes the temp file, the target is left unchanged
+	 */
+	public void discard() {
+		try {
+			if (randomAccessFile != null)
+				randomAccessFile.close();
+		} catch (IOException e) {
+			logger.error("Exception while closing temp file " + tempFile
+					+ " : " + e);
+		}
+		if (tempFile != null && tempFile.exists() && !tempFile.delete())
+			logger.error("Couldn't delete temp file " + tempFile);
+	}
+
+	/**
+	 * @return number of bytes received before the end of a preallocated file,
+	 *         0 if it is not valid
+	 */
+	private long readReceivedLength(FileChannel channel, long length)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(RECEIVED_LENGTH_BYTES);
+		long position = length;
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, position);
+			if (count < 0)
+				return 0;
+			position += count;
+		}
+		long receivedLength = buffer.getLong(0);
+		if (receivedLength < 0 || receivedLength > length) {
+			logger.error("Invalid received length " + receivedLength
+					+ " in " + tempFile + ", receiving it again");
+			return 0;
+		}
+		return receivedLength;
+	}
+
+	/**
+	 * Deletes the temp files kept by the resumable transfers of the target,
+	 * called once the target is published or deleted
+	 *
+	 * @param target
+	 */
+	public static void deleteResumableFiles(File target) {
+		final String prefix = TEMP_PREFIX + target.getName() + ".";
+		File[] files = target.getAbsoluteFile().getParentFile().listFiles(
+				new FilenameFilter() {
+					@Override
+					public boolean accept(File folder, String name) {
+						// ids have no dot, so a.txt does not match a.txt.bak
+						return name.startsWith(prefix)
+								&& name.endsWith(RESUMABLE_SUFFIX)
+								&& name.indexOf('.', prefix.length()) == name
+										.length() - RESUMABLE_SUFFIX.length();
+					}
+				});
+		if (files == null)
+			return;
+		for (File file : files) {
+			if (!file.delete())
+				logger.error("Couldn't delete temp file " + file);
+		}
+	}
+
+	/**
+	 * Deletes the temp files left under the folder by a previous run, called
+	 * at startup before any transfer. A temp file which is not resumable is
+	 * never used again, the one of a resumable transfer is kept until it was
+	 * not written for maxAgeMillis
+	 *
+	 * @param folder
+	 * @param maxAgeMillis
+	 *            : age of the resumable temp files deleted
+	 * @return number of temp files deleted
+	 */
+	public static int deleteStaleFiles(File folder, long maxAgeMillis) {
+		File[] files = folder.listFiles();
+		if (files == null)
+			return 0;
+		long oldestKept = System.currentTimeMillis() - maxAgeMillis;
+		int count = 0;
+		for (File file : files) {
+			if (file.isDirectory()) {
+				count += deleteStaleFiles(file, maxAgeMillis);
+			} else if (isTempFile(file)
+					&& (!file.getName().endsWith(RESUMABLE_SUFFIX) || file
+							.lastModified() < oldestKept)) {
+				if (file.delete())
+					count++;
+				else
+					logger.error("Couldn't delete temp file " + file);
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,108 @@
+package common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani This class is shared by all the workers of server
+ *         or client for running client handlers, sync propagation and file
+ *         transfers. Depending on the ExecutionMode tasks are run on platform
+ *         threads or on virtual threads.
+ */
+public class TaskExecutor {
+	private static final Logger logger = Logger.getLogger(TaskExecutor.class);
+
+	private ExecutionMode executionMode;
+	private ExecutorService executorService;
+
+	public TaskExecutor(ExecutionMode executionMode) {
+		this.executionMode = executionMode;
+		if (executionMode == ExecutionMode.VIRTUAL)
+			executorService = newVirtualThreadExecutor();
+
+		if (executorService == null) {
+			this.executionMode = ExecutionMode.PLATFORM;
+			executorService = Executors.newCachedThreadPool();
+		}
+
+		if (logger.isInfoEnabled())
+			logger.info("TaskExecutor initialized, executionMode = "
+					+ this.executionMode);
+	}
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor is looked up by reflection, as
+	 * the code is compiled for java 8
+	 * 
+	 * @return executor, or null if virtual threads are not supported by the
+	 *         runtime
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			logger.warn("Virtual threads are not supported by this java runtime, using platform threads : "
+					+ e);
+			return null;
+		}
+	}
+
+	/**
+	 * @return mode actually used, PLATFORM if VIRTUAL was requested on a
+	 *         runtime without virtual threads
+	 */
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	public ExecutorService getExecutorService() {
+		return executorService;
+	}
+
+	public void execute(Runnable task) {
+		executorService.execute(task);
+	}
+
+	/**
+	 * Runs the task and waits for its completion
+	 * 
+	 * @param task
+	 * @return false if the task failed with an exception or the wait was
+	 *         interrupted
+	 */
+	public boolean runAndWait(Runnable task) {
+		Future<?> future = executorService.submit(task);
+		try {
+			future.get();
+			return true;
+		} catch (ExecutionException e) {
+			logger.error("Exception while executing task : " + e.getCause());
+		} catch (InterruptedException e) {
+			logger.error("Interrupted while waiting for task : " + e);
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	public void shutdown() {
+		executorService.shutdown();
+	}
+
+	/**
+	 * @param value
+	 *            : value of EXECUTION_MODE property, can be null
+	 * @return ExecutionMode, PLATFORM if value is not set
+	 */
+	public static ExecutionMode parseExecutionMode(String value) {
+		if (value == null || value.trim().isEmpty())
+			return ExecutionMode.PLATFORM;
+		return ExecutionMode.valueOf(value.trim().toUpperCase());
+	}
+}
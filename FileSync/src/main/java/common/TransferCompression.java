@@ -0,0 +1,234 @@
+package common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani Decides, for every file sent on a connection,
+ *         whether its bytes are compressed and with which codec.
+ * 
+ *         The codecs are negotiated when the client logs in : the client sends
+ *         the codecs it accepts in a COMPRESSION message and the server
+ *         answers with the codecs accepted by both, nothing is compressed
+ *         until then.
+ * 
+ *         For every transfer the first SAMPLE_SIZE bytes of the file are
+ *         compressed with each allowed codec. Data which does not shrink
+ *         (archives, media) is sent as it is, otherwise the codec is chosen by
+ *         comparing the time to send the sample uncompressed at the measured
+ *         link throughput with the time to compress it and send the
+ *         compressed bytes, the compression and the sending overlapping. The
+ *         link throughput is measured on the transfers themselves, as the
+ *         bytes written on the connection divided by the time spent writing
+ *         them.
+ */
+public class TransferCompression {
+	private static final Logger logger = Logger
+			.getLogger(TransferCompression.class);
+
+	public static final int SAMPLE_SIZE = 64 * 1024;
+
+	// smaller files are sent as they are, the gain is a few packets at most
+	private static final long MIN_FILE_SIZE = 4 * 1024;
+	// compressed size / size above which the data is considered incompressible
+	private static final double INCOMPRESSIBLE_RATIO = 0.9;
+	// transfers smaller than this mostly fill socket buffers, not the link
+	private static final long MIN_MEASURED_BYTES = 1024 * 1024;
+	// weight of the last transfer in the link throughput
+	private static final double THROUGHPUT_WEIGHT = 0.3;
+
+	private Set<CompressionCodec> enabledCodecs;
+	private volatile Set<CompressionCodec> allowedCodecs = Collections
+			.emptySet();
+	// bytes per second, 0 until a large enough transfer is measured
+	private volatile double linkThroughput;
+
+	/**
+	 * @param enabledCodecs
+	 *            : codecs accepted on this side, see parseCodecs
+	 */
+	public TransferCompression(Set<CompressionCodec> enabledCodecs) {
+		this.enabledCodecs = EnumSet.noneOf(CompressionCodec.class);
+		this.enabledCodecs.addAll(enabledCodecs);
+		this.enabledCodecs.remove(CompressionCodec.NONE);
+	}
+
+	/**
+	 * @param value
+	 *            : value of COMPRESSION property, can be null. AUTO (default)
+	 *            enables all the codecs, NONE disables compression, otherwise
+	 *            a comma separated list of codecs
+	 * @return enabled codecs
+	 */
+	public static Set<CompressionCodec> parseCodecs(String value) {
+		Set<CompressionCodec> codecs = EnumSet.noneOf(CompressionCodec.class);
+		if (value == null || value.trim().isEmpty()
+				|| value.trim().equalsIgnoreCase("AUTO")) {
+			codecs.addAll(EnumSet.allOf(CompressionCodec.class));
+		} else {
+			for (String name : value.split(","))
+				if (!name.trim().isEmpty())
+					codecs.add(CompressionCodec.valueOf(name.trim()
+							.toUpperCase()));
+		}
+		codecs.remove(CompressionCodec.NONE);
+		return codecs;
+	}
+
+	/**
+	 * @return codecs enabled on this side, as sent in the COMPRESSION message
+	 */
+	public String getEnabledCodecs() {
+		return toText(enabledCodecs);
+	}
+
+	/**
+	 * Called by the server with the codecs sent by the client, then by the
+	 * client with the answer of the server
+	 * 
+	 * @param peerCodecs
+	 *            : comma separated codecs accepted by the other side
+	 * @return codecs accepted by both sides, sent back to the client
+	 */
+	public String negotiate(String peerCodecs) {
+		Set<CompressionCodec> codecs = EnumSet.noneOf(CompressionCodec.class);
+		if (peerCodecs != null) {
+			for (String name : peerCodecs.split(",")) {
+				try {
+					CompressionCodec codec = CompressionCodec.valueOf(name
+							.trim());
+					if (enabledCodecs.contains(codec))
+						codecs.add(codec);
+				} catch (IllegalArgumentException e) {
+					// codec of a newer version, not used
+				}
+			}
+		}
+		allowedCodecs = Collections.unmodifiableSet(codecs);
+
+		if (logger.isInfoEnabled())
+			logger.info("compression codecs = " + codecs);
+		return toText(codecs);
+	}
+
+	/**
+	 * @return measured link throughput in bytes per second, 0 if not known
+	 */
+	public double getLinkThroughput() {
+		return linkThroughput;
+	}
+
+	/**
+	 * @param file
+	 *            : file about to be sent
+	 * @return codec with which the file is sent
+	 */
+	public CompressionCodec choose(File file) {
+		Set<CompressionCodec> codecs = allowedCodecs;
+		if (codecs.isEmpty() || file.length() < MIN_FILE_SIZE)
+			return CompressionCodec.NONE;
+
+		byte[] sample;
+		try {
+			sample = readSample(file);
+		} catch (IOException e) {
+			// the sender reports the error
+			return CompressionCodec.NONE;
+		}
+
+		double throughput = linkThroughput;
+		CompressionCodec chosen = CompressionCodec.NONE;
+		// seconds to send the sample, compression always wins on an unknown link
+		double bestTime = throughput > 0 ? sample.length / throughput
+				: Double.MAX_VALUE;
+		byte[] output = new byte[sample.length + 64];
+		for (CompressionCodec codec : codecs) {
+			Deflater deflater = codec.newDeflater();
+			long start = System.nanoTime();
+			int compressedLength;
+			try {
+				deflater.setInput(sample);
+				deflater.finish();
+				compressedLength = 0;
+				while (!deflater.finished())
+					compressedLength += deflater.deflate(output);
+			} finally {
+				deflater.end();
+			}
+			double compressTime = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+			double ratio = compressedLength / (double) sample.length;
+			double time = throughput > 0 ? Math.max(compressTime,
+					compressedLength / throughput) : compressTime;
+			if (logger.isDebugEnabled())
+				logger.debug("sample of " + file + " codec = " + codec
+						+ " ratio = " + ratio + " time = " + time);
+			if (ratio <= INCOMPRESSIBLE_RATIO && time < bestTime) {
+				chosen = codec;
+				bestTime = time;
+			}
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug("file " + file + " sent with " + chosen
+					+ ", link throughput = " + (long) throughput);
+		return chosen;
+	}
+
+	/**
+	 * Updates the link throughput with a completed transfer
+	 * 
+	 * @param fileSender
+	 */
+	public void transferCompleted(IFileSender fileSender) {
+		long bytesWritten = fileSender.getBytesWritten();
+		long writeNanos = fileSender.getWriteNanos();
+		if (bytesWritten < MIN_MEASURED_BYTES || writeNanos <= 0)
+			return;
+		double throughput = bytesWritten / (writeNanos / 1e9);
+		double previous = linkThroughput;
+		linkThroughput = previous == 0 ? throughput : previous
+				* (1 - THROUGHPUT_WEIGHT) + throughput * THROUGHPUT_WEIGHT;
+	}
+
+	private static byte[] readSample(File file) throws IOException {
+		byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, file.length())];
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			int position = 0;
+			while (position < sample.length) {
+				int count = inputStream.read(sample, position, sample.length
+						- position);
+				if (count < 0)
+					break;
+				position += count;
+			}
+			if (position < sample.length) {
+				byte[] shorter = new byte[position];
+				System.arraycopy(sample, 0, shorter, 0, position);
+				return shorter;
+			}
+			return sample;
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	private static String toText(Set<CompressionCodec> codecs) {
+		StringBuilder builder = new StringBuilder();
+		for (CompressionCodec codec : codecs) {
+			if (builder.length() > 0)
+				builder.append(',');
+			builder.append(codec.name());
+		}
+		return builder.toString();
+	}
+}
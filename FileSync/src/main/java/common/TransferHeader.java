@@ -0,0 +1,240 @@
+package common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * @author Ashish Pahlazani Header sent first on the file port, the size of the
+ *         file and the SHA-256 of its content. The receiver answers with the
+ *         number of bytes it already has, and the sender continues from this
+ *         offset. The whole file is checked against the hash once received.
+ *
+ *         The transfer id is made of the first bytes of the hash and of the
+ *         size, so every attempt to send the same content has the same id,
+ *         after a restart too, and the receiver finds the bytes kept from the
+ *         previous attempt.
+ *
+ *         A file sent on several streams has one connection per stream, each
+ *         starting with the header and its stream index. Only the first one
+ *         is answered with the offset, then every stream sends ranges, each
+ *         made of its position and length followed by its bytes, until a
+ *         range at position -1.
+ */
+public class TransferHeader {
+	public static final int HASH_LENGTH = 32;
+	private static final int HEADER_LENGTH = 8 + HASH_LENGTH + 4 + 4 + 8;
+	private static final int RANGE_HEADER_LENGTH = 16;
+
+	private long length;
+	private byte[] contentHash;
+	private int streamCount = 1;
+	private int streamIndex;
+	private long rangeSize;
+
+	public TransferHeader(long length, byte[] contentHash) {
+		this.length = length;
+		this.contentHash = contentHash;
+	}
+
+	/**
+	 * @param streamCount
+	 *            : number of connections on which the file is sent
+	 * @param streamIndex
+	 *            : index of the connection of this header, 0 for the first
+	 * @param rangeSize
+	 *            : size of the ranges, the last one can be shorter
+	 * @return this header
+	 */
+	public TransferHeader setStreams(int streamCount, int streamIndex,
+			long rangeSize) {
+		this.streamCount = streamCount;
+		this.streamIndex = streamIndex;
+		this.rangeSize = rangeSize;
+		return this;
+	}
+
+	/**
+	 * @param channel
+	 *            : file to send, read from the start
+	 * @return header of the file
+	 * @throws IOException
+	 */
+	public static TransferHeader of(FileChannel channel) throws IOException {
+		long length = channel.size();
+		return new TransferHeader(length, hash(channel, length));
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public byte[] getContentHash() {
+		return contentHash;
+	}
+
+	public int getStreamCount() {
+		return streamCount;
+	}
+
+	public int getStreamIndex() {
+		return streamIndex;
+	}
+
+	public long getRangeSize() {
+		return rangeSize;
+	}
+
+	/**
+	 * @param header
+	 *            : header of another connection
+	 * @return true if it is another stream of the same file
+	 */
+	public boolean isSameTransfer(TransferHeader header) {
+		return header.length == length
+				&& Arrays.equals(header.contentHash, contentHash)
+				&& header.streamCount == streamCount
+				&& header.rangeSize == rangeSize;
+	}
+
+	/**
+	 * @return id of the transfer, the same for every file of this content
+	 */
+	public String getTransferId() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 8; i++)
+			builder.append(Character.forDigit((contentHash[i] >> 4) & 0xf, 16))
+					.append(Character.forDigit(contentHash[i] & 0xf, 16));
+		return builder.append('-').append(Long.toHexString(length))
+				.toString();
+	}
+
+	public void write(WritableByteChannel channel) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH);
+		buffer.putLong(length).put(contentHash).putInt(streamCount)
+				.putInt(streamIndex).putLong(rangeSize).flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	public static TransferHeader read(ReadableByteChannel channel)
+			throws IOException {
+		ByteBuffer buffer = readFully(channel, HEADER_LENGTH, "file header");
+		long length = buffer.getLong();
+		if (length < 0)
+			throw new IOException("Invalid file length : " + length);
+		byte[] contentHash = new byte[HASH_LENGTH];
+		buffer.get(contentHash);
+		int streamCount = buffer.getInt();
+		int streamIndex = buffer.getInt();
+		long rangeSize = buffer.getLong();
+		if (streamCount < 1 || streamIndex < 0 || streamIndex >= streamCount
+				|| (streamCount > 1 && rangeSize <= 0))
+			throw new IOException("Invalid streams : " + streamIndex + " of "
+					+ streamCount + " range size = " + rangeSize);
+		return new TransferHeader(length, contentHash).setStreams(
+				streamCount, streamIndex, rangeSize);
+	}
+
+	/**
+	 * Sent by the receiver, number of bytes it already has
+	 */
+	public static void writeOffset(WritableByteChannel channel, long offset)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putLong(offset).flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	public long readOffset(ReadableByteChannel channel) throws IOException {
+		long offset = readFully(channel, 8, "offset").getLong();
+		if (offset < 0 || offset > length)
+			throw new IOException("Invalid offset : " + offset + " length = "
+					+ length);
+		return offset;
+	}
+
+	/**
+	 * Sent before the bytes of a range, position -1 ends the stream
+	 */
+	public static void writeRange(WritableByteChannel channel, long position,
+			long count) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(RANGE_HEADER_LENGTH);
+		buffer.putLong(position).putLong(count).flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * @param channel
+	 * @return position and length of the next range, position -1 at the end
+	 *         of the stream
+	 * @throws IOException
+	 *             if the range is not one of this file
+	 */
+	public long[] readRange(ReadableByteChannel channel) throws IOException {
+		ByteBuffer buffer = readFully(channel, RANGE_HEADER_LENGTH, "range");
+		long position = buffer.getLong();
+		long count = buffer.getLong();
+		if (position != -1 && (position < 0 || count <= 0
+				|| count > rangeSize || position > length - count))
+			throw new IOException("Invalid range : " + position + " + "
+					+ count + " length = " + length);
+		return new long[] { position, count };
+	}
+
+	/**
+	 * @param channel
+	 * @param length
+	 *            : number of bytes to hash, from the start of the file
+	 * @return SHA-256 of the bytes
+	 * @throws IOException
+	 */
+	public static byte[] hash(FileChannel channel, long length)
+			throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		DirectBufferPool bufferPool = DirectBufferPool.getSharedPool();
+		ByteBuffer buffer = bufferPool.acquire();
+		try {
+			long position = 0;
+			while (position < length) {
+				buffer.clear();
+				if (length - position < buffer.capacity())
+					buffer.limit((int) (length - position));
+				int count = channel.read(buffer, position);
+				if (count < 0)
+					throw new EOFException("File truncated at " + position
+							+ " of " + length + " bytes");
+				position += count;
+				buffer.flip();
+				digest.update(buffer);
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+		return digest.digest();
+	}
+
+	private static ByteBuffer readFully(ReadableByteChannel channel,
+			int count, String name) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(count);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0)
+				throw new EOFException("Connection closed before " + name);
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
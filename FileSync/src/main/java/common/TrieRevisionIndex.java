@@ -0,0 +1,88 @@
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author Ashish Pahlazani Revision numbers kept in a PathTrie, so the
+ *         folders shared by the paths are stored once, saved by the owner of
+ *         the index
+ */
+public class TrieRevisionIndex implements IRevisionIndex {
+	private PathTrie<Long> revisionNumbers = new PathTrie<Long>(
+			File.separatorChar);
+	private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	@Override
+	public long get(String relativePath) {
+		lock.readLock().lock();
+		try {
+			Long revisionNumber = revisionNumbers.get(relativePath);
+			return revisionNumber == null ? -1 : revisionNumber;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void put(String relativePath, long revisionNumber) {
+		lock.writeLock().lock();
+		try {
+			revisionNumbers.put(relativePath, revisionNumber);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return revisionNumbers.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * The index can not be updated until the visitor returns
+	 */
+	@Override
+	public void forEach(final IEntryVisitor visitor) throws IOException {
+		lock.readLock().lock();
+		try {
+			final IOException[] exception = new IOException[1];
+			revisionNumbers.forEach(new PathTrie.IEntryVisitor<Long>() {
+				@Override
+				public void visit(String path, Long revisionNumber) {
+					if (exception[0] != null)
+						return;
+					try {
+						visitor.visit(path, revisionNumber);
+					} catch (IOException e) {
+						exception[0] = e;
+					}
+				}
+			});
+			if (exception[0] != null)
+				throw exception[0];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean isPersistent() {
+		return false;
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
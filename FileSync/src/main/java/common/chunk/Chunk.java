@@ -0,0 +1,62 @@
+package common.chunk;
+
+import java.util.Arrays;
+
+/**
+ * @author Ashish Pahlazani Piece of a file cut by FastCdcChunker, identified
+ *         by the SHA-256 of its bytes. Two chunks with the same hash are
+ *         considered equal, whichever file they come from.
+ */
+public class Chunk {
+	public static final int HASH_LENGTH = 32;
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	private byte[] hash;
+	private int length;
+
+	public Chunk(byte[] hash, int length) {
+		this.hash = hash;
+		this.length = length;
+	}
+
+	public byte[] getHash() {
+		return hash;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * @return hash in hexadecimal, used as name of the chunk in the store
+	 */
+	public String getHashString() {
+		char[] chars = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			chars[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+			chars[2 * i + 1] = HEX_DIGITS[hash[i] & 0xF];
+		}
+		return new String(chars);
+	}
+
+	@Override
+	public int hashCode() {
+		// the hash is already uniformly distributed
+		return (hash[0] & 0xFF) << 24 | (hash[1] & 0xFF) << 16
+				| (hash[2] & 0xFF) << 8 | (hash[3] & 0xFF);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Chunk))
+			return false;
+		Chunk other = (Chunk) obj;
+		return length == other.length && Arrays.equals(hash, other.hash);
+	}
+
+	@Override
+	public String toString() {
+		return getHashString() + ":" + length;
+	}
+}
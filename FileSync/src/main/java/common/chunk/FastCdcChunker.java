@@ -0,0 +1,143 @@
+package common.chunk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author Ashish Pahlazani Content-defined chunking with FastCDC. A gear
+ *         hash is rolled over the bytes and a chunk ends where the hash has
+ *         the masked bits set to zero, so the cut points depend on the content
+ *         and an insertion only changes the chunks around it. Chunks are
+ *         between MIN_SIZE and MAX_SIZE bytes, a stricter mask is used before
+ *         AVERAGE_SIZE and a looser one after, which keeps most chunks close
+ *         to the average (normalized chunking).
+ *
+ *         Client and server must cut the same chunks, the gear table is
+ *         therefore built from a fixed seed and the sizes are constants.
+ */
+public class FastCdcChunker {
+	public static final int MIN_SIZE = 4 * 1024;
+	public static final int AVERAGE_SIZE = 16 * 1024;
+	public static final int MAX_SIZE = 64 * 1024;
+
+	private static final long GEAR_SEED = 0x46696c6553796e63L;
+	private static final long[] GEAR = new long[256];
+	// 2 bits more than log2(AVERAGE_SIZE) before the average, 2 bits less after
+	private static final long MASK_SMALL = -1L << (64 - 16);
+	private static final long MASK_LARGE = -1L << (64 - 12);
+
+	static {
+		Random random = new Random(GEAR_SEED);
+		for (int i = 0; i < GEAR.length; i++)
+			GEAR[i] = random.nextLong();
+	}
+
+	private MessageDigest digest;
+
+	public FastCdcChunker() {
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	/**
+	 * @param data
+	 * @param offset
+	 * @param length
+	 *            : bytes available from offset, the chunk is cut at length if
+	 *            no cut point is found before
+	 * @return length of the chunk starting at offset
+	 */
+	static int cut(byte[] data, int offset, int length) {
+		if (length <= MIN_SIZE)
+			return length;
+		int normalSize = Math.min(length, AVERAGE_SIZE);
+		int maxSize = Math.min(length, MAX_SIZE);
+
+		long fingerprint = 0;
+		int i = MIN_SIZE;
+		for (; i < normalSize; i++) {
+			fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xFF];
+			if ((fingerprint & MASK_SMALL) == 0)
+				return i + 1;
+		}
+		for (; i < maxSize; i++) {
+			fingerprint = (fingerprint << 1) + GEAR[data[offset + i] & 0xFF];
+			if ((fingerprint & MASK_LARGE) == 0)
+				return i + 1;
+		}
+		return maxSize;
+	}
+
+	/**
+	 * @param file
+	 * @return chunks of the file
+	 * @throws IOException
+	 */
+	public List<Chunk> chunk(File file) throws IOException {
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			chunk(inputStream, new IChunkHandler() {
+				@Override
+				public void chunkFound(Chunk chunk, byte[] data, int offset) {
+					chunks.add(chunk);
+				}
+			});
+		} finally {
+			inputStream.close();
+		}
+		return chunks;
+	}
+
+	/**
+	 * Cuts the stream in chunks, the handler gets every chunk with its bytes
+	 *
+	 * @param inputStream
+	 * @param handler
+	 * @return number of bytes read
+	 * @throws IOException
+	 */
+	public long chunk(InputStream inputStream, IChunkHandler handler)
+			throws IOException {
+		byte[] data = new byte[2 * MAX_SIZE];
+		int position = 0;
+		int end = 0;
+		boolean eof = false;
+		long total = 0;
+
+		while (true) {
+			if (end - position < MAX_SIZE && !eof) {
+				System.arraycopy(data, position, data, 0, end - position);
+				end -= position;
+				position = 0;
+				while (end < data.length) {
+					int count = inputStream.read(data, end, data.length - end);
+					if (count < 0) {
+						eof = true;
+						break;
+					}
+					end += count;
+				}
+			}
+			if (position == end)
+				return total;
+
+			int length = cut(data, position, end - position);
+			digest.update(data, position, length);
+			handler.chunkFound(new Chunk(digest.digest(), length), data,
+					position);
+			position += length;
+			total += length;
+		}
+	}
+}
@@ -0,0 +1,20 @@
+package common.chunk;
+
+import java.io.IOException;
+
+/**
+ * @author Ashish Pahlazani Receives the chunks found by FastCdcChunker, in
+ *         the order of the file
+ */
+public interface IChunkHandler {
+	/**
+	 * @param chunk
+	 * @param data
+	 *            : bytes of the chunk, only valid during the call
+	 * @param offset
+	 *            : position of the chunk in data
+	 * @throws IOException
+	 */
+	public void chunkFound(Chunk chunk, byte[] data, int offset)
+			throws IOException;
+}
@@ -0,0 +1,113 @@
+package common.delta;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * @author Ashish Pahlazani Rebuilds a file from the base file and a delta
+ *         written by DeltaEncoder. The result is checked against the length and
+ *         MD5 sent at the end of the delta, so a base file changed since its
+ *         signature was sent is detected instead of producing a wrong file.
+ */
+public class DeltaDecoder {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * @param base
+	 *            : copy from which the signature was computed
+	 * @param delta
+	 * @param out
+	 *            : receives the rebuilt file
+	 * @return length of the rebuilt file
+	 * @throws IOException
+	 *             if the delta is invalid or does not match the base
+	 */
+	public static long apply(File base, InputStream delta, OutputStream out)
+			throws IOException {
+		DataInputStream inputStream = new DataInputStream(delta);
+		byte version = inputStream.readByte();
+		if (version != DeltaEncoder.VERSION)
+			throw new IOException("Unsupported delta version : " + version);
+		int blockSize = inputStream.readInt();
+		long baseLength = inputStream.readLong();
+		if (blockSize <= 0)
+			throw new IOException("Invalid block size : " + blockSize);
+
+		RandomAccessFile baseFile = new RandomAccessFile(base, "r");
+		try {
+			if (baseFile.length() != baseLength)
+				throw new IOException("Base file changed, length "
+						+ baseFile.length() + " expected " + baseLength);
+
+			MessageDigest digest = FileSignature.newDigest();
+			byte[] buffer = new byte[BUFFER_SIZE];
+			long length = 0;
+			while (true) {
+				byte operation = inputStream.readByte();
+				switch (operation) {
+				case DeltaEncoder.OP_COPY: {
+					long position = (long) inputStream.readInt() * blockSize;
+					long count = (long) inputStream.readInt() * blockSize;
+					if (position < 0 || count <= 0 || position >= baseLength)
+						throw new IOException("Invalid block reference");
+					count = Math.min(count, baseLength - position);
+					baseFile.seek(position);
+					length += copy(baseFile, buffer, count, out, digest);
+					break;
+				}
+				case DeltaEncoder.OP_LITERAL: {
+					int count = inputStream.readInt();
+					if (count < 0)
+						throw new IOException("Invalid literal length : "
+								+ count);
+					while (count > 0) {
+						int chunk = Math.min(count, buffer.length);
+						inputStream.readFully(buffer, 0, chunk);
+						out.write(buffer, 0, chunk);
+						digest.update(buffer, 0, chunk);
+						count -= chunk;
+						length += chunk;
+					}
+					break;
+				}
+				case DeltaEncoder.OP_END: {
+					long expectedLength = inputStream.readLong();
+					byte[] expectedDigest = new byte[16];
+					inputStream.readFully(expectedDigest);
+					if (length != expectedLength
+							|| !Arrays.equals(digest.digest(), expectedDigest))
+						throw new IOException(
+								"Rebuilt file does not match the source");
+					out.flush();
+					return length;
+				}
+				default:
+					throw new IOException("Invalid delta operation : "
+							+ operation);
+				}
+			}
+		} finally {
+			baseFile.close();
+		}
+	}
+
+	private static long copy(RandomAccessFile baseFile, byte[] buffer,
+			long count, OutputStream out, MessageDigest digest)
+			throws IOException {
+		long remaining = count;
+		while (remaining > 0) {
+			int chunk = (int) Math.min(remaining, buffer.length);
+			baseFile.readFully(buffer, 0, chunk);
+			out.write(buffer, 0, chunk);
+			digest.update(buffer, 0, chunk);
+			remaining -= chunk;
+		}
+		return count;
+	}
+}
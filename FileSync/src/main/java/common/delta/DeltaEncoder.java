@@ -0,0 +1,240 @@
+package common.delta;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Ashish Pahlazani Writes the delta turning the copy described by a
+ *         FileSignature into the source file. A window of blockSize bytes is
+ *         moved over the source, at every offset its rolling checksum is
+ *         looked up in the signature and the strong hash is compared only if
+ *         the weak one matches. Matched blocks are sent as references, the
+ *         bytes in between as literals.
+ *
+ *         Format : version (1 byte), blockSize (4 bytes), length of the base
+ *         file (8 bytes), then operations :
+ *
+ *         COPY : 1, first block (4 bytes), block count (4 bytes)
+ *         LITERAL : 2, length (4 bytes), bytes
+ *         END : 0, length of the result (8 bytes), MD5 of the result (16 bytes)
+ */
+public class DeltaEncoder {
+	public static final byte VERSION = 1;
+
+	static final byte OP_END = 0;
+	static final byte OP_COPY = 1;
+	static final byte OP_LITERAL = 2;
+
+	// literals are flushed at this size, so the window buffer stays small
+	static final int MAX_LITERAL_LENGTH = 64 * 1024;
+
+	private FileSignature signature;
+	private int blockSize;
+	// first block of every weak checksum, the next ones are chained
+	private Map<Integer, Integer> firstBlocks;
+	private int[] nextBlocks;
+	// 16 bit tags of the weak checksums, to skip most lookups in the map
+	private boolean[] tags = new boolean[1 << 16];
+
+	private MessageDigest blockDigest = FileSignature.newDigest();
+	private DataOutputStream outputStream;
+	private long written;
+	private int pendingCopyBlock;
+	private int pendingCopyCount;
+
+	public DeltaEncoder(FileSignature signature) {
+		this.signature = signature;
+		this.blockSize = signature.getBlockSize();
+
+		// only full blocks are looked for in the window, the last block is
+		// compared with the end of the source
+		int blockCount = signature.getBlockCount();
+		if (blockCount > 0 && signature.getBlockLength(blockCount - 1) < blockSize)
+			blockCount--;
+		firstBlocks = new HashMap<Integer, Integer>(blockCount * 2);
+		nextBlocks = new int[blockCount];
+		for (int block = blockCount - 1; block >= 0; block--) {
+			int weakChecksum = signature.getWeakChecksum(block);
+			Integer next = firstBlocks.put(weakChecksum, block);
+			nextBlocks[block] = next == null ? -1 : next;
+			tags[tag(weakChecksum)] = true;
+		}
+	}
+
+	/**
+	 * @param source
+	 * @param out
+	 * @param maxLength
+	 *            : the encoding stops once the delta is longer
+	 * @return length of the delta, -1 if it is longer than maxLength
+	 * @throws IOException
+	 */
+	public long encode(File source, OutputStream out, long maxLength)
+			throws IOException {
+		InputStream inputStream = new FileInputStream(source);
+		try {
+			return encode(inputStream, out, maxLength);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	public long encode(InputStream inputStream, OutputStream out,
+			long maxLength) throws IOException {
+		this.outputStream = new DataOutputStream(out);
+		written = 0;
+		pendingCopyCount = 0;
+
+		outputStream.writeByte(VERSION);
+		outputStream.writeInt(blockSize);
+		outputStream.writeLong(signature.getFileLength());
+		written += 13;
+
+		MessageDigest fileDigest = FileSignature.newDigest();
+		RollingChecksum checksum = new RollingChecksum();
+		boolean checksumValid = false;
+		byte[] data = new byte[2 * blockSize + MAX_LITERAL_LENGTH];
+		// data[start, position) is the pending literal, the window starts at
+		// position, data is valid up to end
+		int start = 0;
+		int position = 0;
+		int end = 0;
+		boolean eof = false;
+		long sourceLength = 0;
+
+		while (true) {
+			if (end - position < blockSize && !eof) {
+				if (start > 0) {
+					System.arraycopy(data, start, data, 0, end - start);
+					position -= start;
+					end -= start;
+					start = 0;
+				}
+				while (end < data.length) {
+					int count = inputStream.read(data, end, data.length - end);
+					if (count < 0) {
+						eof = true;
+						break;
+					}
+					fileDigest.update(data, end, count);
+					sourceLength += count;
+					end += count;
+				}
+				continue;
+			}
+			if (end - position < blockSize)
+				break;
+
+			if (!checksumValid) {
+				checksum.reset(data, position, blockSize);
+				checksumValid = true;
+			}
+			int block = findBlock(checksum.getValue(), data, position);
+			if (block >= 0) {
+				writeLiteral(data, start, position - start);
+				writeCopy(block);
+				position += blockSize;
+				start = position;
+				checksumValid = false;
+			} else {
+				if (position - start >= MAX_LITERAL_LENGTH) {
+					writeLiteral(data, start, position - start);
+					start = position;
+				}
+				if (position + blockSize < end)
+					checksum.roll(data[position], data[position + blockSize]);
+				else
+					checksumValid = false;
+				position++;
+			}
+			if (written > maxLength)
+				return -1;
+		}
+
+		// the end of the source may be the last, shorter, block
+		int lastBlock = signature.getBlockCount() - 1;
+		int tailLength = end - position;
+		if (tailLength > 0 && lastBlock >= 0
+				&& signature.getBlockLength(lastBlock) == tailLength
+				&& signature.getWeakChecksum(lastBlock) == RollingChecksum.of(
+						data, position, tailLength)
+				&& signature.getStrongHash(lastBlock) == FileSignature
+						.strongHash(blockDigest, data, position, tailLength)) {
+			writeLiteral(data, start, position - start);
+			writeCopy(lastBlock);
+		} else {
+			writeLiteral(data, start, end - start);
+		}
+		flushCopy();
+
+		outputStream.writeByte(OP_END);
+		outputStream.writeLong(sourceLength);
+		outputStream.write(fileDigest.digest());
+		outputStream.flush();
+		written += 25;
+		return written > maxLength ? -1 : written;
+	}
+
+	/**
+	 * @return block with the same content as the window, -1 if none
+	 */
+	private int findBlock(int weakChecksum, byte[] data, int position) {
+		if (!tags[tag(weakChecksum)])
+			return -1;
+		Integer block = firstBlocks.get(weakChecksum);
+		if (block == null)
+			return -1;
+
+		long strongHash = FileSignature.strongHash(blockDigest, data,
+				position, blockSize);
+		for (int b = block; b >= 0; b = nextBlocks[b])
+			if (signature.getStrongHash(b) == strongHash)
+				return b;
+		return -1;
+	}
+
+	private static int tag(int weakChecksum) {
+		return (weakChecksum ^ (weakChecksum >>> 16)) & 0xFFFF;
+	}
+
+	/**
+	 * Consecutive blocks are sent as one COPY
+	 */
+	private void writeCopy(int block) throws IOException {
+		if (pendingCopyCount > 0 && block == pendingCopyBlock + pendingCopyCount) {
+			pendingCopyCount++;
+			return;
+		}
+		flushCopy();
+		pendingCopyBlock = block;
+		pendingCopyCount = 1;
+	}
+
+	private void flushCopy() throws IOException {
+		if (pendingCopyCount == 0)
+			return;
+		outputStream.writeByte(OP_COPY);
+		outputStream.writeInt(pendingCopyBlock);
+		outputStream.writeInt(pendingCopyCount);
+		written += 9;
+		pendingCopyCount = 0;
+	}
+
+	private void writeLiteral(byte[] data, int offset, int length)
+			throws IOException {
+		if (length == 0)
+			return;
+		flushCopy();
+		outputStream.writeByte(OP_LITERAL);
+		outputStream.writeInt(length);
+		outputStream.write(data, offset, length);
+		written += 5 + length;
+	}
+}
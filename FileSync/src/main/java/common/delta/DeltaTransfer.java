@@ -0,0 +1,157 @@
+package common.delta;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+import common.StagedFile;
+
+/**
+ * @author Ashish Pahlazani Decides when a modified file is sent as a delta.
+ *         The receiver of a MODIFY sends the signature of its copy with the
+ *         file request if the copy is at least minFileSize bytes long. The
+ *         sender then sends a delta instead of the file, unless the delta is
+ *         longer than maxDeltaRatio of the file. Deltas are written to temp
+ *         files, so they are sent and received like any other file.
+ */
+public class DeltaTransfer {
+	private static final Logger logger = Logger.getLogger(DeltaTransfer.class);
+
+	private long minFileSize;
+	private double maxDeltaRatio;
+
+	/**
+	 * @param minFileSize
+	 *            : smaller files are always sent in full, -1 disables delta
+	 *            transfers
+	 * @param maxDeltaRatio
+	 *            : the file is sent in full if the delta is longer than this
+	 *            part of the file
+	 */
+	public DeltaTransfer(long minFileSize, double maxDeltaRatio) {
+		this.minFileSize = minFileSize;
+		this.maxDeltaRatio = maxDeltaRatio;
+	}
+
+	public boolean isEnabled() {
+		return minFileSize >= 0;
+	}
+
+	/**
+	 * @param file
+	 *            : copy held by the receiver
+	 * @return signature to send with the file request, null if the file must
+	 *         be sent in full
+	 */
+	public FileSignature createSignature(File file) {
+		if (!isEnabled() || !file.isFile() || file.length() < minFileSize)
+			return null;
+		try {
+			FileSignature signature = FileSignature.compute(file);
+			if (logger.isDebugEnabled())
+				logger.debug("signature of " + file + " : " + signature);
+			return signature;
+		} catch (IOException e) {
+			logger.error("Exception while computing signature of " + file
+					+ " : " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * @param source
+	 *            : file to send
+	 * @param signature
+	 *            : signature sent by the receiver, may be null
+	 * @return temp file holding the delta, to be deleted by the caller. null
+	 *         if the file must be sent in full
+	 */
+	public File createDelta(File source, FileSignature signature) {
+		if (!isEnabled() || signature == null
+				|| source.length() < minFileSize)
+			return null;
+
+		long maxLength = (long) (source.length() * maxDeltaRatio);
+		File deltaFile = newTempFile();
+		try {
+			long length;
+			InputStream inputStream = new BufferedInputStream(
+					new FileInputStream(source), 64 * 1024);
+			OutputStream outputStream = new BufferedOutputStream(
+					new FileOutputStream(deltaFile), 64 * 1024);
+			try {
+				length = new DeltaEncoder(signature).encode(inputStream,
+						outputStream, maxLength);
+			} finally {
+				inputStream.close();
+				outputStream.close();
+			}
+
+			if (logger.isInfoEnabled())
+				logger.info("delta of " + source + " : " + length + " of "
+						+ source.length() + " bytes"
+						+ (length < 0 ? ", sending full file" : ""));
+			if (length >= 0)
+				return deltaFile;
+		} catch (IOException e) {
+			logger.error("Exception while computing delta of " + source
+					+ " : " + e);
+		}
+		deltaFile.delete();
+		return null;
+	}
+
+	/**
+	 * Rebuilds target from its current content and the delta, target is
+	 * replaced only if the rebuilt file matches the source
+	 *
+	 * @param target
+	 * @param deltaFile
+	 * @throws IOException
+	 */
+	public static void applyDelta(File target, File deltaFile)
+			throws IOException {
+		StagedFile stagedFile = new StagedFile(target);
+		boolean published = false;
+		try {
+			OutputStream outputStream = new BufferedOutputStream(
+					Channels.newOutputStream(stagedFile.open(-1)), 64 * 1024);
+			InputStream inputStream = new BufferedInputStream(
+					new FileInputStream(deltaFile), 64 * 1024);
+			long length;
+			try {
+				length = DeltaDecoder.apply(target, inputStream, outputStream);
+			} finally {
+				inputStream.close();
+			}
+			stagedFile.publish(length);
+			published = true;
+
+			if (logger.isInfoEnabled())
+				logger.info("delta of " + deltaFile.length()
+						+ " bytes applied, file = " + target + " length = "
+						+ length);
+		} finally {
+			if (!published)
+				stagedFile.discard();
+		}
+	}
+
+	/**
+	 * @return path, not yet created, of a temp file for a delta being sent or
+	 *         received
+	 */
+	public static File newTempFile() {
+		return new File(System.getProperty("java.io.tmpdir"), "filesync-delta-"
+				+ UUID.randomUUID() + ".bin");
+	}
+}
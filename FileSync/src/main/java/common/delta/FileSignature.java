@@ -0,0 +1,150 @@
+package common.delta;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * @author Ashish Pahlazani Signature of the copy of a file held by the
+ *         receiver of a transfer. The file is cut in blocks of blockSize bytes,
+ *         the last block may be shorter, and every block has a weak rolling
+ *         checksum and a strong hash (first 8 bytes of its MD5). The sender
+ *         looks for these blocks in its own copy and sends only what the
+ *         receiver does not have.
+ */
+public class FileSignature {
+	public static final int MIN_BLOCK_SIZE = 2 * 1024;
+	public static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+	private int blockSize;
+	private long fileLength;
+	private int[] weakChecksums;
+	private long[] strongHashes;
+
+	public FileSignature(int blockSize, long fileLength, int[] weakChecksums,
+			long[] strongHashes) {
+		this.blockSize = blockSize;
+		this.fileLength = fileLength;
+		this.weakChecksums = weakChecksums;
+		this.strongHashes = strongHashes;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	public int getBlockCount() {
+		return weakChecksums.length;
+	}
+
+	public int getWeakChecksum(int block) {
+		return weakChecksums[block];
+	}
+
+	public long getStrongHash(int block) {
+		return strongHashes[block];
+	}
+
+	/**
+	 * @param block
+	 * @return number of bytes of the block, only the last block may be
+	 *         shorter than blockSize
+	 */
+	public int getBlockLength(int block) {
+		return (int) Math.min(blockSize, fileLength - (long) block * blockSize);
+	}
+
+	/**
+	 * Square root of the file length, like rsync, so the signature and the
+	 * number of literal bytes sent for a change both grow slowly with the
+	 * file
+	 *
+	 * @param fileLength
+	 * @return block size for a file of that length
+	 */
+	public static int blockSizeFor(long fileLength) {
+		long blockSize = (long) Math.sqrt(fileLength) & ~1023L;
+		return (int) Math.max(MIN_BLOCK_SIZE,
+				Math.min(MAX_BLOCK_SIZE, blockSize));
+	}
+
+	/**
+	 * @param file
+	 * @return signature of the file, with the block size given by
+	 *         blockSizeFor
+	 * @throws IOException
+	 */
+	public static FileSignature compute(File file) throws IOException {
+		return compute(file, blockSizeFor(file.length()));
+	}
+
+	public static FileSignature compute(File file, int blockSize)
+			throws IOException {
+		long fileLength = file.length();
+		int blockCount = (int) ((fileLength + blockSize - 1) / blockSize);
+		int[] weakChecksums = new int[blockCount];
+		long[] strongHashes = new long[blockCount];
+
+		MessageDigest digest = newDigest();
+		byte[] block = new byte[blockSize];
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			for (int i = 0; i < blockCount; i++) {
+				int length = (int) Math.min(blockSize, fileLength - (long) i
+						* blockSize);
+				readFully(inputStream, block, length);
+				weakChecksums[i] = RollingChecksum.of(block, 0, length);
+				strongHashes[i] = strongHash(digest, block, 0, length);
+			}
+		} finally {
+			inputStream.close();
+		}
+		return new FileSignature(blockSize, fileLength, weakChecksums,
+				strongHashes);
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not available", e);
+		}
+	}
+
+	/**
+	 * @return first 8 bytes of the MD5 of the bytes
+	 */
+	static long strongHash(MessageDigest digest, byte[] data, int offset,
+			int length) {
+		digest.update(data, offset, length);
+		byte[] hash = digest.digest();
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value = (value << 8) | (hash[i] & 0xFF);
+		return value;
+	}
+
+	private static void readFully(InputStream inputStream, byte[] buffer,
+			int length) throws IOException {
+		int position = 0;
+		while (position < length) {
+			int count = inputStream.read(buffer, position, length - position);
+			if (count < 0)
+				throw new IOException("File changed while computing signature");
+			position += count;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "FileSignature [blockSize=" + blockSize + ", fileLength="
+				+ fileLength + ", blocks=" + getBlockCount() + "]";
+	}
+}
@@ -0,0 +1,60 @@
+package common.delta;
+
+/**
+ * @author Ashish Pahlazani Weak checksum of rsync. Two 16 bit sums over a
+ *         window of bytes, the window can be moved by one byte in constant
+ *         time, so a block can be looked for at every offset of a file.
+ */
+public class RollingChecksum {
+	private int a;
+	private int b;
+	private int length;
+
+	/**
+	 * Computes the checksum of a new window
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 */
+	public void reset(byte[] data, int offset, int length) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < length; i++) {
+			a += data[offset + i] & 0xFF;
+			b += (length - i) * (data[offset + i] & 0xFF);
+		}
+		this.a = a & 0xFFFF;
+		this.b = b & 0xFFFF;
+		this.length = length;
+	}
+
+	/**
+	 * Moves the window by one byte
+	 *
+	 * @param removed
+	 *            : first byte of the window
+	 * @param added
+	 *            : byte following the window
+	 */
+	public void roll(byte removed, byte added) {
+		a = (a - (removed & 0xFF) + (added & 0xFF)) & 0xFFFF;
+		b = (b - length * (removed & 0xFF) + a) & 0xFFFF;
+	}
+
+	public int getValue() {
+		return a | (b << 16);
+	}
+
+	/**
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return checksum of the bytes
+	 */
+	public static int of(byte[] data, int offset, int length) {
+		RollingChecksum checksum = new RollingChecksum();
+		checksum.reset(data, offset, length);
+		return checksum.getValue();
+	}
+}
@@ -0,0 +1,458 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import common.Actions;
+import common.DigestTree;
+import common.Message;
+
+/**
+ * @author Ashish Pahlazani Ordered list of the changes published by the
+ *         server, read by the clients in PULL mode.
+ *
+ *         A change is recorded when it becomes visible to the other clients,
+ *         i.e. when the file is received or deleted, and gets a change
+ *         revision taken from the global revision number at that time. The
+ *         revision of the file itself is reserved earlier, when the change is
+ *         accepted, so files uploaded concurrently could otherwise appear
+ *         after a client has read past their revision.
+ *
+ *         Only the last change of each path is kept, deletions included, so a
+ *         client that was offline gets one entry per changed path whatever the
+ *         number of changes it missed. Changes are returned in pages of
+ *         pageSize entries, a client which is up to date can wait for the
+ *         next change instead of polling (long-poll).
+ *
+ *         Changes are saved in the revision journal before the waiting
+ *         clients are answered.
+ *
+ *         The last changes are also kept in a digest tree, deletions as
+ *         tombstones, which the clients compare with theirs on reconnect. The
+ *         tree is saved with the change revision it is up to date with, when
+ *         it is loaded only the changes recorded after it are put in it.
+ */
+public class ChangeFeed {
+	private static final Logger logger = Logger.getLogger(ChangeFeed.class);
+
+	/**
+	 * Last change of a path, saved with the revision numbers
+	 */
+	public static class Change implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		String path;
+		Actions action;
+		long revisionNumber;
+		long changeRevision;
+
+		Change(String path, Actions action, long revisionNumber,
+				long changeRevision) {
+			this.path = path;
+			this.action = action;
+			this.revisionNumber = revisionNumber;
+			this.changeRevision = changeRevision;
+		}
+	}
+
+	/**
+	 * Receives the changes asked for with getChanges
+	 */
+	public interface IChangesListener {
+		/**
+		 * @param changes
+		 *            : CHANGES message
+		 */
+		public void changesAvailable(Message changes);
+	}
+
+	private static class Waiter {
+		long afterRevision;
+		IChangesListener listener;
+		ScheduledFuture<?> timeout;
+
+		Waiter(long afterRevision, IChangesListener listener) {
+			this.afterRevision = afterRevision;
+			this.listener = listener;
+		}
+	}
+
+	private AtomicLong revisionCounter;
+	private int pageSize;
+	private RevisionJournal revisionJournal;
+	private TreeMap<Long, Change> changesByRevision = new TreeMap<Long, Change>();
+	private Map<String, Change> changesByPath = new HashMap<String, Change>();
+	private List<Waiter> waiters = new ArrayList<Waiter>();
+	private DigestTree digestTree = new DigestTree(File.separatorChar);
+	// changes up to this revision are already in the digest tree
+	private long digestTreeRevision;
+	private ScheduledExecutorService timeoutExecutor = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "change-feed-timeout");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * @param revisionCounter
+	 *            : global revision number, change revisions are taken from it
+	 * @param pageSize
+	 *            : maximum number of changes returned at once
+	 * @param revisionJournal
+	 *            : journal in which the changes are saved
+	 */
+	public ChangeFeed(AtomicLong revisionCounter, int pageSize,
+			RevisionJournal revisionJournal) {
+		this.revisionCounter = revisionCounter;
+		this.pageSize = pageSize;
+		this.revisionJournal = revisionJournal;
+	}
+
+	/**
+	 * Loads the digest tree saved by saveDigestTree, to be called before the
+	 * changes are loaded. The tree is built from the changes if the file does
+	 * not exist or can not be read.
+	 *
+	 * @param file
+	 * @return true if the tree was loaded
+	 */
+	synchronized boolean loadDigestTree(File file) {
+		if (!file.exists())
+			return false;
+		try {
+			digestTreeRevision = digestTree.load(file);
+			if (logger.isInfoEnabled())
+				logger.info("digest tree loaded, paths = " + digestTree.size()
+						+ " revision = " + digestTreeRevision);
+			return true;
+		} catch (IOException e) {
+			logger.error("Exception while loading digest tree, rebuilding it : "
+					+ e);
+			return false;
+		}
+	}
+
+	/**
+	 * Rebuilds the digest tree if it was saved after the last change loaded,
+	 * i.e. with another journal
+	 */
+	synchronized void checkDigestTree() {
+		long lastRevision = changesByRevision.isEmpty() ? 0 : changesByRevision
+				.lastKey();
+		if (digestTreeRevision <= lastRevision)
+			return;
+		logger.error("digest tree saved at revision " + digestTreeRevision
+				+ " after the last change " + lastRevision + ", rebuilding it");
+		digestTree = new DigestTree(File.separatorChar);
+		digestTreeRevision = 0;
+		for (Change change : changesByRevision.values())
+			putInDigestTree(change);
+	}
+
+	/**
+	 * Saves the digest tree with the revision of the last change recorded,
+	 * changes are not recorded meanwhile
+	 *
+	 * @param file
+	 * @throws IOException
+	 */
+	synchronized void saveDigestTree(File file) throws IOException {
+		long start = System.currentTimeMillis();
+		digestTree.save(file, changesByRevision.isEmpty() ? 0
+				: changesByRevision.lastKey());
+		if (logger.isInfoEnabled())
+			logger.info("digest tree saved in "
+					+ (System.currentTimeMillis() - start) + " ms, paths = "
+					+ digestTree.size());
+	}
+
+	/**
+	 * Answers the comparison of the digest tree of a client with this one
+	 *
+	 * @param request
+	 *            : GET_DIGESTS with the path of a folder, the digest of the
+	 *            client for it, and the name of the last child already listed
+	 *            as text for the next pages of a folder
+	 * @return DIGESTS message for the folder, without entries if the digests
+	 *         are the same. Otherwise its entries are the children of the
+	 *         folder : DIGESTS with the digest of a subfolder, or the last
+	 *         change of a file. Its text is set if more children are to be
+	 *         asked for.
+	 */
+	public Message getDigests(Message request) {
+		final List<Message> entries = new ArrayList<Message>();
+		String folderPath = request.getPath() != null ? request.getPath() : "";
+		String lastName = null;
+		synchronized (this) {
+			if (request.getText() != null
+					|| digestTree.getDigest(folderPath) != request.getDigest())
+				lastName = digestTree.visitChildren(folderPath,
+						request.getText(), pageSize,
+						new DigestTree.IChildVisitor() {
+							@Override
+							public void visitFolder(String path, long digest) {
+								entries.add(new Message(Actions.DIGESTS, path)
+										.setDigest(digest));
+							}
+
+							@Override
+							public void visitFile(String path,
+									long revisionNumber, boolean deleted) {
+								entries.add(new Message(deleted ? Actions.DELETE
+										: Actions.MODIFY, path, revisionNumber));
+							}
+						});
+		}
+		return new Message(Actions.DIGESTS, folderPath).setEntries(entries)
+				.setText(lastName);
+	}
+
+	/**
+	 * Loads the changes saved by saveChanges
+	 */
+	synchronized void load(List<Change> changes) {
+		for (Change change : changes)
+			put(change);
+		if (logger.isInfoEnabled())
+			logger.info("change feed loaded, paths = " + changesByPath.size());
+	}
+
+	/**
+	 * Puts a change replayed from the revision journal
+	 */
+	synchronized void restore(Change change) {
+		put(change);
+	}
+
+	/**
+	 * Builds the feed from the revision numbers of the files when no feed was
+	 * saved, the revision of a file is used as its change revision
+	 *
+	 * @param filesStatus
+	 *            : revision number by path
+	 * @param rootFolder
+	 *            : files which no longer exist are recorded as deleted
+	 */
+	synchronized void rebuild(Map<String, Long> filesStatus, File rootFolder) {
+		for (Map.Entry<String, Long> entry : filesStatus.entrySet()) {
+			Actions action = new File(rootFolder, entry.getKey()).exists() ? Actions.MODIFY
+					: Actions.DELETE;
+			put(new Change(entry.getKey(), action, entry.getValue(),
+					entry.getValue()));
+		}
+		if (logger.isInfoEnabled())
+			logger.info("change feed rebuilt, paths = " + changesByPath.size());
+	}
+
+	/**
+	 * @return the last change of every path, to be saved
+	 */
+	synchronized List<Change> saveChanges() {
+		return new ArrayList<Change>(changesByRevision.values());
+	}
+
+	/**
+	 * Records a change which is now visible to the other clients, the clients
+	 * waiting for changes are answered once it is in the revision journal. If
+	 * the journal fails they keep waiting, a client is not given a change
+	 * revision which may be reused after a restart
+	 *
+	 * @param change
+	 *            : ADD, MODIFY or DELETE with the revision of the file
+	 * @throws IOException
+	 *             if the change could not be saved, it stays in the feed
+	 */
+	public void record(Message change) throws IOException {
+		List<Waiter> answered = null;
+		long sequence;
+		synchronized (this) {
+			Change recorded = new Change(change.getPath(), change.getAction(),
+					change.getRevisionNumber(),
+					revisionCounter.incrementAndGet());
+			put(recorded);
+			sequence = revisionJournal.appendChange(recorded);
+			if (!waiters.isEmpty()) {
+				answered = waiters;
+				waiters = new ArrayList<Waiter>();
+			}
+		}
+		try {
+			revisionJournal.sync(sequence);
+		} catch (IOException e) {
+			if (answered != null)
+				restoreWaiters(answered);
+			throw e;
+		}
+		if (answered == null)
+			return;
+		for (Waiter waiter : answered) {
+			if (waiter.timeout != null)
+				waiter.timeout.cancel(false);
+			waiter.listener.changesAvailable(getPage(waiter.afterRevision));
+		}
+	}
+
+	/**
+	 * Puts back the waiters of a change which could not be saved, the ones
+	 * which timed out meanwhile get the answer of their timeout
+	 */
+	private void restoreWaiters(List<Waiter> restored) {
+		List<Waiter> timedOut = new ArrayList<Waiter>();
+		synchronized (this) {
+			for (Waiter waiter : restored) {
+				if (waiter.timeout != null && waiter.timeout.isDone())
+					timedOut.add(waiter);
+				else
+					waiters.add(waiter);
+			}
+		}
+		for (Waiter waiter : timedOut)
+			waiter.listener.changesAvailable(getPage(waiter.afterRevision));
+	}
+
+	/**
+	 * Answers with the changes recorded after afterRevision. If there is none
+	 * the answer is sent once a change is recorded, or with no change after
+	 * waitMillis.
+	 *
+	 * @param afterRevision
+	 *            : change revision of the last change read by the client
+	 * @param waitMillis
+	 *            : 0 to answer at once
+	 * @param listener
+	 */
+	public void getChanges(long afterRevision, long waitMillis,
+			IChangesListener listener) {
+		Message page;
+		synchronized (this) {
+			page = getPage(afterRevision);
+			if (page.getEntries().isEmpty() && waitMillis > 0) {
+				final Waiter waiter = new Waiter(afterRevision, listener);
+				waiters.add(waiter);
+				waiter.timeout = timeoutExecutor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						if (removeWaiter(waiter))
+							waiter.listener.changesAvailable(getPage(waiter.afterRevision));
+					}
+				}, waitMillis, TimeUnit.MILLISECONDS);
+				return;
+			}
+		}
+		listener.changesAvailable(page);
+	}
+
+	/**
+	 * Forgets the requests of a client which disconnected
+	 *
+	 * @param listener
+	 */
+	public synchronized void cancel(IChangesListener listener) {
+		for (Iterator<Waiter> it = waiters.iterator(); it.hasNext();) {
+			Waiter waiter = it.next();
+			if (waiter.listener == listener) {
+				it.remove();
+				if (waiter.timeout != null)
+					waiter.timeout.cancel(false);
+			}
+		}
+	}
+
+	public void shutdown() {
+		timeoutExecutor.shutdownNow();
+	}
+
+	/**
+	 * @return CHANGES message with at most pageSize changes recorded after
+	 *         afterRevision, its revision number is the change revision to ask
+	 *         from next
+	 */
+	synchronized Message getPage(long afterRevision) {
+		List<Message> entries = new ArrayList<Message>();
+		long lastRevision = afterRevision;
+		for (Change change : changesByRevision.tailMap(afterRevision, false)
+				.values()) {
+			if (entries.size() == pageSize)
+				break;
+			entries.add(new Message(change.action, change.path,
+					change.revisionNumber));
+			lastRevision = change.changeRevision;
+		}
+		return new Message(Actions.CHANGES, null, lastRevision)
+				.setEntries(entries);
+	}
+
+	/**
+	 * @return change revision of the last recorded change, a snapshot taken
+	 *         at this revision is followed by the changes recorded after it
+	 */
+	public synchronized long getLastChangeRevision() {
+		return revisionCounter.get();
+	}
+
+	/**
+	 * Reads the changes of a snapshot page by page while new changes are
+	 * recorded. A path changed after the snapshot revision leaves the range,
+	 * its new change is read after the snapshot.
+	 *
+	 * @param afterRevision
+	 *            : revision of the previous page, 0 for the first one
+	 * @param snapshotRevision
+	 *            : see getLastChangeRevision
+	 * @return CHANGES message with at most pageSize changes recorded in
+	 *         (afterRevision, snapshotRevision], its revision number is the
+	 *         revision to ask from next, snapshotRevision for the last page
+	 */
+	synchronized Message getSnapshotPage(long afterRevision,
+			long snapshotRevision) {
+		List<Message> entries = new ArrayList<Message>();
+		long lastRevision = snapshotRevision;
+		for (Change change : changesByRevision.subMap(afterRevision, false,
+				snapshotRevision, true).values()) {
+			if (entries.size() == pageSize) {
+				lastRevision = change.changeRevision - 1;
+				break;
+			}
+			entries.add(new Message(change.action, change.path,
+					change.revisionNumber));
+		}
+		return new Message(Actions.CHANGES, null, lastRevision)
+				.setEntries(entries);
+	}
+
+	private synchronized boolean removeWaiter(Waiter waiter) {
+		return waiters.remove(waiter);
+	}
+
+	private void put(Change change) {
+		Change previous = changesByPath.put(change.path, change);
+		if (previous != null)
+			changesByRevision.remove(previous.changeRevision);
+		changesByRevision.put(change.changeRevision, change);
+		if (change.changeRevision > digestTreeRevision)
+			putInDigestTree(change);
+	}
+
+	private void putInDigestTree(Change change) {
+		digestTree.put(change.path, change.revisionNumber,
+				change.action == Actions.DELETE);
+	}
+}
@@ -0,0 +1,418 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import common.StagedFile;
+import common.chunk.Chunk;
+import common.chunk.FastCdcChunker;
+import common.chunk.IChunkHandler;
+
+/**
+ * @author Ashish Pahlazani Content-addressed store of the chunks of the files
+ *         of the server, used with STORAGE_MODE=CHUNKED. Every chunk is stored
+ *         once, in a file named after its hash, and the file of a path under
+ *         the root folder is replaced by a manifest listing its chunks. A
+ *         path which is not a manifest is read as a plain file, so a
+ *         repository can be switched to CHUNKED mode without conversion.
+ *
+ *         Manifest format : magic (4 bytes), version (1 byte), file length (8
+ *         bytes), chunk count (4 bytes), then the hash (32 bytes) and length
+ *         (4 bytes) of each chunk
+ */
+public class ChunkStore {
+	private static final Logger logger = Logger.getLogger(ChunkStore.class);
+
+	private static final int MANIFEST_MAGIC = 0x4653434D;
+	private static final byte MANIFEST_VERSION = 1;
+	private static final int MANIFEST_HEADER_LENGTH = 17;
+	private static final int MANIFEST_ENTRY_LENGTH = Chunk.HASH_LENGTH + 4;
+	private static final String TEMP_FOLDER = "tmp";
+
+	private File folder;
+	private File tempFolder;
+	private AtomicLong storedChunkCount = new AtomicLong();
+	private AtomicLong storedBytes = new AtomicLong();
+	private AtomicLong deduplicatedBytes = new AtomicLong();
+
+	/**
+	 * @param folder
+	 *            : created if it does not exist
+	 * @throws IOException
+	 */
+	public ChunkStore(File folder) throws IOException {
+		this.folder = folder;
+		this.tempFolder = new File(folder, TEMP_FOLDER);
+		if (!tempFolder.isDirectory() && !tempFolder.mkdirs())
+			throw new IOException("Couldn't create dir: " + tempFolder);
+	}
+
+	public boolean contains(Chunk chunk) {
+		return fileOf(chunk).exists();
+	}
+
+	/**
+	 * @param chunks
+	 *            : chunks of a file
+	 * @return chunks not in the store, each one once
+	 */
+	public List<Chunk> getMissingChunks(List<Chunk> chunks) {
+		Set<Chunk> missingChunks = new LinkedHashSet<Chunk>();
+		for (Chunk chunk : chunks)
+			if (!contains(chunk))
+				missingChunks.add(chunk);
+		return new ArrayList<Chunk>(missingChunks);
+	}
+
+	/**
+	 * Stores the chunk if it is not in the store yet
+	 *
+	 * @param chunk
+	 * @param data
+	 * @param offset
+	 * @return true if the chunk was added
+	 * @throws IOException
+	 */
+	public boolean put(Chunk chunk, byte[] data, int offset)
+			throws IOException {
+		File chunkFile = fileOf(chunk);
+		if (chunkFile.exists()) {
+			deduplicatedBytes.addAndGet(chunk.getLength());
+			return false;
+		}
+
+		File parentFolder = chunkFile.getParentFile();
+		if (!parentFolder.isDirectory() && !parentFolder.mkdirs()
+				&& !parentFolder.isDirectory())
+			throw new IOException("Couldn't create dir: " + parentFolder);
+		File tempFile = newTempFile();
+		OutputStream outputStream = new FileOutputStream(tempFile);
+		try {
+			outputStream.write(data, offset, chunk.getLength());
+		} finally {
+			outputStream.close();
+		}
+		// a chunk stored by another client at the same time has the same
+		// bytes, replacing it is harmless
+		try {
+			Files.move(tempFile.toPath(), chunkFile.toPath(),
+					StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile.toPath(), chunkFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+		storedChunkCount.incrementAndGet();
+		storedBytes.addAndGet(chunk.getLength());
+		return true;
+	}
+
+	/**
+	 * Stores the chunks sent by a client, one after the other in dataFile.
+	 * Every chunk is checked against its hash before it is stored.
+	 *
+	 * @param chunks
+	 * @param dataFile
+	 * @throws IOException
+	 *             if the data does not match the chunks
+	 */
+	public void putAll(List<Chunk> chunks, File dataFile) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] data = new byte[FastCdcChunker.MAX_SIZE];
+		DataInputStream inputStream = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(dataFile),
+						FastCdcChunker.MAX_SIZE));
+		try {
+			for (Chunk chunk : chunks) {
+				if (chunk.getLength() > data.length)
+					throw new IOException("Chunk too long : " + chunk);
+				inputStream.readFully(data, 0, chunk.getLength());
+				digest.update(data, 0, chunk.getLength());
+				if (!Arrays.equals(digest.digest(), chunk.getHash()))
+					throw new IOException("Chunk does not match its hash : "
+							+ chunk);
+				put(chunk, data, 0);
+			}
+			if (inputStream.read() >= 0)
+				throw new IOException("Unexpected data after the chunks");
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * Cuts the file in chunks, stores them and writes the manifest
+	 *
+	 * @param source
+	 * @param target
+	 *            : path replaced by the manifest, may be the source
+	 * @return chunks of the file
+	 * @throws IOException
+	 */
+	public List<Chunk> ingest(File source, File target) throws IOException {
+		List<Chunk> chunks = ingest(source);
+		writeManifest(target, chunks);
+		return chunks;
+	}
+
+	/**
+	 * Cuts the file in chunks and stores them
+	 *
+	 * @param source
+	 * @return chunks of the file
+	 * @throws IOException
+	 */
+	public List<Chunk> ingest(File source) throws IOException {
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+		InputStream inputStream = new FileInputStream(source);
+		try {
+			new FastCdcChunker().chunk(inputStream, new IChunkHandler() {
+				@Override
+				public void chunkFound(Chunk chunk, byte[] data, int offset)
+						throws IOException {
+					put(chunk, data, offset);
+					chunks.add(chunk);
+				}
+			});
+		} finally {
+			inputStream.close();
+		}
+		return chunks;
+	}
+
+	/**
+	 * Replaces target with the manifest of the chunks, all the chunks must be
+	 * in the store
+	 *
+	 * @param target
+	 * @param chunks
+	 * @throws IOException
+	 */
+	public void writeManifest(File target, List<Chunk> chunks)
+			throws IOException {
+		long fileLength = 0;
+		for (Chunk chunk : chunks) {
+			if (!contains(chunk))
+				throw new IOException("Chunk missing in store : " + chunk);
+			fileLength += chunk.getLength();
+		}
+
+		StagedFile stagedFile = new StagedFile(target);
+		boolean published = false;
+		try {
+			DataOutputStream outputStream = new DataOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(stagedFile
+							.open(-1))));
+			outputStream.writeInt(MANIFEST_MAGIC);
+			outputStream.writeByte(MANIFEST_VERSION);
+			outputStream.writeLong(fileLength);
+			outputStream.writeInt(chunks.size());
+			for (Chunk chunk : chunks) {
+				outputStream.write(chunk.getHash());
+				outputStream.writeInt(chunk.getLength());
+			}
+			outputStream.flush();
+			stagedFile.publish(MANIFEST_HEADER_LENGTH + (long) chunks.size()
+					* MANIFEST_ENTRY_LENGTH);
+			published = true;
+		} finally {
+			if (!published)
+				stagedFile.discard();
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug("manifest written " + target + " chunks = "
+					+ chunks.size() + " length = " + fileLength);
+	}
+
+	/**
+	 * @param file
+	 * @return chunks listed in the manifest, null if the file is not a
+	 *         manifest
+	 * @throws IOException
+	 */
+	public static List<Chunk> readManifest(File file) throws IOException {
+		long length = file.length();
+		if (length < MANIFEST_HEADER_LENGTH
+				|| (length - MANIFEST_HEADER_LENGTH) % MANIFEST_ENTRY_LENGTH != 0)
+			return null;
+
+		DataInputStream inputStream = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (inputStream.readInt() != MANIFEST_MAGIC
+					|| inputStream.readByte() != MANIFEST_VERSION)
+				return null;
+			inputStream.readLong();
+			int count = inputStream.readInt();
+			if (count != (length - MANIFEST_HEADER_LENGTH)
+					/ MANIFEST_ENTRY_LENGTH)
+				return null;
+
+			List<Chunk> chunks = new ArrayList<Chunk>(count);
+			for (int i = 0; i < count; i++) {
+				byte[] hash = new byte[Chunk.HASH_LENGTH];
+				inputStream.readFully(hash);
+				chunks.add(new Chunk(hash, inputStream.readInt()));
+			}
+			return chunks;
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	/**
+	 * @param file
+	 *            : file of a path under the root folder
+	 * @return file holding the content of the path, a new temp file if the
+	 *         path is a manifest, the file itself otherwise
+	 * @throws IOException
+	 */
+	public File materialize(File file) throws IOException {
+		List<Chunk> chunks = readManifest(file);
+		if (chunks == null)
+			return file;
+
+		File tempFile = newTempFile();
+		OutputStream outputStream = new FileOutputStream(tempFile);
+		try {
+			for (Chunk chunk : chunks)
+				Files.copy(fileOf(chunk).toPath(), outputStream);
+		} catch (IOException e) {
+			outputStream.close();
+			tempFile.delete();
+			throw e;
+		}
+		outputStream.close();
+		return tempFile;
+	}
+
+	/**
+	 * Deletes the chunks not listed in any manifest under the root folder,
+	 * must not run while files are received
+	 *
+	 * @param rootFolder
+	 * @return number of chunks deleted
+	 */
+	public int collectGarbage(File rootFolder) {
+		Set<String> usedChunks = new HashSet<String>();
+		markUsedChunks(rootFolder, usedChunks);
+
+		int deletedCount = 0;
+		File[] prefixFolders = folder.listFiles();
+		for (File prefixFolder : prefixFolders == null ? new File[0]
+				: prefixFolders) {
+			if (prefixFolder.getName().equals(TEMP_FOLDER)) {
+				// left by transfers interrupted by a shutdown
+				for (File tempFile : listFiles(prefixFolder))
+					tempFile.delete();
+				continue;
+			}
+			for (File chunkFile : listFiles(prefixFolder)) {
+				if (!usedChunks.contains(chunkFile.getName())
+						&& chunkFile.delete())
+					deletedCount++;
+			}
+		}
+
+		if (logger.isInfoEnabled())
+			logger.info("chunk store garbage collected, chunks in use = "
+					+ usedChunks.size() + " deleted = " + deletedCount);
+		return deletedCount;
+	}
+
+	private void markUsedChunks(File folder, Set<String> usedChunks) {
+		for (File file : listFiles(folder)) {
+			if (file.isDirectory()) {
+				if (!file.equals(this.folder))
+					markUsedChunks(file, usedChunks);
+				continue;
+			}
+			try {
+				List<Chunk> chunks = readManifest(file);
+				if (chunks != null)
+					for (Chunk chunk : chunks)
+						usedChunks.add(chunk.getHashString());
+			} catch (IOException e) {
+				logger.error("Exception while reading manifest " + file
+						+ " : " + e);
+			}
+		}
+	}
+
+	private static File[] listFiles(File folder) {
+		File[] files = folder.listFiles();
+		return files == null ? new File[0] : files;
+	}
+
+	/**
+	 * @return path, not yet created, of a temp file in the store
+	 */
+	public File newTempFile() {
+		return new File(tempFolder, UUID.randomUUID() + ".tmp");
+	}
+
+	/**
+	 * @param chunk
+	 *            : chunk of the store
+	 * @return file holding the bytes of the chunk
+	 */
+	public File getChunkFile(Chunk chunk) {
+		return fileOf(chunk);
+	}
+
+	private File fileOf(Chunk chunk) {
+		String name = chunk.getHashString();
+		return new File(new File(folder, name.substring(0, 2)), name);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	public long getStoredChunkCount() {
+		return storedChunkCount.get();
+	}
+
+	/**
+	 * @return bytes of the chunks added to the store
+	 */
+	public long getStoredBytes() {
+		return storedBytes.get();
+	}
+
+	/**
+	 * @return bytes of the chunks which were already in the store
+	 */
+	public long getDeduplicatedBytes() {
+		return deduplicatedBytes.get();
+	}
+}
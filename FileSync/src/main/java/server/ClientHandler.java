@@ -1,20 +1,39 @@
 package server;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
 import common.Actions;
-import common.EncryptionUtil;
+import common.CompressionCodec;
+import common.FileConnectionDispatcher;
 import common.FileDownloader;
 import common.FileUploader;
-import common.MessageParseUtil;
+import common.Frame;
+import common.FrameOutputStream;
+import common.IFileSender;
+import common.ITransferListener;
+import common.InlineFileReceiver;
+import common.InlineFileSender;
+import common.Message;
+import common.MessageDecoder;
+import common.ParallelTransfer;
+import common.ProtocolException;
+import common.StagedFile;
+import common.TaskExecutor;
+import common.TransferCompression;
+import common.chunk.Chunk;
+import common.delta.DeltaTransfer;
+import common.delta.FileSignature;
 
 /**
  * @author Ashish Pahlazani This class manages communication with a client
@@ -22,25 +41,92 @@ import common.MessageParseUtil;
  */
 public class ClientHandler implements Runnable {
 	private static final Logger logger = Logger.getLogger(ClientHandler.class);
+	private static final MessageDecoder messageDecoder = new MessageDecoder();
 
 	private String username;
-	private Socket socket;
-	private boolean connected = false;
+	private IClientConnection connection;
+	// null if frames are pushed to handleFrame by a NIO reactor
+	private IBlockingClientConnection blockingConnection;
+	private volatile boolean connected = false;
 	private boolean isClientAuthenticated = false;
-	private BufferedReader br;
-	private PrintWriter printWriter;
 	private IClientsSyncHandler clientsSyncHandler;
-	private ServerSocket fileReceiveServerSocket;
+	private FileConnectionDispatcher fileConnectionDispatcher;
 	private int fileSendPort;
-	private boolean isFileDownloadedSuccessfully;
+	private TaskExecutor taskExecutor;
+	private InlineFileReceiver inlineFileReceiver = new InlineFileReceiver();
+	private TransferCompression transferCompression;
+	private ParallelTransfer parallelTransfer;
+	// files are received and sent on the transfer stage, this thread only
+	// reads the messages
+	private TransferStage transferStage;
+	private StageMetrics controlStage;
+	// set once the client asks for changes, updates are then no longer pushed
+	private volatile boolean pullMode = false;
+	private ChangeFeed.IChangesListener changesListener = new ChangeFeed.IChangesListener() {
+		@Override
+		public void changesAvailable(Message changes) {
+			sendMessageToClient(changes);
+		}
+	};
+	private SyncPropogationWorker syncPropogationWorker;
+	// files whose missing chunks have been requested from the client, by
+	// revision:path
+	private Map<String, PendingChunkUpload> pendingChunkUploads = new ConcurrentHashMap<String, PendingChunkUpload>();
+	// number of failed downloads of the files requested again, by path
+	private Map<String, Integer> failedDownloads = new ConcurrentHashMap<String, Integer>();
+
+	private static class PendingChunkUpload {
+		Actions action;
+		List<Chunk> chunks;
+		List<Chunk> missingChunks;
+
+		PendingChunkUpload(Actions action, List<Chunk> chunks,
+				List<Chunk> missingChunks) {
+			this.action = action;
+			this.chunks = chunks;
+			this.missingChunks = missingChunks;
+		}
+	}
 
 	public ClientHandler(Socket socket, IClientsSyncHandler clientsSyncHandler,
-			ServerSocket fileReceiveServerSocket) throws IOException {
-		this.socket = socket;
+			FileConnectionDispatcher fileConnectionDispatcher,
+			TaskExecutor taskExecutor) throws IOException {
+		this(new SocketClientConnection(socket), clientsSyncHandler,
+				fileConnectionDispatcher, taskExecutor);
+	}
+
+	/**
+	 * @param connection
+	 *            : read by run on the handler thread
+	 */
+	public ClientHandler(IBlockingClientConnection connection,
+			IClientsSyncHandler clientsSyncHandler,
+			FileConnectionDispatcher fileConnectionDispatcher,
+			TaskExecutor taskExecutor) {
+		this((IClientConnection) connection, clientsSyncHandler,
+				fileConnectionDispatcher, taskExecutor);
+		this.blockingConnection = connection;
+	}
+
+	public ClientHandler(IClientConnection connection,
+			IClientsSyncHandler clientsSyncHandler,
+			FileConnectionDispatcher fileConnectionDispatcher,
+			TaskExecutor taskExecutor) {
+		this.connection = connection;
 		this.clientsSyncHandler = clientsSyncHandler;
-		this.fileReceiveServerSocket = fileReceiveServerSocket;
-		br = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-		printWriter = new PrintWriter(socket.getOutputStream(), true);
+		this.fileConnectionDispatcher = fileConnectionDispatcher;
+		this.taskExecutor = taskExecutor;
+		transferCompression = new TransferCompression(
+				clientsSyncHandler.getCompressionCodecs());
+		parallelTransfer = new ParallelTransfer(
+				clientsSyncHandler.getTransferStreams(),
+				clientsSyncHandler.getTransferRangeSize());
+		transferStage = clientsSyncHandler.getTransferStage();
+		controlStage = clientsSyncHandler.getServerMetrics().getControlStage();
+		syncPropogationWorker = new SyncPropogationWorker(this,
+				taskExecutor.getExecutorService(), transferStage,
+				clientsSyncHandler.getSyncQueuePolicy(),
+				clientsSyncHandler.getServerMetrics());
 		connected = true;
 		if (logger.isInfoEnabled())
 			logger.info("client handler initialized");
@@ -50,87 +136,155 @@ public class ClientHandler implements Runnable {
 		return username;
 	}
 
+	/**
+	 * @return true if the client reads the changes from the change feed
+	 */
+	public boolean isPullMode() {
+		return pullMode;
+	}
+
+	/**
+	 * @return queue of updates to be sent to this client
+	 */
+	public SyncPropogationWorker getSyncPropogationWorker() {
+		return syncPropogationWorker;
+	}
+
+	/**
+	 * Blocking read loop, used when the client is served by a dedicated thread
+	 */
 	@Override
 	public void run() {
 		if (logger.isDebugEnabled())
 			logger.debug("Executing ClientHandler");
 
-		String message;
+		if (blockingConnection == null) {
+			logger.error("Frames of " + connection.getInetAddress()
+					+ " are delivered by the reactor, nothing to read");
+			return;
+		}
+		Frame frame;
 
-		// read username and password
 		try {
-			if ((message = br.readLine()) != null) {
-				parseMessage(message);
+			while (connected && clientsSyncHandler.isServerRunning()
+					&& (frame = blockingConnection.readFrame()) != null) {
+				handleFrame(frame);
 			}
 		} catch (IOException e) {
 			logger.error("Exception while reading message : " + e);
-			connected = false;
 		}
 
-		while (connected && isClientAuthenticated
-				&& clientsSyncHandler.isServerRunning()) {
-			try {
-				if ((message = br.readLine()) != null) {
-					parseMessage(message);
-				}
-			} catch (IOException e) {
-				logger.error("Exception while reading message : " + e);
-				connected = false;
-			}
-		}
-		
 		shutdown();
 		if (logger.isDebugEnabled())
 			logger.debug("ClientHandler stopped");
 	}
 
-	private void parseMessage(String message) {
-		String actualMessage = EncryptionUtil.decrypt(message);
-
-		if (logger.isInfoEnabled())
-			logger.info("actualMessage = " + actualMessage);
-
+	/**
+	 * Handles one frame received from client. Control messages are parsed,
+	 * other frames carry the contents of files sent over the control
+	 * connection.
+	 * 
+	 * @param frame
+	 */
+	public void handleFrame(Frame frame) {
+		long start = controlStage.taskStarted();
 		try {
-			int actionInt = Integer.parseInt(actualMessage.split(":", 2)[0]);
-			Actions action = Actions.fromInteger(actionInt);
-
-			String messageString = actualMessage.split(":", 2)[1];
+			if (frame.getType() == Frame.CONTROL) {
+				handleMessage(frame.getPayload());
+			} else if (isClientAuthenticated) {
+				inlineFileReceiver.onFrame(frame);
+			} else {
+				logger.error("File data received before authentication, closing connection");
+				shutdown();
+			}
+		} finally {
+			controlStage.taskCompleted(start);
+		}
+	}
 
+	/**
+	 * The first message must carry username and password, the connection is
+	 * closed if the client could not be authenticated
+	 * 
+	 * @param payload
+	 *            : payload of the control frame
+	 */
+	private void handleMessage(byte[] payload) {
+		try {
+			Message message = messageDecoder.decode(payload);
 			if (logger.isInfoEnabled())
-				logger.info("Action :" + action
-						+ " Message received from client = " + messageString);
-			takeActionOnServer(action, messageString);
-
-		} catch (NumberFormatException e) {
+				logger.info("Message received from client = " + message);
+			takeActionOnServer(message);
+		} catch (ProtocolException e) {
 			logger.error("Exception while parsing message : " + e);
 		}
+
+		if (!isClientAuthenticated) {
+			logger.error("Client not authenticated, closing connection");
+			shutdown();
+		}
 	}
 
-	private void takeActionOnServer(Actions action, String message) {
+	private void takeActionOnServer(Message message) {
+		Actions action = message.getAction();
 		switch (action) {
 		case ADD:
-			addFileToServer(message);
-			break;
 		case DELETE:
-			deleteFileFromServer(message);
-			break;
 		case MODIFY:
-			modifyFileOnServer(message);
+			applyChangesOnServer(Collections.singletonList(message));
+			break;
+		case BATCH:
+			takeBatchActionOnServer(message.getEntries());
 			break;
 		case USRNAME_PASSWORD:
-			setUsernameAndValidatePassword(message);
+			setUsernameAndValidatePassword(message.getText());
 			break;
 		case LOAD_INITIAL_REPOSITORY:
+			// sent by the worker, after the updates already queued
+			clientsSyncHandler.enqueTaskInSyncPropogationWorker(message, this);
+			break;
+		case COMPRESSION:
+			sendMessageToClient(new Message(Actions.COMPRESSION)
+					.setText(transferCompression.negotiate(message.getText())));
+			break;
+		case GET_CHANGES:
+			getChangesForClient(message);
+			break;
+		case GET_DIGESTS:
+			sendMessageToClient(clientsSyncHandler.getChangeFeed().getDigests(
+					message));
 			break;
 		case SENDING_FILE_ADD:
 		case SENDING_FILE_MODIFY:
-			File file = new File(Server.rootFolderPath + "/" + message);
+			// stream id is set if the file is sent over the control connection
+			File file = new File(Server.rootFolderPath + "/"
+					+ message.getPath());
 			createBackup(file);
-			readFileFromClient(action, message);
+			if (message.getChunks() != null)
+				receiveChunkListFromClient(action, message.getPath(),
+						message.getRevisionNumber(), message.getChunks());
+			else if (message.getStreamId() != 0)
+				receiveFileFromClient(action, message.getPath(),
+						message.getStreamId(), message.getLength(),
+						message.isDelta(), message.getCompression());
+			else
+				readFileFromClient(action, message.getPath(),
+						message.isDelta(), message.getCompression(),
+						message.getToken());
+			break;
+		case SENDING_CHUNKS:
+			if (message.getStreamId() != 0)
+				receiveChunksFromClient(message.getPath(),
+						message.getRevisionNumber(), message.getStreamId(),
+						message.getLength(), message.getCompression());
+			else
+				readChunksFromClient(message.getPath(),
+						message.getRevisionNumber(), message.getCompression(),
+						message.getToken());
 			break;
 		case FILE_SOCKET_PORT:
 			try {
-				fileSendPort = Integer.parseInt(message);
+				fileSendPort = Integer.parseInt(message.getText());
 			} catch (Exception e) {
 				logger.error("error while retrieving filePort");
 				connected = false;
@@ -141,8 +295,7 @@ public class ClientHandler implements Runnable {
 			break;
 		case REQUEST_FILE_ADD:
 		case REQUEST_FILE_MODIFY:
-			clientsSyncHandler.enqueTaskInSyncPropogationWorker(action,
-					message, this);
+			clientsSyncHandler.enqueTaskInSyncPropogationWorker(message, this);
 			// sendFileToClient(message);
 			break;
 		default:
@@ -150,10 +303,72 @@ public class ClientHandler implements Runnable {
 		}
 	}
 
-	private void setUsernameAndValidatePassword(String message) {
-		this.username = message.split(":")[0];
-		String password = message.split(":")[1];
-		String ipAddress = socket.getInetAddress().toString().substring(1);
+	/**
+	 * File changes of the batch are applied in one pass, the other entries
+	 * are handled one by one
+	 * 
+	 * @param entries
+	 */
+	private void takeBatchActionOnServer(List<Message> entries) {
+		if (entries == null)
+			return;
+		List<Message> changes = new ArrayList<Message>(entries.size());
+		for (Message entry : entries) {
+			switch (entry.getAction()) {
+			case ADD:
+			case DELETE:
+			case MODIFY:
+				changes.add(entry);
+				break;
+			case BATCH:
+			case USRNAME_PASSWORD:
+				logger.error("Unexpected entry in batch : " + entry);
+				break;
+			default:
+				takeActionOnServer(entry);
+				break;
+			}
+		}
+		if (!changes.isEmpty())
+			applyChangesOnServer(changes);
+	}
+
+	/**
+	 * Answers with the changes after the revision of the message, once there
+	 * is one if the client asks to wait
+	 * 
+	 * @param message
+	 *            : GET_CHANGES, text is the long-poll wait in milliseconds
+	 */
+	private void getChangesForClient(Message message) {
+		pullMode = true;
+		long waitMillis = 0;
+		try {
+			if (message.getText() != null)
+				waitMillis = Long.parseLong(message.getText());
+		} catch (NumberFormatException e) {
+			logger.error("Invalid wait in " + message);
+		}
+		long afterRevision = message.hasRevisionNumber() ? message
+				.getRevisionNumber() : 0;
+		clientsSyncHandler.getChangeFeed().getChanges(afterRevision,
+				waitMillis, changesListener);
+	}
+
+	/**
+	 * @param credentials
+	 *            : username:password
+	 */
+	private void setUsernameAndValidatePassword(String credentials) {
+		int separatorIndex = credentials == null ? -1 : credentials
+				.indexOf(':');
+		if (separatorIndex < 0) {
+			logger.error("Invalid credentials received");
+			return;
+		}
+		this.username = credentials.substring(0, separatorIndex);
+		String password = credentials.substring(separatorIndex + 1);
+		String ipAddress = connection.getInetAddress().toString().substring(1);
 		
 		// code to validate username and password goes here
 		// username and password can be maintained in a DB, or can be put in a
@@ -161,87 +376,163 @@ public class ClientHandler implements Runnable {
 		isClientAuthenticated = clientsSyncHandler.validateUsernameAndPassword(username, password, ipAddress);
 	}
 
-	private void modifyFileOnServer(String message) {
-		String relativePath = message.split("','")[0];
-		String absolutePath = Server.rootFolderPath + "/" + relativePath;
-		long revisionNumber = Long.parseLong(message.split("','")[1]);
-		if (logger.isInfoEnabled())
-			logger.info("AbsolutePath = " + absolutePath + " revisionNumber = "
-					+ revisionNumber);
-
-		File f = new File(absolutePath);
-		synchronized (f) {
-			if (f.exists()) {
-				if (clientsSyncHandler.getRevisionNumber(relativePath) > revisionNumber) {
-					sendMessageToClient(Actions.CONFLICT, ":" + relativePath);
-				} else {
-					long newRevisionNumber = clientsSyncHandler
-							.getCurrentRevisionNumber().incrementAndGet();
-
-					sendMessageToClient(Actions.REQUEST_FILE_MODIFY,
-							relativePath + "','" + newRevisionNumber);
-					clientsSyncHandler.setRevisionNumber(relativePath,
-							newRevisionNumber);
-				}
-			} else {
-				sendMessageToClient(Actions.CONFLICT, ": File does not exist "
-						+ relativePath);
-			}
+	/**
+	 * ADD, MODIFY and DELETE received from client, alone or in a BATCH. A
+	 * change of a file being transferred is applied on the transfer stage
+	 * once the transfer is done, the other changes are applied at once.
+	 * 
+	 * @param changes
+	 */
+	private void applyChangesOnServer(List<Message> changes) {
+		List<Message> readyChanges = new ArrayList<Message>(changes.size());
+		for (final Message change : changes) {
+			if (transferStage.isPending(change.getPath()))
+				executeOnTransferStage(change.getPath(), new Runnable() {
+					@Override
+					public void run() {
+						applyChanges(Collections.singletonList(change));
+					}
+				});
+			else
+				readyChanges.add(change);
 		}
+		if (!readyChanges.isEmpty())
+			applyChanges(readyChanges);
 	}
 
-	private void deleteFileFromServer(String message) {
-		String relativePath = message.split("','")[0];
-		String absolutePath = Server.rootFolderPath + "/" + relativePath;
-		long revisionNumber = Long.parseLong(message.split("','")[1]);
-		if (logger.isInfoEnabled())
-			logger.info("AbsolutePath = " + absolutePath + " revisionNumber = "
-					+ revisionNumber);
-
-		File f = new File(absolutePath);
-		synchronized (f) {
-			if (f.exists()) {
-
-				if (clientsSyncHandler.getRevisionNumber(relativePath) > revisionNumber) {
-					sendMessageToClient(Actions.CONFLICT, ":" + relativePath);
-				} else {
-					// create backup and remove file from server
-					createBackup(f);
-					f.delete();
-					clientsSyncHandler.getCurrentRevisionNumber()
-							.incrementAndGet();
-					clientsSyncHandler.sendUpdateToOtherClients(Actions.DELETE,
-							message, this);
-				}
-			} else {
-				sendMessageToClient(Actions.CONFLICT,
-						": File does not exist on server " + relativePath);
-			}
+	/**
+	 * Runs the task on the transfer stage after the other tasks of the path.
+	 * Once the stage is shut down the task runs on this thread instead, so
+	 * the file or change is not lost silently
+	 */
+	private void executeOnTransferStage(String relativePath, Runnable task) {
+		if (transferStage.execute(relativePath, task))
+			return;
+		logger.warn("Transfer stage refused task of " + relativePath
+				+ ", running it on " + Thread.currentThread().getName());
+		task.run();
+	}
+
+	/**
+	 * All the changes are validated first, the revision numbers of the
+	 * accepted changes are reserved at once, and the responses are sent
+	 * together.
+	 * 
+	 * @param changes
+	 */
+	private void applyChanges(List<Message> changes) {
+		List<Message> accepted = new ArrayList<Message>(changes.size());
+		List<Message> responses = new ArrayList<Message>(changes.size());
+		for (Message change : changes) {
+			Message conflict = validateChange(change);
+			if (conflict == null)
+				accepted.add(change);
+			else
+				responses.add(conflict);
 		}
+
+		long revisionNumber = clientsSyncHandler.getCurrentRevisionNumber()
+				.getAndAdd(accepted.size());
+		for (Message change : accepted) {
+			Message response = applyChange(change, ++revisionNumber);
+			if (response != null)
+				responses.add(response);
+		}
+		// the client is told the new revisions once they are saved
+		if (!accepted.isEmpty())
+			clientsSyncHandler.syncRevisionNumbers();
+
+		for (Message response : Message.toBatches(responses))
+			sendMessageToClient(response);
 	}
 
-	private void addFileToServer(String message) {
-		String relativePath = message.split("','")[0];
-		String absolutePath = Server.rootFolderPath + "/" + relativePath;
-		long revisionNumber = Long.parseLong(message.split("','")[1]);
-		if (logger.isInfoEnabled())
-			logger.info("AbsolutePath = " + absolutePath + " revisionNumber = "
-					+ revisionNumber);
-
-		File f = new File(absolutePath);
-		synchronized (f) {
-			if (!f.exists()) {
-				long newRevisionNumber = clientsSyncHandler
-						.getCurrentRevisionNumber().incrementAndGet();
-
-				sendMessageToClient(Actions.REQUEST_FILE_ADD, relativePath
-						+ MessageParseUtil.commaSeparator + newRevisionNumber);
-				clientsSyncHandler.setRevisionNumber(relativePath,
-						newRevisionNumber);
-			} else {
-				sendMessageToClient(Actions.CONFLICT, ":" + relativePath);
-			}
+	/**
+	 * @param change
+	 * @return CONFLICT message if the change can not be applied, null
+	 *         otherwise
+	 */
+	private Message validateChange(Message change) {
+		String relativePath = change.getPath();
+		if (logger.isDebugEnabled())
+			logger.debug("validateChange " + change);
+
+		File f = new File(Server.rootFolderPath + "/" + relativePath);
+		switch (change.getAction()) {
+		case ADD:
+			return f.exists() ? new Message(Actions.CONFLICT, relativePath)
+					: null;
+		case MODIFY:
+			if (!f.exists())
+				return new Message(Actions.CONFLICT, relativePath)
+						.setText("File does not exist");
+			break;
+		default:
+			if (!f.exists())
+				return new Message(Actions.CONFLICT, relativePath)
+						.setText("File does not exist on server");
+			break;
 		}
+
+		if (clientsSyncHandler.getRevisionNumber(relativePath) > change
+				.getRevisionNumber())
+			return new Message(Actions.CONFLICT, relativePath);
+		return null;
+	}
+
+	/**
+	 * @param change
+	 *            : validated change
+	 * @param newRevisionNumber
+	 * @return response to be sent to client, null if none
+	 */
+	private Message applyChange(Message change, long newRevisionNumber) {
+		String relativePath = change.getPath();
+		switch (change.getAction()) {
+		case ADD:
+			clientsSyncHandler.setRevisionNumber(relativePath,
+					newRevisionNumber);
+			return createFileRequest(Actions.REQUEST_FILE_ADD, relativePath,
+					newRevisionNumber);
+		case MODIFY:
+			clientsSyncHandler.setRevisionNumber(relativePath,
+					newRevisionNumber);
+			return createFileRequest(Actions.REQUEST_FILE_MODIFY,
+					relativePath, newRevisionNumber);
+		default:
+			// create backup and remove file from server
+			File f = new File(Server.rootFolderPath + "/" + relativePath);
+			createBackup(f);
+			f.delete();
+			// a cut transfer of the file would never be resumed
+			StagedFile.deleteResumableFiles(f);
+			clientsSyncHandler.sendUpdateToOtherClients(new Message(
+					Actions.DELETE, relativePath, newRevisionNumber), this);
+			return null;
+		}
+	}
+
+	/**
+	 * With a chunk store the chunk list of the file is requested, so only the
+	 * chunks missing in the store are sent. Otherwise the file is requested,
+	 * or a delta against the copy of the server for a MODIFY.
+	 * 
+	 * @param action
+	 *            : REQUEST_FILE_ADD or REQUEST_FILE_MODIFY
+	 * @param relativePath
+	 * @param revisionNumber
+	 * @return request to send to the client
+	 */
+	private Message createFileRequest(Actions action, String relativePath,
+			long revisionNumber) {
+		Message request = new Message(action, relativePath, revisionNumber);
+		if (clientsSyncHandler.getChunkStore() != null)
+			return request.setChunks(Collections.<Chunk> emptyList());
+		if (action == Actions.REQUEST_FILE_MODIFY)
+			request.setSignature(clientsSyncHandler.getDeltaTransfer()
+					.createSignature(
+							new File(Server.rootFolderPath + "/"
+									+ relativePath)));
+		return request;
 	}
 
 	/**
@@ -258,47 +549,103 @@ public class ClientHandler implements Runnable {
 			logger.debug("createBackup - LEAVE ");
 	}
 
-	private void readFileFromClient(Actions action, String relativePath) {
+	/**
+	 * Reads the file on the transfer stage, the messages of the client are
+	 * read in the meantime. The connection of the file is the one opened with
+	 * the token of the message, so the files of several clients can be
+	 * received at once. The place of the file in the order of its path is
+	 * reserved at once, the download is queued once its connection is there
+	 * so no thread of the stage waits for it
+	 */
+	private void readFileFromClient(final Actions action,
+			final String relativePath, final boolean delta,
+			final CompressionCodec codec, final long token) {
+		final TransferStage.Reservation reservation = transferStage
+				.reserve(relativePath);
+		fileConnectionDispatcher.register(token,
+				new FileConnectionDispatcher.IConnectionListener() {
+			@Override
+			public void connected(final Socket socket) {
+				submitOnTransferStage(reservation, new Runnable() {
+					@Override
+					public void run() {
+						downloadFileFromClient(action, relativePath, delta,
+								codec, token, socket);
+					}
+				});
+			}
+
+			@Override
+			public void failed(final IOException e) {
+				submitOnTransferStage(reservation, new Runnable() {
+					@Override
+					public void run() {
+						logger.error("No connection for file " + relativePath
+								+ " : " + e);
+						requestFailedDownload(action, relativePath);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Runs the task in the place reserved for it on the transfer stage, on
+	 * this thread if the stage is shut down as executeOnTransferStage
+	 */
+	private void submitOnTransferStage(TransferStage.Reservation reservation,
+			Runnable task) {
+		if (reservation.submit(task))
+			return;
+		logger.warn("Transfer stage refused reserved task, running it on "
+				+ Thread.currentThread().getName());
+		task.run();
+	}
+
+	/**
+	 * A file whose download fails is requested again, up to
+	 * FileDownloader.MAX_RETRIES times, the full file is then sent from the
+	 * bytes already received
+	 *
+	 * @param action
+	 * @param relativePath
+	 * @param delta
+	 *            : true if the client sends a delta instead of the file
+	 * @param codec
+	 *            : compression of the bytes sent by the client
+	 * @param token
+	 *            : token of the connection of the file
+	 * @param socket
+	 *            : first connection of the file
+	 */
+	private void downloadFileFromClient(Actions action, String relativePath,
+			boolean delta, CompressionCodec codec, long token, Socket socket) {
 		if (logger.isDebugEnabled())
 			logger.debug("readFileFromClient - Enter action = " + action
-					+ " relativePath : " + relativePath);
+					+ " relativePath : " + relativePath + " delta = " + delta);
 
 		File f = new File(Server.rootFolderPath + "/" + relativePath);
+		File deltaFile = delta ? DeltaTransfer.newTempFile() : null;
 
-		FileDownloader download = new FileDownloader(fileReceiveServerSocket, f);
-
-		isFileDownloadedSuccessfully = true;
-
-		Thread.UncaughtExceptionHandler threadExceptionHandler = new Thread.UncaughtExceptionHandler() {
-			@Override
-			public void uncaughtException(Thread th, Throwable ex) {
-				logger.error("Exception occured while downloading file");
-				isFileDownloadedSuccessfully = false;
-			}
-		};
+		FileDownloader download = new FileDownloader(socket,
+				fileConnectionDispatcher, token, delta ? deltaFile : f, codec,
+				!delta, taskExecutor);
+		download.run();
 
-		Thread downloadThread = new Thread(download);
-		downloadThread.setUncaughtExceptionHandler(threadExceptionHandler);
-		downloadThread.start();
-		try {
-			downloadThread.join();
-		} catch (InterruptedException e) {
-			logger.error("Exception while waiting for download thread : " + e);
+		boolean isFileDownloadedSuccessfully = download.isSuccess();
+		if (!isFileDownloadedSuccessfully) {
+			logger.error("Exception occured while downloading file");
+			if (delta)
+				deltaFile.delete();
+			requestFailedDownload(action, relativePath);
+		} else if (delta) {
+			isFileDownloadedSuccessfully = applyDeltaFromClient(relativePath,
+					deltaFile);
 		}
 
 		if (isFileDownloadedSuccessfully) {
-			Actions fileUpdateAction;
-			if (action == Actions.SENDING_FILE_ADD)
-				fileUpdateAction = Actions.ADD;
-			else
-				fileUpdateAction = Actions.MODIFY;
-
-			clientsSyncHandler.sendUpdateToOtherClients(
-					fileUpdateAction,
-					relativePath
-							+ MessageParseUtil.commaSeparator
-							+ clientsSyncHandler
-									.getRevisionNumber(relativePath), this);
+			failedDownloads.remove(relativePath);
+			fileReceivedFromClient(action, relativePath);
 		}
 
 		/*
@@ -323,50 +670,439 @@ public class ClientHandler implements Runnable {
 			logger.debug("readFileFromClient - Leave");
 	}
 
-	public void sendMessageToClient(Actions action, String message) {
+	private void requestFailedDownload(Actions action, String relativePath) {
+		Integer failures = failedDownloads.get(relativePath);
+		failures = failures == null ? 1 : failures + 1;
+		if (failures > FileDownloader.MAX_RETRIES) {
+			failedDownloads.remove(relativePath);
+			logger.error("Download failed " + failures + " times, giving up : "
+					+ relativePath);
+			return;
+		}
+		failedDownloads.put(relativePath, failures);
+		// no signature, the full file is sent
+		sendMessageToClient(new Message(
+				action == Actions.SENDING_FILE_ADD ? Actions.REQUEST_FILE_ADD
+						: Actions.REQUEST_FILE_MODIFY, relativePath,
+				clientsSyncHandler.getRevisionNumber(relativePath)));
+	}
+
+	/**
+	 * Registers the stream on which the file will be sent by client, the other
+	 * clients are updated on the transfer stage once the END frame of the
+	 * stream is received
+	 */
+	private void receiveFileFromClient(final Actions action,
+			final String relativePath, int streamId, long length,
+			final boolean delta, CompressionCodec codec) {
 		if (logger.isDebugEnabled())
-			logger.debug("sendMessageToClient - Enter Action : " + action
-					+ " Message : " + message);
-		printWriter.println(EncryptionUtil.encrypt(action.ordinal()
-				+ MessageParseUtil.colonSeparator + message));
-		/*
-		 * printWriter.println(message); printWriter.flush();
-		 */
+			logger.debug("receiveFileFromClient - Enter action = " + action
+					+ " relativePath : " + relativePath + " streamId = "
+					+ streamId + " delta = " + delta);
+
+		File f = new File(Server.rootFolderPath + "/" + relativePath);
+		final File deltaFile = delta ? DeltaTransfer.newTempFile() : null;
+		try {
+			inlineFileReceiver.open(streamId, delta ? deltaFile : f, length,
+					codec, new ITransferListener() {
+				@Override
+				public void transferCompleted(File file, final boolean success) {
+					executeOnTransferStage(relativePath, new Runnable() {
+						@Override
+						public void run() {
+							boolean received = success;
+							if (received && delta)
+								received = applyDeltaFromClient(relativePath,
+										deltaFile);
+							else if (!received)
+								logger.error("Exception occured while receiving file "
+										+ relativePath);
+
+							if (received)
+								fileReceivedFromClient(action, relativePath);
+							else if (delta)
+								deltaFile.delete();
+						}
+					});
+				}
+			});
+		} catch (IOException e) {
+			logger.error("Exception while creating file " + relativePath
+					+ " : " + e);
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug("receiveFileFromClient - Leave");
+	}
+
+	/**
+	 * Rebuilds the file from the delta sent by client. If the file of the
+	 * server changed since its signature was sent, the client is asked for the
+	 * full file
+	 * 
+	 * @return true if the file is updated
+	 */
+	private boolean applyDeltaFromClient(String relativePath, File deltaFile) {
+		File f = new File(Server.rootFolderPath + "/" + relativePath);
+		try {
+			DeltaTransfer.applyDelta(f, deltaFile);
+			return true;
+		} catch (IOException e) {
+			logger.error("Exception while applying delta on " + relativePath
+					+ ", requesting full file : " + e);
+			sendMessageToClient(new Message(Actions.REQUEST_FILE_MODIFY,
+					relativePath,
+					clientsSyncHandler.getRevisionNumber(relativePath)));
+			return false;
+		} finally {
+			deltaFile.delete();
+		}
+	}
+
+	/**
+	 * Looks the chunks up in the store on the transfer stage
+	 */
+	private void receiveChunkListFromClient(final Actions action,
+			final String relativePath, final long revisionNumber,
+			final List<Chunk> chunks) {
+		executeOnTransferStage(relativePath, new Runnable() {
+			@Override
+			public void run() {
+				storeChunkListFromClient(action, relativePath, revisionNumber,
+						chunks);
+			}
+		});
+	}
+
+	/**
+	 * Chunk list of a file sent by the client. The file is stored at once if
+	 * all its chunks are in the store, otherwise the missing chunks are
+	 * requested.
+	 */
+	private void storeChunkListFromClient(Actions action,
+			String relativePath, long revisionNumber, List<Chunk> chunks) {
+		ChunkStore chunkStore = clientsSyncHandler.getChunkStore();
+		if (chunkStore == null) {
+			logger.error("Chunk list received without chunk store : "
+					+ relativePath);
+			return;
+		}
+
+		List<Chunk> missingChunks = chunkStore.getMissingChunks(chunks);
+		if (logger.isInfoEnabled())
+			logger.info("chunk list received, path = " + relativePath
+					+ " chunks = " + chunks.size() + " missing = "
+					+ missingChunks.size());
+
+		if (missingChunks.isEmpty()) {
+			storeChunkedFile(action, relativePath, chunks);
+		} else {
+			pendingChunkUploads.put(revisionNumber + ":" + relativePath,
+					new PendingChunkUpload(action, chunks, missingChunks));
+			sendMessageToClient(new Message(Actions.REQUEST_CHUNKS,
+					relativePath, revisionNumber).setChunks(missingChunks));
+		}
+	}
+
+	/**
+	 * Registers the stream on which the chunks requested by the server will
+	 * be sent by client
+	 */
+	private void receiveChunksFromClient(final String relativePath,
+			long revisionNumber, int streamId, long length,
+			CompressionCodec codec) {
+		ChunkStore chunkStore = clientsSyncHandler.getChunkStore();
+		if (chunkStore == null) {
+			logger.error("Chunks received without chunk store : "
+					+ relativePath);
+			return;
+		}
+
+		final PendingChunkUpload upload = pendingChunkUploads
+				.remove(revisionNumber + ":" + relativePath);
+		final File dataFile = chunkStore.newTempFile();
+		try {
+			inlineFileReceiver.open(streamId, dataFile, length, codec,
+					new ITransferListener() {
+				@Override
+				public void transferCompleted(File file, final boolean success) {
+					executeOnTransferStage(relativePath, new Runnable() {
+						@Override
+						public void run() {
+							if (success)
+								storeChunksFromClient(relativePath, upload,
+										dataFile);
+							else
+								logger.error("Exception occured while receiving chunks of "
+										+ relativePath);
+							dataFile.delete();
+						}
+					});
+				}
+			});
+		} catch (IOException e) {
+			logger.error("Exception while creating file " + dataFile + " : "
+					+ e);
+		}
+	}
+
+	private void readChunksFromClient(final String relativePath,
+			long revisionNumber, final CompressionCodec codec, final long token) {
+		final ChunkStore chunkStore = clientsSyncHandler.getChunkStore();
+		if (chunkStore == null) {
+			logger.error("Chunks received without chunk store : "
+					+ relativePath);
+			return;
+		}
+
+		final PendingChunkUpload upload = pendingChunkUploads
+				.remove(revisionNumber + ":" + relativePath);
+		// queued once the connection is there, as readFileFromClient
+		final TransferStage.Reservation reservation = transferStage
+				.reserve(relativePath);
+		fileConnectionDispatcher.register(token,
+				new FileConnectionDispatcher.IConnectionListener() {
+			@Override
+			public void connected(final Socket socket) {
+				submitOnTransferStage(reservation, new Runnable() {
+					@Override
+					public void run() {
+						File dataFile = chunkStore.newTempFile();
+						FileDownloader download = new FileDownloader(socket,
+								fileConnectionDispatcher, token, dataFile,
+								codec, false, taskExecutor);
+						download.run();
+						if (download.isSuccess())
+							storeChunksFromClient(relativePath, upload,
+									dataFile);
+						else
+							logger.error("Exception occured while downloading chunks of "
+									+ relativePath);
+						dataFile.delete();
+					}
+				});
+			}
+
+			@Override
+			public void failed(final IOException e) {
+				submitOnTransferStage(reservation, new Runnable() {
+					@Override
+					public void run() {
+						logger.error("No connection for chunks of "
+								+ relativePath + " : " + e);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Stores the chunks sent by the client and the chunk list of the file.
+	 * Nothing is stored if the chunks do not match their hash, which happens
+	 * if the file was changed on the client after its chunk list was sent, the
+	 * client then sends a new MODIFY.
+	 */
+	private void storeChunksFromClient(String relativePath,
+			PendingChunkUpload upload, File dataFile) {
+		if (upload == null) {
+			logger.error("Chunks received but not requested : " + relativePath);
+			return;
+		}
+
+		try {
+			clientsSyncHandler.getChunkStore().putAll(upload.missingChunks,
+					dataFile);
+		} catch (IOException e) {
+			logger.error("Exception while storing chunks of " + relativePath
+					+ " : " + e);
+			return;
+		}
+		storeChunkedFile(upload.action, relativePath, upload.chunks);
+	}
+
+	private void storeChunkedFile(Actions action, String relativePath,
+			List<Chunk> chunks) {
+		File f = new File(Server.rootFolderPath + "/" + relativePath);
+		try {
+			clientsSyncHandler.getChunkStore().writeManifest(f, chunks);
+		} catch (IOException e) {
+			logger.error("Exception while writing chunk list of "
+					+ relativePath + " : " + e);
+			return;
+		}
+		fileReceivedFromClient(action, relativePath);
+	}
+
+	private void fileReceivedFromClient(Actions action, String relativePath) {
+		Actions fileUpdateAction;
+		if (action == Actions.SENDING_FILE_ADD)
+			fileUpdateAction = Actions.ADD;
+		else
+			fileUpdateAction = Actions.MODIFY;
+
+		clientsSyncHandler.sendUpdateToOtherClients(new Message(
+				fileUpdateAction, relativePath,
+				clientsSyncHandler.getRevisionNumber(relativePath)), this);
+	}
+
+	public void sendMessageToClient(Message message) {
+		if (logger.isDebugEnabled())
+			logger.debug("sendMessageToClient - Enter Message : " + message);
+		connection.writeMessage(message);
 		if (logger.isDebugEnabled())
 			logger.debug("sendMessageToClient - Leave");
 	}
 
-	public void sendFileToClient(Actions action, String relativePath) {
+	/**
+	 * Sends the file over the control connection, or over a separate
+	 * connection if the client has opened a file port. Runs on the transfer
+	 * stage
+	 * 
+	 * @param action
+	 * @param relativePath
+	 * @param signature
+	 *            : signature of the copy of the client, a delta is sent
+	 *            instead of the file if it is worth it. May be null
+	 */
+	public void sendFileToClient(Actions action, String relativePath,
+			FileSignature signature) {
 		if (logger.isDebugEnabled())
 			logger.debug("sendFileToClient - Enter path: " + relativePath);
 
-		printWriter.println(action.ordinal() + ":" + relativePath);
-
-		File file = new File(Server.rootFolderPath + "/" + relativePath);
+		File storedFile = new File(Server.rootFolderPath + "/" + relativePath);
+		// a file stored as a chunk list is rebuilt in a temp file
+		File file = storedFile;
+		ChunkStore chunkStore = clientsSyncHandler.getChunkStore();
+		if (chunkStore != null) {
+			try {
+				file = chunkStore.materialize(storedFile);
+			} catch (IOException e) {
+				logger.error("Exception while reading chunks of "
+						+ relativePath + " : " + e);
+				return;
+			}
+		}
+		File deltaFile = clientsSyncHandler.getDeltaTransfer().createDelta(
+				file, signature);
+		File sentFile = deltaFile != null ? deltaFile : file;
+		CompressionCodec codec = transferCompression.choose(sentFile);
+		Message message = new Message(action, relativePath).setDelta(
+				deltaFile != null).setCompression(codec);
 
-		FileUploader fileUploader = new FileUploader(socket.getInetAddress()
-				.toString().substring(1), fileSendPort, file);
-		Thread fileUploaderThread = new Thread(fileUploader);
-		fileUploaderThread.start();
+		IFileSender fileSender;
+		FileUploader uploader = null;
+		if (fileSendPort > 0) {
+			long token = FileConnectionDispatcher.newToken();
+			connection.writeMessage(message.setToken(token));
+			uploader = new FileUploader(connection.getInetAddress().toString()
+					.substring(1), fileSendPort, sentFile, codec,
+					parallelTransfer.chooseStreamCount(sentFile.length(), codec),
+					parallelTransfer.getRangeSize(), taskExecutor, token);
+			fileSender = uploader;
+		} else {
+			int streamId = InlineFileSender.nextStreamId();
+			connection.writeMessage(message.setStreamId(streamId).setLength(
+					sentFile.length()));
+			fileSender = new InlineFileSender(connection, streamId, sentFile,
+					codec);
+		}
 
 		try {
-			fileUploaderThread.join();
-		} catch (InterruptedException e) {
-			logger.error("Exception while waitimg file upload : " + e);
+			fileSender.run();
+			// the timings of a failed transfer do not measure the link
+			if (fileSender.isSuccess()) {
+				transferCompression.transferCompleted(fileSender);
+				if (uploader != null)
+					parallelTransfer.transferCompleted(uploader);
+			} else {
+				logger.error("Upload failed : " + relativePath);
+			}
+		} catch (RuntimeException e) {
+			logger.error("Exception while uploading file : " + relativePath
+					+ " : " + e);
+		} finally {
+			if (deltaFile != null)
+				deltaFile.delete();
+			if (file != storedFile)
+				file.delete();
 		}
 
 		if (logger.isDebugEnabled())
 			logger.debug("sendFileToClient - Leave");
 	}
 
+	/**
+	 * Sends a snapshot of the repository, over a connection to the file port
+	 * of the client if it has one, as one stream of the control connection
+	 * otherwise. The LOAD_INITIAL_REPOSITORY message carries the revision of
+	 * the snapshot, the client then reads the changes after it. Runs on the
+	 * transfer stage
+	 */
+	public void sendRepositorySnapshot() {
+		ChangeFeed changeFeed = clientsSyncHandler.getChangeFeed();
+		long snapshotRevision = changeFeed.getLastChangeRevision();
+		RepositorySnapshotWriter snapshotWriter = new RepositorySnapshotWriter(
+				changeFeed, Server.rootFolderPath,
+				clientsSyncHandler.getChunkStore(), snapshotRevision);
+		Message message = new Message(Actions.LOAD_INITIAL_REPOSITORY, null,
+				snapshotRevision);
+		long start = System.currentTimeMillis();
+
+		boolean sent = false;
+		if (fileSendPort > 0) {
+			long token = FileConnectionDispatcher.newToken();
+			connection.writeMessage(message.setToken(token));
+			SocketChannel socketChannel = null;
+			try {
+				socketChannel = FileConnectionDispatcher.connect(
+						new InetSocketAddress(connection.getInetAddress(),
+								fileSendPort), token);
+				snapshotWriter.write(socketChannel);
+				sent = true;
+			} catch (IOException e) {
+				logger.error("Exception while sending snapshot : " + e);
+			} finally {
+				try {
+					if (socketChannel != null)
+						socketChannel.close();
+				} catch (IOException e) {
+					logger.error("Exception while closing snapshot connection : "
+							+ e);
+				}
+			}
+		} else {
+			int streamId = InlineFileSender.nextStreamId();
+			connection.writeMessage(message.setStreamId(streamId));
+			FrameOutputStream outputStream = new FrameOutputStream(connection,
+					streamId);
+			try {
+				snapshotWriter.write(outputStream);
+				outputStream.close();
+				sent = true;
+			} catch (IOException e) {
+				logger.error("Exception while sending snapshot : " + e);
+				try {
+					outputStream.abort();
+				} catch (IOException e1) {
+					logger.error("Exception while aborting snapshot : " + e1);
+				}
+			}
+		}
+
+		if (sent && logger.isInfoEnabled())
+			logger.info("snapshot sent to " + username + ", revision = "
+					+ snapshotRevision + " entries = "
+					+ snapshotWriter.getEntryCount() + " bytes = "
+					+ snapshotWriter.getBytesWritten() + " time (ms) = "
+					+ (System.currentTimeMillis() - start));
+	}
+
 	public void shutdown() {
 		connected = false;
-		try {
-			br.close();
-			printWriter.close();
-			socket.close();
-		} catch (IOException e) {
-			logger.error("Exception in destroy");
-		}
+		connection.close();
+		inlineFileReceiver.abortAll();
+		syncPropogationWorker.shutdown();
+		clientsSyncHandler.getChangeFeed().cancel(changesListener);
+		clientsSyncHandler.removeClientHandler(this);
 	}
 }
@@ -0,0 +1,171 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import common.Actions;
+import common.Message;
+
+/**
+ * @author Ashish Pahlazani Queue of the messages waiting to be sent to one
+ *         client, with at most one pending update and one pending file
+ *         request per path. A new update for a path is merged with the pending
+ *         one, so a file saved many times is sent once with its newest
+ *         revision :
+ *
+ *         ADD then MODIFY : ADD, the client does not have the file yet
+ *         ADD then DELETE : both dropped
+ *         DELETE then ADD : MODIFY, the client still has the old file
+ *         MODIFY or DELETE then MODIFY : MODIFY
+ *         MODIFY then DELETE : DELETE
+ *
+ *         An update older than the pending revision is ignored. A merged
+ *         message moves to the end of the queue, messages of one path are
+ *         therefore always sent in the order they were queued. Messages
+ *         without a path are never merged.
+ */
+public class CoalescingSyncQueue {
+	private Map<Object, Message> pendingMessages = new LinkedHashMap<Object, Message>();
+
+	private static class PathKey {
+		String path;
+		boolean fileRequest;
+
+		PathKey(String path, boolean fileRequest) {
+			this.path = path;
+			this.fileRequest = fileRequest;
+		}
+
+		@Override
+		public int hashCode() {
+			return path.hashCode() * 31 + (fileRequest ? 1 : 0);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof PathKey))
+				return false;
+			PathKey other = (PathKey) obj;
+			return fileRequest == other.fileRequest && path.equals(other.path);
+		}
+	}
+
+	/**
+	 * @param message
+	 * @return change of the queue size : 1 if the message is added, 0 if it
+	 *         is merged with a pending message, -1 if both cancel out
+	 */
+	public synchronized int add(Message message) {
+		Object key = keyOf(message);
+		Message pending = pendingMessages.remove(key);
+		if (pending == null) {
+			pendingMessages.put(key, message);
+			return 1;
+		}
+
+		Message merged = merge(pending, message);
+		if (merged == null)
+			return -1;
+		pendingMessages.put(key, merged);
+		return 0;
+	}
+
+	/**
+	 * @return oldest message, null if the queue is empty
+	 */
+	public synchronized Message poll() {
+		Iterator<Message> iterator = pendingMessages.values().iterator();
+		if (!iterator.hasNext())
+			return null;
+		Message message = iterator.next();
+		iterator.remove();
+		return message;
+	}
+
+	/**
+	 * @param maxCount
+	 * @return oldest message, followed by the next messages as long as they
+	 *         are all ADD, MODIFY or DELETE updates, at most maxCount
+	 *         messages. Empty if the queue is empty
+	 */
+	public synchronized List<Message> pollBatch(int maxCount) {
+		List<Message> messages = new ArrayList<Message>();
+		Iterator<Message> iterator = pendingMessages.values().iterator();
+		while (iterator.hasNext() && messages.size() < maxCount) {
+			Message message = iterator.next();
+			if (!messages.isEmpty()
+					&& !(isUpdate(messages.get(0)) && isUpdate(message)))
+				break;
+			messages.add(message);
+			iterator.remove();
+		}
+		return messages;
+	}
+
+	public synchronized int size() {
+		return pendingMessages.size();
+	}
+
+	/**
+	 * @return number of messages removed
+	 */
+	public synchronized int clear() {
+		int count = pendingMessages.size();
+		pendingMessages.clear();
+		return count;
+	}
+
+	private static boolean isUpdate(Message message) {
+		Actions action = message.getAction();
+		return action == Actions.ADD || action == Actions.MODIFY
+				|| action == Actions.DELETE;
+	}
+
+	private static Object keyOf(Message message) {
+		if (message.getPath() == null)
+			return new Object();
+
+		switch (message.getAction()) {
+		case ADD:
+		case MODIFY:
+		case DELETE:
+			return new PathKey(message.getPath(), false);
+		case REQUEST_FILE_ADD:
+		case REQUEST_FILE_MODIFY:
+			return new PathKey(message.getPath(), true);
+		default:
+			return new Object();
+		}
+	}
+
+	/**
+	 * @param pending
+	 *            : message already in the queue
+	 * @param update
+	 *            : newer message with the same key
+	 * @return message replacing both, null if they cancel out
+	 */
+	static Message merge(Message pending, Message update) {
+		if (pending.hasRevisionNumber() && update.hasRevisionNumber()
+				&& update.getRevisionNumber() < pending.getRevisionNumber())
+			return pending;
+
+		Actions pendingAction = pending.getAction();
+		switch (update.getAction()) {
+		case DELETE:
+			return pendingAction == Actions.ADD ? null : update;
+		case ADD:
+		case MODIFY:
+			Actions action = pendingAction == Actions.ADD ? Actions.ADD
+					: Actions.MODIFY;
+			return new Message(action, update.getPath(),
+					update.getRevisionNumber());
+		default:
+			// a file is sent with its current content, one request is enough
+			return update;
+		}
+	}
+}
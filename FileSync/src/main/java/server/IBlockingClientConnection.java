@@ -0,0 +1,20 @@
+package server;
+
+import java.io.IOException;
+
+import common.Frame;
+
+/**
+ * @author Ashish Pahlazani
+ *         Connection read by the ClientHandler on its own thread, one thread
+ *         is kept waiting on readFrame for each connected client
+ */
+public interface IBlockingClientConnection extends IClientConnection {
+	/**
+	 * Blocks until next frame is received from client
+	 *
+	 * @return frame, or null if the client closed the connection
+	 * @throws IOException
+	 */
+	public Frame readFrame() throws IOException;
+}
@@ -0,0 +1,33 @@
+package server;
+
+import java.net.InetAddress;
+
+import common.IFrameSink;
+import common.Message;
+
+/**
+ * @author Ashish Pahlazani
+ *         Transport used by a ClientHandler to talk with its client. The
+ *         blocking implementation, IBlockingClientConnection, is read on the
+ *         handler thread, the NIO implementation pushes frames to the
+ *         handler from the selector threads.
+ */
+public interface IClientConnection extends IFrameSink {
+	/**
+	 * @param message
+	 *            : control message to be sent to client
+	 */
+	public void writeMessage(Message message);
+
+	/**
+	 * @return address of the connected client
+	 */
+	public InetAddress getInetAddress();
+
+	/**
+	 * @return false once the connection is closed
+	 */
+	public boolean isOpen();
+
+	public void close();
+}
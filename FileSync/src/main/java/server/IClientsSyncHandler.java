@@ -1,8 +1,11 @@
 package server;
 
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
-import common.Actions;
+import common.CompressionCodec;
+import common.Message;
+import common.delta.DeltaTransfer;
 
 /**
  * @author Ashish Pahlazani
@@ -15,17 +18,21 @@ public interface IClientsSyncHandler
 	public boolean validateUsernameAndPassword(String usernam, String password, String ipAddress);
 	
     /**
-     * @param action
      * @param message : contains the message to be passed to all the clients
      */
-    public void sendUpdateToOtherClients(Actions action, String message, ClientHandler clientHandlerToBeExcluded);
+    public void sendUpdateToOtherClients(Message message, ClientHandler clientHandlerToBeExcluded);
     
     /**
-     * @param action
      * @param message
      * @param clientHandlerToBeExcluded
      */
-    public void enqueTaskInSyncPropogationWorker(Actions action, String message, ClientHandler clientHandler);
+    public void enqueTaskInSyncPropogationWorker(Message message, ClientHandler clientHandler);
+    
+    /**
+     * called when the connection with a client is closed
+     * @param clientHandler
+     */
+    public void removeClientHandler(ClientHandler clientHandler);
     
     /**
      * @return
@@ -44,9 +51,59 @@ public interface IClientsSyncHandler
      * @return
      */
     public void setRevisionNumber(String relativePathOfFile, long newRevisionNumber);
+
+    /**
+     * waits until the revision numbers set so far are saved in the journal
+     */
+    public void syncRevisionNumbers();
     
     /**
      * @return
      */
     public boolean isServerRunning();
+
+    /**
+     * @return limits of the sync queue of each client
+     */
+    public SyncQueuePolicy getSyncQueuePolicy();
+
+    /**
+     * @return counters exposed over JMX
+     */
+    public ServerMetrics getServerMetrics();
+
+    /**
+     * @return when modified files are sent as deltas
+     */
+    public DeltaTransfer getDeltaTransfer();
+
+    /**
+     * @return codecs a client may use for file transfers, empty if COMPRESSION is NONE
+     */
+    public Set<CompressionCodec> getCompressionCodecs();
+
+    /**
+     * @return maximum number of streams on which a file is sent to a client
+     */
+    public int getTransferStreams();
+
+    /**
+     * @return minimum size of the ranges of a file sent on several streams
+     */
+    public long getTransferRangeSize();
+
+    /**
+     * @return stage doing the disk and socket I/O of the files
+     */
+    public TransferStage getTransferStage();
+
+    /**
+     * @return store of the chunks of the files, null unless STORAGE_MODE is CHUNKED
+     */
+    public ChunkStore getChunkStore();
+
+    /**
+     * @return changes read by the clients in PULL mode
+     */
+    public ChangeFeed getChangeFeed();
 }
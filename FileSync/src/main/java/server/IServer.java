@@ -1,7 +1,11 @@
 package server;
 
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 
+import common.CompressionCodec;
+import common.delta.DeltaTransfer;
+
 public interface IServer {
 	public boolean validateUsernameAndPassword(String usernam, String password,
 			String ipAddress);
@@ -11,6 +15,8 @@ public interface IServer {
     public long getRevisionNumber(String relativePathOfFile);
     
     public void setRevisionNumber(String relativePathOfFile, long newRevisionNumber);
+
+	public void syncRevisionNumbers();
     
 	public AtomicLong getCurrentRevisionNumber();
 
@@ -19,4 +25,22 @@ public interface IServer {
 	public int getPort();
 	
 	public boolean isServerRunning();
+
+	public SyncQueuePolicy getSyncQueuePolicy();
+
+	public ServerMetrics getServerMetrics();
+
+	public DeltaTransfer getDeltaTransfer();
+
+	public Set<CompressionCodec> getCompressionCodecs();
+
+	public int getTransferStreams();
+
+	public long getTransferRangeSize();
+
+	public TransferStage getTransferStage();
+
+	public ChunkStore getChunkStore();
+
+	public ChangeFeed getChangeFeed();
 }
@@ -1,11 +0,0 @@
-package server;
-
-import common.Actions;
-
-public class MessageParseUtil {
-	
-	public static Actions getAction(String message)
-	{
-		return null;
-	}
-}
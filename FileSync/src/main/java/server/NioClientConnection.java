@@ -0,0 +1,324 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import common.Frame;
+import common.Message;
+import common.MessageEncoder;
+
+/**
+ * @author Ashish Pahlazani Non blocking connection with a client. Bytes are
+ *         read and written by the NioReactor thread owning this connection,
+ *         complete frames are passed to the ClientHandler on the worker pool.
+ *         Frames of one client are always handled one at a time and in the
+ *         order they were received.
+ * 
+ *         Both directions are bounded : reading is paused while too many
+ *         received bytes are waiting for the worker pool, and writers are
+ *         blocked while too many bytes are waiting to be written.
+ */
+public class NioClientConnection implements IClientConnection {
+	private static final Logger logger = Logger
+			.getLogger(NioClientConnection.class);
+
+	private static final int READ_BUFFER_SIZE = Frame.DATA_CHUNK_SIZE;
+	private static final long MAX_PENDING_INBOUND_BYTES = 16 * Frame.DATA_CHUNK_SIZE;
+	private static final long MAX_PENDING_OUTBOUND_BYTES = 16 * Frame.DATA_CHUNK_SIZE;
+
+	private SocketChannel channel;
+	private NioReactor reactor;
+	private ExecutorService workerPool;
+	// frames waiting for the worker pool are the queue of the control stage
+	private StageMetrics controlStage;
+	private SelectionKey selectionKey;
+	private ClientHandler clientHandler;
+
+	// frame being decoded, payload is null while the header is read
+	private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	private ByteBuffer headerBuffer = ByteBuffer.allocate(Frame.HEADER_LENGTH);
+	private byte frameType;
+	private int frameStreamId;
+	private byte[] framePayload;
+	private int framePayloadPosition;
+
+	private Queue<Frame> inboundFrames = new ConcurrentLinkedQueue<Frame>();
+	private AtomicLong pendingInboundBytes = new AtomicLong();
+	private volatile boolean readPaused = false;
+
+	private Queue<ByteBuffer> outboundBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private Object outboundLock = new Object();
+	private long pendingOutboundBytes = 0;
+
+	private MessageEncoder messageEncoder = new MessageEncoder();
+
+	private AtomicBoolean processing = new AtomicBoolean(false);
+	private AtomicBoolean open = new AtomicBoolean(true);
+
+	public NioClientConnection(SocketChannel channel, NioReactor reactor,
+			ExecutorService workerPool, StageMetrics controlStage)
+			throws IOException {
+		this.channel = channel;
+		this.reactor = reactor;
+		this.workerPool = workerPool;
+		this.controlStage = controlStage;
+		channel.configureBlocking(false);
+	}
+
+	public void setClientHandler(ClientHandler clientHandler) {
+		this.clientHandler = clientHandler;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	void setSelectionKey(SelectionKey selectionKey) {
+		this.selectionKey = selectionKey;
+	}
+
+	/**
+	 * Queues the frame for the reactor, blocks while the queue is full
+	 */
+	@Override
+	public void writeFrame(byte type, int streamId, byte[] payload,
+			int offset, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(Frame.HEADER_LENGTH + length);
+		buffer.put(type).putInt(streamId).putInt(length)
+				.put(payload, offset, length);
+		buffer.flip();
+
+		synchronized (outboundLock) {
+			while (open.get()
+					&& pendingOutboundBytes > MAX_PENDING_OUTBOUND_BYTES) {
+				try {
+					outboundLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"Interrupted while waiting to write frame");
+				}
+			}
+			if (!open.get())
+				throw new IOException("Connection closed");
+
+			outboundBuffers.add(buffer);
+			pendingOutboundBytes += buffer.capacity();
+		}
+		reactor.requestInterestUpdate(this);
+	}
+
+	@Override
+	public void writeMessage(Message message) {
+		try {
+			// the encoded bytes are copied by writeFrame
+			synchronized (messageEncoder) {
+				int length = messageEncoder.encode(message);
+				writeFrame(Frame.CONTROL, Frame.CONTROL_STREAM_ID,
+						messageEncoder.getBuffer(), 0, length);
+			}
+		} catch (IOException e) {
+			logger.error("Exception while writing message " + message + " : "
+					+ e);
+		}
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return channel.socket().getInetAddress();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open.get();
+	}
+
+	@Override
+	public void close() {
+		if (!open.compareAndSet(true, false))
+			return;
+
+		synchronized (outboundLock) {
+			outboundLock.notifyAll();
+		}
+		if (selectionKey != null)
+			selectionKey.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			logger.error("Exception while closing channel : " + e);
+		}
+	}
+
+	/**
+	 * called on the reactor thread when the channel has data to read
+	 *
+	 * @throws IOException
+	 */
+	void onReadable() throws IOException {
+		int count = channel.read(readBuffer);
+		if (count < 0) {
+			if (logger.isInfoEnabled())
+				logger.info("client closed the connection");
+			onDisconnected();
+			return;
+		}
+
+		readBuffer.flip();
+		boolean frameReceived = false;
+		while (readBuffer.hasRemaining()) {
+			if (framePayload == null)
+				decodeHeader();
+			if (framePayload != null && decodePayload())
+				frameReceived = true;
+		}
+		readBuffer.clear();
+
+		if (pendingInboundBytes.get() > MAX_PENDING_INBOUND_BYTES) {
+			readPaused = true;
+			// the worker may have drained the queue before readPaused was set
+			if (pendingInboundBytes.get() <= MAX_PENDING_INBOUND_BYTES / 2)
+				readPaused = false;
+			updateInterestOps();
+		}
+
+		if (frameReceived)
+			scheduleProcessing();
+	}
+
+	private void decodeHeader() throws IOException {
+		while (headerBuffer.hasRemaining() && readBuffer.hasRemaining())
+			headerBuffer.put(readBuffer.get());
+		if (headerBuffer.hasRemaining())
+			return;
+
+		headerBuffer.flip();
+		frameType = headerBuffer.get();
+		frameStreamId = headerBuffer.getInt();
+		int length = headerBuffer.getInt();
+		headerBuffer.clear();
+
+		if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH)
+			throw new IOException("Invalid frame length : " + length);
+		framePayload = new byte[length];
+		framePayloadPosition = 0;
+	}
+
+	/**
+	 * @return true if the payload is complete and the frame is queued for the
+	 *         worker pool
+	 */
+	private boolean decodePayload() {
+		int count = Math.min(readBuffer.remaining(), framePayload.length
+				- framePayloadPosition);
+		readBuffer.get(framePayload, framePayloadPosition, count);
+		framePayloadPosition += count;
+		if (framePayloadPosition < framePayload.length)
+			return false;
+
+		inboundFrames.add(new Frame(frameType, frameStreamId, framePayload));
+		controlStage.tasksQueued(1);
+		pendingInboundBytes.addAndGet(Frame.HEADER_LENGTH
+				+ framePayload.length);
+		framePayload = null;
+		return true;
+	}
+
+	/**
+	 * called on the reactor thread when the channel can accept more data
+	 *
+	 * @throws IOException
+	 */
+	void onWritable() throws IOException {
+		ByteBuffer buffer;
+		while ((buffer = outboundBuffers.peek()) != null) {
+			channel.write(buffer);
+			if (buffer.hasRemaining())
+				return;
+			outboundBuffers.poll();
+			synchronized (outboundLock) {
+				pendingOutboundBytes -= buffer.capacity();
+				outboundLock.notifyAll();
+			}
+		}
+		updateInterestOps();
+	}
+
+	/**
+	 * called on the reactor thread
+	 */
+	void updateInterestOps() {
+		if (selectionKey == null || !selectionKey.isValid())
+			return;
+
+		int interestOps = 0;
+		if (!readPaused)
+			interestOps |= SelectionKey.OP_READ;
+		if (!outboundBuffers.isEmpty())
+			interestOps |= SelectionKey.OP_WRITE;
+		selectionKey.interestOps(interestOps);
+	}
+
+	void onDisconnected() {
+		close();
+		while (inboundFrames.poll() != null)
+			controlStage.tasksDequeued(1);
+		if (clientHandler != null)
+			clientHandler.shutdown();
+	}
+
+	private void scheduleProcessing() {
+		if (processing.compareAndSet(false, true)) {
+			try {
+				workerPool.execute(new Runnable() {
+					@Override
+					public void run() {
+						processInboundFrames();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				logger.error("Worker pool rejected frame processing : " + e);
+				processing.set(false);
+			}
+		}
+	}
+
+	private void processInboundFrames() {
+		do {
+			Frame frame;
+			while (open.get() && (frame = inboundFrames.poll()) != null) {
+				controlStage.tasksDequeued(1);
+				try {
+					clientHandler.handleFrame(frame);
+				} catch (RuntimeException e) {
+					logger.error("Exception while handling frame " + frame
+							+ " : " + e);
+				}
+				onFrameProcessed(frame);
+			}
+			processing.set(false);
+		} while (open.get() && !inboundFrames.isEmpty()
+				&& processing.compareAndSet(false, true));
+	}
+
+	private void onFrameProcessed(Frame frame) {
+		long pending = pendingInboundBytes.addAndGet(-(Frame.HEADER_LENGTH + frame
+				.getPayload().length));
+		if (readPaused && pending <= MAX_PENDING_INBOUND_BYTES / 2) {
+			readPaused = false;
+			reactor.requestInterestUpdate(this);
+		}
+	}
+}
@@ -0,0 +1,135 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani This class runs the selector loop of one I/O
+ *         thread. Many client connections are registered with one reactor, the
+ *         reactor only reads and writes bytes, messages are handed over to the
+ *         worker pool by the connection itself.
+ */
+public class NioReactor implements Runnable {
+	private static final Logger logger = Logger.getLogger(NioReactor.class);
+
+	private Selector selector;
+	private Queue<NioClientConnection> pendingRegistrations;
+	private Queue<NioClientConnection> pendingInterestUpdates;
+	private volatile boolean running;
+
+	public NioReactor() throws IOException {
+		selector = Selector.open();
+		pendingRegistrations = new ConcurrentLinkedQueue<NioClientConnection>();
+		pendingInterestUpdates = new ConcurrentLinkedQueue<NioClientConnection>();
+		running = true;
+	}
+
+	/**
+	 * registration is done by the reactor thread itself, as register blocks
+	 * while the selector is inside select()
+	 *
+	 * @param connection
+	 */
+	public void register(NioClientConnection connection) {
+		pendingRegistrations.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * interest ops are changed by the reactor thread, called when a
+	 * connection has data queued for writing or when reading is paused or
+	 * resumed
+	 * 
+	 * @param connection
+	 */
+	public void requestInterestUpdate(NioClientConnection connection) {
+		pendingInterestUpdates.add(connection);
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		if (logger.isDebugEnabled())
+			logger.debug("NioReactor started");
+
+		while (running) {
+			try {
+				selector.select();
+			} catch (IOException e) {
+				logger.error("Exception in select, stopping reactor : " + e);
+				break;
+			}
+
+			registerPendingConnections();
+			updatePendingInterestOps();
+
+			Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+			while (iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+
+				NioClientConnection connection = (NioClientConnection) key
+						.attachment();
+				try {
+					if (key.isValid() && key.isReadable())
+						connection.onReadable();
+					if (key.isValid() && key.isWritable())
+						connection.onWritable();
+				} catch (IOException e) {
+					logger.error("Exception on client connection, closing : " + e);
+					connection.onDisconnected();
+				}
+			}
+		}
+
+		closeAllConnections();
+		if (logger.isDebugEnabled())
+			logger.debug("NioReactor stopped");
+	}
+
+	private void registerPendingConnections() {
+		NioClientConnection connection;
+		while ((connection = pendingRegistrations.poll()) != null) {
+			try {
+				SelectionKey key = connection.getChannel().register(selector,
+						SelectionKey.OP_READ, connection);
+				connection.setSelectionKey(key);
+				// writes may have been queued before registration
+				connection.updateInterestOps();
+			} catch (ClosedChannelException e) {
+				logger.error("Connection closed before registration : " + e);
+				connection.onDisconnected();
+			}
+		}
+	}
+
+	private void updatePendingInterestOps() {
+		NioClientConnection connection;
+		while ((connection = pendingInterestUpdates.poll()) != null)
+			connection.updateInterestOps();
+	}
+
+	private void closeAllConnections() {
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() != null)
+				((NioClientConnection) key.attachment()).onDisconnected();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			logger.error("Exception while closing selector : " + e);
+		}
+	}
+
+	public void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+}
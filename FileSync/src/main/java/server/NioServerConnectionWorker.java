@@ -0,0 +1,151 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import common.ExecutionMode;
+import common.FileConnectionDispatcher;
+import common.TaskExecutor;
+
+/**
+ * @author Ashish Pahlazani This class accepts connections from clients using
+ *         a selector and distributes them over a fixed set of NioReactor
+ *         threads. Messages received from clients are handled on a worker pool,
+ *         threads of the worker pool are created on demand and retired when
+ *         idle, so number of threads depends on the load and not on the
+ *         number of connected clients. In VIRTUAL execution mode messages are
+ *         handled on virtual threads of the shared TaskExecutor instead.
+ */
+public class NioServerConnectionWorker extends ServerConnectionWorker {
+	private static final Logger logger = Logger
+			.getLogger(NioServerConnectionWorker.class);
+
+	private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+	private ServerSocketChannel serverSocketChannel;
+	private Selector acceptSelector;
+	private NioReactor[] reactors;
+	private ExecutorService workerPool;
+	private int nextReactor = 0;
+
+	public NioServerConnectionWorker(ServerSocketChannel serverSocketChannel,
+			FileConnectionDispatcher fileConnectionDispatcher, IServer iServer,
+			TaskExecutor taskExecutor, int ioThreadCount, int workerThreadCount)
+			throws IOException {
+		super(serverSocketChannel.socket(), fileConnectionDispatcher, iServer,
+				taskExecutor);
+		if (logger.isDebugEnabled())
+			logger.debug("NioServerConnectionWorker Constructor - ENTER ioThreadCount = "
+					+ ioThreadCount + " workerThreadCount = " + workerThreadCount);
+
+		this.serverSocketChannel = serverSocketChannel;
+		serverSocketChannel.configureBlocking(false);
+		acceptSelector = Selector.open();
+		serverSocketChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+
+		if (taskExecutor.getExecutionMode() == ExecutionMode.VIRTUAL) {
+			workerPool = taskExecutor.getExecutorService();
+		} else {
+			ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(
+					workerThreadCount, workerThreadCount,
+					WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>());
+			threadPoolExecutor.allowCoreThreadTimeOut(true);
+			workerPool = threadPoolExecutor;
+		}
+
+		reactors = new NioReactor[ioThreadCount];
+		for (int i = 0; i < ioThreadCount; i++) {
+			reactors[i] = new NioReactor();
+			Thread reactorThread = new Thread(reactors[i], "NioReactor-" + i);
+			reactorThread.start();
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug("NioServerConnectionWorker Constructor - LEAVE");
+	}
+
+	@Override
+	public void run() {
+		if (logger.isDebugEnabled())
+			logger.debug("NIO Server Connection Started");
+
+		while (iServer.isServerRunning() && serverSocketChannel.isOpen()) {
+			try {
+				acceptSelector.select();
+
+				Iterator<SelectionKey> iterator = acceptSelector.selectedKeys()
+						.iterator();
+				while (iterator.hasNext()) {
+					SelectionKey key = iterator.next();
+					iterator.remove();
+					if (key.isValid() && key.isAcceptable())
+						acceptConnection();
+				}
+			} catch (IOException e) {
+				logger.error("Exception while accepting new connection " + e);
+			}
+		}
+
+		try {
+			acceptSelector.close();
+		} catch (IOException e) {
+			logger.error("Exception while closing accept selector : " + e);
+		}
+
+		if (logger.isDebugEnabled())
+			logger.debug("NIO Server Connection Stopped");
+	}
+
+	private void acceptConnection() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverSocketChannel.accept()) != null) {
+			if (getClientCount() >= maxConnectionCount) {
+				logger.error("Max connection count reached, rejecting connection from "
+						+ channel.socket().getInetAddress());
+				channel.close();
+				continue;
+			}
+
+			if (logger.isDebugEnabled())
+				logger.debug("new Client connected");
+
+			NioReactor reactor = reactors[nextReactor];
+			nextReactor = (nextReactor + 1) % reactors.length;
+
+			NioClientConnection connection = new NioClientConnection(channel,
+					reactor, workerPool, iServer.getServerMetrics()
+							.getControlStage());
+			ClientHandler cHandler = new ClientHandler(connection, this,
+					fileConnectionDispatcher, taskExecutor);
+			connection.setClientHandler(cHandler);
+			addClientHandler(cHandler);
+			reactor.register(connection);
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		if (logger.isDebugEnabled())
+			logger.debug("shutdown - ENTER");
+
+		super.shutdown();
+		for (NioReactor reactor : reactors)
+			reactor.shutdown();
+		acceptSelector.wakeup();
+		workerPool.shutdown();
+
+		if (logger.isDebugEnabled())
+			logger.debug("shutdown - LEAVE");
+	}
+}
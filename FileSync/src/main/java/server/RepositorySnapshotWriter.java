@@ -0,0 +1,217 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import common.Actions;
+import common.Message;
+import common.RepositorySnapshot;
+import common.chunk.Chunk;
+
+/**
+ * @author Ashish Pahlazani Writes a RepositorySnapshot of the files listed in
+ *         the change feed up to the snapshot revision, deleted paths
+ *         included. The files are read one after the other in the order of
+ *         the feed, so the stream is written as fast as the files can be
+ *         read. On a channel the bytes of a file go with transferTo, without
+ *         being copied through the heap.
+ *
+ *         A file replaced while the snapshot is written is sent as it is when
+ *         it is opened, with the revision of the feed, its new revision comes
+ *         with the changes after the snapshot. A file of the chunk store is
+ *         sent as the concatenation of its chunks.
+ */
+public class RepositorySnapshotWriter {
+	private static final Logger logger = Logger
+			.getLogger(RepositorySnapshotWriter.class);
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// transferTo is called in slices, large transfers may be cut short by the OS
+	private static final long MAX_TRANSFER_SIZE = 8 * 1024 * 1024;
+
+	private ChangeFeed changeFeed;
+	private String rootFolderPath;
+	private ChunkStore chunkStore;
+	private long snapshotRevision;
+	private WritableByteChannel channel;
+	private DataOutputStream outputStream;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private int entryCount;
+	private long bytesWritten;
+
+	/**
+	 * @param changeFeed
+	 * @param rootFolderPath
+	 * @param chunkStore
+	 *            : null if the files are stored as they are
+	 * @param snapshotRevision
+	 *            : see ChangeFeed.getLastChangeRevision
+	 */
+	public RepositorySnapshotWriter(ChangeFeed changeFeed,
+			String rootFolderPath, ChunkStore chunkStore, long snapshotRevision) {
+		this.changeFeed = changeFeed;
+		this.rootFolderPath = rootFolderPath;
+		this.chunkStore = chunkStore;
+		this.snapshotRevision = snapshotRevision;
+	}
+
+	public int getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * @return bytes of the files written
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * @param channel
+	 *            : connection to the file port of the client, not closed
+	 * @throws IOException
+	 */
+	public void write(WritableByteChannel channel) throws IOException {
+		this.channel = channel;
+		write(Channels.newOutputStream(channel));
+	}
+
+	/**
+	 * @param stream
+	 *            : stream to which the snapshot is written, not closed
+	 * @throws IOException
+	 */
+	public void write(OutputStream stream) throws IOException {
+		outputStream = new DataOutputStream(new BufferedOutputStream(stream,
+				BUFFER_SIZE));
+		outputStream.writeInt(RepositorySnapshot.MAGIC);
+		outputStream.writeLong(snapshotRevision);
+
+		long afterRevision = 0;
+		while (afterRevision < snapshotRevision) {
+			Message page = changeFeed.getSnapshotPage(afterRevision,
+					snapshotRevision);
+			for (Message change : page.getEntries()) {
+				if (change.getAction() == Actions.DELETE)
+					writeDeletedEntry(change);
+				else
+					writeFileEntry(change);
+			}
+			afterRevision = page.getRevisionNumber();
+		}
+
+		outputStream.writeByte(RepositorySnapshot.END_ENTRY);
+		outputStream.writeInt(entryCount);
+		outputStream.flush();
+
+		if (logger.isInfoEnabled())
+			logger.info("snapshot written, revision = " + snapshotRevision
+					+ " entries = " + entryCount + " bytes = " + bytesWritten);
+	}
+
+	private void writeDeletedEntry(Message change) throws IOException {
+		outputStream.writeByte(RepositorySnapshot.DELETED_ENTRY);
+		outputStream.writeUTF(change.getPath());
+		outputStream.writeLong(change.getRevisionNumber());
+		entryCount++;
+	}
+
+	/**
+	 * A file deleted since its change was recorded is left out, its deletion
+	 * comes with the changes after the snapshot
+	 */
+	private void writeFileEntry(Message change) throws IOException {
+		File file = new File(rootFolderPath + "/" + change.getPath());
+		List<Chunk> chunks = chunkStore == null ? null : ChunkStore
+				.readManifest(file);
+		if (chunks != null) {
+			writeChunkedFileEntry(change, chunks);
+			return;
+		}
+
+		FileInputStream inputStream;
+		try {
+			inputStream = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			if (logger.isDebugEnabled())
+				logger.debug("file deleted, not in snapshot : " + file);
+			return;
+		}
+		try {
+			// size of the file opened, a new file is renamed over it
+			FileChannel fileChannel = inputStream.getChannel();
+			long length = fileChannel.size();
+			writeEntryHeader(change, length);
+			copy(fileChannel, length);
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	private void writeChunkedFileEntry(Message change, List<Chunk> chunks)
+			throws IOException {
+		long length = 0;
+		for (Chunk chunk : chunks)
+			length += chunk.getLength();
+		writeEntryHeader(change, length);
+		for (Chunk chunk : chunks) {
+			FileInputStream inputStream = new FileInputStream(
+					chunkStore.getChunkFile(chunk));
+			try {
+				copy(inputStream.getChannel(), chunk.getLength());
+			} finally {
+				inputStream.close();
+			}
+		}
+	}
+
+	private void writeEntryHeader(Message change, long length)
+			throws IOException {
+		outputStream.writeByte(RepositorySnapshot.FILE_ENTRY);
+		outputStream.writeUTF(change.getPath());
+		outputStream.writeLong(change.getRevisionNumber());
+		outputStream.writeLong(length);
+		entryCount++;
+	}
+
+	/**
+	 * Copies exactly length bytes, the stream would be corrupted otherwise
+	 */
+	private void copy(FileChannel fileChannel, long length) throws IOException {
+		long position = 0;
+		if (channel != null) {
+			outputStream.flush();
+			while (position < length) {
+				long count = fileChannel.transferTo(position,
+						Math.min(length - position, MAX_TRANSFER_SIZE), channel);
+				if (count <= 0)
+					break;
+				position += count;
+			}
+		}
+
+		// channel which does not support transferTo, or stream of frames
+		while (position < length) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), length - position));
+			int count = fileChannel.read(buffer, position);
+			if (count < 0)
+				throw new IOException("File truncated while sending snapshot");
+			outputStream.write(buffer.array(), 0, count);
+			position += count;
+		}
+		bytesWritten += length;
+	}
+}
@@ -0,0 +1,622 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.log4j.Logger;
+
+import common.Actions;
+import common.IRevisionIndex;
+
+/**
+ * @author Ashish Pahlazani Write-ahead journal of the revision state of the
+ *         server: the revision number set for each path and the changes
+ *         recorded in the change feed. Records are appended to a buffer and
+ *         written with one fsync for all the records appended since the last
+ *         one (group commit), by the first thread which waits for them to be
+ *         saved, so concurrent clients share the fsyncs.
+ *
+ *         The journal is split in generations. When the current one is bigger
+ *         than compactionSize a new generation is started and a snapshot of
+ *         the whole state is written next to it, the older generations are
+ *         then deleted. At startup the snapshot is loaded and the generations
+ *         written after it are replayed, a record torn by a crash is detected
+ *         by its checksum and ends the replay of its generation. A persistent
+ *         revision index is flushed instead of being written in the snapshot.
+ *
+ *         Appends are made under the monitor of the journal. Callers which
+ *         update the state in memory hold it for the update and the append,
+ *         so the records of a path are in the order of the updates, and a
+ *         snapshot taken after a new generation is started contains every
+ *         update appended to the previous ones.
+ */
+public class RevisionJournal {
+	private static final Logger logger = Logger.getLogger(RevisionJournal.class);
+
+	private static final int SNAPSHOT_MAGIC = 0x46535331;
+	private static final byte END_RECORD = 0;
+	private static final byte REVISION_RECORD = 1;
+	private static final byte CHANGE_RECORD = 2;
+	// the revision numbers are in the persistent revision index
+	private static final byte INDEX_RECORD = 3;
+	private static final int MAX_RECORD_SIZE = 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final long COMPACTION_CHECK_INTERVAL = 10;
+	private static final String SNAPSHOT_FILE_NAME = "snapshot";
+	private static final String JOURNAL_FILE_PREFIX = "journal-";
+	private static final String JOURNAL_FILE_SUFFIX = ".log";
+	private static final Actions[] ACTIONS = Actions.values();
+
+	/**
+	 * State written in the snapshot
+	 */
+	public interface IRevisionState {
+		public long getCurrentRevisionNumber();
+
+		/**
+		 * @return revision number by path, may be updated while the snapshot
+		 *         is written
+		 */
+		public IRevisionIndex getRevisionIndex();
+
+		public List<ChangeFeed.Change> getChanges();
+
+		/**
+		 * Called once a snapshot is written, the state kept out of the
+		 * journal can be saved too
+		 */
+		public void snapshotWritten();
+	}
+
+	private static class RecordBuffer extends ByteArrayOutputStream {
+		RecordBuffer() {
+			super(256);
+		}
+
+		void updateChecksum(CRC32 checksum) {
+			checksum.update(buf, 0, count);
+		}
+	}
+
+	private static class RecordInput extends ByteArrayInputStream {
+		RecordInput() {
+			super(new byte[256]);
+		}
+
+		byte[] prepare(int length) {
+			if (buf.length < length)
+				buf = new byte[Math.max(length, 2 * buf.length)];
+			pos = 0;
+			count = length;
+			return buf;
+		}
+	}
+
+	private File folder;
+	private long compactionSize;
+	private IRevisionState state;
+	private ScheduledExecutorService compactionExecutor;
+
+	private FileChannel channel;
+	private long generation;
+	private long journalSize;
+	private RecordBuffer record = new RecordBuffer();
+	private DataOutputStream recordOutput = new DataOutputStream(record);
+	private CRC32 checksum = new CRC32();
+	// records appended but not written yet
+	private ByteArrayOutputStream pending = new ByteArrayOutputStream(BUFFER_SIZE);
+	private DataOutputStream pendingOutput = new DataOutputStream(pending);
+	private long appendedSequence;
+	private long syncedSequence;
+	private long syncCount;
+	private boolean syncing;
+	private IOException failure;
+
+	/**
+	 * @param folder
+	 *            : folder of the snapshot and of the journal files
+	 * @param compactionSize
+	 *            : size of the journal from which a snapshot is written
+	 */
+	public RevisionJournal(File folder, long compactionSize) {
+		this.folder = folder;
+		this.compactionSize = compactionSize;
+	}
+
+	/**
+	 * @return true if a snapshot or a journal was written in the folder
+	 */
+	public boolean exists() {
+		return getSnapshotFile().exists() || !listGenerations().isEmpty();
+	}
+
+	/**
+	 * Loads the snapshot and replays the journal written after it
+	 *
+	 * @param revisionIndex
+	 *            : filled with the revision number of each path
+	 * @param changeFeed
+	 *            : filled with the changes
+	 * @return highest revision number used
+	 * @throws IOException
+	 */
+	public long recover(IRevisionIndex revisionIndex, ChangeFeed changeFeed)
+			throws IOException {
+		long revisionNumber = 0;
+		long startGeneration = 0;
+		long recordCount = 0;
+
+		File snapshotFile = getSnapshotFile();
+		if (snapshotFile.exists()) {
+			CheckedInputStream checkedInputStream = new CheckedInputStream(
+					new BufferedInputStream(new FileInputStream(snapshotFile),
+							BUFFER_SIZE), new CRC32());
+			DataInputStream input = new DataInputStream(checkedInputStream);
+			try {
+				if (input.readInt() != SNAPSHOT_MAGIC)
+					throw new IOException("not a snapshot : " + snapshotFile);
+				startGeneration = input.readLong();
+				revisionNumber = input.readLong();
+				byte type;
+				while ((type = input.readByte()) != END_RECORD) {
+					if (type == INDEX_RECORD) {
+						if (!revisionIndex.isPersistent())
+							throw new IOException(
+									"revision numbers saved in the mapped revision index, REVISION_INDEX must be MAPPED");
+						continue;
+					}
+					revisionNumber = Math.max(revisionNumber,
+							readRecord(type, input, revisionIndex, changeFeed));
+					recordCount++;
+				}
+				long expectedChecksum = checkedInputStream.getChecksum()
+						.getValue();
+				if (input.readLong() != expectedChecksum)
+					throw new IOException("corrupted snapshot : "
+							+ snapshotFile);
+			} finally {
+				input.close();
+			}
+		}
+
+		long lastGeneration = startGeneration;
+		RecordInput recordInput = new RecordInput();
+		DataInputStream recordData = new DataInputStream(recordInput);
+		for (long journalGeneration : listGenerations()) {
+			if (journalGeneration < startGeneration)
+				continue;
+			lastGeneration = journalGeneration;
+			File journalFile = getJournalFile(journalGeneration);
+			DataInputStream input = new DataInputStream(
+					new BufferedInputStream(new FileInputStream(journalFile),
+							BUFFER_SIZE));
+			try {
+				while (true) {
+					int length;
+					try {
+						length = input.readInt();
+					} catch (EOFException e) {
+						break;
+					}
+					try {
+						int expectedChecksum = input.readInt();
+						if (length <= 0 || length > MAX_RECORD_SIZE)
+							throw new IOException("invalid record length "
+									+ length);
+						byte[] bytes = recordInput.prepare(length);
+						input.readFully(bytes, 0, length);
+						checksum.reset();
+						checksum.update(bytes, 0, length);
+						if ((int) checksum.getValue() != expectedChecksum)
+							throw new IOException("invalid record checksum");
+					} catch (IOException e) {
+						// torn by a crash, nothing was acknowledged after it
+						logger.error("journal " + journalFile
+								+ " truncated after " + recordCount
+								+ " records : " + e);
+						break;
+					}
+					revisionNumber = Math.max(revisionNumber,
+							readRecord(recordData.readByte(), recordData,
+									revisionIndex, changeFeed));
+					recordCount++;
+				}
+			} finally {
+				input.close();
+			}
+		}
+		generation = lastGeneration;
+
+		if (logger.isInfoEnabled())
+			logger.info("revision journal recovered, records = " + recordCount
+					+ " revisionNumber = " + revisionNumber);
+		return revisionNumber;
+	}
+
+	/**
+	 * Starts a new generation of the journal, to which the records are
+	 * appended, and the periodic compaction
+	 *
+	 * @param state
+	 *            : written in the snapshots
+	 * @throws IOException
+	 */
+	public void open(IRevisionState state) throws IOException {
+		this.state = state;
+		if (!folder.exists() && !folder.mkdirs())
+			throw new IOException("can not create journal folder " + folder);
+		synchronized (this) {
+			channel = openGeneration(++generation);
+		}
+
+		compactionExecutor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable,
+								"revision-journal-compaction");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (getJournalSize() >= compactionSize)
+						compact();
+				} catch (IOException e) {
+					logger.error("Exception while compacting revision journal : "
+							+ e);
+				}
+			}
+		}, COMPACTION_CHECK_INTERVAL, COMPACTION_CHECK_INTERVAL,
+				TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @param relativePath
+	 * @param revisionNumber
+	 * @return sequence number to wait for with sync
+	 */
+	public synchronized long appendRevision(String relativePath,
+			long revisionNumber) {
+		record.reset();
+		try {
+			writeRevision(recordOutput, relativePath, revisionNumber);
+		} catch (IOException e) {
+			// not thrown by a ByteArrayOutputStream
+			throw new IllegalStateException(e);
+		}
+		return appendRecord();
+	}
+
+	/**
+	 * @param change
+	 * @return sequence number to wait for with sync
+	 */
+	public synchronized long appendChange(ChangeFeed.Change change) {
+		record.reset();
+		try {
+			writeChange(recordOutput, change);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return appendRecord();
+	}
+
+	/**
+	 * Waits until the record of the sequence number, and the ones appended
+	 * before, are on disk. If no thread is writing the journal the records
+	 * appended so far are written and synced by this thread, otherwise it
+	 * waits for the thread which is.
+	 *
+	 * @param sequence
+	 * @throws IOException
+	 */
+	public void sync(long sequence) throws IOException {
+		while (true) {
+			byte[] bytes;
+			long targetSequence;
+			FileChannel targetChannel;
+			synchronized (this) {
+				while (syncing && syncedSequence < sequence) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException(
+								"interrupted while syncing the revision journal");
+					}
+				}
+				if (failure != null)
+					throw failure;
+				if (syncedSequence >= sequence)
+					return;
+				syncing = true;
+				bytes = pending.toByteArray();
+				pending.reset();
+				targetSequence = appendedSequence;
+				targetChannel = channel;
+			}
+
+			IOException exception = null;
+			try {
+				write(targetChannel, bytes);
+			} catch (IOException e) {
+				exception = e;
+			}
+			synchronized (this) {
+				syncing = false;
+				if (exception == null) {
+					syncedSequence = targetSequence;
+					journalSize += bytes.length;
+					syncCount++;
+				} else
+					failure = exception;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Waits until all the records appended so far are on disk
+	 *
+	 * @throws IOException
+	 */
+	public void syncAll() throws IOException {
+		long sequence;
+		synchronized (this) {
+			sequence = appendedSequence;
+		}
+		sync(sequence);
+	}
+
+	/**
+	 * Starts a new generation, writes the snapshot of the state, and deletes
+	 * the generations written before the snapshot
+	 *
+	 * @throws IOException
+	 */
+	public void compact() throws IOException {
+		long startGeneration;
+		long start = System.currentTimeMillis();
+		synchronized (this) {
+			while (syncing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException(
+							"interrupted while compacting the revision journal");
+				}
+			}
+			if (failure != null)
+				throw failure;
+			try {
+				write(channel, pending.toByteArray());
+				channel.close();
+				startGeneration = ++generation;
+				channel = openGeneration(startGeneration);
+			} catch (IOException e) {
+				failure = e;
+				throw e;
+			}
+			pending.reset();
+			syncedSequence = appendedSequence;
+			journalSize = 0;
+			notifyAll();
+		}
+
+		writeSnapshot(startGeneration);
+		for (long journalGeneration : listGenerations()) {
+			if (journalGeneration < startGeneration)
+				getJournalFile(journalGeneration).delete();
+		}
+		state.snapshotWritten();
+		if (logger.isInfoEnabled())
+			logger.info("revision journal compacted in "
+					+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Syncs the records appended so far and closes the journal, no snapshot
+	 * is written so the shutdown does not depend on the number of files
+	 */
+	public void close() {
+		if (compactionExecutor != null)
+			compactionExecutor.shutdownNow();
+		try {
+			syncAll();
+		} catch (IOException e) {
+			logger.error("Exception while syncing revision journal : " + e);
+		}
+		synchronized (this) {
+			try {
+				if (channel != null)
+					channel.close();
+			} catch (IOException e) {
+				logger.error("Exception while closing revision journal : " + e);
+			}
+		}
+	}
+
+	/**
+	 * @return size of the current generation
+	 */
+	public synchronized long getJournalSize() {
+		return journalSize + pending.size();
+	}
+
+	/**
+	 * @return number of fsyncs, each one saved all the records pending
+	 */
+	public synchronized long getSyncCount() {
+		return syncCount;
+	}
+
+	private long appendRecord() {
+		checksum.reset();
+		record.updateChecksum(checksum);
+		try {
+			pendingOutput.writeInt(record.size());
+			pendingOutput.writeInt((int) checksum.getValue());
+			record.writeTo(pendingOutput);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return ++appendedSequence;
+	}
+
+	private void writeSnapshot(long startGeneration) throws IOException {
+		File temporaryFile = new File(folder, SNAPSHOT_FILE_NAME + ".tmp");
+		FileOutputStream fos = new FileOutputStream(temporaryFile);
+		try {
+			CheckedOutputStream checkedOutputStream = new CheckedOutputStream(
+					new BufferedOutputStream(fos, BUFFER_SIZE), new CRC32());
+			DataOutputStream output = new DataOutputStream(checkedOutputStream);
+			output.writeInt(SNAPSHOT_MAGIC);
+			output.writeLong(startGeneration);
+			output.writeLong(state.getCurrentRevisionNumber());
+			IRevisionIndex revisionIndex = state.getRevisionIndex();
+			if (revisionIndex.isPersistent()) {
+				// holds every update appended to the previous generations
+				revisionIndex.flush();
+				output.writeByte(INDEX_RECORD);
+			} else {
+				final DataOutputStream snapshotOutput = output;
+				revisionIndex.forEach(new IRevisionIndex.IEntryVisitor() {
+					@Override
+					public void visit(String relativePath, long revisionNumber)
+							throws IOException {
+						writeRevision(snapshotOutput, relativePath,
+								revisionNumber);
+					}
+				});
+			}
+			for (ChangeFeed.Change change : state.getChanges())
+				writeChange(output, change);
+			output.writeByte(END_RECORD);
+			output.writeLong(checkedOutputStream.getChecksum().getValue());
+			output.flush();
+			fos.getChannel().force(true);
+		} finally {
+			fos.close();
+		}
+		Files.move(temporaryFile.toPath(), getSnapshotFile().toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void writeRevision(DataOutputStream output,
+			String relativePath, long revisionNumber) throws IOException {
+		output.writeByte(REVISION_RECORD);
+		output.writeUTF(relativePath);
+		output.writeLong(revisionNumber);
+	}
+
+	private static void writeChange(DataOutputStream output,
+			ChangeFeed.Change change) throws IOException {
+		output.writeByte(CHANGE_RECORD);
+		output.writeUTF(change.path);
+		output.writeByte(change.action.ordinal());
+		output.writeLong(change.revisionNumber);
+		output.writeLong(change.changeRevision);
+	}
+
+	/**
+	 * @return highest revision number of the record
+	 */
+	private static long readRecord(byte type, DataInputStream input,
+			IRevisionIndex revisionIndex, ChangeFeed changeFeed)
+			throws IOException {
+		String relativePath = input.readUTF();
+		switch (type) {
+		case REVISION_RECORD:
+			long revisionNumber = input.readLong();
+			revisionIndex.put(relativePath, revisionNumber);
+			return revisionNumber;
+		case CHANGE_RECORD:
+			Actions action = ACTIONS[input.readByte()];
+			ChangeFeed.Change change = new ChangeFeed.Change(relativePath,
+					action, input.readLong(), input.readLong());
+			changeFeed.restore(change);
+			return Math.max(change.revisionNumber, change.changeRevision);
+		default:
+			throw new IOException("unknown journal record " + type);
+		}
+	}
+
+	private static void write(FileChannel channel, byte[] bytes)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		channel.force(false);
+	}
+
+	private FileChannel openGeneration(long journalGeneration)
+			throws IOException {
+		return FileChannel.open(getJournalFile(journalGeneration).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	private File getSnapshotFile() {
+		return new File(folder, SNAPSHOT_FILE_NAME);
+	}
+
+	private File getJournalFile(long journalGeneration) {
+		return new File(folder, String.format("%s%012d%s",
+				JOURNAL_FILE_PREFIX, journalGeneration, JOURNAL_FILE_SUFFIX));
+	}
+
+	/**
+	 * @return generations of the journal files in the folder, in order
+	 */
+	private List<Long> listGenerations() {
+		List<Long> generations = new ArrayList<Long>();
+		String[] names = folder.list();
+		if (names == null)
+			return generations;
+		for (String name : names) {
+			if (name.startsWith(JOURNAL_FILE_PREFIX)
+					&& name.endsWith(JOURNAL_FILE_SUFFIX)) {
+				try {
+					generations.add(Long.parseLong(name.substring(
+							JOURNAL_FILE_PREFIX.length(), name.length()
+									- JOURNAL_FILE_SUFFIX.length())));
+				} catch (NumberFormatException e) {
+					// not a journal file
+				}
+			}
+		}
+		Collections.sort(generations);
+		return generations;
+	}
+}
@@ -3,21 +3,37 @@ package server;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 
+import common.CompressionCodec;
 import common.ConfigurationException;
+import common.ExecutionMode;
+import common.FileConnectionDispatcher;
+import common.IRevisionIndex;
+import common.MappedRevisionIndex;
+import common.MemoryRevisionIndex;
+import common.Message;
+import common.RevisionIndexMode;
+import common.SerializationUtil;
+import common.StagedFile;
+import common.TaskExecutor;
+import common.TransferCompression;
+import common.TrieRevisionIndex;
+import common.delta.DeltaTransfer;
 
 /**
  * @author Ashish Pahlazani This is the main class for initializing server. It
@@ -33,32 +49,115 @@ public class Server implements IServer {
 	public static String rootFolderPath = "F:/FileSync/Server";
 	private int port = 2001;
 	private int filePort = 2002;
+	private ServerMode serverMode = ServerMode.BLOCKING;
+	private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+	private TaskExecutor taskExecutor;
+	private int nioIoThreadCount = Math.max(1, Runtime.getRuntime()
+			.availableProcessors() / 2);
+	private int nioWorkerThreadCount = Runtime.getRuntime()
+			.availableProcessors() * 4;
 	private ServerSocket serverSocket;
 	private ServerSocket fileReceiveServerSocket;
+	private FileConnectionDispatcher fileConnectionDispatcher;
 	private ServerConnectionWorker serverConnectionWorker;
-	private Map<String, Long> filesStatus;
+	private SyncQueuePolicy syncQueuePolicy;
+	private ServerMetrics serverMetrics = new ServerMetrics();
+	private DeltaTransfer deltaTransfer;
+	private Set<CompressionCodec> compressionCodecs;
+	private int transferStreams = 4;
+	private long transferRangeSize = 8L * 1024 * 1024;
+	private int transferThreadCount = 16;
+	private int transferQueueSize = 1000;
+	private TransferStage transferStage;
+	private StorageMode storageMode = StorageMode.FILES;
+	private String chunkStorePath = "chunks";
+	private ChunkStore chunkStore;
+	private ChangeFeed changeFeed;
+	private int changesPageSize = Message.MAX_BATCH_ENTRIES;
+	private String journalPath = "journal";
+	private long journalCompactionSize = 64L * 1024 * 1024;
+	private long resumeFileMaxAgeHours = 24;
+	private RevisionJournal revisionJournal;
+	private RevisionIndexMode revisionIndexMode = RevisionIndexMode.MEMORY;
+	private String revisionIndexPath = "revisions";
+	private String digestTreePath = "digests";
+	private IRevisionIndex filesStatus;
+	// written in the snapshots of the revision journal
+	private RevisionJournal.IRevisionState revisionState = new RevisionJournal.IRevisionState() {
+		@Override
+		public long getCurrentRevisionNumber() {
+			return currentRevisionNumber.get();
+		}
+
+		@Override
+		public IRevisionIndex getRevisionIndex() {
+			return filesStatus;
+		}
+
+		@Override
+		public List<ChangeFeed.Change> getChanges() {
+			return changeFeed.saveChanges();
+		}
+
+		@Override
+		public void snapshotWritten() {
+			saveDigestTree();
+		}
+	};
 	private boolean isServerRunning = false;
 	private Properties usernamePasswordProperties;
 
 	public Server(Properties properties) {
 		loadProperties(properties);
-		filesStatus = new ConcurrentHashMap<String, Long>();
 
 		try {
 			loadRevisionNumberAndFileStatus();
-			serverSocket = new ServerSocket(port);
-			fileReceiveServerSocket = new ServerSocket(filePort);
-			serverConnectionWorker = new ServerConnectionWorker(serverSocket,
-					fileReceiveServerSocket, this);
-
+			deleteStaleTempFiles();
+			if (storageMode == StorageMode.CHUNKED) {
+				chunkStore = new ChunkStore(new File(chunkStorePath));
+				chunkStore.collectGarbage(new File(rootFolderPath));
+			}
+			// opened as a channel so accepted sockets support transferFrom
+			ServerSocketChannel fileServerSocketChannel = ServerSocketChannel
+					.open();
+			fileServerSocketChannel.socket().bind(
+					new InetSocketAddress(filePort));
+			fileReceiveServerSocket = fileServerSocketChannel.socket();
+
+			// isServerRunning is checked by the worker threads started below
 			isServerRunning = true;
+			serverMetrics.register();
+			taskExecutor = new TaskExecutor(executionMode);
+			transferStage = new TransferStage(transferThreadCount,
+					transferQueueSize, serverMetrics.getTransferStage());
+			// the files of all the clients are received on the file port
+			fileConnectionDispatcher = new FileConnectionDispatcher(
+					fileReceiveServerSocket, taskExecutor);
+			new Thread(fileConnectionDispatcher, "FileConnectionDispatcher")
+					.start();
+
+			if (serverMode == ServerMode.NIO) {
+				ServerSocketChannel serverSocketChannel = ServerSocketChannel
+						.open();
+				serverSocketChannel.socket().bind(new InetSocketAddress(port));
+				serverSocket = serverSocketChannel.socket();
+				serverConnectionWorker = new NioServerConnectionWorker(
+						serverSocketChannel, fileConnectionDispatcher, this,
+						taskExecutor, nioIoThreadCount, nioWorkerThreadCount);
+			} else {
+				serverSocket = new ServerSocket(port);
+				serverConnectionWorker = new ServerConnectionWorker(
+						serverSocket, fileConnectionDispatcher, this,
+						taskExecutor);
+			}
 
 			Thread serverConnectionWorkerThread = new Thread(
 					serverConnectionWorker);
 			serverConnectionWorkerThread.start();
 
 			if (logger.isDebugEnabled())
-				logger.debug("serverConnectionThread started");
+				logger.debug("serverConnectionThread started, serverMode = "
+						+ serverMode);
 		} catch (IOException e) {
 			shutdown();
 			logger.error("Exception while initializing Server Exception : " + e);
@@ -76,9 +175,7 @@ public class Server implements IServer {
 			logger.debug("getRevisionNumber Enter/Leave relativePathOfFile = "
 					+ relativePathOfFile);
 
-		Long revisionNumber = filesStatus.get(relativePathOfFile);
-		if (revisionNumber == null)
-			revisionNumber = -1L;
+		long revisionNumber = filesStatus.get(relativePathOfFile);
 
 		if (logger.isDebugEnabled())
 			logger.debug("revisionNumber = " + revisionNumber);
@@ -93,8 +190,14 @@ public class Server implements IServer {
 					+ relativePathOfFile + " new revisionNumber = "
 					+ newRevisionNumber);
 
-		Long revisionNumber = filesStatus.get(relativePathOfFile);
-		filesStatus.put(relativePathOfFile, newRevisionNumber);
+		long revisionNumber;
+		// the journal gets the revisions of a path in the order of the updates
+		synchronized (revisionJournal) {
+			revisionNumber = filesStatus.get(relativePathOfFile);
+			filesStatus.put(relativePathOfFile, newRevisionNumber);
+			revisionJournal.appendRevision(relativePathOfFile,
+					newRevisionNumber);
+		}
 
 		if (logger.isDebugEnabled())
 			logger.debug("setRevisionNumber - LEAVE oldRevisionNumber = "
@@ -102,6 +205,15 @@ public class Server implements IServer {
 					+ newRevisionNumber);
 	}
 
+	@Override
+	public void syncRevisionNumbers() {
+		try {
+			revisionJournal.syncAll();
+		} catch (IOException e) {
+			logger.error("Exception while saving revision numbers : " + e);
+		}
+	}
+
 	@Override
 	public AtomicLong getCurrentRevisionNumber() {
 		if (logger.isDebugEnabled())
@@ -125,11 +237,57 @@ public class Server implements IServer {
 		return isServerRunning;
 	}
 
+	@Override
+	public SyncQueuePolicy getSyncQueuePolicy() {
+		return syncQueuePolicy;
+	}
+
+	@Override
+	public ServerMetrics getServerMetrics() {
+		return serverMetrics;
+	}
+
+	@Override
+	public DeltaTransfer getDeltaTransfer() {
+		return deltaTransfer;
+	}
+
+	@Override
+	public Set<CompressionCodec> getCompressionCodecs() {
+		return compressionCodecs;
+	}
+
+	@Override
+	public int getTransferStreams() {
+		return transferStreams;
+	}
+
+	@Override
+	public long getTransferRangeSize() {
+		return transferRangeSize;
+	}
+
+	@Override
+	public TransferStage getTransferStage() {
+		return transferStage;
+	}
+
+	@Override
+	public ChunkStore getChunkStore() {
+		return chunkStore;
+	}
+
+	@Override
+	public ChangeFeed getChangeFeed() {
+		return changeFeed;
+	}
+
 	/**
 	 * This method loads the file status, i.e, the revision no. of each file in
-	 * the repository The status will be saved in a file, using serialization.
-	 * The status is loaded in concurrentHashMap as of now, but it can be
-	 * maintained in database too
+	 * the repository, and the change feed, from the snapshot and the journal
+	 * of the revisions. The status is loaded in concurrentHashMap as of now,
+	 * but it can be maintained in database too. A server.dat saved by an
+	 * older version is loaded once and written as the first snapshot.
 	 * 
 	 * @throws IOException
 	 */
@@ -137,28 +295,116 @@ public class Server implements IServer {
 		if (logger.isDebugEnabled())
 			logger.debug("loadRevisionNumberAndFileStatus - ENTER");
 
+		if (revisionIndexMode == RevisionIndexMode.MAPPED)
+			filesStatus = new MappedRevisionIndex(new File(revisionIndexPath));
+		else if (revisionIndexMode == RevisionIndexMode.TRIE)
+			filesStatus = new TrieRevisionIndex();
+		else
+			filesStatus = new MemoryRevisionIndex();
+		revisionJournal = new RevisionJournal(new File(journalPath),
+				journalCompactionSize);
+		changeFeed = new ChangeFeed(currentRevisionNumber, changesPageSize,
+				revisionJournal);
+		// only the changes recorded after the saved tree are put in it
+		boolean digestTreeLoaded = changeFeed.loadDigestTree(new File(
+				digestTreePath));
+
+		boolean migrated = false;
+		if (revisionJournal.exists()) {
+			long start = System.currentTimeMillis();
+			currentRevisionNumber.set(revisionJournal.recover(filesStatus,
+					changeFeed));
+			if (logger.isInfoEnabled())
+				logger.info("currentRevisionNumber = " + currentRevisionNumber
+						+ " files = " + filesStatus.size()
+						+ " recovered in "
+						+ (System.currentTimeMillis() - start) + " ms");
+		} else
+			migrated = loadServerDat();
+
+		changeFeed.checkDigestTree();
+		revisionJournal.open(revisionState);
+		if (migrated)
+			revisionJournal.compact();
+		else if (!digestTreeLoaded)
+			saveDigestTree();
+
+		if (logger.isDebugEnabled())
+			logger.debug("loadRevisionNumberAndFileStatus - LEAVE");
+	}
+
+	/**
+	 * Saves the digest tree of the change feed, so it is not rebuilt at the
+	 * next startup
+	 */
+	private void saveDigestTree() {
+		try {
+			changeFeed.saveDigestTree(new File(digestTreePath));
+		} catch (IOException e) {
+			logger.error("Exception while saving digest tree : " + e);
+		}
+	}
+
+	/**
+	 * Loads the file status serialized in server.dat by the versions without
+	 * the revision journal
+	 * 
+	 * @return true if server.dat was loaded
+	 * @throws IOException
+	 */
+	private boolean loadServerDat() throws IOException {
 		File file = new File("server.dat");
+		List<ChangeFeed.Change> changes = null;
+		Map<String, Long> savedStatus = null;
+
+		if (!file.exists()) {
+			if (logger.isInfoEnabled())
+				logger.info("Server.dat does not exist");
+			return false;
+		}
 
-		if (file.exists()) {
-			FileInputStream fis = new FileInputStream(file);
-			ObjectInputStream ois = new ObjectInputStream(fis);
+		FileInputStream fis = new FileInputStream(file);
+		ObjectInputStream ois = new ObjectInputStream(fis);
+		try {
+			currentRevisionNumber.set(ois.readLong());
+			logger.info("currentRevisionNumber = " + currentRevisionNumber);
+			savedStatus = SerializationUtil.readMap(ois, String.class, Long.class);
 			try {
-				currentRevisionNumber = new AtomicLong(ois.readLong());
-				logger.info("currentRevisionNumber = " + currentRevisionNumber);
-				filesStatus = (Map<String, Long>) ois.readObject();
-			} catch (ClassNotFoundException e) {
-				logger.error("Exception while reading file status : " + e);
-			} finally {
-				if (ois != null)
-					ois.close();
-				if (fis != null)
-					fis.close();
+				changes = SerializationUtil.readList(ois, ChangeFeed.Change.class);
+			} catch (IOException e) {
+				// saved before the change feed existed
+				logger.info("change feed not saved, rebuilding it : " + e);
 			}
-		} else if (logger.isInfoEnabled())
-			logger.info("Server.dat does not exist");
+		} catch (ClassNotFoundException e) {
+			logger.error("Exception while reading file status : " + e);
+		} finally {
+			if (ois != null)
+				ois.close();
+			if (fis != null)
+				fis.close();
+		}
 
-		if (logger.isDebugEnabled())
-			logger.debug("loadRevisionNumberAndFileStatus - LEAVE");
+		if (savedStatus == null)
+			return false;
+		for (Map.Entry<String, Long> entry : savedStatus.entrySet())
+			filesStatus.put(entry.getKey(), entry.getValue());
+		if (changes != null)
+			changeFeed.load(changes);
+		else
+			changeFeed.rebuild(savedStatus, new File(rootFolderPath));
+		return true;
+	}
+
+	/**
+	 * Deletes the temp files of the transfers cut by the previous run. The
+	 * resumable ones are kept for RESUME_FILE_MAX_AGE_HOURS, a client may
+	 * still send the rest of the file
+	 */
+	private void deleteStaleTempFiles() {
+		int count = StagedFile.deleteStaleFiles(new File(rootFolderPath),
+				TimeUnit.HOURS.toMillis(resumeFileMaxAgeHours));
+		if (logger.isInfoEnabled())
+			logger.info("stale temp files deleted = " + count);
 	}
 
 	/**
@@ -183,10 +429,61 @@ public class Server implements IServer {
 					.getProperty("SERVER_FILE_PORT"));
 			maxConnectionCount = Integer.parseInt(properties
 					.getProperty("MAX_CONNECTION_COUNT"));
+			serverMode = ServerMode.valueOf(properties.getProperty(
+					"SERVER_MODE", serverMode.name()).trim().toUpperCase());
+			nioIoThreadCount = Integer.parseInt(properties.getProperty(
+					"NIO_IO_THREAD_COUNT", String.valueOf(nioIoThreadCount)));
+			nioWorkerThreadCount = Integer.parseInt(properties.getProperty(
+					"NIO_WORKER_THREAD_COUNT",
+					String.valueOf(nioWorkerThreadCount)));
+			executionMode = TaskExecutor.parseExecutionMode(properties
+					.getProperty("EXECUTION_MODE"));
+			syncQueuePolicy = new SyncQueuePolicy(Integer.parseInt(properties
+					.getProperty("SYNC_QUEUE_HIGH_WATERMARK", "1000")),
+					Integer.parseInt(properties.getProperty(
+							"SYNC_QUEUE_LOW_WATERMARK", "500")),
+					Integer.parseInt(properties.getProperty(
+							"SYNC_QUEUE_SLOW_CONSUMER_THRESHOLD", "10000")),
+					Long.parseLong(properties.getProperty(
+							"SYNC_QUEUE_BACKPRESSURE_TIMEOUT", "5000")));
+			deltaTransfer = new DeltaTransfer(Long.parseLong(properties
+					.getProperty("DELTA_MIN_FILE_SIZE", "1048576")),
+					Double.parseDouble(properties.getProperty(
+							"DELTA_MAX_RATIO", "0.5")));
+			compressionCodecs = TransferCompression.parseCodecs(properties
+					.getProperty("COMPRESSION"));
+			transferStreams = Integer.parseInt(properties.getProperty(
+					"TRANSFER_STREAMS", String.valueOf(transferStreams)));
+			transferRangeSize = Long.parseLong(properties.getProperty(
+					"TRANSFER_RANGE_SIZE", String.valueOf(transferRangeSize)));
+			transferThreadCount = Integer.parseInt(properties.getProperty(
+					"TRANSFER_THREADS", String.valueOf(transferThreadCount)));
+			transferQueueSize = Integer.parseInt(properties.getProperty(
+					"TRANSFER_QUEUE_SIZE", String.valueOf(transferQueueSize)));
+			changesPageSize = Integer.parseInt(properties.getProperty(
+					"CHANGES_PAGE_SIZE", String.valueOf(changesPageSize)));
+			storageMode = StorageMode.valueOf(properties.getProperty(
+					"STORAGE_MODE", storageMode.name()).trim().toUpperCase());
+			chunkStorePath = properties.getProperty("CHUNK_STORE_PATH",
+					chunkStorePath);
+			journalPath = properties.getProperty("JOURNAL_PATH", journalPath);
+			revisionIndexMode = RevisionIndexMode.valueOf(properties
+					.getProperty("REVISION_INDEX", revisionIndexMode.name())
+					.trim().toUpperCase());
+			revisionIndexPath = properties.getProperty("REVISION_INDEX_PATH",
+					revisionIndexPath);
+			digestTreePath = properties.getProperty("DIGEST_TREE_PATH",
+					digestTreePath);
+			journalCompactionSize = Long.parseLong(properties.getProperty(
+					"JOURNAL_COMPACTION_SIZE",
+					String.valueOf(journalCompactionSize)));
+			resumeFileMaxAgeHours = Long.parseLong(properties.getProperty(
+					"RESUME_FILE_MAX_AGE_HOURS",
+					String.valueOf(resumeFileMaxAgeHours)));
 
 			loadUsernamePasswordProperties();
 
-		} catch (NumberFormatException | ConfigurationException e) {
+		} catch (IllegalArgumentException | ConfigurationException e) {
 			logger.error("Exception while loading server properties : " + e);
 			throw new ConfigurationException(
 					"exception while reading properties file");
@@ -232,12 +529,30 @@ public class Server implements IServer {
 		try {
 			if (serverSocket != null)
 				serverSocket.close();
-			if (fileReceiveServerSocket != null)
+			if (fileConnectionDispatcher != null)
+				fileConnectionDispatcher.close();
+			else if (fileReceiveServerSocket != null)
 				fileReceiveServerSocket.close();
 
 			isServerRunning = false;
 
-			saveRevisionNumberAndFilesStatus();
+			if (serverConnectionWorker != null)
+				serverConnectionWorker.shutdown();
+			if (transferStage != null)
+				transferStage.shutdown();
+			if (logger.isInfoEnabled())
+				for (StageMetrics stage : serverMetrics.getStages())
+					logger.info("stage " + stage);
+			serverMetrics.unregister();
+			if (changeFeed != null) {
+				changeFeed.shutdown();
+				if (revisionJournal != null)
+					saveDigestTree();
+			}
+			if (revisionJournal != null)
+				revisionJournal.close();
+			if (filesStatus != null)
+				filesStatus.close();
 		} catch (IOException e) {
 			logger.error("Exception while closing Server Sockets Exception : "
 					+ e);
@@ -246,48 +561,6 @@ public class Server implements IServer {
 			logger.debug("shutdown - LEAVE");
 	}
 
-	/**
-	 * This method serialize the filesStatus map in a file. this method will be
-	 * called when the server is shutting down.
-	 * 
-	 * @throws IOException
-	 */
-	private void saveRevisionNumberAndFilesStatus() {
-		if (logger.isDebugEnabled())
-			logger.debug("saveRevisionNumberAndFilesStatus - ENTER");
-
-		File file = new File("server.dat");
-
-		FileOutputStream fos = null;
-		ObjectOutputStream oos = null;
-
-		try {
-			if (!file.exists()) {
-				if (logger.isInfoEnabled())
-					logger.info("Server.dat does not exist, creating file");
-				file.createNewFile();
-			}
-			fos = new FileOutputStream(file);
-			oos = new ObjectOutputStream(fos);
-			oos.writeLong(currentRevisionNumber.get());
-			oos.writeObject(filesStatus);
-
-		} catch (IOException e) {
-			logger.error("Exception while saving file status to file : " + e);
-		} finally {
-			try {
-				if (oos != null)
-					oos.close();
-				if (fos != null)
-					fos.close();
-			} catch (IOException e) {
-				logger.error("Exception while closing streams : " + e);
-			}
-		}
-		if (logger.isDebugEnabled())
-			logger.debug("saveRevisionNumberAndFilesStatus - LEAVE");
-	}
-
 	public static void main(String[] args) {
 		Properties prop = new Properties();
 		InputStream input = null;
@@ -4,14 +4,17 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
-import common.Actions;
+import common.CompressionCodec;
+import common.FileConnectionDispatcher;
+import common.Message;
+import common.TaskExecutor;
+import common.delta.DeltaTransfer;
 
 /**
  * @author Ashish Pahlazani This class waits continuously for connections from
@@ -24,27 +27,24 @@ public class ServerConnectionWorker implements Runnable, IClientsSyncHandler {
 
 	private List<ClientHandler> clientHandlerList;
 	private ServerSocket serverSocket;
-	private ServerSocket fileReceiveServerSocket;
-	private int maxConnectionCount;
-	private ExecutorService executorService;
-	private SyncPropogationWorker syncPropogationWorker;
-	private IServer iServer ;
+	protected FileConnectionDispatcher fileConnectionDispatcher;
+	protected int maxConnectionCount;
+	protected TaskExecutor taskExecutor;
+	protected IServer iServer ;
 	
 	public ServerConnectionWorker(ServerSocket serverSocket,
-			ServerSocket fileReceiveServerSocket, IServer iServer) {
+			FileConnectionDispatcher fileConnectionDispatcher, IServer iServer,
+			TaskExecutor taskExecutor) {
 		if (logger.isDebugEnabled())
 			logger.debug("ServerConnectionWorker Constructor - ENTER");
 		
 		this.iServer = iServer;
 		this.maxConnectionCount = iServer.getMaxConnectionCount();
 		this.serverSocket = serverSocket;
-		this.fileReceiveServerSocket = fileReceiveServerSocket;
+		this.fileConnectionDispatcher = fileConnectionDispatcher;
 
 		clientHandlerList = new CopyOnWriteArrayList<ClientHandler>();
-		executorService = Executors.newCachedThreadPool();
-
-		syncPropogationWorker = new SyncPropogationWorker(clientHandlerList, this);
-		executorService.execute(syncPropogationWorker);
+		this.taskExecutor = taskExecutor;
 		
 		if (logger.isDebugEnabled())
 			logger.debug("ServerConnectionWorker Constructor - LEAVE");
@@ -63,7 +63,7 @@ public class ServerConnectionWorker implements Runnable, IClientsSyncHandler {
 		{
 			clientHandler.shutdown();
 		}
-		executorService.shutdown();
+		taskExecutor.shutdown();
 		if (logger.isDebugEnabled())
 			logger.debug("shutdown - LEAVE");
 	}
@@ -83,24 +83,52 @@ public class ServerConnectionWorker implements Runnable, IClientsSyncHandler {
 				if (logger.isDebugEnabled())
 					logger.debug("new Client connected");
 				ClientHandler cHandler = new ClientHandler(socket, this,
-						fileReceiveServerSocket);
-				clientHandlerList.add(cHandler);
-				executorService.execute(cHandler);
+						fileConnectionDispatcher, taskExecutor);
+				addClientHandler(cHandler);
+				taskExecutor.execute(cHandler);
 			} catch (IOException e) {
 				logger.error("Exception while creating new connection " + e);
 			}
 		}
 	}
 
+	/**
+	 * @param clientHandler
+	 *            : handler of newly connected client
+	 */
+	protected void addClientHandler(ClientHandler clientHandler) {
+		clientHandlerList.add(clientHandler);
+	}
+
+	protected int getClientCount() {
+		return clientHandlerList.size();
+	}
+
 	@Override
-	public void sendUpdateToOtherClients(Actions action, String message,
+	public void removeClientHandler(ClientHandler clientHandler) {
+		if (clientHandlerList.remove(clientHandler) && logger.isInfoEnabled())
+			logger.info("client disconnected : " + clientHandler.getUsername());
+	}
+
+	/**
+	 * The update is recorded in the change feed, and pushed to the clients
+	 * which do not pull the changes
+	 */
+	@Override
+	public void sendUpdateToOtherClients(Message message,
 			ClientHandler clientHandlerToBeExcluded) {
 		if (logger.isDebugEnabled())
 			logger.debug("sendUpdateToOtherClients ENTER");
+		try {
+			iServer.getChangeFeed().record(message);
+		} catch (IOException e) {
+			logger.error("Exception while saving change of "
+					+ message.getPath() + " : " + e);
+		}
 		for (ClientHandler clientHandler : clientHandlerList) {
-			if (clientHandler != clientHandlerToBeExcluded)
-				syncPropogationWorker.enqueSyncTask(action, message,
-						clientHandler);
+			if (clientHandler != clientHandlerToBeExcluded
+					&& !clientHandler.isPullMode())
+				clientHandler.getSyncPropogationWorker().enqueSyncTask(message);
 			// clientHandler.sendMessageToClient(action, message);
 		}
 		if (logger.isDebugEnabled())
@@ -108,13 +136,13 @@ public class ServerConnectionWorker implements Runnable, IClientsSyncHandler {
 	}
 
 	@Override
-	public void enqueTaskInSyncPropogationWorker(Actions action,
-			String message, ClientHandler clientHandler) {
+	public void enqueTaskInSyncPropogationWorker(Message message,
+			ClientHandler clientHandler) {
 		if (logger.isDebugEnabled())
-			logger.debug("enqueTaskInSyncPropogationWorker ENTER Action = "
-				+ action + " relativePath = " + message);
+			logger.debug("enqueTaskInSyncPropogationWorker ENTER Message = "
+				+ message);
 
-		syncPropogationWorker.enqueSyncTask(action, message, clientHandler);
+		clientHandler.getSyncPropogationWorker().enqueSyncTask(message);
 
 		if (logger.isDebugEnabled())
 			logger.debug("enqueTaskInSyncPropogationWorker LEAVE");
@@ -130,6 +158,51 @@ public class ServerConnectionWorker implements Runnable, IClientsSyncHandler {
 		return iServer.getRevisionNumber(relativePathOfFile);
 	}
 	
+	@Override
+	public SyncQueuePolicy getSyncQueuePolicy() {
+		return iServer.getSyncQueuePolicy();
+	}
+
+	@Override
+	public ServerMetrics getServerMetrics() {
+		return iServer.getServerMetrics();
+	}
+
+	@Override
+	public DeltaTransfer getDeltaTransfer() {
+		return iServer.getDeltaTransfer();
+	}
+
+	@Override
+	public Set<CompressionCodec> getCompressionCodecs() {
+		return iServer.getCompressionCodecs();
+	}
+
+	@Override
+	public int getTransferStreams() {
+		return iServer.getTransferStreams();
+	}
+
+	@Override
+	public long getTransferRangeSize() {
+		return iServer.getTransferRangeSize();
+	}
+
+	@Override
+	public TransferStage getTransferStage() {
+		return iServer.getTransferStage();
+	}
+
+	@Override
+	public ChunkStore getChunkStore() {
+		return iServer.getChunkStore();
+	}
+
+	@Override
+	public ChangeFeed getChangeFeed() {
+		return iServer.getChangeFeed();
+	}
+
 	@Override
 	public boolean isServerRunning() {
 		return iServer.isServerRunning();
@@ -140,6 +213,11 @@ public class ServerConnectionWorker implements Runnable, IClientsSyncHandler {
 		iServer.setRevisionNumber(relativePathOfFile, newRevisionNumber);
 	}
 
+	@Override
+	public void syncRevisionNumbers() {
+		iServer.syncRevisionNumbers();
+	}
+
 	@Override
 	public boolean validateUsernameAndPassword(String usernam, String password,
 			String ipAddress) {
@@ -0,0 +1,150 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani Server counters, registered as the MBean
+ *         FileSync:type=ServerMetrics so they can be read with jconsole. The
+ *         queue depth and service time of each stage of the server, reading
+ *         the messages of the clients, transferring files and sending updates,
+ *         are registered as FileSync:type=Stage,name=[stage].
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	private static final Logger logger = Logger.getLogger(ServerMetrics.class);
+
+	public static final String OBJECT_NAME = "FileSync:type=ServerMetrics";
+	public static final String STAGE_OBJECT_NAME = "FileSync:type=Stage,name=";
+
+	private AtomicLong syncQueueDepth = new AtomicLong();
+	private AtomicLong maxSyncQueueDepth = new AtomicLong();
+	private AtomicLong coalescedSyncTaskCount = new AtomicLong();
+	private AtomicLong droppedSyncTaskCount = new AtomicLong();
+	private AtomicLong slowConsumerCount = new AtomicLong();
+	private AtomicLong backpressureWaitCount = new AtomicLong();
+	private AtomicLong backpressureWaitTimeMillis = new AtomicLong();
+	// messages read from the clients, files transferred, updates sent
+	private StageMetrics controlStage = new StageMetrics("control");
+	private StageMetrics transferStage = new StageMetrics("transfer");
+	private StageMetrics syncStage = new StageMetrics("sync");
+
+	public void register() {
+		try {
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(OBJECT_NAME);
+			if (!mBeanServer.isRegistered(objectName))
+				mBeanServer.registerMBean(this, objectName);
+			for (StageMetrics stage : getStages()) {
+				objectName = new ObjectName(STAGE_OBJECT_NAME + stage.getName());
+				if (!mBeanServer.isRegistered(objectName))
+					mBeanServer.registerMBean(stage, objectName);
+			}
+		} catch (JMException e) {
+			logger.error("Exception while registering server metrics : " + e);
+		}
+	}
+
+	public void unregister() {
+		try {
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(OBJECT_NAME);
+			if (mBeanServer.isRegistered(objectName))
+				mBeanServer.unregisterMBean(objectName);
+			for (StageMetrics stage : getStages()) {
+				objectName = new ObjectName(STAGE_OBJECT_NAME + stage.getName());
+				if (mBeanServer.isRegistered(objectName))
+					mBeanServer.unregisterMBean(objectName);
+			}
+		} catch (JMException e) {
+			logger.error("Exception while unregistering server metrics : " + e);
+		}
+	}
+
+	public StageMetrics getControlStage() {
+		return controlStage;
+	}
+
+	public StageMetrics getTransferStage() {
+		return transferStage;
+	}
+
+	public StageMetrics getSyncStage() {
+		return syncStage;
+	}
+
+	public StageMetrics[] getStages() {
+		return new StageMetrics[] { controlStage, transferStage, syncStage };
+	}
+
+	public void syncTaskQueued() {
+		syncStage.tasksQueued(1);
+		long depth = syncQueueDepth.incrementAndGet();
+		long max;
+		while (depth > (max = maxSyncQueueDepth.get())
+				&& !maxSyncQueueDepth.compareAndSet(max, depth))
+			;
+	}
+
+	public void syncTasksRemoved(int count) {
+		syncStage.tasksDequeued(count);
+		syncQueueDepth.addAndGet(-count);
+	}
+
+	public void syncTasksCoalesced(int count) {
+		coalescedSyncTaskCount.addAndGet(count);
+	}
+
+	public void syncTasksDropped(int count) {
+		droppedSyncTaskCount.addAndGet(count);
+	}
+
+	public void slowConsumerDetected() {
+		slowConsumerCount.incrementAndGet();
+	}
+
+	public void backpressureWaited(long waitTimeMillis) {
+		backpressureWaitCount.incrementAndGet();
+		backpressureWaitTimeMillis.addAndGet(waitTimeMillis);
+	}
+
+	@Override
+	public long getSyncQueueDepth() {
+		return syncQueueDepth.get();
+	}
+
+	@Override
+	public long getMaxSyncQueueDepth() {
+		return maxSyncQueueDepth.get();
+	}
+
+	@Override
+	public long getCoalescedSyncTaskCount() {
+		return coalescedSyncTaskCount.get();
+	}
+
+	@Override
+	public long getDroppedSyncTaskCount() {
+		return droppedSyncTaskCount.get();
+	}
+
+	@Override
+	public long getSlowConsumerCount() {
+		return slowConsumerCount.get();
+	}
+
+	@Override
+	public long getBackpressureWaitCount() {
+		return backpressureWaitCount.get();
+	}
+
+	@Override
+	public long getBackpressureWaitTimeMillis() {
+		return backpressureWaitTimeMillis.get();
+	}
+}
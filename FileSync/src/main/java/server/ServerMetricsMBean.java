@@ -0,0 +1,42 @@
+package server;
+
+/**
+ * @author Ashish Pahlazani Counters of the server exposed over JMX
+ */
+public interface ServerMetricsMBean {
+	/**
+	 * @return number of updates queued for all the clients
+	 */
+	public long getSyncQueueDepth();
+
+	/**
+	 * @return highest number of updates queued at the same time
+	 */
+	public long getMaxSyncQueueDepth();
+
+	/**
+	 * @return number of updates merged with an update of the same path
+	 *         already queued
+	 */
+	public long getCoalescedSyncTaskCount();
+
+	/**
+	 * @return number of queued updates dropped for slow clients
+	 */
+	public long getDroppedSyncTaskCount();
+
+	/**
+	 * @return number of times a client was marked for re-sync
+	 */
+	public long getSlowConsumerCount();
+
+	/**
+	 * @return number of times a sender waited for a full queue
+	 */
+	public long getBackpressureWaitCount();
+
+	/**
+	 * @return total time spent by senders waiting for full queues
+	 */
+	public long getBackpressureWaitTimeMillis();
+}
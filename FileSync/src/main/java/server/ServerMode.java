@@ -0,0 +1,11 @@
+package server;
+
+/**
+ * @author Ashish Pahlazani
+ *         BLOCKING : one thread is used for each connected client
+ *         NIO : connections are multiplexed over a fixed set of selector threads
+ */
+public enum ServerMode {
+	BLOCKING,
+	NIO;
+}
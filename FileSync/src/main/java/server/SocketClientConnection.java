@@ -0,0 +1,66 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.apache.log4j.Logger;
+
+import common.Frame;
+import common.FramedConnection;
+import common.Message;
+
+/**
+ * @author Ashish Pahlazani
+ *         Blocking connection with a client, one thread is kept waiting on
+ *         readFrame for each connected client
+ */
+public class SocketClientConnection implements IBlockingClientConnection {
+	private static final Logger logger = Logger
+			.getLogger(SocketClientConnection.class);
+
+	private FramedConnection framedConnection;
+	private volatile boolean open;
+
+	public SocketClientConnection(Socket socket) throws IOException {
+		framedConnection = new FramedConnection(socket);
+		open = true;
+	}
+
+	@Override
+	public Frame readFrame() throws IOException {
+		return framedConnection.readFrame();
+	}
+
+	@Override
+	public void writeFrame(byte type, int streamId, byte[] payload,
+			int offset, int length) throws IOException {
+		framedConnection.writeFrame(type, streamId, payload, offset, length);
+	}
+
+	@Override
+	public void writeMessage(Message message) {
+		try {
+			framedConnection.writeMessage(message);
+		} catch (IOException e) {
+			logger.error("Exception while writing message " + message + " : "
+					+ e);
+		}
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return framedConnection.getInetAddress();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+		framedConnection.close();
+	}
+}
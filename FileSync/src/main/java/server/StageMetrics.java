@@ -0,0 +1,95 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Ashish Pahlazani Queue depth and service time of one stage of the
+ *         server, registered by ServerMetrics as the MBean
+ *         FileSync:type=Stage,name=[stage]
+ */
+public class StageMetrics implements StageMetricsMBean {
+	private String name;
+	private AtomicLong queueDepth = new AtomicLong();
+	private AtomicLong maxQueueDepth = new AtomicLong();
+	private AtomicLong activeCount = new AtomicLong();
+	private AtomicLong completedCount = new AtomicLong();
+	private AtomicLong serviceTimeNanos = new AtomicLong();
+	private AtomicLong maxServiceTimeNanos = new AtomicLong();
+
+	public StageMetrics(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void tasksQueued(int count) {
+		updateMax(maxQueueDepth, queueDepth.addAndGet(count));
+	}
+
+	public void tasksDequeued(int count) {
+		queueDepth.addAndGet(-count);
+	}
+
+	/**
+	 * @return start time of the task, given back to taskCompleted
+	 */
+	public long taskStarted() {
+		activeCount.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	public void taskCompleted(long startNanos) {
+		long elapsed = System.nanoTime() - startNanos;
+		activeCount.decrementAndGet();
+		completedCount.incrementAndGet();
+		serviceTimeNanos.addAndGet(elapsed);
+		updateMax(maxServiceTimeNanos, elapsed);
+	}
+
+	private static void updateMax(AtomicLong max, long value) {
+		long current;
+		while (value > (current = max.get())
+				&& !max.compareAndSet(current, value))
+			;
+	}
+
+	@Override
+	public long getQueueDepth() {
+		return queueDepth.get();
+	}
+
+	@Override
+	public long getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	@Override
+	public long getActiveCount() {
+		return activeCount.get();
+	}
+
+	@Override
+	public long getCompletedCount() {
+		return completedCount.get();
+	}
+
+	@Override
+	public long getAverageServiceTimeMicros() {
+		long completed = completedCount.get();
+		return completed == 0 ? 0 : serviceTimeNanos.get() / completed / 1000;
+	}
+
+	@Override
+	public long getMaxServiceTimeMicros() {
+		return maxServiceTimeNanos.get() / 1000;
+	}
+
+	@Override
+	public String toString() {
+		return name + " queue = " + getQueueDepth() + " active = "
+				+ getActiveCount() + " completed = " + getCompletedCount()
+				+ " service time (us) = " + getAverageServiceTimeMicros();
+	}
+}
@@ -0,0 +1,38 @@
+package server;
+
+/**
+ * @author Ashish Pahlazani Counters of one stage of the server exposed over
+ *         JMX, the stage whose queue grows or whose service time rises is the
+ *         one which saturates
+ */
+public interface StageMetricsMBean {
+	/**
+	 * @return number of tasks waiting for a thread of the stage
+	 */
+	public long getQueueDepth();
+
+	/**
+	 * @return highest number of tasks waiting at the same time
+	 */
+	public long getMaxQueueDepth();
+
+	/**
+	 * @return number of tasks running
+	 */
+	public long getActiveCount();
+
+	/**
+	 * @return number of tasks done
+	 */
+	public long getCompletedCount();
+
+	/**
+	 * @return average time a task takes to run
+	 */
+	public long getAverageServiceTimeMicros();
+
+	/**
+	 * @return longest time a task took to run
+	 */
+	public long getMaxServiceTimeMicros();
+}
@@ -0,0 +1,11 @@
+package server;
+
+/**
+ * @author Ashish Pahlazani
+ *         FILES : every path is stored as a plain file under the root folder
+ *         CHUNKED : paths are chunk lists, the chunks are stored once in the ChunkStore
+ */
+public enum StorageMode {
+	FILES,
+	CHUNKED;
+}
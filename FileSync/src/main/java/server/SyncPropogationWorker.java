@@ -1,100 +1,333 @@
 package server;
 
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 import common.Actions;
+import common.Message;
 
 /**
  * @author Ashish Pahlazani This class takes care of sync of actions taken on
- *         one client to all connected clients.
+ *         other clients to one connected client. Each ClientHandler has its
+ *         own worker, so a slow client only delays its own updates.
+ * 
+ *         The queue is drained on the executor only while it has tasks, one
+ *         task at a time, so updates reach the client in the order they were
+ *         queued. Updates of one path are merged by the CoalescingSyncQueue
+ *         while they wait. The queue is bounded by a SyncQueuePolicy : senders wait
+ *         while it is above the high watermark, and the queued tasks of a
+ *         client which can not keep up are dropped and replaced by a single
+ *         LOAD_INITIAL_REPOSITORY task, which sends it a snapshot of the
+ *         repository. The snapshot is also sent when the client asks for it.
+ *
+ *         Files and snapshots are sent on the TransferStage, the drain stops
+ *         meanwhile and goes on once they are sent, so the executor thread is
+ *         not held by the transfer and the client still gets the updates in
+ *         order.
  */
 public class SyncPropogationWorker implements Runnable {
 	private static final Logger logger = Logger
 			.getLogger(SyncPropogationWorker.class);
 
-	private BlockingQueue<SyncPropogationTask> taskQueue;
-	private IClientsSyncHandler clientSyncHandler;
+	private CoalescingSyncQueue taskQueue;
+	private AtomicInteger queueSize = new AtomicInteger();
+	private Object queueLock = new Object();
+	private ClientHandler clientHandler;
+	private Executor executor;
+	private TransferStage transferStage;
+	private SyncQueuePolicy policy;
+	private ServerMetrics serverMetrics;
+	private AtomicBoolean draining = new AtomicBoolean(false);
+	private volatile boolean running = true;
+	// set once a sender timed out waiting for this client
+	private volatile boolean backpressureBypassed = false;
+	private volatile boolean resyncRequired = false;
 
 	private class SyncPropogationTask {
-		Actions action;
-		String relativePath;
-		ClientHandler clientHandler;
+		Message message;
 
-		public SyncPropogationTask(Actions action, String relativePath,
-				ClientHandler clientHandler) {
+		public SyncPropogationTask(Message message) {
 			super();
-			this.action = action;
-			this.relativePath = relativePath;
-			this.clientHandler = clientHandler;
+			this.message = message;
+		}
+
+		/**
+		 * @return true if the task sends a file or a snapshot
+		 */
+		public boolean isTransfer() {
+			Actions action = message.getAction();
+			return action == Actions.REQUEST_FILE_ADD
+					|| action == Actions.REQUEST_FILE_MODIFY
+					|| action == Actions.LOAD_INITIAL_REPOSITORY;
 		}
 
 		/**
 		 * 
 		 */
 		public void execute() {
-			logger.info("executing task : Action = " + action
-					+ " relativePath " + relativePath + " Client = "
-					+ clientHandler);
+			logger.info("executing task : Message = " + message + " Client = "
+					+ clientHandler.getUsername());
 
+			Actions action = message.getAction();
 			if (action == Actions.REQUEST_FILE_ADD) {
-				clientHandler.sendFileToClient(Actions.SENDING_FILE_ADD, relativePath);
+				clientHandler.sendFileToClient(Actions.SENDING_FILE_ADD, message.getPath(), null);
 			}
 			else if (action == Actions.REQUEST_FILE_MODIFY) {
-				clientHandler.sendFileToClient(Actions.SENDING_FILE_MODIFY, relativePath);
+				clientHandler.sendFileToClient(Actions.SENDING_FILE_MODIFY, message.getPath(), message.getSignature());
+			}
+			else if (action == Actions.LOAD_INITIAL_REPOSITORY) {
+				clientHandler.sendRepositorySnapshot();
 			}
 			else {
-				clientHandler.sendMessageToClient(action, relativePath);
+				clientHandler.sendMessageToClient(message);
 			}
 		}
 	}
 
 	/**
-	 * @param clientHandlerList
-	 * @param clientSyncHandler
+	 * @param clientHandler
+	 *            : client to which the tasks are sent
+	 * @param executor
+	 *            : executor on which the queue is drained
+	 * @param transferStage
+	 *            : stage on which files are sent
+	 * @param policy
+	 * @param serverMetrics
 	 */
-	public SyncPropogationWorker(List<ClientHandler> clientHandlerList,
-			IClientsSyncHandler clientSyncHandler) {
+	public SyncPropogationWorker(ClientHandler clientHandler,
+			Executor executor, TransferStage transferStage,
+			SyncQueuePolicy policy, ServerMetrics serverMetrics) {
 		super();
-		this.clientSyncHandler = clientSyncHandler;
-		taskQueue = new LinkedBlockingDeque<>();
+		this.clientHandler = clientHandler;
+		this.executor = executor;
+		this.transferStage = transferStage;
+		this.policy = policy;
+		this.serverMetrics = serverMetrics;
+		taskQueue = new CoalescingSyncQueue();
 	}
 
 	/**
 	 * This method will add the action to task queue, 
-	 * and will sync that action using other clientHandlers
-	 * @param action
-	 * @param relativePath
-	 * @param clientHandler
+	 * and will sync that action with the client
+	 * @param message
 	 */
-	public void enqueSyncTask(Actions action, String relativePath,
-			ClientHandler clientHandler) {
+	public void enqueSyncTask(Message message) {
 		if (logger.isDebugEnabled())
-			logger.debug("enqueSyncTask ENTER action = " + action
-					+ " relativePath = " + relativePath + " Client : "
-					+ clientHandler.getUsername());
-		taskQueue.add(new SyncPropogationTask(action, relativePath,
-				clientHandler));
+			logger.debug("enqueSyncTask ENTER message = " + message
+					+ " Client : " + clientHandler.getUsername());
+		if (!running)
+			return;
+		// the files of this client are sent on the transfer stage, a stage
+		// thread waiting for it would hold them back, and the other clients
+		if (!TransferStage.isStageThread())
+			awaitCapacity();
+		if (queueSize.get() >= policy.getSlowConsumerThreshold()) {
+			serverMetrics.slowConsumerDetected();
+			dropQueuedTasksForResync("is too slow");
+		}
+		addTask(message);
+		scheduleDrain();
 		if (logger.isDebugEnabled())
 			logger.debug("enqueSyncTask LEAVE");
 	}
 
+	/**
+	 * @return number of tasks waiting to be sent to the client
+	 */
+	public int getQueueSize() {
+		return queueSize.get();
+	}
+
+	/**
+	 * @return true if queued tasks were dropped because the client was too
+	 *         slow
+	 */
+	public boolean isResyncRequired() {
+		return resyncRequired;
+	}
+
+	/**
+	 * Drops the queued tasks, called when the client is disconnected
+	 */
+	public void shutdown() {
+		running = false;
+		removeAllTasks();
+		synchronized (queueLock) {
+			queueLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Blocks the sender while the queue is above the high watermark
+	 */
+	private void awaitCapacity() {
+		if (backpressureBypassed
+				|| queueSize.get() < policy.getHighWatermark())
+			return;
+
+		long start = System.currentTimeMillis();
+		long deadline = start + policy.getBackpressureTimeoutMillis();
+		synchronized (queueLock) {
+			while (running && !backpressureBypassed
+					&& queueSize.get() > policy.getLowWatermark()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					logger.warn("client " + clientHandler.getUsername()
+							+ " is not keeping up, queue size = "
+							+ queueSize.get());
+					backpressureBypassed = true;
+					break;
+				}
+				try {
+					queueLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		serverMetrics.backpressureWaited(System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Replaces the queued tasks with a snapshot of the repository
+	 *
+	 * @param reason
+	 *            : logged after the name of the client
+	 */
+	private void dropQueuedTasksForResync(String reason) {
+		int dropped = removeAllTasks();
+		resyncRequired = true;
+		serverMetrics.syncTasksDropped(dropped);
+		logger.warn("client " + clientHandler.getUsername() + " " + reason
+				+ ", " + dropped + " queued updates dropped, sending a snapshot");
+
+		addTask(new Message(Actions.LOAD_INITIAL_REPOSITORY));
+		synchronized (queueLock) {
+			backpressureBypassed = false;
+			queueLock.notifyAll();
+		}
+	}
+
+	private void addTask(Message message) {
+		int change = taskQueue.add(message);
+		queueSize.addAndGet(change);
+		if (change > 0) {
+			serverMetrics.syncTaskQueued();
+		} else {
+			// merged with a pending message, or cancelled out with it
+			serverMetrics.syncTasksCoalesced(1 - change);
+			if (change < 0)
+				onTasksRemoved(-change);
+		}
+	}
+
+	/**
+	 * @return next task, consecutive file updates are sent as one BATCH
+	 */
+	private SyncPropogationTask pollTask() {
+		List<Message> messages = taskQueue.pollBatch(Message.MAX_BATCH_ENTRIES);
+		if (messages.isEmpty())
+			return null;
+		onTasksRemoved(messages.size());
+		if (messages.size() == 1)
+			return new SyncPropogationTask(messages.get(0));
+		return new SyncPropogationTask(new Message(Actions.BATCH)
+				.setEntries(messages));
+	}
+
+	/**
+	 * @return number of tasks removed
+	 */
+	private int removeAllTasks() {
+		int count = taskQueue.clear();
+		onTasksRemoved(count);
+		return count;
+	}
+
+	private void onTasksRemoved(int count) {
+		int size = queueSize.addAndGet(-count);
+		serverMetrics.syncTasksRemoved(count);
+		if (size <= policy.getLowWatermark()
+				&& size + count > policy.getLowWatermark()) {
+			synchronized (queueLock) {
+				backpressureBypassed = false;
+				queueLock.notifyAll();
+			}
+		}
+	}
+
+	private void scheduleDrain() {
+		if (draining.compareAndSet(false, true)) {
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				logger.error("Executor rejected sync task : " + e);
+				draining.set(false);
+			}
+		}
+	}
+
+	/**
+	 * Sends the file on the transfer stage, the drain goes on from there once
+	 * it is sent. draining stays set in the meantime. If the stage refuses
+	 * the task the client is sent a snapshot instead, by the next drain
+	 */
+	private void executeOnTransferStage(final SyncPropogationTask task) {
+		boolean queued = transferStage.execute(task.message.getPath(),
+				new Runnable() {
+			@Override
+			public void run() {
+				try {
+					task.execute();
+				} finally {
+					try {
+						executor.execute(SyncPropogationWorker.this);
+					} catch (RejectedExecutionException e) {
+						logger.error("Executor rejected sync task : " + e);
+						draining.set(false);
+					}
+				}
+			}
+		});
+		if (!queued) {
+			serverMetrics.syncTasksDropped(1);
+			dropQueuedTasksForResync("missed " + task.message);
+			draining.set(false);
+		}
+	}
+
 	@Override
 	public void run() {
 		if (logger.isDebugEnabled())
-			logger.debug("SyncPropogationWorker Thread - ENTER");
-		while (clientSyncHandler.isServerRunning()) {
-			try {
-				SyncPropogationTask task = taskQueue.take();
-				task.execute();
-			} catch (InterruptedException e) {
-				logger.error("Interrupted while executing task : " + e);
+			logger.debug("SyncPropogationWorker drain - ENTER");
+		StageMetrics syncStage = serverMetrics.getSyncStage();
+		do {
+			SyncPropogationTask task;
+			while (running && (task = pollTask()) != null) {
+				if (task.isTransfer()) {
+					executeOnTransferStage(task);
+					return;
+				}
+				long start = syncStage.taskStarted();
+				try {
+					task.execute();
+				} catch (RuntimeException e) {
+					logger.error("Exception while executing task : " + e);
+				} finally {
+					syncStage.taskCompleted(start);
+				}
 			}
-		}
+			draining.set(false);
+			// a task may have been queued after the last poll
+		} while (running && taskQueue.size() > 0
+				&& draining.compareAndSet(false, true));
 		if (logger.isDebugEnabled())
-			logger.debug("syncPropogationWorker Thread - LEAVE");
+			logger.debug("syncPropogationWorker drain - LEAVE");
 	}
 }
@@ -0,0 +1,53 @@
+package server;
+
+/**
+ * @author Ashish Pahlazani Limits applied to the sync queue of each client.
+ * 
+ *         highWatermark : a thread queueing an update waits while the queue
+ *         holds this many tasks, until the queue is down to lowWatermark or
+ *         backpressureTimeout expires. Once a wait times out the client is
+ *         treated as slow and senders stop waiting for it, until its queue is
+ *         back to lowWatermark.
+ * 
+ *         slowConsumerThreshold : when the queue of a client reaches this size
+ *         the queued tasks are dropped and the client is marked for re-sync.
+ */
+public class SyncQueuePolicy {
+	private int highWatermark;
+	private int lowWatermark;
+	private int slowConsumerThreshold;
+	private long backpressureTimeoutMillis;
+
+	public SyncQueuePolicy(int highWatermark, int lowWatermark,
+			int slowConsumerThreshold, long backpressureTimeoutMillis) {
+		if (lowWatermark < 0 || lowWatermark > highWatermark
+				|| highWatermark > slowConsumerThreshold
+				|| backpressureTimeoutMillis < 0)
+			throw new IllegalArgumentException(
+					"Invalid sync queue limits : low = " + lowWatermark
+							+ " high = " + highWatermark
+							+ " slowConsumerThreshold = "
+							+ slowConsumerThreshold + " timeout = "
+							+ backpressureTimeoutMillis);
+		this.highWatermark = highWatermark;
+		this.lowWatermark = lowWatermark;
+		this.slowConsumerThreshold = slowConsumerThreshold;
+		this.backpressureTimeoutMillis = backpressureTimeoutMillis;
+	}
+
+	public int getHighWatermark() {
+		return highWatermark;
+	}
+
+	public int getLowWatermark() {
+		return lowWatermark;
+	}
+
+	public int getSlowConsumerThreshold() {
+		return slowConsumerThreshold;
+	}
+
+	public long getBackpressureTimeoutMillis() {
+		return backpressureTimeoutMillis;
+	}
+}
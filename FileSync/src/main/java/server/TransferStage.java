@@ -0,0 +1,282 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * @author Ashish Pahlazani Stage of the server doing the disk and socket I/O
+ *         of the files, on its own pool of threads, so the threads reading the
+ *         messages of the clients only parse them and queue the work. The
+ *         completion of a transfer runs on the same thread, and posts the
+ *         follow-up messages, such as the update of the other clients.
+ *
+ *         The tasks of a path run in the order they were queued, one at a
+ *         time, the tasks of different paths run in parallel on up to
+ *         threadCount threads. At most queueSize tasks can wait, the thread
+ *         queuing a task then waits for one to complete, so a server which
+ *         can not keep up slows down the reading of the messages.
+ *
+ *         A task whose input is not there yet, such as the connection of a
+ *         file, takes its place in the order of its path with reserve, and is
+ *         given with Reservation.submit once it can run. No thread waits in
+ *         between, the later tasks of the path wait for it.
+ *
+ *         A task is only refused once the stage is shut down, the caller
+ *         must then run it itself or give it up knowingly.
+ */
+public class TransferStage {
+	private static final Logger logger = Logger.getLogger(TransferStage.class);
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+	private static final ThreadLocal<Boolean> stageThread = new ThreadLocal<Boolean>();
+
+	/**
+	 * Place of a task in the order of its path, see reserve
+	 */
+	public class Reservation implements Runnable {
+		private String path;
+		private Runnable task;
+		// true once the tasks of the path before this one are done
+		private boolean ready;
+		private boolean refused;
+
+		private Reservation(String path) {
+			this.path = path;
+		}
+
+		/**
+		 * Runs the task once the tasks of the path queued before it are done.
+		 * Must be called once for every reservation, the later tasks of the
+		 * path wait for it
+		 *
+		 * @param task
+		 * @return false if the task was not queued, the stage is shut down
+		 */
+		public boolean submit(Runnable task) {
+			synchronized (TransferStage.this) {
+				if (refused)
+					return false;
+				if (!ready) {
+					this.task = task;
+					return true;
+				}
+			}
+			return start(path, task);
+		}
+
+		/**
+		 * Queued in the place of the task until it is submitted
+		 */
+		@Override
+		public void run() {
+			throw new IllegalStateException("Task of " + path
+					+ " not submitted");
+		}
+	}
+
+	private ThreadPoolExecutor executor;
+	private Semaphore queuePermits;
+	private StageMetrics stageMetrics;
+	// tasks waiting for the task running on their path, a path is in the map
+	// while one of its tasks runs or waits for a thread
+	private Map<String, Deque<Runnable>> pathQueues = new HashMap<String, Deque<Runnable>>();
+
+	/**
+	 * @param threadCount
+	 *            : TRANSFER_THREADS property
+	 * @param queueSize
+	 *            : TRANSFER_QUEUE_SIZE property
+	 * @param stageMetrics
+	 */
+	public TransferStage(int threadCount, int queueSize,
+			StageMetrics stageMetrics) {
+		threadCount = Math.max(threadCount, 1);
+		this.queuePermits = new Semaphore(Math.max(queueSize, 1)
+				+ threadCount);
+		this.stageMetrics = stageMetrics;
+		final AtomicInteger threadNumber = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threadCount, threadCount,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable runnable) {
+						return new Thread(new Runnable() {
+							@Override
+							public void run() {
+								stageThread.set(Boolean.TRUE);
+								runnable.run();
+							}
+						}, "TransferStage-" + threadNumber.incrementAndGet());
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return true if the calling thread is a thread of a transfer stage,
+	 *         which must not wait for the clients
+	 */
+	public static boolean isStageThread() {
+		return stageThread.get() != null;
+	}
+
+	/**
+	 * Queues the task after the other tasks of its path, waits while too
+	 * many tasks are queued. The wait is not cut by an interrupt, a task
+	 * given up there would be lost for its path
+	 *
+	 * @param path
+	 *            : relative path of the file, null if the task is not ordered
+	 *            with other tasks
+	 * @param task
+	 * @return false if the task was not queued, the stage is shut down
+	 */
+	public boolean execute(String path, Runnable task) {
+		queuePermits.acquireUninterruptibly();
+		stageMetrics.tasksQueued(1);
+		if (path != null) {
+			synchronized (this) {
+				Deque<Runnable> pathQueue = pathQueues.get(path);
+				if (pathQueue != null) {
+					// a queued task would not be started after the shutdown
+					if (executor.isShutdown()) {
+						logger.error("Transfer of " + path
+								+ " rejected, the stage is shut down");
+						release(1);
+						return false;
+					}
+					pathQueue.add(task);
+					return true;
+				}
+				pathQueues.put(path, new ArrayDeque<Runnable>());
+			}
+		}
+		return start(path, task);
+	}
+
+	/**
+	 * Reserves the place of a task in the order of its path, waits while too
+	 * many tasks are queued as execute
+	 *
+	 * @param path
+	 *            : relative path of the file
+	 * @return place of the task, given with Reservation.submit
+	 */
+	public Reservation reserve(String path) {
+		Reservation reservation = new Reservation(path);
+		queuePermits.acquireUninterruptibly();
+		stageMetrics.tasksQueued(1);
+		synchronized (this) {
+			Deque<Runnable> pathQueue = pathQueues.get(path);
+			if (pathQueue == null) {
+				pathQueues.put(path, new ArrayDeque<Runnable>());
+				reservation.ready = true;
+			} else if (executor.isShutdown()) {
+				logger.error("Transfer of " + path
+						+ " rejected, the stage is shut down");
+				reservation.refused = true;
+				release(1);
+			} else {
+				pathQueue.add(reservation);
+			}
+		}
+		return reservation;
+	}
+
+	/**
+	 * @param path
+	 * @return true if a task of the path is running or waiting
+	 */
+	public synchronized boolean isPending(String path) {
+		return pathQueues.containsKey(path);
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private boolean start(final String path, final Runnable task) {
+		Runnable stageTask = new Runnable() {
+			@Override
+			public void run() {
+				stageMetrics.tasksDequeued(1);
+				long start = stageMetrics.taskStarted();
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					logger.error("Exception while transferring " + path + " : "
+							+ e);
+				} finally {
+					stageMetrics.taskCompleted(start);
+					queuePermits.release();
+					startNext(path);
+				}
+			}
+		};
+		try {
+			executor.execute(stageTask);
+			return true;
+		} catch (RejectedExecutionException e) {
+			// the server is shutting down, the tasks waiting for the path
+			// would never be started either
+			logger.error("Transfer of " + path + " rejected : " + e);
+			int dropped = 0;
+			if (path != null) {
+				synchronized (this) {
+					Deque<Runnable> pathQueue = pathQueues.remove(path);
+					if (pathQueue != null) {
+						dropped = pathQueue.size();
+						// their tasks are run by the callers of submit
+						for (Runnable queued : pathQueue)
+							if (queued instanceof Reservation)
+								((Reservation) queued).refused = true;
+					}
+				}
+				if (dropped > 0)
+					logger.error(dropped + " queued transfers of " + path
+							+ " dropped");
+			}
+			release(dropped + 1);
+			return false;
+		}
+	}
+
+	private void release(int taskCount) {
+		stageMetrics.tasksDequeued(taskCount);
+		queuePermits.release(taskCount);
+	}
+
+	private void startNext(String path) {
+		if (path == null)
+			return;
+		Runnable next;
+		synchronized (this) {
+			Deque<Runnable> pathQueue = pathQueues.get(path);
+			next = pathQueue.poll();
+			if (next == null) {
+				pathQueues.remove(path);
+				return;
+			}
+			if (next instanceof Reservation) {
+				Reservation reservation = (Reservation) next;
+				// started by submit if its task is not there yet
+				reservation.ready = true;
+				next = reservation.task;
+				if (next == null)
+					return;
+			}
+		}
+		start(path, next);
+	}
+}
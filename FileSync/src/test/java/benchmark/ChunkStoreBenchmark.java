@@ -0,0 +1,113 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import server.ChunkStore;
+
+/**
+ * @author Ashish Pahlazani Ingests every file of a corpus in a ChunkStore
+ *         and prints the ingest throughput and the dedup ratio (bytes of the
+ *         files / bytes stored), next to the ratio obtained by storing
+ *         identical files only once. The store is created in a temp folder
+ *         and deleted at the end.
+ *
+ *         Usage : ChunkStoreBenchmark [folder...], the JDK folder by default.
+ *         A source tree with its build outputs, or a Maven repository holding
+ *         several versions of the same libraries, are realistic corpora.
+ */
+public class ChunkStoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		List<File> files = new ArrayList<File>();
+		if (args.length == 0)
+			args = new String[] { System.getProperty("java.home") };
+		for (String folder : args)
+			listFiles(new File(folder), files);
+
+		long logicalBytes = 0;
+		long uniqueFileBytes = 0;
+		Set<String> fileHashes = new HashSet<String>();
+		for (File file : files) {
+			logicalBytes += file.length();
+			if (fileHashes.add(hash(file)))
+				uniqueFileBytes += file.length();
+		}
+
+		File storeFolder = File.createTempFile("chunks", "");
+		storeFolder.delete();
+		ChunkStore chunkStore = new ChunkStore(storeFolder);
+		try {
+			long chunkCount = 0;
+			long start = System.nanoTime();
+			for (File file : files)
+				chunkCount += chunkStore.ingest(file).size();
+			long elapsed = System.nanoTime() - start;
+
+			System.out.println("files = " + files.size() + " bytes = "
+					+ logicalBytes + " chunks = " + chunkCount
+					+ " unique chunks = " + chunkStore.getStoredChunkCount()
+					+ " average chunk = "
+					+ (chunkCount == 0 ? 0 : logicalBytes / chunkCount));
+			System.out.println("stored bytes = " + chunkStore.getStoredBytes()
+					+ " dedup ratio = "
+					+ ratio(logicalBytes, chunkStore.getStoredBytes())
+					+ " whole file dedup ratio = "
+					+ ratio(logicalBytes, uniqueFileBytes));
+			System.out.println("ingest MB/sec = "
+					+ (long) (logicalBytes / (1024 * 1024.0) / (elapsed / 1e9))
+					+ " time (ms) = " + elapsed / 1000000);
+		} finally {
+			delete(storeFolder);
+		}
+	}
+
+	private static String ratio(long logicalBytes, long storedBytes) {
+		return storedBytes == 0 ? "-" : String.format("%.2f",
+				logicalBytes / (double) storedBytes);
+	}
+
+	private static void listFiles(File folder, List<File> files) {
+		File[] children = folder.listFiles();
+		if (children == null)
+			return;
+		for (File child : children) {
+			if (child.isDirectory())
+				listFiles(child, files);
+			else if (child.isFile())
+				files.add(child);
+		}
+	}
+
+	private static String hash(File file) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		byte[] buffer = new byte[64 * 1024];
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			int count;
+			while ((count = inputStream.read(buffer)) >= 0)
+				digest.update(buffer, 0, count);
+		} finally {
+			inputStream.close();
+		}
+		StringBuilder builder = new StringBuilder();
+		for (byte b : digest.digest())
+			builder.append(String.format("%02x", b));
+		return builder.toString();
+	}
+
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null)
+			for (File child : children)
+				delete(child);
+		file.delete();
+	}
+}
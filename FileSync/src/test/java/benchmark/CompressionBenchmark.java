@@ -0,0 +1,131 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import common.CompressionCodec;
+import common.IFileSender;
+import common.TransferCompression;
+
+/**
+ * @author Ashish Pahlazani Compresses every file of a corpus with each codec
+ *         and prints the ratio (bytes / compressed bytes) and the compression
+ *         throughput, then the codec TransferCompression chooses for every
+ *         file at a few link throughputs, which shows where compression stops
+ *         paying off.
+ * 
+ *         Usage : CompressionBenchmark [folder...], the JDK folder by default.
+ */
+public class CompressionBenchmark {
+	private static final double[] LINK_MBPS = { 10, 100, 1000, 10000 };
+
+	public static void main(String[] args) throws Exception {
+		List<File> files = new ArrayList<File>();
+		if (args.length == 0)
+			args = new String[] { System.getProperty("java.home") };
+		for (String folder : args)
+			listFiles(new File(folder), files);
+
+		long totalBytes = 0;
+		for (File file : files)
+			totalBytes += file.length();
+		System.out.println("files = " + files.size() + " bytes = "
+				+ totalBytes);
+
+		for (CompressionCodec codec : CompressionCodec.values()) {
+			if (codec == CompressionCodec.NONE)
+				continue;
+			long compressedBytes = 0;
+			long start = System.nanoTime();
+			for (File file : files)
+				compressedBytes += compress(file, codec);
+			long elapsed = System.nanoTime() - start;
+			System.out.println(codec + " ratio = "
+					+ String.format("%.2f", totalBytes / (double) compressedBytes)
+					+ " MB/sec = "
+					+ (long) (totalBytes / (1024 * 1024.0) / (elapsed / 1e9)));
+		}
+
+		for (double linkMbps : LINK_MBPS) {
+			TransferCompression transferCompression = new TransferCompression(
+					TransferCompression.parseCodecs("AUTO"));
+			transferCompression.negotiate(transferCompression
+					.getEnabledCodecs());
+			// one simulated transfer of 1 second sets the link throughput
+			final long bytesPerSecond = (long) (linkMbps * 1000000 / 8);
+			transferCompression.transferCompleted(new IFileSender() {
+				@Override
+				public void run() {
+				}
+
+				@Override
+				public long getBytesWritten() {
+					return bytesPerSecond;
+				}
+
+				@Override
+				public long getWriteNanos() {
+					return 1000000000L;
+				}
+
+				@Override
+				public boolean isSuccess() {
+					return true;
+				}
+			});
+
+			long[] bytesByCodec = new long[CompressionCodec.values().length];
+			for (File file : files)
+				bytesByCodec[transferCompression.choose(file).ordinal()] += file
+						.length();
+			StringBuilder builder = new StringBuilder();
+			builder.append("link ").append((long) linkMbps).append(" Mbit/s :");
+			for (CompressionCodec codec : CompressionCodec.values())
+				builder.append(' ').append(codec).append(" = ")
+						.append(bytesByCodec[codec.ordinal()] * 100
+								/ Math.max(totalBytes, 1)).append('%');
+			System.out.println(builder);
+		}
+	}
+
+	private static long compress(File file, CompressionCodec codec)
+			throws IOException {
+		Deflater deflater = codec.newDeflater();
+		byte[] input = new byte[64 * 1024];
+		byte[] output = new byte[64 * 1024];
+		long compressedBytes = 0;
+		InputStream inputStream = new FileInputStream(file);
+		try {
+			int count;
+			while ((count = inputStream.read(input)) >= 0) {
+				deflater.setInput(input, 0, count);
+				while (!deflater.needsInput())
+					compressedBytes += deflater.deflate(output);
+			}
+			deflater.finish();
+			while (!deflater.finished())
+				compressedBytes += deflater.deflate(output);
+		} finally {
+			inputStream.close();
+			deflater.end();
+		}
+		return compressedBytes;
+	}
+
+	private static void listFiles(File folder, List<File> files) {
+		File[] children = folder.listFiles();
+		if (children == null)
+			return;
+		for (File child : children) {
+			if (child.isDirectory())
+				listFiles(child, files);
+			else if (child.isFile())
+				files.add(child);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import common.ExecutionMode;
+import common.TaskExecutor;
+
+/**
+ * @author Ashish Pahlazani Compares the PLATFORM and VIRTUAL execution modes
+ *         for the thread per client model used by ServerConnectionWorker. A
+ *         handler blocked in readLine is started for each accepted connection,
+ *         connections per second and heap/thread usage are printed once all the
+ *         handlers are running.
+ *
+ *         Usage : ExecutionModeBenchmark [connectionCount] [port]
+ */
+public class ExecutionModeBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int connectionCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 4001;
+
+		for (ExecutionMode mode : ExecutionMode.values())
+			run(mode, connectionCount, port);
+	}
+
+	private static void run(ExecutionMode mode, int connectionCount, int port)
+			throws Exception {
+		final TaskExecutor taskExecutor = new TaskExecutor(mode);
+		final ServerSocket serverSocket = new ServerSocket(port, connectionCount);
+		final CountDownLatch handlersStarted = new CountDownLatch(
+				connectionCount);
+		final List<Socket> clientSockets = new ArrayList<Socket>();
+
+		long usedHeapBefore = usedHeap();
+		int threadsBefore = ManagementFactory.getThreadMXBean()
+				.getThreadCount();
+
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (!serverSocket.isClosed()) {
+						final Socket socket = serverSocket.accept();
+						taskExecutor.execute(new Runnable() {
+							@Override
+							public void run() {
+								handle(socket, handlersStarted);
+							}
+						});
+					}
+				} catch (IOException e) {
+					// server socket closed
+				}
+			}
+		});
+		acceptor.start();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < connectionCount; i++)
+			clientSockets.add(new Socket("localhost", port));
+		handlersStarted.await();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("mode = " + taskExecutor.getExecutionMode()
+				+ " connections = " + connectionCount
+				+ " connections/sec = "
+				+ (long) (connectionCount / (elapsed / 1e9))
+				+ " heap used (MB) = "
+				+ (usedHeap() - usedHeapBefore) / (1024 * 1024)
+				+ " platform threads = "
+				+ (ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore));
+
+		for (Socket socket : clientSockets)
+			socket.close();
+		serverSocket.close();
+		taskExecutor.shutdown();
+	}
+
+	private static void handle(Socket socket, CountDownLatch handlersStarted) {
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(
+					socket.getInputStream()));
+			handlersStarted.countDown();
+			while (br.readLine() != null)
+				;
+			socket.close();
+		} catch (IOException e) {
+			// client closed the connection
+		}
+	}
+
+	private static long usedHeap() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,146 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import common.FileUploader;
+import common.TransferHeader;
+
+/**
+ * @author Ashish Pahlazani Measures the upload throughput of FileUploader
+ *         (transferTo) against the old copy through a 1 KB byte array, over
+ *         loopback. The receiving side only answers the TransferHeader of
+ *         FileUploader and counts the bytes, so the numbers show the cost of
+ *         the sending side.
+ *
+ *         Usage : FileTransferBenchmark [fileSize...] [port], sizes in bytes,
+ *         4 KB, 1 MB and 1 GB by default
+ */
+public class FileTransferBenchmark {
+	private static final int ROUNDS = 3;
+
+	public static void main(String[] args) throws Exception {
+		long[] fileSizes = { 4 * 1024, 1024 * 1024, 1024 * 1024 * 1024 };
+		int port = 4002;
+		if (args.length > 0) {
+			fileSizes = new long[args.length - 1];
+			for (int i = 0; i < fileSizes.length; i++)
+				fileSizes[i] = Long.parseLong(args[i]);
+			port = Integer.parseInt(args[args.length - 1]);
+		}
+
+		ExecutorService receiverPool = Executors.newSingleThreadExecutor();
+		ServerSocket serverSocket = new ServerSocket(port);
+		try {
+			for (long fileSize : fileSizes) {
+				File file = createFile(fileSize);
+				try {
+					for (int round = 0; round < ROUNDS; round++) {
+						run("stream", file, serverSocket, receiverPool);
+						run("transferTo", file, serverSocket, receiverPool);
+					}
+				} finally {
+					file.delete();
+				}
+			}
+		} finally {
+			serverSocket.close();
+			receiverPool.shutdown();
+		}
+	}
+
+	private static void run(final String uploader, final File file,
+			final ServerSocket serverSocket, ExecutorService receiverPool)
+			throws Exception {
+		Future<Long> received = receiverPool.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws IOException {
+				return receive(serverSocket, !uploader.equals("stream"));
+			}
+		});
+
+		long start = System.nanoTime();
+		if (uploader.equals("stream"))
+			streamUpload(file, serverSocket.getLocalPort());
+		else
+			new FileUploader("localhost", serverSocket.getLocalPort(), file)
+					.run();
+		long bytes = received.get();
+		long elapsed = System.nanoTime() - start;
+
+		if (bytes != file.length())
+			throw new IllegalStateException("received " + bytes + " of "
+					+ file.length() + " bytes");
+		System.out.println("uploader = " + uploader + " file size = "
+				+ file.length() + " MB/sec = "
+				+ (long) (bytes / (1024 * 1024.0) / (elapsed / 1e9))
+				+ " time (ms) = " + elapsed / 1000000);
+	}
+
+	/**
+	 * copy loop used by FileUploader before transferTo
+	 */
+	private static void streamUpload(File file, int port) throws IOException {
+		Socket socket = new Socket("localhost", port);
+		FileInputStream fileInputStream = new FileInputStream(file);
+		try {
+			OutputStream socketOutputStream = socket.getOutputStream();
+			byte[] buffer = new byte[1024];
+			int count;
+			while ((count = fileInputStream.read(buffer)) >= 0)
+				socketOutputStream.write(buffer, 0, count);
+			socketOutputStream.flush();
+		} finally {
+			fileInputStream.close();
+			socket.close();
+		}
+	}
+
+	private static long receive(ServerSocket serverSocket, boolean header)
+			throws IOException {
+		Socket socket = serverSocket.accept();
+		try {
+			InputStream inputStream = socket.getInputStream();
+			if (header) {
+				TransferHeader.read(Channels.newChannel(inputStream));
+				TransferHeader.writeOffset(
+						Channels.newChannel(socket.getOutputStream()), 0);
+			}
+			byte[] buffer = new byte[64 * 1024];
+			long total = 0;
+			int count;
+			while ((count = inputStream.read(buffer)) >= 0)
+				total += count;
+			return total;
+		} finally {
+			socket.close();
+		}
+	}
+
+	private static File createFile(long size) throws IOException {
+		File file = File.createTempFile("transfer", ".bin");
+		byte[] block = new byte[1024 * 1024];
+		new Random(size).nextBytes(block);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			for (long written = 0; written < size; written += block.length)
+				randomAccessFile.write(block, 0,
+						(int) Math.min(block.length, size - written));
+		} finally {
+			randomAccessFile.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,85 @@
+package benchmark;
+
+import java.nio.charset.Charset;
+
+import common.Actions;
+import common.Message;
+import common.MessageDecoder;
+import common.MessageEncoder;
+
+/**
+ * @author Ashish Pahlazani Compares the old text protocol
+ *         (ordinal:path','revision, built by string concatenation and parsed
+ *         with split) with the binary MessageEncoder/MessageDecoder. Both sides
+ *         encode to bytes and decode back into the fields, messages per second
+ *         and bytes per message are printed.
+ *
+ *         Usage : MessageCodecBenchmark [messageCount]
+ */
+public class MessageCodecBenchmark {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		int messageCount = args.length > 0 ? Integer.parseInt(args[0])
+				: 1000000;
+
+		String[] paths = new String[1024];
+		for (int i = 0; i < paths.length; i++)
+			paths[i] = "/projects/module" + (i % 17) + "/src/main/File" + i
+					+ ".java";
+
+		for (int round = 0; round < ROUNDS; round++) {
+			runText(paths, messageCount);
+			runBinary(paths, messageCount);
+		}
+	}
+
+	private static void runText(String[] paths, int messageCount) {
+		long bytes = 0;
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < messageCount; i++) {
+			byte[] encoded = (Actions.MODIFY.ordinal() + ":"
+					+ paths[i & (paths.length - 1)] + "','" + i)
+					.getBytes(UTF8);
+			bytes += encoded.length;
+
+			String text = new String(encoded, UTF8);
+			Actions action = Actions.fromInteger(Integer.parseInt(text.split(
+					":", 2)[0]));
+			String message = text.split(":", 2)[1];
+			String path = message.split("','")[0];
+			long revisionNumber = Long.parseLong(message.split("','")[1]);
+			checksum += action.ordinal() + path.length() + revisionNumber;
+		}
+		print("text", messageCount, bytes, System.nanoTime() - start, checksum);
+	}
+
+	private static void runBinary(String[] paths, int messageCount) {
+		MessageEncoder encoder = new MessageEncoder();
+		MessageDecoder decoder = new MessageDecoder();
+		long bytes = 0;
+		long checksum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < messageCount; i++) {
+			int length = encoder.encode(new Message(Actions.MODIFY,
+					paths[i & (paths.length - 1)], i));
+			bytes += length;
+
+			Message message = decoder.decode(encoder.getBuffer(), 0, length);
+			checksum += message.getAction().ordinal()
+					+ message.getPath().length() + message.getRevisionNumber();
+		}
+		print("binary", messageCount, bytes, System.nanoTime() - start,
+				checksum);
+	}
+
+	private static void print(String codec, int messageCount, long bytes,
+			long elapsed, long checksum) {
+		System.out.println("codec = " + codec + " messages/sec = "
+				+ (long) (messageCount / (elapsed / 1e9))
+				+ " bytes/message = " + (bytes / messageCount)
+				+ " checksum = " + checksum);
+	}
+}
@@ -0,0 +1,109 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Random;
+
+import common.CompressionCodec;
+import common.ExecutionMode;
+import common.FileDownloader;
+import common.FileUploader;
+import common.ParallelTransfer;
+import common.TaskExecutor;
+
+/**
+ * @author Ashish Pahlazani Sends a file with FileUploader to a FileDownloader
+ *         on 1, 2, 4... streams up to the maximum, and prints the throughput
+ *         of each, then sends it a few times with the stream count chosen by
+ *         ParallelTransfer. On loopback one stream fills the link already, to
+ *         see the gain of several streams give the link a delay first, with
+ *         "tc qdisc add dev lo root netem delay 25ms" on Linux for example.
+ *
+ *         Usage : ParallelTransferBenchmark [fileSize] [streams] [rangeSize],
+ *         256 MB, 8 streams and 8 MB ranges by default, sizes in bytes.
+ */
+public class ParallelTransferBenchmark {
+	private static final int ADAPTIVE_ROUNDS = 4;
+
+	public static void main(String[] args) throws Exception {
+		long fileSize = args.length > 0 ? Long.parseLong(args[0])
+				: 256L * 1024 * 1024;
+		int maxStreams = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		long rangeSize = args.length > 2 ? Long.parseLong(args[2])
+				: 8L * 1024 * 1024;
+
+		TaskExecutor taskExecutor = new TaskExecutor(ExecutionMode.PLATFORM);
+		ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.socket().bind(new InetSocketAddress(0));
+		ServerSocket serverSocket = serverSocketChannel.socket();
+		File file = createFile(fileSize);
+		File target = new File(file.getPath() + ".received");
+		try {
+			for (int streams = 1; streams <= maxStreams; streams *= 2)
+				run("streams = " + streams, file, target, serverSocket,
+						taskExecutor, streams, rangeSize, null);
+
+			ParallelTransfer parallelTransfer = new ParallelTransfer(
+					maxStreams, rangeSize);
+			for (int round = 0; round < ADAPTIVE_ROUNDS; round++) {
+				int streams = parallelTransfer.chooseStreamCount(fileSize,
+						CompressionCodec.NONE);
+				run("adaptive streams = " + streams, file, target,
+						serverSocket, taskExecutor, streams,
+						parallelTransfer.getRangeSize(), parallelTransfer);
+			}
+		} finally {
+			file.delete();
+			target.delete();
+			serverSocket.close();
+			taskExecutor.shutdown();
+		}
+	}
+
+	private static void run(String name, File file, File target,
+			ServerSocket serverSocket, TaskExecutor taskExecutor, int streams,
+			long rangeSize, ParallelTransfer parallelTransfer)
+			throws Exception {
+		target.delete();
+		FileDownloader downloader = new FileDownloader(serverSocket, target,
+				CompressionCodec.NONE, false, taskExecutor);
+		Thread receiver = new Thread(downloader);
+		receiver.start();
+
+		long start = System.nanoTime();
+		FileUploader uploader = new FileUploader("localhost",
+				serverSocket.getLocalPort(), file, CompressionCodec.NONE,
+				streams, rangeSize, taskExecutor);
+		uploader.run();
+		receiver.join();
+		long elapsed = System.nanoTime() - start;
+
+		if (!downloader.isSuccess() || target.length() != file.length())
+			throw new IllegalStateException("transfer failed, " + name);
+		if (parallelTransfer != null)
+			parallelTransfer.transferCompleted(uploader);
+		System.out.println(name + " MB/sec = "
+				+ (long) (file.length() / (1024 * 1024.0) / (elapsed / 1e9))
+				+ " round trip (us) = " + uploader.getRoundTripNanos() / 1000
+				+ " send buffer = " + uploader.getSendBufferSize());
+	}
+
+	private static File createFile(long size) throws IOException {
+		File file = File.createTempFile("parallel", ".bin");
+		byte[] block = new byte[1024 * 1024];
+		new Random(size).nextBytes(block);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			for (long written = 0; written < size; written += block.length)
+				randomAccessFile.write(block, 0,
+						(int) Math.min(block.length, size - written));
+		} finally {
+			randomAccessFile.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,126 @@
+package benchmark;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Random;
+
+import common.DigestTree;
+import common.Message;
+
+/**
+ * @author Ashish Pahlazani Builds the digest trees of a server and of a client
+ *         holding the same N files, changes D files on the server, and
+ *         compares the trees from the top like a client which reconnects. The
+ *         number of folders listed and of entries sent by the server is
+ *         printed with the time of the comparison, then the time to save and
+ *         load the tree of the server is compared with the time to build it.
+ *         The tree is saved in a temp file deleted at the end.
+ *
+ *         Usage : ReconciliationBenchmark [files] [differences], 1000000 files
+ *         and 100 differences by default. A third of the differences are
+ *         modifications, a third deletions and a third new files.
+ */
+public class ReconciliationBenchmark {
+	private static final int PAGE_SIZE = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int differenceCount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+		long start = System.nanoTime();
+		DigestTree serverTree = new DigestTree(File.separatorChar);
+		for (int i = 0; i < fileCount; i++)
+			serverTree.put(path(i), i + 1, false);
+		long buildMillis = (System.nanoTime() - start) / 1000000;
+		DigestTree clientTree = new DigestTree(File.separatorChar);
+		for (int i = 0; i < fileCount; i++)
+			clientTree.put(path(i), i + 1, false);
+
+		Random random = new Random(42);
+		for (int i = 0; i < differenceCount; i++) {
+			int file = random.nextInt(fileCount);
+			if (i % 3 == 0)
+				serverTree.put(path(file), fileCount + i + 1, false);
+			else if (i % 3 == 1)
+				serverTree.put(path(file), fileCount + i + 1, true);
+			else
+				serverTree.put(path(fileCount + i), fileCount + i + 1, false);
+		}
+		System.out.println("files = " + fileCount + " differences = "
+				+ differenceCount + " same root digest = "
+				+ (serverTree.getDigest("") == clientTree.getDigest("")));
+
+		for (int run = 0; run < 3; run++)
+			reconcile(serverTree, clientTree);
+
+		File file = File.createTempFile("digests", "");
+		try {
+			start = System.nanoTime();
+			serverTree.save(file, fileCount);
+			long saveMillis = (System.nanoTime() - start) / 1000000;
+			System.gc();
+			start = System.nanoTime();
+			new DigestTree(File.separatorChar).load(file);
+			System.out.println("build (ms) = " + buildMillis + " save (ms) = "
+					+ saveMillis + " load (ms) = "
+					+ (System.nanoTime() - start) / 1000000 + " bytes = "
+					+ file.length());
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Lists the folders whose digests differ, from the top, like the server
+	 * answers the GET_DIGESTS of a client
+	 */
+	private static void reconcile(final DigestTree serverTree,
+			final DigestTree clientTree) {
+		final Deque<String[]> requests = new ArrayDeque<String[]>();
+		final int[] counts = new int[3];
+		requests.add(new String[] { "", null });
+		long start = System.nanoTime();
+		while (!requests.isEmpty()) {
+			final String[] request = requests.poll();
+			counts[0]++;
+			if (request[1] == null
+					&& serverTree.getDigest(request[0]) == clientTree
+							.getDigest(request[0]))
+				continue;
+			String lastName = serverTree.visitChildren(request[0], request[1],
+					PAGE_SIZE, new DigestTree.IChildVisitor() {
+						@Override
+						public void visitFolder(String path, long digest) {
+							counts[1]++;
+							if (clientTree.getDigest(path) != digest)
+								requests.add(new String[] { path, null });
+						}
+
+						@Override
+						public void visitFile(String path, long revisionNumber,
+								boolean deleted) {
+							counts[1]++;
+							long clientRevision = clientTree
+									.getRevisionNumber(path);
+							if (deleted ? clientRevision != Message.NO_REVISION
+									: clientRevision != revisionNumber)
+								counts[2]++;
+						}
+					});
+			if (lastName != null)
+				requests.add(new String[] { request[0], lastName });
+		}
+		System.out.println("requests = " + counts[0] + " entries = "
+				+ counts[1] + " changed files found = " + counts[2]
+				+ " time (ms) = " + (System.nanoTime() - start) / 1000000.0);
+	}
+
+	private static String path(int i) {
+		return File.separator + "workspace" + File.separator + "frontend"
+				+ File.separator + "node_modules" + File.separator
+				+ "package-" + (i / 1000) + File.separator + "lib"
+				+ File.separator + "module-" + (i / 50) % 20 + File.separator
+				+ "file-" + i + ".js";
+	}
+}
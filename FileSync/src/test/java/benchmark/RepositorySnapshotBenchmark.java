@@ -0,0 +1,308 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import client.IClient;
+import client.RepositorySnapshotLoader;
+import client.SyncMode;
+import common.Actions;
+import common.DigestTree;
+import common.FileTransferMode;
+import common.IRevisionIndex;
+import common.MemoryRevisionIndex;
+import common.Message;
+import common.ParallelTransfer;
+import common.TransferCompression;
+import common.delta.DeltaTransfer;
+import server.ChangeFeed;
+import server.RepositorySnapshotWriter;
+import server.RevisionJournal;
+
+/**
+ * @author Ashish Pahlazani Sends a snapshot of N files over a loopback
+ *         connection, as the server does for a new client, and loads it in an
+ *         empty folder with 1 writer, then with the given number of writers.
+ *         Prints the files and MB per second of each run. The folders are
+ *         created in a temp folder and deleted at the end.
+ *
+ *         Usage : RepositorySnapshotBenchmark [files] [file size] [writers],
+ *         20000 files of 8192 bytes and 8 writers by default.
+ */
+public class RepositorySnapshotBenchmark {
+	public static void main(String[] args) throws Exception {
+		int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int fileSize = args.length > 1 ? Integer.parseInt(args[1]) : 8192;
+		int writerCount = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+		File folder = File.createTempFile("snapshot", "");
+		folder.delete();
+		try {
+			File rootFolder = new File(folder, "server");
+			AtomicLong revisionCounter = new AtomicLong();
+			RevisionJournal journal = new RevisionJournal(new File(folder,
+					"journal"), Long.MAX_VALUE);
+			journal.open(newState(revisionCounter));
+			ChangeFeed changeFeed = new ChangeFeed(revisionCounter, 1000,
+					journal);
+
+			byte[] data = new byte[fileSize];
+			Random random = new Random(42);
+			for (int i = 0; i < fileCount; i++) {
+				String relativePath = "/folder" + (i % 100) + "/file" + i
+						+ ".bin";
+				File file = new File(rootFolder, relativePath);
+				file.getParentFile().mkdirs();
+				random.nextBytes(data);
+				OutputStream outputStream = new FileOutputStream(file);
+				try {
+					outputStream.write(data);
+				} finally {
+					outputStream.close();
+				}
+				changeFeed.record(new Message(Actions.ADD, relativePath,
+						revisionCounter.incrementAndGet()));
+			}
+			System.out.println("files = " + fileCount + " file size = "
+					+ fileSize);
+
+			load(changeFeed, rootFolder, new File(folder, "client1"), 1);
+			load(changeFeed, rootFolder, new File(folder, "client"
+					+ writerCount), writerCount);
+			changeFeed.shutdown();
+			journal.close();
+		} finally {
+			delete(folder);
+		}
+	}
+
+	private static void load(final ChangeFeed changeFeed,
+			final File rootFolder, File clientFolder, int writerCount)
+			throws Exception {
+		clientFolder.mkdirs();
+		final ServerSocketChannel serverSocketChannel = ServerSocketChannel
+				.open();
+		serverSocketChannel.socket().bind(new InetSocketAddress(0));
+		Thread sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SocketChannel socketChannel = serverSocketChannel.accept();
+					try {
+						new RepositorySnapshotWriter(changeFeed, rootFolder
+								.getPath(), null, changeFeed
+								.getLastChangeRevision()).write(socketChannel);
+					} finally {
+						socketChannel.close();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		sender.start();
+
+		BenchmarkClient client = new BenchmarkClient(clientFolder.getPath());
+		Socket socket = new Socket("localhost", serverSocketChannel.socket()
+				.getLocalPort());
+		long start = System.nanoTime();
+		try {
+			new RepositorySnapshotLoader(client, writerCount).load(socket
+					.getInputStream());
+		} finally {
+			socket.close();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		sender.join();
+		serverSocketChannel.close();
+
+		long bytes = 0;
+		for (String relativePath : client.revisionNumbers.keySet())
+			bytes += new File(clientFolder, relativePath).length();
+		System.out.println("writers = " + writerCount + " files = "
+				+ client.revisionNumbers.size() + " files/sec = "
+				+ (long) (client.revisionNumbers.size() / seconds)
+				+ " MB/sec = " + (long) (bytes / seconds / (1024 * 1024))
+				+ " time (ms) = " + (long) (seconds * 1000));
+	}
+
+	/**
+	 * Keeps the revision numbers set by the loader, nothing is sent
+	 */
+	private static class BenchmarkClient implements IClient {
+		String rootFolderPath;
+		Map<String, Long> revisionNumbers = new ConcurrentHashMap<String, Long>();
+		// updated like the one of the client
+		DigestTree digestTree = new DigestTree(File.separatorChar);
+
+		BenchmarkClient(String rootFolderPath) {
+			this.rootFolderPath = rootFolderPath;
+		}
+
+		@Override
+		public void sendMessageToServer(Message message) {
+		}
+
+		@Override
+		public String getServerIp() {
+			return "localhost";
+		}
+
+		@Override
+		public int getPort() {
+			return 0;
+		}
+
+		@Override
+		public int getServerFilePort() {
+			return 0;
+		}
+
+		@Override
+		public String getRootFolderPath() {
+			return rootFolderPath;
+		}
+
+		@Override
+		public FileTransferMode getFileTransferMode() {
+			return FileTransferMode.SOCKET;
+		}
+
+		@Override
+		public DeltaTransfer getDeltaTransfer() {
+			return null;
+		}
+
+		@Override
+		public TransferCompression getTransferCompression() {
+			return null;
+		}
+
+		@Override
+		public ParallelTransfer getParallelTransfer() {
+			return null;
+		}
+
+		@Override
+		public int getMaxUploads() {
+			return 1;
+		}
+
+		@Override
+		public int getMaxDownloads() {
+			return 1;
+		}
+
+		@Override
+		public void ignoreFileForUpdate(File file, Actions action) {
+		}
+
+		@Override
+		public void removeFileFromIgnoreList(File file) {
+		}
+
+		@Override
+		public long getRevisionNumber(String relativePathOfFile) {
+			Long revisionNumber = revisionNumbers.get(relativePathOfFile);
+			return revisionNumber == null ? -1 : revisionNumber;
+		}
+
+		@Override
+		public void setRevisionNumber(String relativePathOfFile,
+				long revisionNumber) {
+			revisionNumbers.put(relativePathOfFile, revisionNumber);
+			digestTree.put(relativePathOfFile, revisionNumber, false);
+		}
+
+		@Override
+		public void setDeletedRevisionNumber(String relativePathOfFile,
+				long revisionNumber) {
+			revisionNumbers.put(relativePathOfFile, revisionNumber);
+			digestTree.remove(relativePathOfFile);
+		}
+
+		@Override
+		public SyncMode getSyncMode() {
+			return SyncMode.PUSH;
+		}
+
+		@Override
+		public long getPullWaitMillis() {
+			return 0;
+		}
+
+		@Override
+		public long getChangeRevision() {
+			return 0;
+		}
+
+		@Override
+		public void setChangeRevision(long changeRevision) {
+		}
+
+		@Override
+		public boolean isInitialLoadRequired() {
+			return false;
+		}
+
+		@Override
+		public int getSnapshotWriterCount() {
+			return 1;
+		}
+
+		@Override
+		public DigestTree getDigestTree() {
+			return digestTree;
+		}
+
+		@Override
+		public boolean isReconcileOnConnect() {
+			return false;
+		}
+	}
+
+	private static RevisionJournal.IRevisionState newState(
+			final AtomicLong revisionCounter) {
+		final IRevisionIndex filesStatus = new MemoryRevisionIndex();
+		return new RevisionJournal.IRevisionState() {
+			@Override
+			public long getCurrentRevisionNumber() {
+				return revisionCounter.get();
+			}
+
+			@Override
+			public IRevisionIndex getRevisionIndex() {
+				return filesStatus;
+			}
+
+			@Override
+			public List<ChangeFeed.Change> getChanges() {
+				return Collections.emptyList();
+			}
+
+			@Override
+			public void snapshotWritten() {
+			}
+		};
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+}
@@ -0,0 +1,128 @@
+package benchmark;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import common.IRevisionIndex;
+import common.MappedRevisionIndex;
+import common.MemoryRevisionIndex;
+import common.RevisionIndexMode;
+import common.TrieRevisionIndex;
+
+/**
+ * @author Ashish Pahlazani Puts N paths in a revision index and prints the
+ *         heap used by the index, the time of a full GC, the latency of
+ *         lookups of random paths and, for a MAPPED index, the time to open it
+ *         again. Run it once per mode, in a JVM of its own, so the heap of one
+ *         index does not count for the other. The mapped files are written in
+ *         a temp folder and deleted at the end.
+ *
+ *         Usage : RevisionIndexBenchmark MEMORY|TRIE|MAPPED [paths], 1000000
+ *         paths by default. The paths look like the ones of a Node.js project,
+ *         deep with long shared prefixes.
+ */
+public class RevisionIndexBenchmark {
+	private static final int LOOKUP_COUNT = 200000;
+
+	public static void main(String[] args) throws Exception {
+		RevisionIndexMode mode = RevisionIndexMode.valueOf(args[0]
+				.toUpperCase());
+		int pathCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+		File folder = File.createTempFile("revisions", "");
+		folder.delete();
+		folder.mkdirs();
+		File baseFile = new File(folder, "revisions");
+		try {
+			long baseHeap = usedHeap();
+			IRevisionIndex index = open(mode, baseFile);
+			long start = System.nanoTime();
+			for (int i = 0; i < pathCount; i++)
+				index.put(path(i), i);
+			long elapsed = System.nanoTime() - start;
+			System.out.println(mode + " paths = " + index.size()
+					+ " puts/sec = " + (long) (pathCount / (elapsed / 1e9)));
+
+			long heap = usedHeap() - baseHeap;
+			start = System.nanoTime();
+			System.gc();
+			System.out.println("heap (MB) = " + heap / (1024 * 1024)
+					+ " bytes/path = " + heap / pathCount
+					+ " full GC (ms) = " + (System.nanoTime() - start)
+					/ 1000000);
+
+			lookups(index, pathCount);
+
+			if (mode == RevisionIndexMode.MAPPED) {
+				index.close();
+				start = System.nanoTime();
+				index = open(mode, baseFile);
+				System.out.println("open (ms) = "
+						+ (System.nanoTime() - start) / 1000000
+						+ " paths = " + index.size());
+				// first lookups after opening read the pages from the cache
+				lookups(index, pathCount);
+			}
+			index.close();
+		} finally {
+			File[] files = folder.listFiles();
+			if (files != null)
+				for (File file : files)
+					file.delete();
+			folder.delete();
+		}
+	}
+
+	private static IRevisionIndex open(RevisionIndexMode mode, File baseFile)
+			throws Exception {
+		switch (mode) {
+		case MAPPED:
+			return new MappedRevisionIndex(baseFile);
+		case TRIE:
+			return new TrieRevisionIndex();
+		default:
+			return new MemoryRevisionIndex();
+		}
+	}
+
+	/**
+	 * Prints the mean and percentiles of the lookups of random paths
+	 */
+	private static void lookups(IRevisionIndex index, int pathCount) {
+		Random random = new Random(42);
+		String[] paths = new String[LOOKUP_COUNT];
+		for (int i = 0; i < paths.length; i++)
+			paths[i] = path(random.nextInt(pathCount));
+
+		long[] latencies = new long[paths.length];
+		long sum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < paths.length; i++) {
+			long lookupStart = System.nanoTime();
+			sum += index.get(paths[i]);
+			latencies[i] = System.nanoTime() - lookupStart;
+		}
+		long elapsed = System.nanoTime() - start;
+		Arrays.sort(latencies);
+		System.out.println("lookup ns mean = " + elapsed / paths.length
+				+ " p50 = " + latencies[latencies.length / 2] + " p99 = "
+				+ latencies[latencies.length * 99 / 100] + " max = "
+				+ latencies[latencies.length - 1] + " (checksum " + sum + ")");
+	}
+
+	private static String path(int i) {
+		return File.separator + "workspace" + File.separator + "frontend"
+				+ File.separator + "node_modules" + File.separator
+				+ "package-" + (i / 1000) + File.separator + "lib"
+				+ File.separator + "module-" + (i / 50) % 20 + File.separator
+				+ "file-" + i + ".js";
+	}
+
+	private static long usedHeap() {
+		System.gc();
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
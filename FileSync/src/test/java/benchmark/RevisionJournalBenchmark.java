@@ -0,0 +1,147 @@
+package benchmark;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.IRevisionIndex;
+import common.MemoryRevisionIndex;
+import server.ChangeFeed;
+import server.RevisionJournal;
+
+/**
+ * @author Ashish Pahlazani Sets the revision of N paths from several threads
+ *         through a RevisionJournal, each thread waiting for its revisions to
+ *         be synced every BATCH_SIZE paths like the server does for a batch of
+ *         changes, and prints the append throughput and the number of fsyncs
+ *         shared by the threads. The startup of the server is then timed
+ *         after a crash, replaying the whole journal, and after a compaction,
+ *         loading the snapshot. The journal is written in a temp folder and
+ *         deleted at the end.
+ *
+ *         Usage : RevisionJournalBenchmark [paths] [threads], 1000000 paths
+ *         and 4 threads by default. 10000000 paths need about 3 GB of heap.
+ */
+public class RevisionJournalBenchmark {
+	private static final int BATCH_SIZE = 100;
+	private static final int PAGE_SIZE = 1000;
+
+	public static void main(String[] args) throws Exception {
+		int pathCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+		File folder = File.createTempFile("journal", "");
+		folder.delete();
+		try {
+			final IRevisionIndex filesStatus = new MemoryRevisionIndex();
+			final AtomicLong revisionCounter = new AtomicLong();
+			final RevisionJournal journal = new RevisionJournal(folder,
+					Long.MAX_VALUE);
+			journal.open(newState(revisionCounter, filesStatus));
+
+			Thread[] threads = new Thread[threadCount];
+			final int pathsPerThread = pathCount / threadCount;
+			long start = System.nanoTime();
+			for (int t = 0; t < threadCount; t++) {
+				final int first = t * pathsPerThread;
+				threads[t] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for (int i = first; i < first + pathsPerThread; i++) {
+								String path = "/folder" + (i % 1000) + "/file"
+										+ i + ".txt";
+								long revisionNumber = revisionCounter
+										.incrementAndGet();
+								synchronized (journal) {
+									filesStatus.put(path, revisionNumber);
+									journal.appendRevision(path, revisionNumber);
+								}
+								if ((i - first + 1) % BATCH_SIZE == 0)
+									journal.syncAll();
+							}
+							journal.syncAll();
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				});
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+			long elapsed = System.nanoTime() - start;
+			System.out.println("paths = " + filesStatus.size() + " threads = "
+					+ threadCount + " fsyncs = " + journal.getSyncCount()
+					+ " journal bytes = " + journal.getJournalSize());
+			System.out.println("append revisions/sec = "
+					+ (long) (filesStatus.size() / (elapsed / 1e9))
+					+ " time (ms) = " + elapsed / 1000000);
+			// crash, nothing saved but the journal
+			journal.close();
+
+			System.out.println("startup replaying the journal (ms) = "
+					+ recover(folder, false));
+			System.out.println("compaction (ms) = " + recover(folder, true)
+					+ " snapshot bytes = "
+					+ new File(folder, "snapshot").length());
+			System.out.println("startup loading the snapshot (ms) = "
+					+ recover(folder, false));
+		} finally {
+			File[] files = folder.listFiles();
+			if (files != null)
+				for (File file : files)
+					file.delete();
+			folder.delete();
+		}
+	}
+
+	/**
+	 * @param compact
+	 *            : true to time the compaction of the recovered state instead
+	 * @return time in ms
+	 */
+	private static long recover(File folder, boolean compact) throws Exception {
+		IRevisionIndex filesStatus = new MemoryRevisionIndex();
+		AtomicLong revisionCounter = new AtomicLong();
+		System.gc();
+		long start = System.nanoTime();
+		RevisionJournal journal = new RevisionJournal(folder, Long.MAX_VALUE);
+		revisionCounter.set(journal.recover(filesStatus, new ChangeFeed(
+				revisionCounter, PAGE_SIZE, journal)));
+		journal.open(newState(revisionCounter, filesStatus));
+		if (compact) {
+			start = System.nanoTime();
+			journal.compact();
+		}
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		journal.close();
+		return elapsed;
+	}
+
+	private static RevisionJournal.IRevisionState newState(
+			final AtomicLong revisionCounter,
+			final IRevisionIndex filesStatus) {
+		return new RevisionJournal.IRevisionState() {
+			@Override
+			public long getCurrentRevisionNumber() {
+				return revisionCounter.get();
+			}
+
+			@Override
+			public IRevisionIndex getRevisionIndex() {
+				return filesStatus;
+			}
+
+			@Override
+			public List<ChangeFeed.Change> getChanges() {
+				return Collections.emptyList();
+			}
+
+			@Override
+			public void snapshotWritten() {
+			}
+		};
+	}
+}
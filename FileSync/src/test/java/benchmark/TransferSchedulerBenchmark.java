@@ -0,0 +1,88 @@
+package benchmark;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import client.ITransferTask;
+import client.TransferScheduler;
+import common.ExecutionMode;
+import common.TaskExecutor;
+
+/**
+ * @author Ashish Pahlazani Schedules N uploads of small files on a
+ *         TransferScheduler, each taking one round trip like the upload of a
+ *         small file to a remote server, with 1, 4, 16 and 64 uploads in
+ *         flight. Prints the time taken by the thread scheduling them, which
+ *         stands for the listener thread, and the time until the last one is
+ *         done. A tenth of the uploads are on a path already scheduled, the
+ *         order of the uploads of a path is checked.
+ *
+ *         Usage : TransferSchedulerBenchmark [files] [roundTripMillis], 10000
+ *         files and 2 ms by default.
+ */
+public class TransferSchedulerBenchmark {
+	private static final int[] WINDOWS = { 1, 4, 16, 64 };
+
+	public static void main(String[] args) throws Exception {
+		int fileCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		long roundTripMillis = args.length > 1 ? Long.parseLong(args[1]) : 2;
+
+		TaskExecutor taskExecutor = new TaskExecutor(ExecutionMode.PLATFORM);
+		try {
+			for (int window : WINDOWS)
+				run(taskExecutor, window, fileCount, roundTripMillis);
+		} finally {
+			taskExecutor.shutdown();
+		}
+	}
+
+	private static void run(TaskExecutor taskExecutor, int window,
+			int fileCount, final long roundTripMillis)
+			throws InterruptedException {
+		TransferScheduler transferScheduler = new TransferScheduler(
+				taskExecutor, window, window);
+		final CountDownLatch done = new CountDownLatch(fileCount);
+		final AtomicInteger outOfOrder = new AtomicInteger();
+		int pathCount = fileCount - fileCount / 10;
+		final int[] lastSequence = new int[pathCount];
+		int[] nextSequence = new int[pathCount];
+		Random random = new Random(42);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < fileCount; i++) {
+			final int path = i < pathCount ? i : random.nextInt(pathCount);
+			final int sequence = ++nextSequence[path];
+			transferScheduler.upload("file-" + path, new ITransferTask() {
+				@Override
+				public boolean transfer() {
+					try {
+						Thread.sleep(roundTripMillis);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return true;
+				}
+
+				@Override
+				public void transferCompleted(boolean success) {
+					synchronized (lastSequence) {
+						if (lastSequence[path] != sequence - 1)
+							outOfOrder.incrementAndGet();
+						lastSequence[path] = sequence;
+					}
+					done.countDown();
+				}
+			});
+		}
+		long scheduleNanos = System.nanoTime() - start;
+		done.await();
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("in flight = " + window + " files = " + fileCount
+				+ " schedule (ms) = " + scheduleNanos / 1000000
+				+ " done (ms) = " + elapsed / 1000000 + " files/sec = "
+				+ (long) (fileCount / (elapsed / 1e9)) + " out of order = "
+				+ outOfOrder.get());
+	}
+}
@@ -0,0 +1,288 @@
+package client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import common.Actions;
+import common.DigestTree;
+import common.FileTransferMode;
+import common.MemoryRevisionIndex;
+import common.Message;
+import common.ParallelTransfer;
+import common.TransferCompression;
+import common.delta.DeltaTransfer;
+
+public class TestDigestReconciler {
+
+	private static final int FILE_COUNT = 300;
+	private static final int PAGE_SIZE = 4;
+	private static final String SEPARATOR = File.separator;
+
+	private File rootFolder;
+	private DigestTree serverTree = new DigestTree(File.separatorChar);
+	private FakeClient client = new FakeClient();
+	private int requestCount;
+
+	/**
+	 * Client whose GET_DIGESTS are answered from serverTree, like the change
+	 * feed of the server does
+	 */
+	private class FakeClient implements IClient {
+		DigestTree digestTree = new DigestTree(File.separatorChar);
+		MemoryRevisionIndex filesStatus = new MemoryRevisionIndex();
+		Deque<Message> answers = new ArrayDeque<Message>();
+
+		@Override
+		public void sendMessageToServer(Message message) {
+			assertEquals(Actions.GET_DIGESTS, message.getAction());
+			requestCount++;
+			final List<Message> entries = new ArrayList<Message>();
+			String lastName = null;
+			if (message.getText() != null
+					|| serverTree.getDigest(message.getPath()) != message
+							.getDigest())
+				lastName = serverTree.visitChildren(message.getPath(),
+						message.getText(), PAGE_SIZE,
+						new DigestTree.IChildVisitor() {
+							@Override
+							public void visitFolder(String path, long digest) {
+								entries.add(new Message(Actions.DIGESTS, path)
+										.setDigest(digest));
+							}
+
+							@Override
+							public void visitFile(String path,
+									long revisionNumber, boolean deleted) {
+								entries.add(new Message(deleted ? Actions.DELETE
+										: Actions.MODIFY, path, revisionNumber));
+							}
+						});
+			answers.add(new Message(Actions.DIGESTS, message.getPath())
+					.setEntries(entries).setText(lastName));
+		}
+
+		@Override
+		public String getServerIp() {
+			return "localhost";
+		}
+
+		@Override
+		public int getPort() {
+			return 0;
+		}
+
+		@Override
+		public int getServerFilePort() {
+			return 0;
+		}
+
+		@Override
+		public String getRootFolderPath() {
+			return rootFolder.getPath();
+		}
+
+		@Override
+		public FileTransferMode getFileTransferMode() {
+			return FileTransferMode.SOCKET;
+		}
+
+		@Override
+		public DeltaTransfer getDeltaTransfer() {
+			return null;
+		}
+
+		@Override
+		public TransferCompression getTransferCompression() {
+			return null;
+		}
+
+		@Override
+		public ParallelTransfer getParallelTransfer() {
+			return null;
+		}
+
+		@Override
+		public int getMaxUploads() {
+			return 1;
+		}
+
+		@Override
+		public int getMaxDownloads() {
+			return 1;
+		}
+
+		@Override
+		public void ignoreFileForUpdate(File file, Actions action) {
+		}
+
+		@Override
+		public void removeFileFromIgnoreList(File file) {
+		}
+
+		@Override
+		public long getRevisionNumber(String relativePathOfFile) {
+			return filesStatus.get(relativePathOfFile);
+		}
+
+		@Override
+		public void setRevisionNumber(String relativePathOfFile,
+				long revisionNumber) {
+			filesStatus.put(relativePathOfFile, revisionNumber);
+		}
+
+		@Override
+		public void setDeletedRevisionNumber(String relativePathOfFile,
+				long revisionNumber) {
+		}
+
+		@Override
+		public SyncMode getSyncMode() {
+			return SyncMode.PUSH;
+		}
+
+		@Override
+		public long getPullWaitMillis() {
+			return 0;
+		}
+
+		@Override
+		public long getChangeRevision() {
+			return 0;
+		}
+
+		@Override
+		public void setChangeRevision(long changeRevision) {
+		}
+
+		@Override
+		public boolean isInitialLoadRequired() {
+			return false;
+		}
+
+		@Override
+		public int getSnapshotWriterCount() {
+			return 1;
+		}
+
+		@Override
+		public DigestTree getDigestTree() {
+			return digestTree;
+		}
+
+		@Override
+		public boolean isReconcileOnConnect() {
+			return true;
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		rootFolder = Files.createTempDirectory("reconcile").toFile();
+		for (int i = 0; i < FILE_COUNT; i++) {
+			serverTree.put(path(i), i + 1, false);
+			client.digestTree.put(path(i), i + 1, false);
+			client.setRevisionNumber(path(i), i + 1);
+		}
+	}
+
+	@After
+	public void tearDown() {
+		delete(rootFolder);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	private static String path(int i) {
+		return SEPARATOR + "folder-" + (i % 5) + SEPARATOR + "sub-" + (i % 3)
+				+ SEPARATOR + "file-" + i;
+	}
+
+	/**
+	 * @return changes found by the reconciler, in the order they were found
+	 */
+	private List<Message> reconcile() {
+		DigestReconciler reconciler = new DigestReconciler(client);
+		List<Message> changes = new ArrayList<Message>();
+		reconciler.start();
+		while (reconciler.isRunning())
+			changes.addAll(reconciler.compare(client.answers.poll()));
+		assertTrue(client.answers.isEmpty());
+		return changes;
+	}
+
+	private static void assertChange(Actions action, String path,
+			long revisionNumber, Message change) {
+		assertEquals(action, change.getAction());
+		assertEquals(path, change.getPath());
+		assertEquals(revisionNumber, change.getRevisionNumber());
+	}
+
+	@Test
+	public void sameTrees_Reconcile_NoChangeInOneRequest() {
+		assertEquals(0, reconcile().size());
+		assertEquals(1, requestCount);
+	}
+
+	@Test
+	public void filesChangedOnServer_Reconcile_OnlyChangesFound() {
+		serverTree.put(path(7), 1000, false);
+		serverTree.put(path(8), 1001, true);
+		String newPath = SEPARATOR + "folder-2" + SEPARATOR + "new";
+		serverTree.put(newPath, 1002, false);
+
+		List<Message> changes = reconcile();
+
+		assertEquals(3, changes.size());
+		assertChange(Actions.MODIFY, newPath, 1002, changes.get(0));
+		assertChange(Actions.MODIFY, path(7), 1000, changes.get(1));
+		assertChange(Actions.DELETE, path(8), 1001, changes.get(2));
+		// the folders of the changes only, in pages of PAGE_SIZE children
+		assertTrue("requests = " + requestCount, requestCount < 20);
+	}
+
+	@Test
+	public void deletionAlreadyApplied_Reconcile_NoChange() {
+		serverTree.put(path(9), 1000, true);
+		client.digestTree.remove(path(9));
+
+		assertEquals(0, reconcile().size());
+	}
+
+	@Test
+	public void fileChangedLocally_Reconcile_LeftToDetector()
+			throws IOException {
+		serverTree.put(path(10), 1000, false);
+		// the client has a local change of the file not sent yet
+		client.setRevisionNumber(path(10), -1);
+		File file = new File(rootFolder, path(10));
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), new byte[] { 1 });
+
+		assertEquals(0, reconcile().size());
+	}
+
+	@Test
+	public void fileOnlyOnClient_Reconcile_LeftToDetector() {
+		client.digestTree.put(SEPARATOR + "local", 1000, false);
+
+		assertEquals(0, reconcile().size());
+	}
+}
@@ -0,0 +1,209 @@
+package client.file_change_detector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import common.Actions;
+
+public class TestFileHashCache {
+
+	// whole seconds, kept by every file system
+	private static final long TIME = 1500000000000L;
+
+	private File folder;
+	private File rootFolder;
+	private File cacheFile;
+	private FileHashCache hashCache;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("hashcache").toFile();
+		rootFolder = new File(folder, "root");
+		rootFolder.mkdir();
+		cacheFile = new File(folder, "hashes.dat");
+		hashCache = new FileHashCache(rootFolder, cacheFile, 2);
+	}
+
+	@After
+	public void tearDown() {
+		hashCache.shutdown();
+		delete(folder);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	private File write(String name, String content, long lastModified)
+			throws IOException {
+		File file = new File(rootFolder, name);
+		Files.write(file.toPath(), content.getBytes("US-ASCII"));
+		assertTrue(file.setLastModified(lastModified));
+		return file;
+	}
+
+	private Set<File> update(File file) {
+		return hashCache.update(Collections.singletonList(file));
+	}
+
+	@Test
+	public void newFile_Update_Changed() throws IOException {
+		File file = write("a.txt", "first", TIME);
+
+		assertEquals(Collections.singleton(file), update(file));
+		assertTrue(update(file).isEmpty());
+	}
+
+	@Test
+	public void sameStat_Update_NotHashedAgain() throws IOException {
+		File file = write("a.txt", "first", TIME);
+		update(file);
+
+		// same length and time, only a hash would tell, none is made
+		write("a.txt", "other", TIME);
+
+		assertTrue(update(file).isEmpty());
+	}
+
+	@Test
+	public void contentChanged_Update_Changed() throws IOException {
+		File file = write("a.txt", "first", TIME);
+		update(file);
+
+		write("a.txt", "other", TIME + 1000);
+
+		assertEquals(Collections.singleton(file), update(file));
+		assertTrue(update(file).isEmpty());
+	}
+
+	@Test
+	public void fileTouched_Update_HashedAgainButNotChanged()
+			throws IOException {
+		File file = write("a.txt", "first", TIME);
+		update(file);
+
+		assertTrue(file.setLastModified(TIME + 1000));
+		assertTrue(update(file).isEmpty());
+
+		// the new time is cached, a change with the same time is not seen
+		write("a.txt", "other", TIME + 1000);
+		assertTrue(update(file).isEmpty());
+	}
+
+	@Test
+	public void removedFile_Update_ChangedAgain() throws IOException {
+		File file = write("a.txt", "first", TIME);
+		update(file);
+
+		hashCache.remove(file);
+
+		assertEquals(Collections.singleton(file), update(file));
+	}
+
+	@Test
+	public void manyFiles_Update_OnlyChangedReturned() throws IOException {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 20; i++)
+			files.add(write("f" + i, "content " + i, TIME));
+		assertEquals(20, hashCache.update(files).size());
+
+		write("f3", "content 3", TIME + 1000);
+		write("f7", "changed 7", TIME + 1000);
+
+		assertEquals(Collections.singleton(files.get(7)),
+				hashCache.update(files));
+	}
+
+	@Test
+	public void savedCache_Load_FilesNotChanged() throws IOException {
+		File file = write("a.txt", "first", TIME);
+		File other = write("b.txt", "second", TIME);
+		hashCache.update(Arrays.asList(file, other));
+		hashCache.save();
+		hashCache.shutdown();
+
+		hashCache = new FileHashCache(rootFolder, cacheFile, 2);
+		hashCache.load();
+
+		assertTrue(update(file).isEmpty());
+		assertTrue(file.setLastModified(TIME + 1000));
+		assertTrue(update(file).isEmpty());
+		write("b.txt", "changed", TIME + 1000);
+		assertEquals(Collections.singleton(other), update(other));
+	}
+
+	@Test
+	public void cacheOfOtherType_Load_FilesHashedAgain() throws IOException {
+		File file = write("a.txt", "first", TIME);
+		Map<String, String> saved = new HashMap<String, String>();
+		saved.put(File.separator + "a.txt", "not an entry");
+		ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(
+				cacheFile));
+		try {
+			oos.writeObject(saved);
+		} finally {
+			oos.close();
+		}
+
+		hashCache.load();
+
+		assertEquals(Collections.singleton(file), update(file));
+	}
+
+	@Test
+	public void damagedCache_Load_FilesHashedAgain() throws IOException {
+		File file = write("a.txt", "first", TIME);
+		Files.write(cacheFile.toPath(), new byte[] { 1, 2, 3 });
+
+		hashCache.load();
+
+		assertEquals(Collections.singleton(file), update(file));
+	}
+
+	@Test
+	public void touchedFile_Scan_ContentUnchangedInsteadOfModify()
+			throws IOException {
+		File file = write("a.txt", "first", TIME);
+		final List<String> events = new ArrayList<String>();
+		ScanBasedFileChangeDetector detector = new ScanBasedFileChangeDetector(
+				rootFolder.getPath(), hashCache) {
+			@Override
+			protected void onChange(File changedFile, Actions action) {
+				events.add(action + " " + changedFile.getName());
+			}
+
+			@Override
+			protected void onContentUnchanged(File changedFile) {
+				events.add("UNCHANGED " + changedFile.getName());
+			}
+		};
+
+		assertTrue(file.setLastModified(TIME + 1000));
+		detector.run();
+		write("a.txt", "other", TIME + 2000);
+		detector.run();
+
+		assertEquals(Arrays.asList("UNCHANGED a.txt", "MODIFY a.txt"), events);
+	}
+}
@@ -0,0 +1,271 @@
+package common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDigestTree {
+
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("digests", "");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		new File(file.getPath() + ".tmp").delete();
+	}
+
+	private static String path(int i) {
+		return "/folder-" + (i % 7) + "/sub-" + (i % 3) + "/file-" + i;
+	}
+
+	private static DigestTree tree(List<Integer> files) {
+		DigestTree tree = new DigestTree('/');
+		for (int i : files)
+			tree.put(path(i), i + 1, false);
+		return tree;
+	}
+
+	private static List<Integer> range(int count) {
+		List<Integer> files = new ArrayList<Integer>();
+		for (int i = 0; i < count; i++)
+			files.add(i);
+		return files;
+	}
+
+	/**
+	 * @return names of the children visited, page by page
+	 */
+	private static List<String> visitAll(DigestTree tree, String folderPath,
+			int pageSize) {
+		final List<String> names = new ArrayList<String>();
+		DigestTree.IChildVisitor visitor = new DigestTree.IChildVisitor() {
+			@Override
+			public void visitFolder(String path, long digest) {
+				names.add(path + "/");
+			}
+
+			@Override
+			public void visitFile(String path, long revisionNumber,
+					boolean deleted) {
+				names.add(path);
+			}
+		};
+		String lastName = null;
+		do {
+			lastName = tree.visitChildren(folderPath, lastName, pageSize,
+					visitor);
+		} while (lastName != null);
+		return names;
+	}
+
+	@Test
+	public void filesInAnyOrder_Put_SameDigests() {
+		List<Integer> files = range(500);
+		DigestTree tree = tree(files);
+		Collections.shuffle(files, new Random(1));
+
+		DigestTree shuffledTree = tree(files);
+
+		assertNotEquals(0, tree.getDigest(""));
+		assertEquals(tree.getDigest(""), shuffledTree.getDigest(""));
+		assertEquals(tree.getDigest("/folder-3"),
+				shuffledTree.getDigest("/folder-3"));
+		assertEquals(tree.getDigest("/folder-3/sub-1"),
+				shuffledTree.getDigest("/folder-3/sub-1"));
+	}
+
+	@Test
+	public void tombstone_Put_SameDigestAsAbsentFile() {
+		DigestTree tree = tree(range(100));
+		long digest = tree.getDigest("");
+		long folderDigest = tree.getDigest("/folder-1");
+
+		tree.put("/folder-1/deleted", 1000, true);
+		tree.put("/other/deleted", 1001, true);
+
+		assertEquals(digest, tree.getDigest(""));
+		assertEquals(folderDigest, tree.getDigest("/folder-1"));
+		assertEquals(0, tree.getDigest("/other"));
+		assertEquals(Message.NO_REVISION,
+				tree.getRevisionNumber("/folder-1/deleted"));
+		assertEquals(102, tree.size());
+	}
+
+	@Test
+	public void deletedFile_Put_SameDigestAsNeverAdded() {
+		DigestTree tree = tree(range(100));
+		tree.put(path(42), 1000, true);
+
+		List<Integer> files = range(100);
+		files.remove(Integer.valueOf(42));
+
+		assertEquals(tree(files).getDigest(""), tree.getDigest(""));
+	}
+
+	@Test
+	public void changedFile_Put_DigestsUpdatedUpToTheRoot() {
+		DigestTree tree = tree(range(100));
+		long digest = tree.getDigest("");
+		long otherFolderDigest = tree.getDigest("/folder-2");
+
+		tree.put(path(8), 1000, false);
+
+		assertNotEquals(digest, tree.getDigest(""));
+		assertEquals(otherFolderDigest, tree.getDigest("/folder-2"));
+		DigestTree rebuilt = new DigestTree('/');
+		for (int i = 0; i < 100; i++)
+			rebuilt.put(path(i), i == 8 ? 1000 : i + 1, false);
+		assertEquals(rebuilt.getDigest(""), tree.getDigest(""));
+		assertEquals(rebuilt.getDigest(path(8)), tree.getDigest(path(8)));
+		assertEquals(1000, tree.getRevisionNumber(path(8)));
+
+		tree.put(path(8), 9, false);
+		assertEquals(digest, tree.getDigest(""));
+	}
+
+	@Test
+	public void file_Remove_SameTreeAsNeverAdded() {
+		DigestTree tree = tree(range(100));
+		tree.put("/alone/a/b", 1000, false);
+
+		tree.remove("/alone/a/b");
+		tree.remove(path(42));
+		tree.remove("/missing");
+
+		List<Integer> files = range(100);
+		files.remove(Integer.valueOf(42));
+		assertEquals(tree(files).getDigest(""), tree.getDigest(""));
+		assertEquals(99, tree.size());
+		// the folders left without file are removed
+		assertEquals(Collections.emptyList(), visitAll(tree, "/alone", 10));
+		assertEquals(7, visitAll(tree, "", 10).size());
+	}
+
+	@Test
+	public void folderOfManyChildren_VisitChildren_AllPagesInOrder() {
+		DigestTree tree = new DigestTree('/');
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			String name = "/folder/file-" + (char) ('a' + i);
+			expected.add(name);
+			// past 8 children the folder keeps them in a map
+			tree.put(name, i + 1, false);
+			assertEquals(expected, visitAll(tree, "/folder", 3));
+		}
+		assertEquals(expected, visitAll(tree, "/folder", 1));
+		assertEquals(expected, visitAll(tree, "/folder", 100));
+
+		List<String> firstPage = new ArrayList<String>();
+		String lastName = tree.visitChildren("/folder", "file-c", 2,
+				new DigestTree.IChildVisitor() {
+					@Override
+					public void visitFolder(String path, long digest) {
+					}
+
+					@Override
+					public void visitFile(String path, long revisionNumber,
+							boolean deleted) {
+						firstPage.add(path);
+					}
+				});
+		assertEquals("file-e", lastName);
+		assertEquals(expected.subList(3, 5), firstPage);
+	}
+
+	@Test
+	public void fileAlsoFolder_VisitChildren_VisitedTwice() {
+		DigestTree tree = new DigestTree('/');
+		tree.put("/a", 1, false);
+		tree.put("/a/b", 2, false);
+		tree.put("/c", 3, true);
+
+		List<String> names = visitAll(tree, "", 1);
+
+		assertEquals(3, names.size());
+		assertEquals("/a/", names.get(0));
+		assertEquals("/a", names.get(1));
+		assertEquals("/c", names.get(2));
+		assertNull(tree.visitChildren("/missing", null, 10, null));
+	}
+
+	@Test
+	public void savedTree_Load_SameTree() throws IOException {
+		DigestTree tree = tree(range(300));
+		tree.put("/deleted", 1000, true);
+		tree.save(file, 1234);
+
+		DigestTree loaded = new DigestTree('/');
+		assertEquals(1234, loaded.load(file));
+
+		assertEquals(tree.size(), loaded.size());
+		assertEquals(tree.getDigest(""), loaded.getDigest(""));
+		assertEquals(tree.getRevisionNumber(path(12)),
+				loaded.getRevisionNumber(path(12)));
+		assertEquals(visitAll(tree, "/folder-4/sub-2", 5), visitAll(loaded,
+				"/folder-4/sub-2", 5));
+		assertEquals(visitAll(tree, "", 5), visitAll(loaded, "", 5));
+
+		// the loaded tree is updated like the saved one
+		tree.put(path(12), 2000, false);
+		loaded.put(path(12), 2000, false);
+		tree.put("/new/file", 2001, false);
+		loaded.put("/new/file", 2001, false);
+		assertEquals(tree.getDigest(""), loaded.getDigest(""));
+	}
+
+	@Test
+	public void corruptedFile_Load_RejectedTreeUnchanged() throws IOException {
+		tree(range(100)).save(file, 1);
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		try {
+			long position = file.length() / 2;
+			randomAccessFile.seek(position);
+			int value = randomAccessFile.read();
+			randomAccessFile.seek(position);
+			randomAccessFile.write(value ^ 0x10);
+		} finally {
+			randomAccessFile.close();
+		}
+		DigestTree tree = tree(range(10));
+		long digest = tree.getDigest("");
+
+		try {
+			tree.load(file);
+			fail("corrupted tree loaded");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(digest, tree.getDigest(""));
+		assertEquals(10, tree.size());
+	}
+
+	@Test
+	public void otherSeparator_Load_Rejected() throws IOException {
+		tree(range(10)).save(file, 1);
+
+		try {
+			new DigestTree('\\').load(file);
+			fail("tree of another separator loaded");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,288 @@
+package common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFileConnectionDispatcher {
+
+	private static final long TIMEOUT_MILLIS = 1000;
+	private static final int MAX_WAITING = 4;
+
+	private TaskExecutor taskExecutor;
+	private FileConnectionDispatcher dispatcher;
+	private InetSocketAddress address;
+	private List<SocketChannel> channels = new ArrayList<SocketChannel>();
+
+	/**
+	 * Keeps the connection given to the listener, or the failure
+	 */
+	private static class Listener implements
+			FileConnectionDispatcher.IConnectionListener {
+		final CountDownLatch called = new CountDownLatch(1);
+		final AtomicReference<Socket> socket = new AtomicReference<Socket>();
+		final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+		@Override
+		public void connected(Socket connectedSocket) {
+			socket.set(connectedSocket);
+			called.countDown();
+		}
+
+		@Override
+		public void failed(IOException e) {
+			failure.set(e);
+			called.countDown();
+		}
+
+		void await() throws InterruptedException {
+			assertTrue("listener not called",
+					called.await(10, TimeUnit.SECONDS));
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+		serverSocketChannel.socket().bind(new InetSocketAddress("localhost", 0));
+		address = new InetSocketAddress("localhost", serverSocketChannel
+				.socket().getLocalPort());
+		taskExecutor = new TaskExecutor(ExecutionMode.PLATFORM);
+		dispatcher = new FileConnectionDispatcher(serverSocketChannel.socket(),
+				taskExecutor, TIMEOUT_MILLIS, MAX_WAITING);
+		new Thread(dispatcher, "FileConnectionDispatcher").start();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		dispatcher.close();
+		taskExecutor.shutdown();
+		for (SocketChannel channel : channels)
+			channel.close();
+	}
+
+	/**
+	 * @return connection to the dispatcher with the token, then the byte
+	 */
+	private SocketChannel connect(long token, int value) throws IOException {
+		SocketChannel channel = FileConnectionDispatcher.connect(address,
+				token);
+		channels.add(channel);
+		ByteBuffer buffer = ByteBuffer.allocate(1);
+		buffer.put((byte) value).flip();
+		channel.write(buffer);
+		return channel;
+	}
+
+	/**
+	 * @return byte sent after the token
+	 */
+	private static int readValue(Socket socket) throws IOException {
+		socket.setSoTimeout(5000);
+		return socket.getInputStream().read();
+	}
+
+	/**
+	 * @return true if the dispatcher closed the connection within the time
+	 */
+	private static boolean isClosedWithin(SocketChannel channel,
+			long timeoutMillis) throws IOException {
+		Socket socket = channel.socket();
+		socket.setSoTimeout((int) timeoutMillis);
+		InputStream inputStream = socket.getInputStream();
+		try {
+			return inputStream.read() < 0;
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			// reset by the dispatcher
+			return true;
+		}
+	}
+
+	@Test
+	public void twoTransfers_Register_EachConnectedWithItsToken()
+			throws Exception {
+		long firstToken = FileConnectionDispatcher.newToken();
+		long secondToken = FileConnectionDispatcher.newToken();
+		Listener first = new Listener();
+		Listener second = new Listener();
+		dispatcher.register(firstToken, first);
+		dispatcher.register(secondToken, second);
+
+		connect(secondToken, 2);
+		connect(firstToken, 1);
+
+		first.await();
+		second.await();
+		assertEquals(1, readValue(first.socket.get()));
+		assertEquals(2, readValue(second.socket.get()));
+		first.socket.get().close();
+		second.socket.get().close();
+	}
+
+	@Test
+	public void connectionBeforeRegister_Register_ConnectedAtOnce()
+			throws Exception {
+		long token = FileConnectionDispatcher.newToken();
+		connect(token, 8);
+		// the connection waits once its token is read
+		Thread.sleep(200);
+
+		Listener listener = new Listener();
+		dispatcher.register(token, listener);
+
+		assertEquals(0, listener.called.getCount());
+		assertEquals(8, readValue(listener.socket.get()));
+		listener.socket.get().close();
+	}
+
+	@Test
+	public void twoTransfersConcurrently_Accept_EachGetsItsConnection()
+			throws Exception {
+		final long[] tokens = { FileConnectionDispatcher.newToken(),
+				FileConnectionDispatcher.newToken() };
+		final int[] values = new int[2];
+		final CountDownLatch done = new CountDownLatch(2);
+		for (int i = 0; i < 2; i++) {
+			final int index = i;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						Socket socket = dispatcher.accept(tokens[index]);
+						values[index] = readValue(socket);
+						socket.close();
+					} catch (IOException e) {
+						values[index] = -1;
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+
+		connect(tokens[1], 11);
+		connect(tokens[0], 10);
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(10, values[0]);
+		assertEquals(11, values[1]);
+	}
+
+	@Test
+	public void unknownToken_Connect_ClosedAfterTimeout() throws Exception {
+		SocketChannel channel = connect(FileConnectionDispatcher.newToken(),
+				1);
+
+		assertTrue(isClosedWithin(channel, 5000));
+	}
+
+	@Test
+	public void expiredConnection_Accept_NotGiven() throws Exception {
+		long token = FileConnectionDispatcher.newToken();
+		SocketChannel channel = connect(token, 1);
+		assertTrue(isClosedWithin(channel, 5000));
+
+		long start = System.currentTimeMillis();
+		try {
+			dispatcher.accept(token);
+			fail("expired connection accepted");
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+		assertTrue(System.currentTimeMillis() - start >= TIMEOUT_MILLIS - 50);
+	}
+
+	@Test
+	public void noConnection_Accept_TimesOut() throws Exception {
+		long start = System.currentTimeMillis();
+		try {
+			dispatcher.accept(FileConnectionDispatcher.newToken());
+			fail("accept returned without connection");
+		} catch (SocketTimeoutException e) {
+			// expected
+		}
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue(elapsed >= TIMEOUT_MILLIS - 50);
+		assertTrue(elapsed < 5000);
+	}
+
+	@Test
+	public void noConnection_Register_FailedAfterTimeout() throws Exception {
+		Listener listener = new Listener();
+		dispatcher.register(FileConnectionDispatcher.newToken(), listener);
+
+		listener.await();
+		assertNull(listener.socket.get());
+		assertTrue(listener.failure.get() instanceof SocketTimeoutException);
+	}
+
+	@Test
+	public void tooManyWaitingConnections_Connect_Refused() throws Exception {
+		for (int i = 0; i < MAX_WAITING; i++)
+			connect(FileConnectionDispatcher.newToken(), i);
+		Thread.sleep(200);
+		SocketChannel refused = connect(FileConnectionDispatcher.newToken(),
+				MAX_WAITING);
+
+		// closed at once, not after the timeout
+		assertTrue(isClosedWithin(refused, TIMEOUT_MILLIS / 2));
+		// still waiting for their transfer
+		assertFalse(isClosedWithin(channels.get(0), 100));
+	}
+
+	@Test
+	public void tooManyWaitingConnections_ConnectRegistered_Connected()
+			throws Exception {
+		for (int i = 0; i < MAX_WAITING; i++)
+			connect(FileConnectionDispatcher.newToken(), i);
+		Thread.sleep(200);
+		long token = FileConnectionDispatcher.newToken();
+		Listener listener = new Listener();
+		dispatcher.register(token, listener);
+
+		connect(token, 9);
+
+		listener.await();
+		assertNotNull(listener.socket.get());
+		assertEquals(9, readValue(listener.socket.get()));
+		listener.socket.get().close();
+	}
+
+	@Test
+	public void registeredTransfer_Close_Failed() throws Exception {
+		Listener listener = new Listener();
+		dispatcher.register(FileConnectionDispatcher.newToken(), listener);
+
+		dispatcher.close();
+
+		listener.await();
+		assertTrue(listener.failure.get() instanceof SocketException);
+
+		Listener late = new Listener();
+		dispatcher.register(FileConnectionDispatcher.newToken(), late);
+		assertTrue(late.failure.get() instanceof SocketException);
+	}
+}
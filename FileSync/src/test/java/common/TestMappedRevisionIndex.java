@@ -0,0 +1,169 @@
+package common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestMappedRevisionIndex {
+
+	// more than 70% of the 2^16 slots of a new table
+	private static final int GROWTH_COUNT = 50000;
+
+	private File folder;
+	private File baseFile;
+	private MappedRevisionIndex index;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("revisionindex").toFile();
+		baseFile = new File(folder, "index");
+		index = new MappedRevisionIndex(baseFile);
+	}
+
+	@After
+	public void tearDown() {
+		if (index != null)
+			index.close();
+		File[] files = folder.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		folder.delete();
+	}
+
+	private void reopen() throws IOException {
+		index.close();
+		index = null;
+		index = new MappedRevisionIndex(baseFile);
+	}
+
+	/**
+	 * Long enough for the keys to outgrow their first mapping
+	 */
+	private static String path(int i) {
+		return "folder" + (i % 100) + "/subfolder/some-longer-file-name-" + i
+				+ ".txt";
+	}
+
+	private void putMany(int count) {
+		for (int i = 0; i < count; i++)
+			index.put(path(i), i);
+	}
+
+	private void assertMany(IRevisionIndex revisionIndex, int count) {
+		assertEquals(count, revisionIndex.size());
+		for (int i = 0; i < count; i++)
+			assertEquals(path(i), i, revisionIndex.get(path(i)));
+	}
+
+	@Test
+	public void putPath_Get_RevisionReturned() {
+		assertEquals(-1, index.get("a.txt"));
+		index.put("a.txt", 5);
+		index.put("b.txt", 6);
+		assertEquals(5, index.get("a.txt"));
+		assertEquals(6, index.get("b.txt"));
+		assertEquals(-1, index.get("a.tx"));
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	public void putSamePath_Get_LastRevisionReturned() {
+		index.put("a.txt", 5);
+		index.put("a.txt", 7);
+		assertEquals(7, index.get("a.txt"));
+		assertEquals(1, index.size());
+	}
+
+	@Test
+	public void nonAsciiPaths_Get_RevisionReturned() {
+		index.put("r\u00E9sum\u00E9.txt", 1);
+		index.put("\u4E2D\u6587/\uD83D\uDE00.txt", 2);
+		assertEquals(1, index.get("r\u00E9sum\u00E9.txt"));
+		assertEquals(2, index.get("\u4E2D\u6587/\uD83D\uDE00.txt"));
+		assertEquals(-1, index.get("resume.txt"));
+	}
+
+	@Test
+	public void manyPaths_TableGrownAndKeysRemapped_EveryRevisionReturned() {
+		long keysSize = new File(folder, "index.keys").length();
+		putMany(GROWTH_COUNT);
+
+		assertMany(index, GROWTH_COUNT);
+		assertTrue(new File(folder, "index.table.17").exists());
+		assertFalse(new File(folder, "index.table.16").exists());
+		assertTrue(new File(folder, "index.keys").length() > keysSize);
+	}
+
+	@Test
+	public void manyPaths_ForEach_EveryEntryVisited() throws IOException {
+		putMany(1000);
+		final Map<String, Long> visited = new HashMap<String, Long>();
+		index.forEach(new IRevisionIndex.IEntryVisitor() {
+			@Override
+			public void visit(String relativePath, long revisionNumber) {
+				visited.put(relativePath, revisionNumber);
+			}
+		});
+		assertEquals(1000, visited.size());
+		for (int i = 0; i < 1000; i++)
+			assertEquals(Long.valueOf(i), visited.get(path(i)));
+	}
+
+	@Test
+	public void closedIndex_Reopen_EntriesKept() throws IOException {
+		putMany(1000);
+		index.put(path(3), 42);
+
+		reopen();
+
+		assertEquals(1000, index.size());
+		assertEquals(42, index.get(path(3)));
+		assertEquals(999, index.get(path(999)));
+		index.put("new.txt", 7);
+		assertEquals(7, index.get("new.txt"));
+		assertEquals(999, index.get(path(999)));
+	}
+
+	@Test
+	public void grownIndex_Reopen_GrownTableUsed() throws IOException {
+		putMany(GROWTH_COUNT);
+
+		reopen();
+
+		assertMany(index, GROWTH_COUNT);
+		index.put("new.txt", 7);
+		assertEquals(GROWTH_COUNT + 1, index.size());
+	}
+
+	@Test
+	public void growthInterrupted_Reopen_PreviousTableUsed() throws IOException {
+		putMany(1000);
+		index.close();
+		index = null;
+		// left by a crash before the bigger table was complete
+		File incompleteTable = new File(folder, "index.table.17");
+		RandomAccessFile file = new RandomAccessFile(incompleteTable, "rw");
+		try {
+			file.setLength(64 + (1L << 17) * 24);
+		} finally {
+			file.close();
+		}
+
+		index = new MappedRevisionIndex(baseFile);
+
+		assertMany(index, 1000);
+		assertFalse(incompleteTable.exists());
+	}
+}
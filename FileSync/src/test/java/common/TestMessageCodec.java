@@ -0,0 +1,125 @@
+package common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestMessageCodec {
+
+	private MessageEncoder encoder = new MessageEncoder();
+	private MessageDecoder decoder = new MessageDecoder();
+
+	private Message roundTrip(Message message) {
+		int length = encoder.encode(message);
+		return decoder.decode(encoder.getBuffer(), 0, length);
+	}
+
+	private void assertPathRoundTrip(String path, String expected) {
+		Message decoded = roundTrip(new Message(Actions.ADD, path, 5));
+		assertEquals(expected, decoded.getPath());
+		assertEquals(5, decoded.getRevisionNumber());
+	}
+
+	@Test
+	public void asciiPath_RoundTrip_PathUnchanged() {
+		assertPathRoundTrip("folder/file.txt", "folder/file.txt");
+	}
+
+	@Test
+	public void bmpPath_RoundTrip_PathUnchanged() {
+		assertPathRoundTrip("r\u00E9sum\u00E9/\u4E2D\u6587.txt",
+				"r\u00E9sum\u00E9/\u4E2D\u6587.txt");
+	}
+
+	@Test
+	public void supplementaryPath_RoundTrip_PathUnchanged() {
+		assertPathRoundTrip("emoji/\uD83D\uDE00.txt", "emoji/\uD83D\uDE00.txt");
+	}
+
+	@Test
+	public void loneHighSurrogatePath_RoundTrip_SurrogateReplaced() {
+		assertPathRoundTrip("a\uD800b", "a?b");
+	}
+
+	@Test
+	public void loneLowSurrogatePath_RoundTrip_SurrogateReplaced() {
+		assertPathRoundTrip("a\uDC00b", "a?b");
+	}
+
+	@Test
+	public void surrogateAtEndOfPath_RoundTrip_SurrogateReplaced() {
+		assertPathRoundTrip("ab\uD83D", "ab?");
+	}
+
+	@Test
+	public void loneSurrogatePath_Encode_SameBytesAsGetBytes() throws Exception {
+		String path = "x\uD800\u00E9\uDC00\uD83D\uDE00";
+		int length = encoder.encode(new Message(Actions.ADD, path));
+		byte[] expected = path.getBytes("UTF-8");
+		// version, action, flags, then the length varint of the path
+		assertEquals(expected.length, encoder.getBuffer()[3]);
+		assertEquals(4 + expected.length, length);
+		for (int i = 0; i < expected.length; i++)
+			assertEquals(expected[i], encoder.getBuffer()[4 + i]);
+	}
+
+	@Test
+	public void messageFields_RoundTrip_FieldsUnchanged() {
+		Message decoded = roundTrip(new Message(Actions.SENDING_FILE_MODIFY,
+				"a/b", 42).setStreamId(7).setLength(1L << 40)
+				.setText("text \u00E9").setDelta(true)
+				.setCompression(CompressionCodec.DEFLATE_FAST)
+				.setDigest(-3).setToken(0x1234567890abcdefL));
+
+		assertEquals(Actions.SENDING_FILE_MODIFY, decoded.getAction());
+		assertEquals("a/b", decoded.getPath());
+		assertEquals(42, decoded.getRevisionNumber());
+		assertEquals(7, decoded.getStreamId());
+		assertEquals(1L << 40, decoded.getLength());
+		assertEquals("text \u00E9", decoded.getText());
+		assertTrue(decoded.isDelta());
+		assertEquals(CompressionCodec.DEFLATE_FAST, decoded.getCompression());
+		assertEquals(-3, decoded.getDigest());
+		assertEquals(0x1234567890abcdefL, decoded.getToken());
+	}
+
+	@Test
+	public void unsetFields_RoundTrip_FieldsUnset() {
+		Message decoded = roundTrip(new Message(Actions.GET_CHANGES));
+
+		assertEquals(Actions.GET_CHANGES, decoded.getAction());
+		assertNull(decoded.getPath());
+		assertFalse(decoded.hasRevisionNumber());
+		assertFalse(decoded.hasLength());
+		assertNull(decoded.getText());
+		assertNull(decoded.getEntries());
+		assertEquals(0, decoded.getToken());
+	}
+
+	@Test
+	public void batch_RoundTrip_EntriesUnchanged() {
+		List<Message> entries = new ArrayList<Message>();
+		entries.add(new Message(Actions.ADD, "a\uD800", 1));
+		entries.add(new Message(Actions.DELETE, "\uD83D\uDE00", 2));
+		Message decoded = roundTrip(new Message(Actions.BATCH)
+				.setEntries(entries));
+
+		assertEquals(2, decoded.getEntries().size());
+		assertEquals("a?", decoded.getEntries().get(0).getPath());
+		assertEquals(Actions.DELETE, decoded.getEntries().get(1).getAction());
+		assertEquals("\uD83D\uDE00", decoded.getEntries().get(1).getPath());
+		assertEquals(2, decoded.getEntries().get(1).getRevisionNumber());
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void truncatedMessage_Decode_ProtocolException() {
+		int length = encoder.encode(new Message(Actions.ADD, "folder/file", 5));
+		decoder.decode(encoder.getBuffer(), 0, length - 1);
+	}
+}
@@ -0,0 +1,169 @@
+package common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestPathTrie {
+
+	private PathTrie<Integer> trie = new PathTrie<Integer>('/');
+
+	private static List<String> sorted(List<String> list) {
+		Collections.sort(list);
+		return list;
+	}
+
+	private List<String> paths(String path) {
+		final List<String> paths = new ArrayList<String>();
+		PathTrie.IEntryVisitor<Integer> visitor = new PathTrie.IEntryVisitor<Integer>() {
+			@Override
+			public void visit(String visitedPath, Integer value) {
+				paths.add(visitedPath);
+			}
+		};
+		if (path == null)
+			trie.forEach(visitor);
+		else
+			trie.forEach(path, visitor);
+		return sorted(paths);
+	}
+
+	@Test
+	public void putPath_Get_ValueReturned() {
+		assertNull(trie.put("a/b/c.txt", 1));
+		assertEquals(Integer.valueOf(1), trie.get("a/b/c.txt"));
+		assertNull(trie.get("a/b"));
+		assertNull(trie.get("a/b/c"));
+		assertEquals(1, trie.size());
+	}
+
+	@Test
+	public void putSamePath_Put_PreviousValueReturned() {
+		trie.put("a/b", 1);
+		assertEquals(Integer.valueOf(1), trie.put("a/b", 2));
+		assertEquals(Integer.valueOf(2), trie.get("a/b"));
+		assertEquals(1, trie.size());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullValue_Put_Rejected() {
+		trie.put("a", null);
+	}
+
+	@Test
+	public void emptyComponents_ForEach_PathsUnchanged() {
+		trie.put("/a//b/", 1);
+		trie.put("a", 2);
+		assertEquals(Arrays.asList("/a//b/", "a"), paths(null));
+		assertEquals(Integer.valueOf(1), trie.get("/a//b/"));
+		assertNull(trie.get("/a/b/"));
+	}
+
+	@Test
+	public void folderAndFilesUnderIt_ForEachFolder_OnlyFolderEntriesVisited() {
+		trie.put("a", 1);
+		trie.put("a/x", 2);
+		trie.put("a/y/z", 3);
+		trie.put("ab", 4);
+		trie.put("b/x", 5);
+		assertEquals(Arrays.asList("a", "a/x", "a/y/z"), paths("a"));
+		assertEquals(Arrays.asList("a/y/z"), paths("a/y"));
+		assertTrue(paths("c").isEmpty());
+	}
+
+	@Test
+	public void manyChildren_ArrayReplacedByMap_EveryChildKept() {
+		List<String> expected = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			trie.put("d/f" + i, i);
+			expected.add("f" + i);
+			for (int j = 0; j <= i; j++)
+				assertEquals(Integer.valueOf(j), trie.get("d/f" + j));
+		}
+		assertEquals(20, trie.size());
+		assertEquals(sorted(expected), sorted(trie.getChildNames("d")));
+	}
+
+	@Test
+	public void childrenInArray_RemoveInAnyOrder_OthersKept() {
+		for (int i = 0; i < 5; i++)
+			trie.put("d/f" + i, i);
+		assertEquals(Integer.valueOf(0), trie.remove("d/f0"));
+		assertEquals(Integer.valueOf(3), trie.remove("d/f3"));
+		assertNull(trie.remove("d/f3"));
+		assertEquals(Arrays.asList("f1", "f2", "f4"),
+				sorted(trie.getChildNames("d")));
+		assertEquals(Integer.valueOf(4), trie.get("d/f4"));
+		assertEquals(3, trie.size());
+	}
+
+	@Test
+	public void childrenInMap_RemoveAll_FolderPruned() {
+		for (int i = 0; i < 12; i++)
+			trie.put("d/f" + i, i);
+		for (int i = 0; i < 12; i++)
+			assertEquals(Integer.valueOf(i), trie.remove("d/f" + i));
+		assertEquals(0, trie.size());
+		assertTrue(paths(null).isEmpty());
+		assertTrue(trie.getChildNames("d").isEmpty());
+
+		trie.put("d/g", 1);
+		assertEquals(Arrays.asList("g"), trie.getChildNames("d"));
+	}
+
+	@Test
+	public void lastFileOfDeepPath_Remove_EmptyFoldersPruned() {
+		trie.put("a/b/c/d.txt", 1);
+		trie.put("a/e.txt", 2);
+		trie.remove("a/b/c/d.txt");
+		assertEquals(Arrays.asList("e.txt"), trie.getChildNames("a"));
+		assertEquals(Arrays.asList("a/e.txt"), paths(null));
+	}
+
+	@Test
+	public void folderWithValue_RemoveFolder_EntriesUnderItKept() {
+		trie.put("a", 1);
+		trie.put("a/b", 2);
+		assertEquals(Integer.valueOf(1), trie.remove("a"));
+		assertNull(trie.get("a"));
+		assertEquals(Integer.valueOf(2), trie.get("a/b"));
+		assertEquals(1, trie.size());
+	}
+
+	@Test
+	public void folder_RemoveSubtree_EntriesUnderItVisitedAndRemoved() {
+		trie.put("a", 1);
+		trie.put("a/x", 2);
+		trie.put("a/y/z", 3);
+		trie.put("ab", 4);
+		final List<String> removed = new ArrayList<String>();
+		int count = trie.removeSubtree("a",
+				new PathTrie.IEntryVisitor<Integer>() {
+					@Override
+					public void visit(String path, Integer value) {
+						removed.add(path);
+					}
+				});
+		assertEquals(3, count);
+		assertEquals(Arrays.asList("a", "a/x", "a/y/z"), sorted(removed));
+		assertEquals(Arrays.asList("ab"), paths(null));
+		assertEquals(1, trie.size());
+	}
+
+	@Test
+	public void onlyFolderOfParent_RemoveSubtree_ParentPruned() {
+		trie.put("p/q/r", 1);
+		trie.put("s", 2);
+		assertEquals(1, trie.removeSubtree("p/q", null));
+		assertEquals(Arrays.asList("s"), paths(null));
+		assertTrue(trie.getChildNames("p").isEmpty());
+		assertEquals(0, trie.removeSubtree("p/q", null));
+	}
+}
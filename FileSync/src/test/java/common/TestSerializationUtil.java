@@ -0,0 +1,90 @@
+package common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestSerializationUtil {
+
+	private static ObjectInputStream serialized(Object object)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(object);
+		oos.close();
+		return new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+	}
+
+	@Test
+	public void savedMap_ReadMap_EntriesCopied() throws Exception {
+		Map<String, Long> saved = new HashMap<String, Long>();
+		saved.put("a.txt", 1L);
+		saved.put("b/c.txt", 2L);
+
+		Map<String, Long> read = SerializationUtil.readMap(serialized(saved),
+				String.class, Long.class);
+
+		assertEquals(saved, read);
+	}
+
+	@Test
+	public void mapOfOtherValueType_ReadMap_Refused() throws Exception {
+		Map<String, Object> saved = new HashMap<String, Object>();
+		saved.put("a.txt", 1L);
+		saved.put("b.txt", "2");
+		try {
+			SerializationUtil.readMap(serialized(saved), String.class,
+					Long.class);
+			fail("map of the wrong type read");
+		} catch (InvalidObjectException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void notAMap_ReadMap_Refused() throws Exception {
+		try {
+			SerializationUtil.readMap(serialized("a.txt"), String.class,
+					Long.class);
+			fail("string read as a map");
+		} catch (InvalidObjectException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void savedList_ReadList_ElementsCopiedInOrder() throws Exception {
+		List<String> saved = new ArrayList<String>();
+		saved.add("b.txt");
+		saved.add("a.txt");
+
+		assertEquals(saved, SerializationUtil.readList(serialized(saved),
+				String.class));
+	}
+
+	@Test
+	public void listOfOtherElementType_ReadList_Refused() throws Exception {
+		List<Object> saved = new ArrayList<Object>();
+		saved.add("a.txt");
+		saved.add(Integer.valueOf(1));
+		try {
+			SerializationUtil.readList(serialized(saved), String.class);
+			fail("list of the wrong type read");
+		} catch (InvalidObjectException e) {
+			// expected
+		}
+	}
+}
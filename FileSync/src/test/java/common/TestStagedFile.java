@@ -0,0 +1,202 @@
+package common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestStagedFile {
+
+	private static final long LENGTH = 4096;
+
+	private File folder;
+	private File target;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("stagedfile").toFile();
+		target = new File(folder, "file.bin");
+	}
+
+	@After
+	public void tearDown() {
+		delete(folder);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	/**
+	 * @return temp file kept by a suspended resumable transfer
+	 */
+	private static File suspended(File target, String transferId)
+			throws IOException {
+		StagedFile stagedFile = new StagedFile(target);
+		write(stagedFile.openResumable(transferId, LENGTH), 0, 1024);
+		stagedFile.suspend(1024);
+		File[] files = target.getAbsoluteFile().getParentFile().listFiles();
+		for (File file : files)
+			if (file.getName().contains(transferId))
+				return file;
+		throw new AssertionError("no temp file for " + transferId);
+	}
+
+	private static void write(FileChannel channel, long position, int count)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(count);
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	@Test
+	public void preallocatedFileNotSuspended_Reopen_ResumesFromReceivedLength()
+			throws IOException {
+		StagedFile stagedFile = new StagedFile(target);
+		FileChannel channel = stagedFile.openResumable("id", LENGTH);
+		stagedFile.preallocate(LENGTH, 0);
+		write(channel, 0, 1024);
+		write(channel, 3072, 1024);
+		stagedFile.setReceivedLength(1024);
+		// the process dies, suspend is never called
+		channel.close();
+
+		FileChannel resumed = new StagedFile(target).openResumable("id",
+				LENGTH);
+		try {
+			assertEquals(1024, resumed.position());
+			assertEquals(1024, resumed.size());
+		} finally {
+			resumed.close();
+		}
+	}
+
+	@Test
+	public void preallocatedFileNothingReceived_Reopen_StartsFromZero()
+			throws IOException {
+		StagedFile stagedFile = new StagedFile(target);
+		FileChannel channel = stagedFile.openResumable("id", LENGTH);
+		stagedFile.preallocate(LENGTH, 0);
+		write(channel, 1024, 1024);
+		channel.close();
+
+		FileChannel resumed = new StagedFile(target).openResumable("id",
+				LENGTH);
+		try {
+			assertEquals(0, resumed.position());
+		} finally {
+			resumed.close();
+		}
+	}
+
+	@Test
+	public void preallocatedFileSuspended_Reopen_ResumesFromSuspendedLength()
+			throws IOException {
+		StagedFile stagedFile = new StagedFile(target);
+		FileChannel channel = stagedFile.openResumable("id", LENGTH);
+		stagedFile.preallocate(LENGTH, 0);
+		write(channel, 0, 2048);
+		stagedFile.setReceivedLength(2048);
+		stagedFile.suspend(2048);
+
+		FileChannel resumed = new StagedFile(target).openResumable("id",
+				LENGTH);
+		try {
+			assertEquals(2048, resumed.position());
+		} finally {
+			resumed.close();
+		}
+	}
+
+	@Test
+	public void preallocatedFile_Publish_ReceivedLengthDropped()
+			throws IOException {
+		StagedFile stagedFile = new StagedFile(target);
+		FileChannel channel = stagedFile.openResumable("id", LENGTH);
+		stagedFile.preallocate(LENGTH, 0);
+		write(channel, 0, (int) LENGTH);
+		stagedFile.setReceivedLength(LENGTH);
+		stagedFile.publish(LENGTH);
+
+		assertEquals(LENGTH, target.length());
+		assertEquals(1, folder.listFiles().length);
+	}
+
+	@Test
+	public void tempFileLongerThanFile_Reopen_StartsFromZero()
+			throws IOException {
+		StagedFile stagedFile = new StagedFile(target);
+		FileChannel channel = stagedFile.openResumable("id", LENGTH);
+		write(channel, 0, (int) LENGTH + 100);
+		channel.close();
+
+		FileChannel resumed = new StagedFile(target).openResumable("id",
+				LENGTH);
+		try {
+			assertEquals(0, resumed.position());
+		} finally {
+			resumed.close();
+		}
+	}
+
+	@Test
+	public void notResumable_Preallocate_NoReceivedLength() throws IOException {
+		StagedFile stagedFile = new StagedFile(target);
+		FileChannel channel = stagedFile.open(-1);
+		stagedFile.preallocate(LENGTH, 0);
+		stagedFile.setReceivedLength(1024);
+		assertEquals(LENGTH, channel.size());
+		stagedFile.discard();
+
+		assertFalse(target.exists());
+		assertTrue(folder.listFiles().length == 0);
+	}
+
+	@Test
+	public void suspendedTransfers_DeleteResumableFiles_OnlyTempFilesOfTargetDeleted()
+			throws IOException {
+		File first = suspended(target, "id1");
+		File second = suspended(target, "id2");
+		File other = suspended(new File(folder, "file.bin.bak"), "id3");
+
+		// the target was deleted
+		StagedFile.deleteResumableFiles(target);
+
+		assertFalse(first.exists());
+		assertFalse(second.exists());
+		assertTrue(other.exists());
+	}
+
+	@Test
+	public void tempFilesOfPreviousRun_DeleteStaleFiles_OldAndNotResumableDeleted()
+			throws IOException {
+		File subfolder = new File(folder, "sub");
+		File old = suspended(new File(subfolder, "old.bin"), "id1");
+		assertTrue(old.setLastModified(System.currentTimeMillis() - 7200000));
+		File recent = suspended(new File(subfolder, "recent.bin"), "id2");
+		StagedFile notResumable = new StagedFile(new File(subfolder, "a.bin"));
+		notResumable.open(LENGTH).close();
+		File file = new File(subfolder, "file.part");
+		Files.write(file.toPath(), new byte[] { 1 });
+
+		assertEquals(2, StagedFile.deleteStaleFiles(folder, 3600000));
+
+		assertFalse(old.exists());
+		assertTrue(recent.exists());
+		assertTrue(file.exists());
+		assertEquals(2, subfolder.listFiles().length);
+	}
+}
@@ -0,0 +1,139 @@
+package common.chunk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TestFastCdcChunker {
+
+	private static byte[] randomBytes(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static List<Chunk> chunk(InputStream inputStream)
+			throws IOException {
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+		new FastCdcChunker().chunk(inputStream, new IChunkHandler() {
+			@Override
+			public void chunkFound(Chunk chunk, byte[] data, int offset) {
+				chunks.add(chunk);
+			}
+		});
+		return chunks;
+	}
+
+	private static List<Chunk> chunk(byte[] data) throws IOException {
+		return chunk(new ByteArrayInputStream(data));
+	}
+
+	@Test
+	public void constants_AsSentByClients() {
+		assertEquals(4 * 1024, FastCdcChunker.MIN_SIZE);
+		assertEquals(16 * 1024, FastCdcChunker.AVERAGE_SIZE);
+		assertEquals(64 * 1024, FastCdcChunker.MAX_SIZE);
+	}
+
+	@Test
+	public void randomData_Chunk_SizesWithinBounds() throws IOException {
+		byte[] data = randomBytes(8 * 1024 * 1024, 1);
+
+		List<Chunk> chunks = chunk(data);
+
+		long total = 0;
+		for (int i = 0; i < chunks.size(); i++) {
+			int length = chunks.get(i).getLength();
+			assertTrue("chunk " + i + " length " + length,
+					length <= FastCdcChunker.MAX_SIZE);
+			if (i < chunks.size() - 1)
+				assertTrue("chunk " + i + " length " + length,
+						length >= FastCdcChunker.MIN_SIZE);
+			total += length;
+		}
+		assertEquals(data.length, total);
+		long average = total / chunks.size();
+		assertTrue("average " + average,
+				average >= FastCdcChunker.AVERAGE_SIZE / 2
+						&& average <= FastCdcChunker.AVERAGE_SIZE * 2);
+	}
+
+	@Test
+	public void constantData_Chunk_SizesWithinBounds() throws IOException {
+		List<Chunk> chunks = chunk(new byte[1024 * 1024]);
+
+		for (Chunk chunk : chunks)
+			assertTrue(chunk.getLength() >= FastCdcChunker.MIN_SIZE
+					&& chunk.getLength() <= FastCdcChunker.MAX_SIZE);
+	}
+
+	@Test
+	public void prefixInserted_Chunk_LaterCutPointsKept() throws IOException {
+		byte[] data = randomBytes(2 * 1024 * 1024, 2);
+		byte[] prefix = randomBytes(100, 3);
+		byte[] changed = new byte[prefix.length + data.length];
+		System.arraycopy(prefix, 0, changed, 0, prefix.length);
+		System.arraycopy(data, 0, changed, prefix.length, data.length);
+
+		List<Chunk> chunks = chunk(data);
+		Set<Chunk> changedChunks = new HashSet<Chunk>(chunk(changed));
+
+		// only the chunk holding the insertion differs
+		int missing = 0;
+		for (Chunk chunk : chunks)
+			if (!changedChunks.contains(chunk))
+				missing++;
+		assertEquals(1, missing);
+	}
+
+	@Test
+	public void dataShorterThanMinSize_Chunk_OneChunk() throws IOException {
+		byte[] data = randomBytes(FastCdcChunker.MIN_SIZE - 1, 4);
+
+		List<Chunk> chunks = chunk(data);
+
+		assertEquals(1, chunks.size());
+		assertEquals(data.length, chunks.get(0).getLength());
+		assertEquals(0, chunk(new byte[0]).size());
+	}
+
+	@Test
+	public void chunk_Chunk_HashIsSha256OfBytes() throws Exception {
+		byte[] data = randomBytes(200 * 1024, 5);
+
+		List<Chunk> chunks = chunk(data);
+
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		int offset = 0;
+		for (Chunk chunk : chunks) {
+			digest.update(data, offset, chunk.getLength());
+			assertArrayEquals(digest.digest(), chunk.getHash());
+			offset += chunk.getLength();
+		}
+	}
+
+	@Test
+	public void streamReadInSmallParts_Chunk_SameChunks() throws IOException {
+		byte[] data = randomBytes(500 * 1024, 6);
+		InputStream slowStream = new ByteArrayInputStream(data) {
+			@Override
+			public synchronized int read(byte[] buffer, int offset, int length) {
+				return super.read(buffer, offset, Math.min(length, 1000));
+			}
+		};
+
+		assertEquals(chunk(data), chunk(slowStream));
+	}
+}
@@ -0,0 +1,119 @@
+package common.delta;
+
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDeltaDecoder {
+
+	private static final int BLOCK_SIZE = 2048;
+
+	private File folder;
+	private File base;
+	private byte[] baseData;
+	private byte[] delta;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("delta").toFile();
+		base = new File(folder, "base.bin");
+		baseData = randomBytes(20 * BLOCK_SIZE, 1);
+		Files.write(base.toPath(), baseData);
+
+		// the base with a changed block in the middle
+		byte[] source = baseData.clone();
+		System.arraycopy(randomBytes(BLOCK_SIZE, 2), 0, source,
+				10 * BLOCK_SIZE, BLOCK_SIZE);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new DeltaEncoder(FileSignature.compute(base, BLOCK_SIZE)).encode(
+				new ByteArrayInputStream(source), out, Long.MAX_VALUE);
+		delta = out.toByteArray();
+	}
+
+	@After
+	public void tearDown() {
+		base.delete();
+		folder.delete();
+	}
+
+	private static byte[] randomBytes(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private void assertRejected(byte[] invalidDelta) {
+		try {
+			DeltaDecoder.apply(base, new ByteArrayInputStream(invalidDelta),
+					new ByteArrayOutputStream());
+			fail("invalid delta applied");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void baseOfOtherLength_Apply_Rejected() throws IOException {
+		Files.write(base.toPath(), Arrays.copyOf(baseData, baseData.length + 1));
+
+		assertRejected(delta);
+	}
+
+	@Test
+	public void baseChangedWithSameLength_Apply_Rejected() throws IOException {
+		baseData[3 * BLOCK_SIZE] ^= 1;
+		Files.write(base.toPath(), baseData);
+
+		assertRejected(delta);
+	}
+
+	@Test
+	public void literalByteFlipped_Apply_Rejected() {
+		// the literal of the changed block follows the first COPY
+		byte[] corrupt = delta.clone();
+		corrupt[13 + 9 + 5 + 100] ^= 1;
+
+		assertRejected(corrupt);
+	}
+
+	@Test
+	public void truncatedDelta_Apply_Rejected() {
+		assertRejected(Arrays.copyOf(delta, delta.length - 10));
+		assertRejected(Arrays.copyOf(delta, 20));
+	}
+
+	@Test
+	public void invalidOperation_Apply_Rejected() {
+		byte[] corrupt = delta.clone();
+		corrupt[13] = 7;
+
+		assertRejected(corrupt);
+	}
+
+	@Test
+	public void copyAfterEndOfBase_Apply_Rejected() {
+		byte[] corrupt = delta.clone();
+		// first block of the first COPY
+		corrupt[13 + 1] = 0x7F;
+
+		assertRejected(corrupt);
+	}
+
+	@Test
+	public void otherVersion_Apply_Rejected() {
+		byte[] corrupt = delta.clone();
+		corrupt[0] = DeltaEncoder.VERSION + 1;
+
+		assertRejected(corrupt);
+	}
+}
@@ -0,0 +1,181 @@
+package common.delta;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestDeltaEncoder {
+
+	private static final int BLOCK_SIZE = 2048;
+	// version, block size and base length, then END with length and MD5
+	private static final int HEADER_AND_END_LENGTH = 13 + 25;
+
+	private File folder;
+	private File base;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("delta").toFile();
+		base = new File(folder, "base.bin");
+	}
+
+	@After
+	public void tearDown() {
+		base.delete();
+		folder.delete();
+	}
+
+	private static byte[] randomBytes(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (byte[] part : parts)
+			out.write(part, 0, part.length);
+		return out.toByteArray();
+	}
+
+	private static byte[] range(byte[] data, int from, int to) {
+		byte[] part = new byte[to - from];
+		System.arraycopy(data, from, part, 0, part.length);
+		return part;
+	}
+
+	private byte[] encode(byte[] baseData, byte[] source) throws IOException {
+		Files.write(base.toPath(), baseData);
+		ByteArrayOutputStream delta = new ByteArrayOutputStream();
+		long length = new DeltaEncoder(FileSignature.compute(base, BLOCK_SIZE))
+				.encode(new ByteArrayInputStream(source), delta, Long.MAX_VALUE);
+		assertEquals(delta.size(), length);
+		return delta.toByteArray();
+	}
+
+	/**
+	 * @return length of the delta
+	 */
+	private int assertRoundTrip(byte[] baseData, byte[] source)
+			throws IOException {
+		byte[] delta = encode(baseData, source);
+		ByteArrayOutputStream rebuilt = new ByteArrayOutputStream();
+		assertEquals(source.length, DeltaDecoder.apply(base,
+				new ByteArrayInputStream(delta), rebuilt));
+		assertArrayEquals(source, rebuilt.toByteArray());
+		return delta.length;
+	}
+
+	@Test
+	public void identicalFile_EncodeApply_OnlyCopiesSent() throws IOException {
+		byte[] data = randomBytes(100 * BLOCK_SIZE + 100, 1);
+
+		int deltaLength = assertRoundTrip(data, data);
+
+		// consecutive blocks, the short last one too, are one COPY
+		assertEquals(HEADER_AND_END_LENGTH + 9, deltaLength);
+	}
+
+	@Test
+	public void insertion_EncodeApply_InsertedBytesSent() throws IOException {
+		byte[] data = randomBytes(100 * BLOCK_SIZE, 2);
+		byte[] inserted = randomBytes(300, 3);
+		byte[] source = concat(range(data, 0, 50 * BLOCK_SIZE + 17), inserted,
+				range(data, 50 * BLOCK_SIZE + 17, data.length));
+
+		int deltaLength = assertRoundTrip(data, source);
+
+		// the block cut by the insertion is sent too
+		assertTrue("delta length " + deltaLength,
+				deltaLength < inserted.length + BLOCK_SIZE + 100);
+	}
+
+	@Test
+	public void deletion_EncodeApply_OnlyCutBlockSent() throws IOException {
+		byte[] data = randomBytes(100 * BLOCK_SIZE, 4);
+		byte[] source = concat(range(data, 0, 30 * BLOCK_SIZE + 5),
+				range(data, 40 * BLOCK_SIZE + 5, data.length));
+
+		int deltaLength = assertRoundTrip(data, source);
+
+		assertTrue("delta length " + deltaLength,
+				deltaLength < BLOCK_SIZE + 100);
+	}
+
+	@Test
+	public void shortLastBlockKept_EncodeApply_LastBlockCopied()
+			throws IOException {
+		byte[] data = randomBytes(10 * BLOCK_SIZE + 500, 5);
+		// the first block changed, the short last block is the same
+		byte[] source = concat(randomBytes(BLOCK_SIZE, 6),
+				range(data, BLOCK_SIZE, data.length));
+
+		int deltaLength = assertRoundTrip(data, source);
+
+		assertEquals(HEADER_AND_END_LENGTH + 5 + BLOCK_SIZE + 9, deltaLength);
+	}
+
+	@Test
+	public void shortLastBlockChanged_EncodeApply_TailSentAsLiteral()
+			throws IOException {
+		byte[] data = randomBytes(10 * BLOCK_SIZE + 500, 7);
+		byte[] source = concat(range(data, 0, 10 * BLOCK_SIZE),
+				randomBytes(700, 8));
+
+		int deltaLength = assertRoundTrip(data, source);
+
+		assertEquals(HEADER_AND_END_LENGTH + 9 + 5 + 700, deltaLength);
+	}
+
+	@Test
+	public void literalLongerThanMaxLength_EncodeApply_SplitInLiterals()
+			throws IOException {
+		int literalLength = 2 * DeltaEncoder.MAX_LITERAL_LENGTH + 1000;
+		byte[] data = randomBytes(10 * BLOCK_SIZE, 9);
+		byte[] source = concat(range(data, 0, 5 * BLOCK_SIZE),
+				randomBytes(literalLength, 10),
+				range(data, 5 * BLOCK_SIZE, data.length));
+
+		int deltaLength = assertRoundTrip(data, source);
+
+		// at least 3 literals, each with its 5 byte header
+		assertTrue("delta length " + deltaLength, deltaLength >= literalLength
+				+ 3 * 5);
+		assertTrue("delta length " + deltaLength, deltaLength <= literalLength
+				+ 4 * 5 + 2 * 9 + HEADER_AND_END_LENGTH);
+	}
+
+	@Test
+	public void unrelatedFile_EncodeApply_SentAsLiterals() throws IOException {
+		byte[] source = randomBytes(50 * BLOCK_SIZE + 3, 11);
+
+		assertRoundTrip(randomBytes(50 * BLOCK_SIZE, 12), source);
+	}
+
+	@Test
+	public void emptyBaseOrSource_EncodeApply_Rebuilt() throws IOException {
+		assertRoundTrip(new byte[0], randomBytes(5000, 13));
+		assertRoundTrip(randomBytes(5000, 14), new byte[0]);
+	}
+
+	@Test
+	public void deltaLongerThanMax_Encode_MinusOne() throws IOException {
+		Files.write(base.toPath(), randomBytes(10 * BLOCK_SIZE, 15));
+		long length = new DeltaEncoder(FileSignature.compute(base, BLOCK_SIZE))
+				.encode(new ByteArrayInputStream(randomBytes(10 * BLOCK_SIZE,
+						16)), new ByteArrayOutputStream(), 5 * BLOCK_SIZE);
+
+		assertEquals(-1, length);
+	}
+}
@@ -0,0 +1,75 @@
+package common.delta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestFileSignature {
+
+	private File folder;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("signature").toFile();
+		file = new File(folder, "base.bin");
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+		folder.delete();
+	}
+
+	private byte[] write(int length) throws IOException {
+		byte[] data = new byte[length];
+		new Random(length).nextBytes(data);
+		Files.write(file.toPath(), data);
+		return data;
+	}
+
+	@Test
+	public void fileWithShortLastBlock_Compute_BlocksOfFile() throws IOException {
+		byte[] data = write(5000);
+
+		FileSignature signature = FileSignature.compute(file, 2048);
+
+		assertEquals(5000, signature.getFileLength());
+		assertEquals(3, signature.getBlockCount());
+		assertEquals(2048, signature.getBlockLength(1));
+		assertEquals(904, signature.getBlockLength(2));
+		assertEquals(RollingChecksum.of(data, 2048, 2048),
+				signature.getWeakChecksum(1));
+		assertEquals(RollingChecksum.of(data, 4096, 904),
+				signature.getWeakChecksum(2));
+		assertNotEquals(signature.getStrongHash(0), signature.getStrongHash(1));
+	}
+
+	@Test
+	public void emptyFile_Compute_NoBlock() throws IOException {
+		write(0);
+
+		FileSignature signature = FileSignature.compute(file);
+
+		assertEquals(0, signature.getBlockCount());
+		assertEquals(FileSignature.MIN_BLOCK_SIZE, signature.getBlockSize());
+	}
+
+	@Test
+	public void fileLengths_BlockSizeFor_SquareRootWithinBounds() {
+		assertEquals(FileSignature.MIN_BLOCK_SIZE, FileSignature.blockSizeFor(0));
+		assertEquals(FileSignature.MIN_BLOCK_SIZE,
+				FileSignature.blockSizeFor(1024 * 1024));
+		assertEquals(16 * 1024, FileSignature.blockSizeFor(256L * 1024 * 1024));
+		assertEquals(FileSignature.MAX_BLOCK_SIZE,
+				FileSignature.blockSizeFor(1L << 40));
+	}
+}
@@ -0,0 +1,64 @@
+package common.delta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestRollingChecksum {
+
+	private static byte[] randomBytes(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private static void assertRollEqualsReset(byte[] data, int window) {
+		RollingChecksum rolled = new RollingChecksum();
+		rolled.reset(data, 0, window);
+		for (int offset = 1; offset + window <= data.length; offset++) {
+			rolled.roll(data[offset - 1], data[offset + window - 1]);
+			assertEquals("offset " + offset,
+					RollingChecksum.of(data, offset, window),
+					rolled.getValue());
+		}
+	}
+
+	@Test
+	public void randomBytes_Roll_EqualsResetAtEveryOffset() {
+		assertRollEqualsReset(randomBytes(20000, 1), 2048);
+	}
+
+	@Test
+	public void bytesWithHighBitSet_Roll_EqualsResetAtEveryOffset() {
+		byte[] data = new byte[5000];
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) (0x80 | (i * 31));
+		assertRollEqualsReset(data, 1024);
+	}
+
+	@Test
+	public void windowLongerThanSumRange_Roll_EqualsResetAtEveryOffset() {
+		// the 16 bit sums wrap many times over such a window
+		byte[] data = new byte[300000];
+		Arrays.fill(data, (byte) 0xFF);
+		System.arraycopy(randomBytes(100000, 2), 0, data, 100000, 100000);
+		assertRollEqualsReset(data, 128 * 1024);
+	}
+
+	@Test
+	public void windowOfOneByte_Roll_EqualsResetAtEveryOffset() {
+		assertRollEqualsReset(randomBytes(1000, 3), 1);
+	}
+
+	@Test
+	public void swappedBytes_Of_DifferentChecksum() {
+		byte[] data = { 1, 2, 3, 4 };
+		byte[] swapped = { 2, 1, 3, 4 };
+		assertNotEquals(RollingChecksum.of(data, 0, 4),
+				RollingChecksum.of(swapped, 0, 4));
+	}
+}
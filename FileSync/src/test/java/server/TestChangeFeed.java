@@ -0,0 +1,146 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import common.Actions;
+import common.IRevisionIndex;
+import common.MemoryRevisionIndex;
+import common.Message;
+
+public class TestChangeFeed {
+
+	private File folder;
+	private AtomicLong revisionCounter = new AtomicLong();
+	private RevisionJournal journal;
+	private ChangeFeed changeFeed;
+	private final List<Message> answers = new ArrayList<Message>();
+	private ChangeFeed.IChangesListener listener = new ChangeFeed.IChangesListener() {
+		@Override
+		public void changesAvailable(Message changes) {
+			synchronized (answers) {
+				answers.add(changes);
+				answers.notifyAll();
+			}
+		}
+	};
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("changefeed").toFile();
+		journal = new RevisionJournal(folder, Long.MAX_VALUE);
+		changeFeed = new ChangeFeed(revisionCounter, 100, journal);
+		final IRevisionIndex revisionIndex = new MemoryRevisionIndex();
+		journal.open(new RevisionJournal.IRevisionState() {
+			@Override
+			public long getCurrentRevisionNumber() {
+				return revisionCounter.get();
+			}
+
+			@Override
+			public IRevisionIndex getRevisionIndex() {
+				return revisionIndex;
+			}
+
+			@Override
+			public List<ChangeFeed.Change> getChanges() {
+				return changeFeed.saveChanges();
+			}
+
+			@Override
+			public void snapshotWritten() {
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		journal.close();
+		changeFeed.shutdown();
+		File[] files = folder.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		folder.delete();
+	}
+
+	private int answerCount() {
+		synchronized (answers) {
+			return answers.size();
+		}
+	}
+
+	private Message awaitAnswer(long timeoutMillis)
+			throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		synchronized (answers) {
+			while (answers.isEmpty()) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0)
+					fail("no answer after " + timeoutMillis + " ms");
+				answers.wait(remaining);
+			}
+			return answers.get(0);
+		}
+	}
+
+	@Test
+	public void waitingClient_Record_AnsweredWithChange() throws Exception {
+		changeFeed.getChanges(0, 60000, listener);
+		assertEquals(0, answerCount());
+
+		changeFeed.record(new Message(Actions.ADD, "a.txt", 1));
+
+		assertEquals(1, answerCount());
+		Message answer = awaitAnswer(0);
+		assertEquals(1, answer.getEntries().size());
+		assertEquals("a.txt", answer.getEntries().get(0).getPath());
+	}
+
+	@Test
+	public void journalFailed_Record_ErrorThrownAndWaiterNotAnswered()
+			throws Exception {
+		changeFeed.getChanges(0, 500, listener);
+		// appends are no longer written
+		journal.close();
+
+		try {
+			changeFeed.record(new Message(Actions.ADD, "a.txt", 1));
+			fail("change recorded without being saved");
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(0, answerCount());
+
+		// still waiting, answered by its timeout
+		awaitAnswer(5000);
+		Thread.sleep(100);
+		assertEquals(1, answerCount());
+	}
+
+	@Test
+	public void journalFailed_RecordAgain_ErrorThrownEachTime()
+			throws Exception {
+		journal.close();
+		int failures = 0;
+		for (int i = 1; i <= 2; i++) {
+			try {
+				changeFeed.record(new Message(Actions.ADD, "f" + i, i));
+			} catch (IOException e) {
+				failures++;
+			}
+		}
+		assertEquals(2, failures);
+	}
+}
@@ -0,0 +1,218 @@
+package server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import common.chunk.Chunk;
+import common.chunk.FastCdcChunker;
+
+public class TestChunkStore {
+
+	private File rootFolder;
+	private ChunkStore chunkStore;
+
+	@Before
+	public void setUp() throws IOException {
+		rootFolder = Files.createTempDirectory("chunks").toFile();
+		// the store is under the root folder, as with the default settings
+		chunkStore = new ChunkStore(new File(rootFolder, ".chunks"));
+	}
+
+	@After
+	public void tearDown() {
+		delete(rootFolder);
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	private static byte[] randomBytes(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	private File write(String name, byte[] data) throws IOException {
+		File file = new File(rootFolder, name);
+		Files.write(file.toPath(), data);
+		return file;
+	}
+
+	private byte[] readChunks(List<Chunk> chunks) throws IOException {
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		for (Chunk chunk : chunks)
+			Files.copy(chunkStore.getChunkFile(chunk).toPath(), outputStream);
+		return outputStream.toByteArray();
+	}
+
+	@Test
+	public void ingestedFile_Materialize_SameBytes() throws IOException {
+		byte[] data = randomBytes(1024 * 1024 + 17, 1);
+		File file = write("a.bin", data);
+
+		List<Chunk> chunks = chunkStore.ingest(file, file);
+
+		assertEquals(chunks, ChunkStore.readManifest(file));
+		assertArrayEquals(data, readChunks(chunks));
+		File materialized = chunkStore.materialize(file);
+		assertArrayEquals(data, Files.readAllBytes(materialized.toPath()));
+		materialized.delete();
+	}
+
+	@Test
+	public void plainFile_ReadManifest_Null() throws IOException {
+		File file = write("a.txt", "not a manifest".getBytes("US-ASCII"));
+
+		assertNull(ChunkStore.readManifest(file));
+		assertSame(file, chunkStore.materialize(file));
+	}
+
+	@Test
+	public void sameFileTwice_Ingest_ChunksStoredOnce() throws IOException {
+		byte[] data = randomBytes(512 * 1024, 2);
+		List<Chunk> chunks = chunkStore.ingest(write("a.bin", data));
+		long storedCount = chunkStore.getStoredChunkCount();
+
+		assertEquals(chunks, chunkStore.ingest(write("copy.bin", data)));
+
+		assertEquals(chunks.size(), storedCount);
+		assertEquals(storedCount, chunkStore.getStoredChunkCount());
+		assertEquals(data.length, chunkStore.getStoredBytes());
+		assertEquals(data.length, chunkStore.getDeduplicatedBytes());
+	}
+
+	@Test
+	public void appendedFile_GetMissingChunks_OnlyNewChunks()
+			throws IOException {
+		byte[] data = randomBytes(512 * 1024, 3);
+		List<Chunk> chunks = chunkStore.ingest(write("a.bin", data));
+		byte[] appended = new byte[data.length + 100 * 1024];
+		System.arraycopy(data, 0, appended, 0, data.length);
+		System.arraycopy(randomBytes(100 * 1024, 4), 0, appended, data.length,
+				100 * 1024);
+		File file = write("b.bin", appended);
+		List<Chunk> appendedChunks = new FastCdcChunker()
+				.chunk(file);
+
+		List<Chunk> missingChunks = chunkStore.getMissingChunks(appendedChunks);
+
+		assertFalse(missingChunks.isEmpty());
+		// the last chunk of the file was cut at its end
+		assertTrue(missingChunks.size() <= appendedChunks.size()
+				- chunks.size() + 1);
+		for (Chunk chunk : missingChunks)
+			assertFalse(chunkStore.contains(chunk));
+	}
+
+	@Test
+	public void chunksSent_PutAll_StoredAndReassembled() throws IOException {
+		byte[] data = randomBytes(300 * 1024, 5);
+		File file = write("a.bin", data);
+		List<Chunk> chunks = new FastCdcChunker().chunk(file);
+		File target = new File(rootFolder, "target.bin");
+
+		chunkStore.putAll(chunks, file);
+		chunkStore.writeManifest(target, chunks);
+
+		assertEquals(chunks, ChunkStore.readManifest(target));
+		assertArrayEquals(data, readChunks(chunks));
+	}
+
+	@Test
+	public void dataNotMatchingChunks_PutAll_Rejected() throws IOException {
+		byte[] data = randomBytes(100 * 1024, 6);
+		File file = write("a.bin", data);
+		List<Chunk> chunks = new FastCdcChunker().chunk(file);
+		data[50 * 1024] ^= 1;
+		write("a.bin", data);
+
+		try {
+			chunkStore.putAll(chunks, file);
+			fail("corrupt chunk stored");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void dataAfterChunks_PutAll_Rejected() throws IOException {
+		File file = write("a.bin", randomBytes(10 * 1024, 7));
+		List<Chunk> chunks = new FastCdcChunker().chunk(file);
+		byte[] longer = new byte[10 * 1024 + 1];
+		System.arraycopy(Files.readAllBytes(file.toPath()), 0, longer, 0,
+				10 * 1024);
+		write("a.bin", longer);
+
+		try {
+			chunkStore.putAll(chunks, file);
+			fail("data after the chunks accepted");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void missingChunk_WriteManifest_Rejected() throws IOException {
+		File file = write("a.bin", randomBytes(10 * 1024, 8));
+		List<Chunk> chunks = new FastCdcChunker().chunk(file);
+
+		try {
+			chunkStore.writeManifest(new File(rootFolder, "b.bin"), chunks);
+			fail("manifest of missing chunks written");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void sharedChunks_CollectGarbage_KeptWhileReferenced()
+			throws IOException {
+		byte[] data = randomBytes(512 * 1024, 9);
+		File first = write("a.bin", data);
+		List<Chunk> firstChunks = chunkStore.ingest(first, first);
+		byte[] changed = data.clone();
+		System.arraycopy(randomBytes(1000, 10), 0, changed, 0, 1000);
+		File second = write("b.bin", changed);
+		List<Chunk> secondChunks = chunkStore.ingest(second, second);
+		Set<Chunk> onlyInFirst = new HashSet<Chunk>(firstChunks);
+		onlyInFirst.removeAll(secondChunks);
+		assertFalse(onlyInFirst.isEmpty());
+
+		assertEquals(0, chunkStore.collectGarbage(rootFolder));
+		first.delete();
+		assertEquals(onlyInFirst.size(), chunkStore.collectGarbage(rootFolder));
+
+		for (Chunk chunk : onlyInFirst)
+			assertFalse(chunkStore.contains(chunk));
+		assertArrayEquals(changed, readChunks(secondChunks));
+
+		second.delete();
+		assertEquals(new HashSet<Chunk>(secondChunks).size(),
+				chunkStore.collectGarbage(rootFolder));
+		for (Chunk chunk : secondChunks)
+			assertFalse(chunkStore.contains(chunk));
+	}
+}
@@ -0,0 +1,161 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import common.Actions;
+import common.Message;
+
+public class TestCoalescingSyncQueue {
+
+	private static final Actions ADD = Actions.ADD;
+	private static final Actions MODIFY = Actions.MODIFY;
+	private static final Actions DELETE = Actions.DELETE;
+
+	/**
+	 * Pending update, newer update of the same path, merged action. null if
+	 * both cancel out
+	 */
+	private static final Actions[][] MERGE_TABLE = {
+			{ ADD, ADD, ADD },
+			{ ADD, MODIFY, ADD },
+			{ ADD, DELETE, null },
+			{ MODIFY, ADD, MODIFY },
+			{ MODIFY, MODIFY, MODIFY },
+			{ MODIFY, DELETE, DELETE },
+			{ DELETE, ADD, MODIFY },
+			{ DELETE, MODIFY, MODIFY },
+			{ DELETE, DELETE, DELETE } };
+
+	private CoalescingSyncQueue queue = new CoalescingSyncQueue();
+
+	@Test
+	public void twoUpdatesOfPath_Merge_MergedAsInTable() {
+		for (Actions[] row : MERGE_TABLE) {
+			Message merged = CoalescingSyncQueue.merge(new Message(row[0],
+					"a.txt", 1), new Message(row[1], "a.txt", 2));
+			String name = row[0] + " then " + row[1];
+			if (row[2] == null) {
+				assertNull(name, merged);
+				continue;
+			}
+			assertEquals(name, row[2], merged.getAction());
+			assertEquals(name, "a.txt", merged.getPath());
+			assertEquals(name, 2, merged.getRevisionNumber());
+		}
+	}
+
+	@Test
+	public void twoUpdatesOfPath_Add_QueueSizeChangedAsInTable() {
+		for (Actions[] row : MERGE_TABLE) {
+			CoalescingSyncQueue rowQueue = new CoalescingSyncQueue();
+			String name = row[0] + " then " + row[1];
+			assertEquals(name, 1, rowQueue.add(new Message(row[0], "a.txt",
+					1)));
+			assertEquals(name, row[2] == null ? -1 : 0,
+					rowQueue.add(new Message(row[1], "a.txt", 2)));
+			assertEquals(name, row[2] == null ? 0 : 1, rowQueue.size());
+			Message polled = rowQueue.poll();
+			if (row[2] == null)
+				assertNull(name, polled);
+			else
+				assertEquals(name, row[2], polled.getAction());
+		}
+	}
+
+	@Test
+	public void olderUpdate_Merge_PendingKept() {
+		for (Actions[] row : MERGE_TABLE) {
+			Message pending = new Message(row[0], "a.txt", 5);
+			assertSame(row[0] + " then " + row[1], pending,
+					CoalescingSyncQueue.merge(pending, new Message(row[1],
+							"a.txt", 4)));
+		}
+	}
+
+	@Test
+	public void addDeleteAdd_Add_OnlyLastAddQueued() {
+		queue.add(new Message(ADD, "a.txt", 1));
+		queue.add(new Message(DELETE, "a.txt", 2));
+		assertEquals(0, queue.size());
+		assertEquals(1, queue.add(new Message(ADD, "a.txt", 3)));
+
+		Message message = queue.poll();
+		assertEquals(ADD, message.getAction());
+		assertEquals(3, message.getRevisionNumber());
+		assertNull(queue.poll());
+	}
+
+	@Test
+	public void fileRequests_Add_OneRequestPerPath() {
+		queue.add(new Message(Actions.REQUEST_FILE_ADD, "a.txt"));
+		assertEquals(0, queue.add(new Message(Actions.REQUEST_FILE_MODIFY,
+				"a.txt")));
+		assertEquals(1, queue.size());
+		assertEquals(Actions.REQUEST_FILE_MODIFY, queue.poll().getAction());
+	}
+
+	@Test
+	public void updateAndFileRequestOfPath_Add_BothQueued() {
+		queue.add(new Message(MODIFY, "a.txt", 1));
+		assertEquals(1, queue.add(new Message(Actions.REQUEST_FILE_MODIFY,
+				"a.txt")));
+		assertEquals(2, queue.size());
+	}
+
+	@Test
+	public void messagesWithoutPath_Add_NeverMerged() {
+		assertEquals(1, queue.add(new Message(Actions.LOAD_INITIAL_REPOSITORY)));
+		assertEquals(1, queue.add(new Message(Actions.LOAD_INITIAL_REPOSITORY)));
+		assertEquals(2, queue.size());
+	}
+
+	@Test
+	public void mergedUpdate_Poll_MovedAfterOtherPaths() {
+		queue.add(new Message(MODIFY, "a.txt", 1));
+		queue.add(new Message(MODIFY, "b.txt", 2));
+		queue.add(new Message(MODIFY, "a.txt", 3));
+
+		assertEquals("b.txt", queue.poll().getPath());
+		Message message = queue.poll();
+		assertEquals("a.txt", message.getPath());
+		assertEquals(3, message.getRevisionNumber());
+	}
+
+	@Test
+	public void updatesThenRequest_PollBatch_BatchStopsAtRequest() {
+		queue.add(new Message(ADD, "a.txt", 1));
+		queue.add(new Message(DELETE, "b.txt", 2));
+		queue.add(new Message(Actions.REQUEST_FILE_ADD, "c.txt"));
+		queue.add(new Message(MODIFY, "d.txt", 3));
+
+		List<Message> batch = queue.pollBatch(10);
+		assertEquals(2, batch.size());
+		assertEquals("a.txt", batch.get(0).getPath());
+		assertEquals("b.txt", batch.get(1).getPath());
+		assertEquals(1, queue.pollBatch(10).size());
+		assertEquals(1, queue.pollBatch(10).size());
+		assertEquals(0, queue.pollBatch(10).size());
+	}
+
+	@Test
+	public void manyUpdates_PollBatch_AtMostMaxCount() {
+		for (int i = 0; i < 5; i++)
+			queue.add(new Message(ADD, "f" + i, i));
+		assertEquals(3, queue.pollBatch(3).size());
+		assertEquals(2, queue.pollBatch(3).size());
+	}
+
+	@Test
+	public void pendingMessages_Clear_CountRemoved() {
+		queue.add(new Message(ADD, "a.txt", 1));
+		queue.add(new Message(Actions.REQUEST_FILE_ADD, "a.txt"));
+		assertEquals(2, queue.clear());
+		assertEquals(0, queue.size());
+	}
+}
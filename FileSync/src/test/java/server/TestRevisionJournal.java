@@ -0,0 +1,286 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import common.Actions;
+import common.IRevisionIndex;
+import common.MemoryRevisionIndex;
+import common.Message;
+
+public class TestRevisionJournal {
+
+	private File folder;
+	private AtomicLong revisionCounter = new AtomicLong();
+	private IRevisionIndex revisionIndex = new MemoryRevisionIndex();
+	private ChangeFeed changeFeed;
+	private RevisionJournal journal;
+	// filled by recover
+	private ChangeFeed recoveredFeed;
+	private long recoveredRevisionNumber;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("journal").toFile();
+		journal = new RevisionJournal(folder, Long.MAX_VALUE);
+		changeFeed = new ChangeFeed(revisionCounter, 100, journal);
+		journal.open(new RevisionJournal.IRevisionState() {
+			@Override
+			public long getCurrentRevisionNumber() {
+				return revisionCounter.get();
+			}
+
+			@Override
+			public IRevisionIndex getRevisionIndex() {
+				return revisionIndex;
+			}
+
+			@Override
+			public List<ChangeFeed.Change> getChanges() {
+				return changeFeed.saveChanges();
+			}
+
+			@Override
+			public void snapshotWritten() {
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		journal.close();
+		changeFeed.shutdown();
+		File[] files = folder.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		folder.delete();
+	}
+
+	/**
+	 * Updates the state and appends the update, as the server does
+	 */
+	private long setRevision(String path) {
+		long revisionNumber = revisionCounter.incrementAndGet();
+		synchronized (journal) {
+			revisionIndex.put(path, revisionNumber);
+			return journal.appendRevision(path, revisionNumber);
+		}
+	}
+
+	private IRevisionIndex recover() throws IOException {
+		IRevisionIndex recovered = new MemoryRevisionIndex();
+		RevisionJournal recovering = new RevisionJournal(folder,
+				Long.MAX_VALUE);
+		recoveredFeed = new ChangeFeed(new AtomicLong(), 100, recovering);
+		try {
+			recoveredRevisionNumber = recovering.recover(recovered,
+					recoveredFeed);
+		} finally {
+			recoveredFeed.shutdown();
+		}
+		return recovered;
+	}
+
+	private List<File> journalFiles() {
+		List<File> journalFiles = new ArrayList<File>();
+		for (File file : folder.listFiles()) {
+			if (file.getName().startsWith("journal-"))
+				journalFiles.add(file);
+		}
+		return journalFiles;
+	}
+
+	@Test
+	public void syncedRecords_Recover_EveryRecordReplayed() throws IOException {
+		setRevision("a.txt");
+		setRevision("b.txt");
+		setRevision("a.txt");
+		changeFeed.record(new Message(Actions.MODIFY, "a.txt", 3));
+		journal.close();
+
+		IRevisionIndex recovered = recover();
+
+		assertEquals(4, recoveredRevisionNumber);
+		assertEquals(3, recovered.get("a.txt"));
+		assertEquals(2, recovered.get("b.txt"));
+		Message page = recoveredFeed.getPage(0);
+		assertEquals(1, page.getEntries().size());
+		assertEquals("a.txt", page.getEntries().get(0).getPath());
+		assertEquals(4, page.getRevisionNumber());
+	}
+
+	@Test
+	public void lastRecordTorn_Recover_RecordsBeforeItReplayed()
+			throws IOException {
+		setRevision("a.txt");
+		setRevision("b.txt");
+		setRevision("c.txt");
+		journal.close();
+		File journalFile = journalFiles().get(0);
+		RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+		try {
+			file.setLength(file.length() - 3);
+		} finally {
+			file.close();
+		}
+
+		IRevisionIndex recovered = recover();
+		assertEquals(2, recovered.size());
+		assertEquals(1, recovered.get("a.txt"));
+		assertEquals(2, recovered.get("b.txt"));
+		assertEquals(-1, recovered.get("c.txt"));
+	}
+
+	@Test
+	public void lastRecordCorrupted_Recover_RecordsBeforeItReplayed()
+			throws IOException {
+		setRevision("a.txt");
+		setRevision("b.txt");
+		journal.close();
+		File journalFile = journalFiles().get(0);
+		RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+		try {
+			// last byte of the revision number of b.txt
+			file.seek(file.length() - 1);
+			int last = file.read();
+			file.seek(file.length() - 1);
+			file.write(last ^ 0xFF);
+		} finally {
+			file.close();
+		}
+
+		IRevisionIndex recovered = recover();
+		assertEquals(1, recovered.size());
+		assertEquals(1, recovered.get("a.txt"));
+	}
+
+	@Test
+	public void compactedJournal_Recover_SnapshotAndNextGenerationReplayed()
+			throws IOException {
+		setRevision("a.txt");
+		setRevision("b.txt");
+		changeFeed.record(new Message(Actions.ADD, "b.txt", 2));
+		journal.compact();
+		setRevision("a.txt");
+		setRevision("c.txt");
+		changeFeed.record(new Message(Actions.DELETE, "b.txt", 2));
+		journal.close();
+
+		// the generation before the snapshot is deleted
+		assertEquals(1, journalFiles().size());
+		assertTrue(new File(folder, "snapshot").exists());
+
+		IRevisionIndex recovered = recover();
+
+		assertEquals(6, recoveredRevisionNumber);
+		assertEquals(4, recovered.get("a.txt"));
+		assertEquals(2, recovered.get("b.txt"));
+		assertEquals(5, recovered.get("c.txt"));
+		Message page = recoveredFeed.getPage(0);
+		assertEquals(1, page.getEntries().size());
+		assertEquals(Actions.DELETE, page.getEntries().get(0).getAction());
+	}
+
+	@Test
+	public void compactedTwice_Recover_OnlyLastSnapshotAndGenerationKept()
+			throws IOException {
+		setRevision("a.txt");
+		journal.compact();
+		setRevision("b.txt");
+		journal.compact();
+		setRevision("c.txt");
+		journal.close();
+
+		assertEquals(1, journalFiles().size());
+		IRevisionIndex recovered = recover();
+		assertEquals(3, recovered.size());
+		assertEquals(3, recovered.get("c.txt"));
+	}
+
+	@Test
+	public void severalAppenders_Sync_OneFsyncShared() throws Exception {
+		final int appenderCount = 4;
+		final CountDownLatch appended = new CountDownLatch(appenderCount);
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		long syncCount = journal.getSyncCount();
+		Thread[] appenders = new Thread[appenderCount];
+		for (int i = 0; i < appenderCount; i++) {
+			final int index = i;
+			appenders[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						long sequence = setRevision("file" + index);
+						appended.countDown();
+						appended.await();
+						journal.sync(sequence);
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			};
+			appenders[i].start();
+		}
+		for (Thread appender : appenders)
+			appender.join();
+
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(syncCount + 1, journal.getSyncCount());
+		journal.syncAll();
+		assertEquals(syncCount + 1, journal.getSyncCount());
+	}
+
+	@Test
+	public void concurrentAppendersSyncing_Recover_EveryRecordReplayed()
+			throws Exception {
+		final int threadCount = 8;
+		final int recordCount = 50;
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		Thread[] appenders = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			final int index = i;
+			appenders[i] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < recordCount; j++)
+							journal.sync(setRevision("t" + index + "/f" + j));
+					} catch (Throwable e) {
+						synchronized (failures) {
+							failures.add(e);
+						}
+					}
+				}
+			};
+			appenders[i].start();
+		}
+		for (Thread appender : appenders)
+			appender.join();
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertTrue(journal.getSyncCount() <= threadCount * recordCount);
+		journal.close();
+
+		IRevisionIndex recovered = recover();
+		assertEquals(threadCount * recordCount, recovered.size());
+		for (int i = 0; i < threadCount; i++)
+			for (int j = 0; j < recordCount; j++)
+				assertEquals(revisionIndex.get("t" + i + "/f" + j),
+						recovered.get("t" + i + "/f" + j));
+	}
+}
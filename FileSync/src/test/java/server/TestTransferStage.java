@@ -0,0 +1,325 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestTransferStage {
+
+	private StageMetrics stageMetrics = new StageMetrics("transfer");
+	private TransferStage transferStage;
+
+	@After
+	public void tearDown() {
+		if (transferStage != null)
+			transferStage.shutdown();
+	}
+
+	/**
+	 * @return task waiting for the latch, counting down started first
+	 */
+	private static Runnable blockingTask(final CountDownLatch started,
+			final CountDownLatch release) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	private static void await(CountDownLatch latch) throws InterruptedException {
+		assertTrue("timed out", latch.await(10, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void tasksOfOnePath_Execute_RunInOrderOneAtATime()
+			throws Exception {
+		transferStage = new TransferStage(4, 100, stageMetrics);
+		final List<Integer> order = new ArrayList<Integer>();
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicBoolean overlapped = new AtomicBoolean();
+		final CountDownLatch done = new CountDownLatch(50);
+		for (int i = 0; i < 50; i++) {
+			final int index = i;
+			assertTrue(transferStage.execute("a.txt", new Runnable() {
+				@Override
+				public void run() {
+					if (running.incrementAndGet() > 1)
+						overlapped.set(true);
+					synchronized (order) {
+						order.add(index);
+					}
+					Thread.yield();
+					running.decrementAndGet();
+					done.countDown();
+				}
+			}));
+		}
+		await(done);
+
+		assertFalse(overlapped.get());
+		for (int i = 0; i < 50; i++)
+			assertEquals(Integer.valueOf(i), order.get(i));
+	}
+
+	@Test
+	public void tasksOfTwoPaths_Execute_RunInParallel() throws Exception {
+		transferStage = new TransferStage(2, 10, stageMetrics);
+		CountDownLatch firstStarted = new CountDownLatch(1);
+		CountDownLatch secondStarted = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		transferStage.execute("a.txt", blockingTask(firstStarted, release));
+		await(firstStarted);
+		transferStage.execute("b.txt", blockingTask(secondStarted, release));
+
+		// runs while the task of a.txt still waits
+		await(secondStarted);
+		release.countDown();
+	}
+
+	@Test
+	public void runningTask_IsPending_TrueUntilLastTaskOfPathDone()
+			throws Exception {
+		transferStage = new TransferStage(1, 10, stageMetrics);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+		transferStage.execute("a.txt", blockingTask(started, release));
+		transferStage.execute("a.txt", new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		await(started);
+		assertTrue(transferStage.isPending("a.txt"));
+		assertFalse(transferStage.isPending("b.txt"));
+
+		release.countDown();
+		await(done);
+		for (int i = 0; i < 100 && transferStage.isPending("a.txt"); i++)
+			Thread.sleep(10);
+		assertFalse(transferStage.isPending("a.txt"));
+	}
+
+	@Test
+	public void queueFull_Execute_WaitsForATaskToComplete() throws Exception {
+		// one thread and one queued task
+		transferStage = new TransferStage(1, 1, stageMetrics);
+		CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		transferStage.execute("a.txt", blockingTask(started, release));
+		await(started);
+		transferStage.execute("b.txt", blockingTask(new CountDownLatch(1),
+				release));
+		assertEquals(1, stageMetrics.getQueueDepth());
+
+		final CountDownLatch queued = new CountDownLatch(1);
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				transferStage.execute("c.txt", blockingTask(
+						new CountDownLatch(1), release));
+				queued.countDown();
+			}
+		};
+		producer.start();
+		assertFalse(queued.await(200, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		await(queued);
+		producer.join();
+	}
+
+	@Test
+	public void completedTasks_QueueDepth_Zero() throws Exception {
+		transferStage = new TransferStage(2, 2, stageMetrics);
+		final CountDownLatch done = new CountDownLatch(20);
+		for (int i = 0; i < 20; i++) {
+			transferStage.execute(i % 2 == 0 ? "a.txt" : null, new Runnable() {
+				@Override
+				public void run() {
+					throw new IllegalStateException("failed transfer");
+				}
+			});
+			transferStage.execute("b.txt", new Runnable() {
+				@Override
+				public void run() {
+					done.countDown();
+				}
+			});
+		}
+		await(done);
+		for (int i = 0; i < 100 && stageMetrics.getActiveCount() > 0; i++)
+			Thread.sleep(10);
+		assertEquals(0, stageMetrics.getQueueDepth());
+		assertEquals(40, stageMetrics.getCompletedCount());
+	}
+
+	@Test
+	public void stageShutDown_Execute_RefusedEveryTime() {
+		transferStage = new TransferStage(1, 10, stageMetrics);
+		transferStage.shutdown();
+
+		assertFalse(transferStage.execute("a.txt", new Runnable() {
+			@Override
+			public void run() {
+			}
+		}));
+		assertFalse(transferStage.isPending("a.txt"));
+		assertFalse(transferStage.execute("a.txt", new Runnable() {
+			@Override
+			public void run() {
+			}
+		}));
+		assertFalse(transferStage.execute(null, new Runnable() {
+			@Override
+			public void run() {
+			}
+		}));
+		assertEquals(0, stageMetrics.getQueueDepth());
+	}
+
+	@Test
+	public void tasksQueuedBehindRunningTask_Shutdown_DroppedAndReleased()
+			throws Exception {
+		transferStage = new TransferStage(1, 10, stageMetrics);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean queuedTaskRun = new AtomicBoolean();
+		Runnable queuedTask = new Runnable() {
+			@Override
+			public void run() {
+				queuedTaskRun.set(true);
+			}
+		};
+		transferStage.execute("a.txt", blockingTask(started, release));
+		await(started);
+		assertTrue(transferStage.execute("a.txt", queuedTask));
+		assertTrue(transferStage.execute("a.txt", queuedTask));
+		transferStage.shutdown();
+
+		// a running path takes no more tasks once the stage is shut down
+		assertFalse(transferStage.execute("a.txt", queuedTask));
+		release.countDown();
+		for (int i = 0; i < 100 && transferStage.isPending("a.txt"); i++)
+			Thread.sleep(10);
+
+		assertFalse(transferStage.isPending("a.txt"));
+		assertFalse(queuedTaskRun.get());
+		assertEquals(0, stageMetrics.getQueueDepth());
+	}
+
+	@Test
+	public void reservedTask_SubmitLater_LaterTasksOfPathWait()
+			throws Exception {
+		transferStage = new TransferStage(2, 10, stageMetrics);
+		final List<String> order = new ArrayList<String>();
+		final CountDownLatch done = new CountDownLatch(2);
+		TransferStage.Reservation reservation = transferStage
+				.reserve("a.txt");
+		transferStage.execute("a.txt", new Runnable() {
+			@Override
+			public void run() {
+				synchronized (order) {
+					order.add("later");
+				}
+				done.countDown();
+			}
+		});
+		assertTrue(transferStage.isPending("a.txt"));
+		Thread.sleep(100);
+		assertTrue(order.isEmpty());
+		assertEquals(0, stageMetrics.getActiveCount());
+
+		assertTrue(reservation.submit(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (order) {
+					order.add("reserved");
+				}
+				done.countDown();
+			}
+		}));
+		await(done);
+
+		assertEquals(2, order.size());
+		assertEquals("reserved", order.get(0));
+		assertEquals("later", order.get(1));
+	}
+
+	@Test
+	public void reservationBehindRunningTask_SubmitEarly_RunsAfterIt()
+			throws Exception {
+		transferStage = new TransferStage(2, 10, stageMetrics);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean reservedRun = new AtomicBoolean();
+		final CountDownLatch done = new CountDownLatch(1);
+		transferStage.execute("a.txt", blockingTask(started, release));
+		await(started);
+		TransferStage.Reservation reservation = transferStage
+				.reserve("a.txt");
+
+		assertTrue(reservation.submit(new Runnable() {
+			@Override
+			public void run() {
+				reservedRun.set(true);
+				done.countDown();
+			}
+		}));
+		Thread.sleep(100);
+		assertFalse(reservedRun.get());
+
+		release.countDown();
+		await(done);
+		for (int i = 0; i < 100 && transferStage.isPending("a.txt"); i++)
+			Thread.sleep(10);
+		assertFalse(transferStage.isPending("a.txt"));
+		assertEquals(0, stageMetrics.getQueueDepth());
+	}
+
+	@Test
+	public void reservationOfRunningPath_StageShutDown_SubmitRefused()
+			throws Exception {
+		transferStage = new TransferStage(1, 10, stageMetrics);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		transferStage.execute("a.txt", blockingTask(started, release));
+		await(started);
+		TransferStage.Reservation queued = transferStage.reserve("a.txt");
+		transferStage.shutdown();
+		TransferStage.Reservation refused = transferStage.reserve("a.txt");
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+			}
+		};
+
+		assertFalse(refused.submit(task));
+		release.countDown();
+		for (int i = 0; i < 100 && transferStage.isPending("a.txt"); i++)
+			Thread.sleep(10);
+
+		// the caller runs the task itself
+		assertFalse(queued.submit(task));
+		assertFalse(transferStage.isPending("a.txt"));
+		assertEquals(0, stageMetrics.getQueueDepth());
+	}
+}